@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+/**
+ * Compares {@link LineProtocolWriter} with string concatenation of line
+ * protocol, for gridappsd-like simulation output measurements. Run with
+ * {@code gradle jmh}; add {@code -prof gc} to the task arguments to compare
+ * allocation rates.
+ * 
+ * @author d3j766
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LineProtocolWriterBenchmark {
+
+	private static final int MEASUREMENTS = 1000;
+
+	private List<ProvenMeasurement> measurements;
+
+	private LineProtocolWriter writer;
+
+	private ByteBuffer target;
+
+	@Setup
+	public void setup() {
+		measurements = new ArrayList<ProvenMeasurement>();
+		for (int i = 0; i < MEASUREMENTS; i++) {
+			Set<ProvenMetric> metrics = new HashSet<ProvenMetric>();
+			metrics.add(new ProvenMetric("simulation_id", "1278337146", true, MetricValueType.String));
+			metrics.add(new ProvenMetric("measurement_mrid", "_" + i + "f2c5cb5-e1b4-4d1b-93ae-f6eea5de4a1f", true,
+					MetricValueType.String));
+			metrics.add(new ProvenMetric("hasSimulationMessageType", "OUTPUT", true, MetricValueType.String));
+			metrics.add(new ProvenMetric("magnitude", Double.toString(2401.7 + i), false, MetricValueType.Double));
+			metrics.add(new ProvenMetric("angle", Double.toString(-120.5 + i / 1000.0), false,
+					MetricValueType.Double));
+			metrics.add(new ProvenMetric("value", Integer.toString(i % 2), false, MetricValueType.Integer));
+			measurements.add(new ProvenMeasurement("simulation", 1357048800L + i, metrics));
+		}
+		writer = new LineProtocolWriter();
+		target = ByteBuffer.allocate(1 << 20);
+	}
+
+	@Benchmark
+	public int writer() {
+		target.clear();
+		int ret = 0;
+		for (ProvenMeasurement measurement : measurements) {
+			ret += writer.write(measurement, target);
+		}
+		return ret;
+	}
+
+	@Benchmark
+	public void stringBuilder(Blackhole bh) {
+		target.clear();
+		for (ProvenMeasurement measurement : measurements) {
+			byte[] line = naive(measurement).getBytes(StandardCharsets.UTF_8);
+			target.put(line);
+			bh.consume(line);
+		}
+	}
+
+	/**
+	 * Line protocol by concatenation, as done downstream.
+	 */
+	private static String naive(ProvenMeasurement measurement) {
+
+		String tags = "";
+		String fields = "";
+		List<ProvenMetric> sorted = new ArrayList<ProvenMetric>(measurement.getMetrics());
+		sorted.sort((a, b) -> a.getLabel().compareTo(b.getLabel()));
+		for (ProvenMetric metric : sorted) {
+			if (metric.isMetadata()) {
+				tags += "," + escape(metric.getLabel()) + "=" + escape(metric.getValue());
+			} else {
+				String value = metric.getValue();
+				if ((metric.getValueType() == MetricValueType.Integer)
+						|| (metric.getValueType() == MetricValueType.Long)) {
+					value += "i";
+				} else if (metric.getValueType() == MetricValueType.String) {
+					value = "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+				}
+				fields += (fields.isEmpty() ? " " : ",") + escape(metric.getLabel()) + "=" + value;
+			}
+		}
+		return escape(measurement.getMeasurementName()) + tags + fields + " " + measurement.getTimestamp() + "\n";
+	}
+
+	private static String escape(String s) {
+		return s.replace(",", "\\,").replace(" ", "\\ ").replace("=", "\\=");
+	}
+
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response.Status;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hazelcast.internal.serialization.InternalSerializationService;
+import com.hazelcast.internal.serialization.impl.DefaultSerializationServiceBuilder;
+import com.hazelcast.nio.serialization.Data;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+/**
+ * Compares decoding a {@link ProvenQueryResult} with decoding the same
+ * results sent as a text {@link ProvenMessageResponse} (line protocol, see
+ * {@link LineProtocolWriter}), both Hazelcast serialized. Each benchmark
+ * deserializes the results and reads every time and field value as a number.
+ * Serialized sizes are printed by the setup. Run with {@code gradle jmh}.
+ * 
+ * @author d3j766
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProvenQueryResultBenchmark {
+
+	private static final int MEASUREMENTS = 1000;
+
+	private InternalSerializationService serialization;
+
+	private Data columnar;
+
+	private Data text;
+
+	@Setup
+	public void setup() throws IOException {
+
+		List<ProvenMeasurement> measurements = new ArrayList<ProvenMeasurement>();
+		for (int i = 0; i < MEASUREMENTS; i++) {
+			Set<ProvenMetric> metrics = new HashSet<ProvenMetric>();
+			metrics.add(new ProvenMetric("simulation_id", "1278337146", true, MetricValueType.String));
+			metrics.add(new ProvenMetric("measurement_mrid", "_" + (i % 50) + "f2c5cb5-e1b4-4d1b-93ae-f6eea5de4a1f",
+					true, MetricValueType.String));
+			metrics.add(new ProvenMetric("hasSimulationMessageType", "OUTPUT", true, MetricValueType.String));
+			metrics.add(new ProvenMetric("magnitude", Double.toString(2401.7 + i * 0.013), false,
+					MetricValueType.Double));
+			metrics.add(new ProvenMetric("angle", Double.toString(-120.5 + i / 1000.0), false,
+					MetricValueType.Double));
+			metrics.add(new ProvenMetric("value", Integer.toString(i % 2), false, MetricValueType.Integer));
+			measurements.add(new ProvenMeasurement("simulation", 1357048800L + (i / 50), metrics));
+		}
+
+		serialization = new DefaultSerializationServiceBuilder()
+				.addDataSerializableFactory(ProvenMessageIDSFactory.FACTORY_ID, new ProvenMessageIDSFactory()).build();
+
+		ProvenQueryResult result = new ProvenQueryResult.Builder("simulation").addAll(measurements).build();
+		result.setRequestId("request");
+		columnar = serialization.toData(result);
+
+		ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		new LineProtocolWriter().writeAll(measurements, lines);
+		ProvenMessageResponse response = new ProvenMessageResponse();
+		response.setRequestId("request");
+		response.setStatus(Status.OK);
+		response.setCode(Status.OK.getStatusCode());
+		response.setReason(Status.OK.getReasonPhrase());
+		response.setResponse(new String(lines.toByteArray(), StandardCharsets.UTF_8));
+		text = serialization.toData(response);
+
+		System.out.println("Serialized size of " + MEASUREMENTS + " results, columnar: " + columnar.totalSize()
+				+ " bytes, text: " + text.totalSize() + " bytes");
+	}
+
+	@Benchmark
+	public double columnar() {
+		ProvenQueryResult result = serialization.toObject(columnar);
+		int magnitude = result.getFieldIndex("magnitude");
+		int angle = result.getFieldIndex("angle");
+		int value = result.getFieldIndex("value");
+		double ret = 0;
+		ProvenQueryResult.Cursor cursor = result.cursor();
+		while (cursor.next()) {
+			ret += cursor.getTime() + cursor.getDouble(magnitude) + cursor.getDouble(angle) + cursor.getLong(value);
+		}
+		return ret;
+	}
+
+	@Benchmark
+	public double text() {
+		ProvenMessageResponse response = serialization.toObject(text);
+		String lines = response.getResponse();
+		double ret = 0;
+		int start = 0;
+		int end;
+		while ((end = lines.indexOf('\n', start)) >= 0) {
+			String line = lines.substring(start, end);
+			int fieldsStart = line.indexOf(' ') + 1;
+			int fieldsEnd = line.lastIndexOf(' ');
+			for (String field : line.substring(fieldsStart, fieldsEnd).split(",")) {
+				String number = field.substring(field.indexOf('=') + 1);
+				if (number.endsWith("i")) {
+					ret += Long.parseLong(number.substring(0, number.length() - 1));
+				} else {
+					ret += Double.parseDouble(number);
+				}
+			}
+			ret += Long.parseLong(line.substring(fieldsEnd + 1));
+			start = end + 1;
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the batch size and linger time of a {@link MessageBatchBuilder} to
+ * keep its p99 build latency under a target, while batching as much as the
+ * target allows.
+ * 
+ * Each adjustment looks at the latencies, queue depth and batch fill since
+ * the previous one, and makes one {@link Decision}. Latency is split into
+ * two stages: the wait from submit to the start of a batch's build,
+ * including linger, and the batch build itself. Over target, the setting of
+ * the stage with the larger p99 is halved: linger for the wait, batch size
+ * for the build (batch size too when linger is already 0). With headroom
+ * under the target, a queue backlog of at least a batch grows the batch size
+ * by one step, and under-filled batches grow the linger by one step, but only
+ * while some messages share a rule pass; lingering can't help batches that
+ * fall back to unbatched builds. Otherwise settings are held. Latency is
+ * probed upward slowly and backed off quickly, so the target holds at high
+ * load, while low load batching isn't limited by fixed settings.
+ * 
+ * @author d3j766
+ *
+ */
+public class AdaptiveBatchController {
+
+	private static Logger log = LoggerFactory.getLogger(AdaptiveBatchController.class);
+
+	public static final int DEFAULT_MIN_BATCH_SIZE = 1;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	public static final int DEFAULT_BATCH_SIZE_STEP = 4;
+	public static final long DEFAULT_MAX_LINGER_MILLIS = 50;
+	public static final long DEFAULT_LINGER_STEP_MILLIS = 1;
+
+	/**
+	 * Fraction of the target p99 below which settings may grow.
+	 */
+	public static final double DEFAULT_HEADROOM = 0.8;
+
+	/**
+	 * Adjustment decisions.
+	 */
+	public enum Decision {
+		Hold, IncreaseBatchSize, IncreaseLinger, DecreaseBatchSize, DecreaseLinger;
+	}
+
+	private final MessageBatchBuilder builder;
+
+	private final long targetNanos;
+
+	private int minBatchSize = DEFAULT_MIN_BATCH_SIZE;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private int batchSizeStep = DEFAULT_BATCH_SIZE_STEP;
+	private long maxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+	private long lingerStepMillis = DEFAULT_LINGER_STEP_MILLIS;
+	private double headroom = DEFAULT_HEADROOM;
+
+	private final Map<Decision, AtomicLong> decisions = new EnumMap<Decision, AtomicLong>(Decision.class);
+
+	private volatile Decision lastDecision = Decision.Hold;
+	private volatile long lastP99Nanos;
+	private volatile int lastQueueSize;
+	private volatile double lastBatchFill;
+	private volatile double lastBatchedFraction;
+	private volatile long lastWaitP99Nanos;
+	private volatile long lastBuildP99Nanos;
+
+	private LatencyHistogram lastLatencies;
+	private LatencyHistogram lastWaitTimes;
+	private LatencyHistogram lastBuildTimes;
+	private long lastBatches;
+	private long lastBatched;
+	private long lastUnbatched;
+
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Creates a controller for a batch builder, starting from its current
+	 * settings.
+	 * 
+	 * @param builder
+	 *            the batch builder
+	 * @param targetP99
+	 *            the p99 build latency target
+	 * @param unit
+	 *            target time unit
+	 */
+	public AdaptiveBatchController(MessageBatchBuilder builder, long targetP99, TimeUnit unit) {
+		if (targetP99 <= 0) {
+			throw new IllegalArgumentException("Invalid p99 target: " + targetP99);
+		}
+		this.builder = builder;
+		this.targetNanos = unit.toNanos(targetP99);
+		for (Decision decision : Decision.values()) {
+			decisions.put(decision, new AtomicLong());
+		}
+		this.lastLatencies = builder.getLatencies().snapshot();
+		this.lastWaitTimes = builder.getWaitTimes().snapshot();
+		this.lastBuildTimes = builder.getBuildTimes().snapshot();
+		this.lastBatches = builder.getBatchCount();
+		this.lastBatched = builder.getBatchedCount();
+		this.lastUnbatched = builder.getUnbatchedCount();
+	}
+
+	/**
+	 * Starts adjusting at a fixed interval, on a daemon thread.
+	 * 
+	 * @param interval
+	 *            time between adjustments, should allow enough builds for a
+	 *            p99
+	 * @param unit
+	 *            interval time unit
+	 */
+	public synchronized void start(long interval, TimeUnit unit) {
+		if (null != timer) {
+			throw new IllegalStateException("Controller already started");
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "proven-batch-control");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(() -> {
+			try {
+				adjust();
+			} catch (RuntimeException e) {
+				log.error("Batch adjustment failed", e);
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stops periodic adjustment, current settings are kept.
+	 */
+	public synchronized void stop() {
+		if (null != timer) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Makes one adjustment, based on builds since the previous one. Intervals
+	 * without builds are held.
+	 * 
+	 * @return the decision made
+	 */
+	public synchronized Decision adjust() {
+
+		LatencyHistogram latencies = builder.getLatencies().snapshot();
+		LatencyHistogram waitTimes = builder.getWaitTimes().snapshot();
+		LatencyHistogram buildTimes = builder.getBuildTimes().snapshot();
+		LatencyHistogram window = latencies.since(lastLatencies);
+		long waitP99 = waitTimes.since(lastWaitTimes).getPercentile(99, TimeUnit.NANOSECONDS);
+		long buildP99 = buildTimes.since(lastBuildTimes).getPercentile(99, TimeUnit.NANOSECONDS);
+		long batches = builder.getBatchCount();
+		long batched = builder.getBatchedCount();
+		long unbatched = builder.getUnbatchedCount();
+		long windowBatches = batches - lastBatches;
+		long windowBatched = batched - lastBatched;
+		long windowBuilds = windowBatched + (unbatched - lastUnbatched);
+		double fill = (windowBatches == 0) ? 0 : (double) windowBatched / windowBatches;
+		double batchedFraction = (windowBuilds == 0) ? 0 : (double) windowBatched / windowBuilds;
+		lastLatencies = latencies;
+		lastWaitTimes = waitTimes;
+		lastBuildTimes = buildTimes;
+		lastBatches = batches;
+		lastBatched = batched;
+		lastUnbatched = unbatched;
+
+		int batchSize = builder.getMaxBatchSize();
+		long linger = builder.getLingerMillis();
+		int queueSize = builder.getQueueSize();
+		long p99 = window.getPercentile(99, TimeUnit.NANOSECONDS);
+
+		Decision decision = Decision.Hold;
+		if (window.getCount() > 0) {
+			if (p99 > targetNanos) {
+				if ((waitP99 > buildP99) && (linger > 0)) {
+					decision = Decision.DecreaseLinger;
+					linger = linger / 2;
+				} else if (batchSize > minBatchSize) {
+					decision = Decision.DecreaseBatchSize;
+					batchSize = Math.max(minBatchSize, batchSize / 2);
+				} else if (linger > 0) {
+					decision = Decision.DecreaseLinger;
+					linger = linger / 2;
+				}
+			} else if (p99 < (targetNanos * headroom)) {
+				if ((queueSize >= batchSize) && (batchSize < maxBatchSize)) {
+					decision = Decision.IncreaseBatchSize;
+					batchSize = Math.min(maxBatchSize, batchSize + batchSizeStep);
+				} else if ((batchedFraction > 0) && (fill < batchSize) && (linger < maxLingerMillis)) {
+					decision = Decision.IncreaseLinger;
+					linger = Math.min(maxLingerMillis, linger + lingerStepMillis);
+				}
+			}
+		}
+
+		if (decision != Decision.Hold) {
+			builder.setMaxBatchSize(batchSize);
+			builder.setLingerMillis(linger);
+			log.debug("Batch " + decision + ": size=" + batchSize + ", linger=" + linger + "ms, p99="
+					+ TimeUnit.NANOSECONDS.toMillis(p99) + "ms (wait=" + TimeUnit.NANOSECONDS.toMillis(waitP99)
+					+ "ms, build=" + TimeUnit.NANOSECONDS.toMillis(buildP99) + "ms), queue=" + queueSize + ", fill="
+					+ String.format("%.1f", fill) + ", batched=" + String.format("%.2f", batchedFraction));
+		}
+
+		decisions.get(decision).incrementAndGet();
+		lastDecision = decision;
+		lastP99Nanos = p99;
+		lastQueueSize = queueSize;
+		lastBatchFill = fill;
+		lastBatchedFraction = batchedFraction;
+		lastWaitP99Nanos = waitP99;
+		lastBuildP99Nanos = buildP99;
+		return decision;
+	}
+
+	public long getTarget(TimeUnit unit) {
+		return unit.convert(targetNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return number of adjustments that made a decision
+	 */
+	public long getDecisionCount(Decision decision) {
+		return decisions.get(decision).get();
+	}
+
+	public Decision getLastDecision() {
+		return lastDecision;
+	}
+
+	/**
+	 * @return p99 build latency seen by the last adjustment
+	 */
+	public long getLastP99(TimeUnit unit) {
+		return unit.convert(lastP99Nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return queue depth seen by the last adjustment
+	 */
+	public int getLastQueueSize() {
+		return lastQueueSize;
+	}
+
+	/**
+	 * @return mean messages per shared rule pass seen by the last adjustment
+	 */
+	public double getLastBatchFill() {
+		return lastBatchFill;
+	}
+
+	/**
+	 * @return fraction of builds sharing a rule pass seen by the last
+	 *         adjustment
+	 */
+	public double getLastBatchedFraction() {
+		return lastBatchedFraction;
+	}
+
+	/**
+	 * @return p99 wait from submit to batch build seen by the last adjustment
+	 */
+	public long getLastWaitP99(TimeUnit unit) {
+		return unit.convert(lastWaitP99Nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return p99 batch build time seen by the last adjustment
+	 */
+	public long getLastBuildP99(TimeUnit unit) {
+		return unit.convert(lastBuildP99Nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public int getBatchSize() {
+		return builder.getMaxBatchSize();
+	}
+
+	public long getLingerMillis() {
+		return builder.getLingerMillis();
+	}
+
+	/**
+	 * Sets batch size limits and growth step.
+	 */
+	public synchronized void setBatchSizeLimits(int minBatchSize, int maxBatchSize, int step) {
+		if ((minBatchSize < 1) || (maxBatchSize < minBatchSize) || (step < 1)) {
+			throw new IllegalArgumentException(
+					"Invalid batch size limits: " + minBatchSize + ", " + maxBatchSize + ", " + step);
+		}
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = maxBatchSize;
+		this.batchSizeStep = step;
+	}
+
+	/**
+	 * Sets linger limit and growth step.
+	 */
+	public synchronized void setLingerLimits(long maxLingerMillis, long stepMillis) {
+		if ((maxLingerMillis < 0) || (stepMillis < 1)) {
+			throw new IllegalArgumentException("Invalid linger limits: " + maxLingerMillis + ", " + stepMillis);
+		}
+		this.maxLingerMillis = maxLingerMillis;
+		this.lingerStepMillis = stepMillis;
+	}
+
+	/**
+	 * Sets the fraction of the target p99 below which settings may grow.
+	 */
+	public synchronized void setHeadroom(double headroom) {
+		if ((headroom <= 0) || (headroom > 1)) {
+			throw new IllegalArgumentException("Invalid headroom: " + headroom);
+		}
+		this.headroom = headroom;
+	}
+
+	@Override
+	public String toString() {
+		return "target=" + getTarget(TimeUnit.MILLISECONDS) + "ms, size=" + getBatchSize() + ", linger="
+				+ getLingerMillis() + "ms, last=" + lastDecision + ", " + decisions;
+	}
+
+}
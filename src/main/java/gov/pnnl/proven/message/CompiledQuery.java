@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+/**
+ * A {@link ProvenQueryTimeSeries} compiled for local evaluation. Its time
+ * filters are combined into a single inclusive time range, so sources can
+ * scan by time, and its remaining filters are compiled into typed predicates.
+ * 
+ * @author d3j766
+ *
+ */
+public final class CompiledQuery {
+
+	private final String measurementName;
+	private long startTime = Long.MIN_VALUE;
+	private long endTime = Long.MAX_VALUE;
+	private final List<CompiledQueryFilter> filters = new ArrayList<CompiledQueryFilter>();
+	private List<ProvenQueryTimeSeries.Aggregation> aggregations = Collections.emptyList();
+	private long bucketSize;
+	private String fingerprint;
+
+	private CompiledQuery(String measurementName) {
+		this.measurementName = measurementName;
+	}
+
+	/**
+	 * Compiles a query.
+	 * 
+	 * @param query
+	 *            the time-series query
+	 * @return the compiled query
+	 * @throws InvalidProvenQueryException
+	 *             if a query filter is invalid
+	 */
+	public static CompiledQuery compile(ProvenQueryTimeSeries query) throws InvalidProvenQueryException {
+
+		CompiledQuery ret = new CompiledQuery(query.getMeasurementName());
+		if (null != query.getFilters()) {
+			for (ProvenQueryFilter filter : query.getFilters()) {
+				CompiledQueryFilter compiled = filter.compile();
+				if (compiled.isTimeFilter()) {
+					ret.startTime = Math.max(ret.startTime, compiled.getStartTime());
+					ret.endTime = Math.min(ret.endTime, compiled.getEndTime());
+				} else {
+					ret.filters.add(compiled);
+				}
+			}
+		}
+		if (query.isAggregated()) {
+			if (query.getBucketSize() < 0) {
+				throw new InvalidProvenQueryException("Invalid bucket size: " + query.getBucketSize());
+			}
+			ret.aggregations = new ArrayList<ProvenQueryTimeSeries.Aggregation>(query.getAggregations());
+			ret.bucketSize = query.getBucketSize();
+		}
+		ret.fingerprint = ret.createFingerprint();
+		return ret;
+	}
+
+	public String getMeasurementName() {
+		return measurementName;
+	}
+
+	/**
+	 * @return inclusive start of the time range, in query time units,
+	 *         {@code Long.MIN_VALUE} if unbounded
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return inclusive end of the time range, in query time units,
+	 *         {@code Long.MAX_VALUE} if unbounded
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Normalized form of the query: measurement name, time range, sorted typed
+	 * filters and aggregations. Queries with the same fingerprint have the same results,
+	 * regardless of filter order or operand formatting.
+	 * 
+	 * @return the query fingerprint
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public boolean hasTimeRange() {
+		return (startTime != Long.MIN_VALUE) || (endTime != Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return aggregations to compute, empty if results are not aggregated
+	 */
+	public List<ProvenQueryTimeSeries.Aggregation> getAggregations() {
+		return Collections.unmodifiableList(aggregations);
+	}
+
+	/**
+	 * @return aggregation bucket size, in query time units, 0 for a single
+	 *         bucket
+	 */
+	public long getBucketSize() {
+		return bucketSize;
+	}
+
+	public boolean isAggregated() {
+		return !aggregations.isEmpty();
+	}
+
+	/**
+	 * @return the compiled filters, other than the time filters
+	 */
+	public List<CompiledQueryFilter> getFilters() {
+		return Collections.unmodifiableList(filters);
+	}
+
+	private String createFingerprint() {
+		List<String> sorted = new ArrayList<String>();
+		for (CompiledQueryFilter filter : filters) {
+			sorted.add(filter.toString());
+		}
+		Collections.sort(sorted);
+		StringBuilder ret = new StringBuilder(String.valueOf(measurementName)).append('|').append(startTime)
+				.append(',').append(endTime);
+		for (String filter : sorted) {
+			ret.append('|').append(filter);
+		}
+		if (isAggregated()) {
+			ret.append('|').append(aggregations).append('/').append(bucketSize);
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Tests a measurement against the filters other than the time filters.
+	 */
+	public boolean test(ProvenMeasurement measurement) {
+		for (CompiledQueryFilter filter : filters) {
+			if (!filter.test(measurement)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
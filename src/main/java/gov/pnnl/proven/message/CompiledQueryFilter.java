@@ -0,0 +1,414 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.Locale;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+import gov.pnnl.proven.message.ProvenQueryFilter.Operator;
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+/**
+ * A {@link ProvenQueryFilter} compiled into a typed predicate. The filter's
+ * operand(s) are parsed once, according to its datatype, so evaluation only
+ * compares primitive values. Filters on the time fields
+ * ({@link ProvenQueryFilter#START_TIME_FIELD},
+ * {@link ProvenQueryFilter#END_TIME_FIELD} and
+ * {@link ProvenQueryFilter#TIME_FIELD}) are always long valued and also
+ * provide their inclusive time range. Their operands may be epoch numbers or
+ * date times, normalized to the query time unit, see
+ * {@link TimestampCodec#getQueryCodec()}.
+ * 
+ * @author d3j766
+ *
+ */
+public final class CompiledQueryFilter {
+
+	/**
+	 * Operand types, derived from a filter's datatype.
+	 */
+	public enum OperandType {
+		LONG, DOUBLE, STRING;
+
+		static OperandType fromDatatype(String datatype) {
+			OperandType ret = STRING;
+			if (null != datatype) {
+				switch (datatype.toLowerCase(Locale.ROOT)) {
+				case "integer":
+				case "int":
+				case "long":
+				case "short":
+				case "byte":
+					ret = LONG;
+					break;
+				case "double":
+				case "float":
+				case "decimal":
+					ret = DOUBLE;
+					break;
+				default:
+					break;
+				}
+			}
+			return ret;
+		}
+	}
+
+	private final String field;
+	private final Operator operator;
+	private final OperandType operandType;
+	private final boolean isTimeFilter;
+	private final String operand;
+
+	private long longLow;
+	private long longHigh;
+	private double doubleLow;
+	private double doubleHigh;
+	private String stringLow;
+	private String stringHigh;
+
+	CompiledQueryFilter(ProvenQueryFilter filter) throws InvalidProvenQueryException {
+
+		this.field = filter.getField();
+		this.operator = filter.getOperator();
+		this.isTimeFilter = ProvenQueryFilter.START_TIME_FIELD.equals(field)
+				|| ProvenQueryFilter.END_TIME_FIELD.equals(field) || ProvenQueryFilter.TIME_FIELD.equals(field);
+		this.operandType = isTimeFilter ? OperandType.LONG : OperandType.fromDatatype(filter.getDatatype());
+
+		if (null == field) {
+			throw new InvalidProvenQueryException("Query filter is missing its field");
+		}
+		this.operand = filter.getOperand();
+		if (null == operand) {
+			throw new InvalidProvenQueryException("Query filter is missing its value: " + field);
+		}
+		if (isTimeFilter && !isValidTimeOperator()) {
+			throw new InvalidProvenQueryException("Unsupported operator for " + field + ": " + operator);
+		}
+
+		String low = operand;
+		String high = operand;
+		if (operator == Operator.BETWEEN) {
+			int index = operand.indexOf(ProvenQueryFilter.RANGE_DELIMITER);
+			if (index < 0) {
+				throw new InvalidProvenQueryException("Invalid range for " + field + ": " + operand);
+			}
+			low = operand.substring(0, index);
+			high = operand.substring(index + 1);
+		}
+
+		try {
+			switch (operandType) {
+			case LONG:
+				if (isTimeFilter) {
+					longLow = TimestampCodec.getQueryCodec().parse(low);
+					longHigh = TimestampCodec.getQueryCodec().parse(high);
+				} else {
+					longLow = Long.parseLong(low.trim());
+					longHigh = Long.parseLong(high.trim());
+				}
+				break;
+			case DOUBLE:
+				doubleLow = Double.parseDouble(low.trim());
+				doubleHigh = Double.parseDouble(high.trim());
+				break;
+			default:
+				stringLow = low;
+				stringHigh = high;
+				break;
+			}
+		} catch (IllegalArgumentException e) {
+			throw new InvalidProvenQueryException("Invalid " + operandType + " value for " + field + ": " + operand,
+					e);
+		}
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	public Operator getOperator() {
+		return operator;
+	}
+
+	/**
+	 * @return the filter's operand(s), as given
+	 */
+	public String getOperand() {
+		return operand;
+	}
+
+	public OperandType getOperandType() {
+		return operandType;
+	}
+
+	/**
+	 * @return true if this filter restricts the measurement time
+	 */
+	public boolean isTimeFilter() {
+		return isTimeFilter;
+	}
+
+	/**
+	 * @return inclusive start of this time filter's range, in query time
+	 *         units, {@code Long.MIN_VALUE} if unbounded
+	 */
+	public long getStartTime() {
+		long ret = Long.MIN_VALUE;
+		if (isTimeFilter && !ProvenQueryFilter.END_TIME_FIELD.equals(field)) {
+			switch (operator) {
+			case GT:
+				ret = (longLow == Long.MAX_VALUE) ? longLow : longLow + 1;
+				break;
+			case EQ:
+			case GE:
+			case BETWEEN:
+				ret = longLow;
+				break;
+			default:
+				break;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return inclusive end of this time filter's range, in query time units,
+	 *         {@code Long.MAX_VALUE} if unbounded
+	 */
+	public long getEndTime() {
+		long ret = Long.MAX_VALUE;
+		if (isTimeFilter && !ProvenQueryFilter.START_TIME_FIELD.equals(field)) {
+			switch (operator) {
+			case LT:
+				ret = (longHigh == Long.MIN_VALUE) ? longHigh : longHigh - 1;
+				break;
+			case EQ:
+			case LE:
+			case BETWEEN:
+				ret = longHigh;
+				break;
+			default:
+				break;
+			}
+		}
+		return ret;
+	}
+
+	public boolean test(long value) {
+		switch (operandType) {
+		case LONG:
+			return matches(Long.compare(value, longLow), Long.compare(value, longHigh));
+		case DOUBLE:
+			return test((double) value);
+		default:
+			return test(Long.toString(value));
+		}
+	}
+
+	public boolean test(double value) {
+		switch (operandType) {
+		case LONG:
+			return matches(Double.compare(value, longLow), Double.compare(value, longHigh));
+		case DOUBLE:
+			return matches(Double.compare(value, doubleLow), Double.compare(value, doubleHigh));
+		default:
+			return test(Double.toString(value));
+		}
+	}
+
+	/**
+	 * Tests a lexical value. Numeric filters compare integers as longs and
+	 * other numbers as doubles, and do not match values that are not numbers,
+	 * other than with {@link Operator#NE}.
+	 */
+	public boolean test(String value) {
+
+		if ((null == value) || (operandType == OperandType.STRING)) {
+			return test(value, MetricValueType.String);
+		}
+
+		return test(value, isInteger(value) ? MetricValueType.Long : MetricValueType.Double);
+	}
+
+	/**
+	 * Tests a value of a metric value type. Integer and long values are
+	 * compared as longs and float and double values as doubles; values of
+	 * other types are tested as lexical values, see {@link #test(String)}.
+	 */
+	public boolean test(String value, MetricValueType valueType) {
+
+		if (null == value) {
+			return operator == Operator.NE;
+		}
+		if (operandType == OperandType.STRING) {
+			return matches(value.compareTo(stringLow), value.compareTo(stringHigh));
+		}
+
+		try {
+			if ((valueType == MetricValueType.Integer) || (valueType == MetricValueType.Long)) {
+				return test(Long.parseLong(value));
+			}
+			if ((valueType == MetricValueType.Float) || (valueType == MetricValueType.Double)) {
+				return test(Double.parseDouble(value));
+			}
+		} catch (NumberFormatException e) {
+			// Not a number
+			return operator == Operator.NE;
+		}
+
+		return test(value);
+	}
+
+	/**
+	 * Tests the measurement's metric with this filter's field as its label,
+	 * according to the metric's value type. A measurement without the metric
+	 * only matches {@link Operator#NE}.
+	 */
+	public boolean test(ProvenMeasurement measurement) {
+
+		if (isTimeFilter) {
+			Long timestamp = measurement.getTimestamp();
+			return (null != timestamp) && test(timestamp.longValue());
+		}
+
+		if (null != measurement.getMetrics()) {
+			for (ProvenMetric metric : measurement.getMetrics()) {
+				if (field.equals(metric.getLabel())) {
+					return test(metric.getValue(), metric.getValueType());
+				}
+			}
+		}
+
+		return operator == Operator.NE;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder ret = new StringBuilder(field).append(' ').append(operator).append(' ').append(operandType)
+				.append(' ');
+		switch (operandType) {
+		case LONG:
+			ret.append(longLow).append(ProvenQueryFilter.RANGE_DELIMITER).append(longHigh);
+			break;
+		case DOUBLE:
+			ret.append(doubleLow).append(ProvenQueryFilter.RANGE_DELIMITER).append(doubleHigh);
+			break;
+		default:
+			ret.append(stringLow).append(ProvenQueryFilter.RANGE_DELIMITER).append(stringHigh);
+			break;
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Start and end time filters give one end of a range, a time filter may
+	 * give both.
+	 */
+	private boolean isValidTimeOperator() {
+		boolean ret;
+		if (ProvenQueryFilter.START_TIME_FIELD.equals(field)) {
+			ret = (operator == Operator.EQ) || (operator == Operator.GE) || (operator == Operator.GT);
+		} else if (ProvenQueryFilter.END_TIME_FIELD.equals(field)) {
+			ret = (operator == Operator.EQ) || (operator == Operator.LE) || (operator == Operator.LT);
+		} else {
+			ret = operator != Operator.NE;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if the value is an optionally signed integer that fits a
+	 *         long
+	 */
+	private static boolean isInteger(String value) {
+		int start = ((value.length() > 0) && ((value.charAt(0) == '-') || (value.charAt(0) == '+'))) ? 1 : 0;
+		int length = value.length() - start;
+		if ((length == 0) || (length > 18)) {
+			return false;
+		}
+		for (int i = start; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c < '0') || (c > '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param low
+	 *            comparison of value to low operand
+	 * @param high
+	 *            comparison of value to high operand, same as low unless the
+	 *            operator is {@link Operator#BETWEEN}
+	 */
+	private boolean matches(int low, int high) {
+
+		// Start and end time filters are bounds of the time range
+		if (ProvenQueryFilter.START_TIME_FIELD.equals(field) && (operator == Operator.EQ)) {
+			return low >= 0;
+		}
+		if (ProvenQueryFilter.END_TIME_FIELD.equals(field) && (operator == Operator.EQ)) {
+			return high <= 0;
+		}
+
+		switch (operator) {
+		case EQ:
+			return low == 0;
+		case NE:
+			return low != 0;
+		case GT:
+			return low > 0;
+		case GE:
+			return low >= 0;
+		case LT:
+			return low < 0;
+		case LE:
+			return low <= 0;
+		case BETWEEN:
+			return (low >= 0) && (high <= 0);
+		default:
+			return false;
+		}
+	}
+
+}
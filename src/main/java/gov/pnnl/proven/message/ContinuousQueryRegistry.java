@@ -0,0 +1,441 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.pnnl.proven.message.ProvenQueryFilter.Operator;
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+/**
+ * Registry of standing {@link MessageContent#ContinuousQuery} queries.
+ * Measurements are matched against all registered queries as they arrive, and
+ * matches are pushed to each query's {@link Subscriber}.
+ * 
+ * Matching is incremental. Queries are indexed by measurement name and by the
+ * label and value of their string equality filters. A measurement only visits
+ * the queries indexed under its own metric labels and values, counting the
+ * equality filters each one satisfies; the query's other filters are
+ * evaluated only once all of its indexed filters are satisfied. Queries
+ * without indexable filters are evaluated for every measurement of their
+ * measurement name.
+ * 
+ * @author d3j766
+ *
+ */
+public class ContinuousQueryRegistry {
+
+	private static Logger log = LoggerFactory.getLogger(ContinuousQueryRegistry.class);
+
+	/**
+	 * Receives the measurements matching a continuous query. Called on the
+	 * thread matching the measurement.
+	 */
+	@FunctionalInterface
+	public interface Subscriber {
+		void matched(Subscription subscription, ProvenMeasurement measurement);
+	}
+
+	/**
+	 * Indexed queries, by measurement name.
+	 */
+	private final Map<String, QueryIndex> indexes = new ConcurrentHashMap<String, QueryIndex>();
+
+	private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+
+	private volatile TimeUnit measurementTimeUnit = TimestampCodec.getMeasurementCodec().getUnit();
+
+	private volatile TimeUnit queryTimeUnit = TimestampCodec.getQueryCodec().getUnit();
+
+	/**
+	 * Registers the query of a continuous query message.
+	 * 
+	 * @param message
+	 *            the continuous query message
+	 * @param subscriber
+	 *            receives matching measurements
+	 * @return the subscription
+	 * @throws InvalidProvenQueryException
+	 *             if message has no query, or the query is invalid
+	 */
+	public Subscription register(ProvenMessage message, Subscriber subscriber) throws InvalidProvenQueryException {
+		if (null == message.getTsQuery()) {
+			throw new InvalidProvenQueryException("Message has no time-series query: " + message.getMessageId());
+		}
+		return register(message.getTsQuery(), subscriber);
+	}
+
+	/**
+	 * Registers a continuous query.
+	 * 
+	 * @param query
+	 *            the time-series query
+	 * @param subscriber
+	 *            receives matching measurements
+	 * @return the subscription
+	 * @throws InvalidProvenQueryException
+	 *             if the query is invalid
+	 */
+	public Subscription register(ProvenQueryTimeSeries query, Subscriber subscriber)
+			throws InvalidProvenQueryException {
+
+		CompiledQuery compiled = CompiledQuery.compile(query);
+
+		// Index string equality filters, other filters are residual
+		Map<String, String> indexed = new LinkedHashMap<String, String>();
+		List<CompiledQueryFilter> residual = new ArrayList<CompiledQueryFilter>();
+		for (CompiledQueryFilter filter : compiled.getFilters()) {
+			boolean isIndexable = (filter.getOperator() == Operator.EQ)
+					&& (filter.getOperandType() == CompiledQueryFilter.OperandType.STRING)
+					&& (!indexed.containsKey(filter.getField()));
+			if (isIndexable) {
+				indexed.put(filter.getField(), filter.getOperand());
+			} else {
+				residual.add(filter);
+			}
+		}
+
+		long startTime = ProvenQueryExecutor.toMeasurementTime(compiled.getStartTime(), queryTimeUnit,
+				measurementTimeUnit, true);
+		long endTime = ProvenQueryExecutor.toMeasurementTime(compiled.getEndTime(), queryTimeUnit,
+				measurementTimeUnit, false);
+
+		Subscription ret = new Subscription(this, query, compiled.getMeasurementName(), indexed, residual, startTime,
+				endTime, subscriber);
+		indexes.compute(ret.measurementName, (k, index) -> {
+			QueryIndex updated = (null == index) ? new QueryIndex() : index;
+			updated.add(ret);
+			return updated;
+		});
+		subscriptions.put(ret.id, ret);
+
+		log.debug("Registered continuous query " + ret.id + " on " + ret.measurementName + ", indexed " + indexed
+				+ ", residual " + residual);
+
+		return ret;
+	}
+
+	/**
+	 * Matches a measurement against the registered queries, pushing it to the
+	 * subscribers of matching queries.
+	 * 
+	 * @param measurement
+	 *            the measurement
+	 * @return number of matching queries
+	 */
+	public int match(ProvenMeasurement measurement) {
+
+		QueryIndex index = indexes.get(measurement.getMeasurementName());
+		if (null == index) {
+			return 0;
+		}
+
+		int ret = 0;
+		for (Subscription subscription : index.residual) {
+			if (subscription.test(measurement)) {
+				subscription.push(measurement);
+				ret++;
+			}
+		}
+
+		if ((!index.byLabel.isEmpty()) && (null != measurement.getMetrics())) {
+			Map<Subscription, int[]> counts = new HashMap<Subscription, int[]>();
+			for (ProvenMetric metric : measurement.getMetrics()) {
+				Map<String, List<Subscription>> byValue = index.byLabel.get(metric.getLabel());
+				List<Subscription> candidates = (null == byValue) ? null : byValue.get(metric.getValue());
+				if (null == candidates) {
+					continue;
+				}
+				for (Subscription subscription : candidates) {
+					int[] count = counts.get(subscription);
+					if (null == count) {
+						count = new int[1];
+						counts.put(subscription, count);
+					}
+					if ((++count[0] == subscription.indexed.size()) && subscription.testIndexed(measurement)
+							&& subscription.test(measurement)) {
+						subscription.push(measurement);
+						ret++;
+					}
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Matches measurements against the registered queries.
+	 * 
+	 * @param measurements
+	 *            the measurements
+	 * @return total number of matches
+	 */
+	public int matchAll(Collection<ProvenMeasurement> measurements) {
+		int ret = 0;
+		if (null != measurements) {
+			for (ProvenMeasurement measurement : measurements) {
+				ret += match(measurement);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Matches the measurements of a built message.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return total number of matches
+	 */
+	public int match(ProvenMessage message) {
+		return matchAll(message.getMeasurements());
+	}
+
+	public Subscription getSubscription(String id) {
+		return subscriptions.get(id);
+	}
+
+	public Collection<Subscription> getSubscriptions() {
+		return subscriptions.values();
+	}
+
+	public int size() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * @return number of measurement names with registered queries
+	 */
+	int getIndexCount() {
+		return indexes.size();
+	}
+
+	public TimeUnit getMeasurementTimeUnit() {
+		return measurementTimeUnit;
+	}
+
+	/**
+	 * Sets the measurement time unit, applies to queries registered
+	 * afterwards.
+	 */
+	public void setMeasurementTimeUnit(TimeUnit measurementTimeUnit) {
+		this.measurementTimeUnit = measurementTimeUnit;
+	}
+
+	public TimeUnit getQueryTimeUnit() {
+		return queryTimeUnit;
+	}
+
+	/**
+	 * Sets the query time unit, applies to queries registered afterwards.
+	 */
+	public void setQueryTimeUnit(TimeUnit queryTimeUnit) {
+		this.queryTimeUnit = queryTimeUnit;
+	}
+
+	private void unregister(Subscription subscription) {
+		if (null != subscriptions.remove(subscription.id)) {
+			indexes.computeIfPresent(subscription.measurementName, (k, index) -> {
+				index.remove(subscription);
+				return index.isEmpty() ? null : index;
+			});
+			log.debug("Unregistered continuous query " + subscription.id);
+		}
+	}
+
+	/**
+	 * Queries on a single measurement name. Updated within a compute of its
+	 * registry entry; value lists and label maps left empty are removed, as
+	 * is an empty index, so the index does not grow with cancelled queries.
+	 */
+	private static final class QueryIndex {
+
+		/**
+		 * Queries with indexed filters, by filter label and value.
+		 */
+		private final Map<String, Map<String, List<Subscription>>> byLabel = new ConcurrentHashMap<String, Map<String, List<Subscription>>>();
+
+		/**
+		 * Queries without indexed filters.
+		 */
+		private final List<Subscription> residual = new CopyOnWriteArrayList<Subscription>();
+
+		void add(Subscription subscription) {
+			if (subscription.indexed.isEmpty()) {
+				residual.add(subscription);
+				return;
+			}
+			for (Map.Entry<String, String> filter : subscription.indexed.entrySet()) {
+				byLabel.compute(filter.getKey(), (label, byValue) -> {
+					Map<String, List<Subscription>> updated = (null == byValue)
+							? new ConcurrentHashMap<String, List<Subscription>>() : byValue;
+					updated.computeIfAbsent(filter.getValue(), k -> new CopyOnWriteArrayList<Subscription>())
+							.add(subscription);
+					return updated;
+				});
+			}
+		}
+
+		void remove(Subscription subscription) {
+			if (subscription.indexed.isEmpty()) {
+				residual.remove(subscription);
+				return;
+			}
+			for (Map.Entry<String, String> filter : subscription.indexed.entrySet()) {
+				byLabel.computeIfPresent(filter.getKey(), (label, byValue) -> {
+					byValue.computeIfPresent(filter.getValue(), (value, subscriptions) -> {
+						subscriptions.remove(subscription);
+						return subscriptions.isEmpty() ? null : subscriptions;
+					});
+					return byValue.isEmpty() ? null : byValue;
+				});
+			}
+		}
+
+		boolean isEmpty() {
+			return residual.isEmpty() && byLabel.isEmpty();
+		}
+	}
+
+	/**
+	 * A registered continuous query.
+	 */
+	public static final class Subscription {
+
+		private final String id = UUID.randomUUID().toString();
+		private final ContinuousQueryRegistry registry;
+		private final ProvenQueryTimeSeries query;
+		private final String measurementName;
+		private final Map<String, String> indexed;
+		private final List<CompiledQueryFilter> residual;
+		private final long startTime;
+		private final long endTime;
+		private final Subscriber subscriber;
+
+		private Subscription(ContinuousQueryRegistry registry, ProvenQueryTimeSeries query, String measurementName,
+				Map<String, String> indexed, List<CompiledQueryFilter> residual, long startTime, long endTime,
+				Subscriber subscriber) {
+			this.registry = registry;
+			this.query = query;
+			this.measurementName = measurementName;
+			this.indexed = indexed;
+			this.residual = residual;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.subscriber = subscriber;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public ProvenQueryTimeSeries getQuery() {
+			return query;
+		}
+
+		/**
+		 * Removes this query from its registry.
+		 */
+		public void cancel() {
+			registry.unregister(this);
+		}
+
+		/**
+		 * Tests the time range and residual filters, indexed filters are
+		 * already satisfied.
+		 */
+		private boolean test(ProvenMeasurement measurement) {
+			if ((startTime != Long.MIN_VALUE) || (endTime != Long.MAX_VALUE)) {
+				Long timestamp = measurement.getTimestamp();
+				if ((null == timestamp) || (timestamp < startTime) || (timestamp > endTime)) {
+					return false;
+				}
+			}
+			for (CompiledQueryFilter filter : residual) {
+				if (!filter.test(measurement)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Confirms all indexed filters are satisfied, a measurement may have
+		 * repeated metrics.
+		 */
+		private boolean testIndexed(ProvenMeasurement measurement) {
+			if (indexed.size() == 1) {
+				return true;
+			}
+			Set<String> matched = new HashSet<String>();
+			for (ProvenMetric metric : measurement.getMetrics()) {
+				String value = indexed.get(metric.getLabel());
+				if ((null != value) && value.equals(metric.getValue())) {
+					matched.add(metric.getLabel());
+				}
+			}
+			return matched.size() == indexed.size();
+		}
+
+		private void push(ProvenMeasurement measurement) {
+			try {
+				subscriber.matched(this, measurement);
+			} catch (RuntimeException e) {
+				log.error("Continuous query subscriber failed for " + id, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.shared.AddDeniedException;
+import org.apache.jena.shared.DeleteDeniedException;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.WrappedIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable, indexed copy of one or more graphs. Used for the shared
+ * message model graphs (ontology and shapes), which are read by many
+ * concurrent message builds. All indexes are built at construction and never
+ * change, so the graph can be read by any number of threads without locking.
+ * Any attempt to modify the graph, or its prefix mapping, is denied.
+ * 
+ * @author d3j766
+ *
+ */
+public class FrozenGraph extends GraphBase {
+
+	private static Logger log = LoggerFactory.getLogger(FrozenGraph.class);
+
+	private static final Triple[] NO_TRIPLES = new Triple[0];
+
+	/**
+	 * All triples in the graph.
+	 */
+	private final Triple[] triples;
+
+	/**
+	 * Triples indexed by subject, predicate, and object.
+	 */
+	private final Map<Node, Triple[]> subjectIndex;
+	private final Map<Node, Triple[]> predicateIndex;
+	private final Map<Node, Triple[]> objectIndex;
+
+	private FrozenGraph(Graph[] graphs) {
+
+		Set<Triple> all = new LinkedHashSet<Triple>();
+		for (Graph graph : graphs) {
+			ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				while (iter.hasNext()) {
+					all.add(iter.next());
+				}
+			} finally {
+				iter.close();
+			}
+			getPrefixMapping().setNsPrefixes(graph.getPrefixMapping());
+		}
+		getPrefixMapping().lock();
+
+		triples = all.toArray(NO_TRIPLES);
+
+		Map<Node, List<Triple>> subjects = new HashMap<Node, List<Triple>>();
+		Map<Node, List<Triple>> predicates = new HashMap<Node, List<Triple>>();
+		Map<Node, List<Triple>> objects = new HashMap<Node, List<Triple>>();
+		for (Triple t : triples) {
+			index(subjects, t.getSubject(), t);
+			index(predicates, t.getPredicate(), t);
+			index(objects, t.getObject(), t);
+		}
+		subjectIndex = toArrays(subjects);
+		predicateIndex = toArrays(predicates);
+		objectIndex = toArrays(objects);
+	}
+
+	/**
+	 * Creates a frozen copy of the union of the provided graphs.
+	 * 
+	 * @param graphs
+	 *            graphs to copy
+	 * @return the frozen graph
+	 */
+	public static FrozenGraph freeze(Graph... graphs) {
+		return new FrozenGraph(graphs);
+	}
+
+	/**
+	 * Creates a model over a frozen copy of the union of the provided models.
+	 * A model that is already frozen is returned as is.
+	 * 
+	 * @param models
+	 *            models to copy
+	 * @return model backed by a frozen graph
+	 */
+	public static Model freeze(Model... models) {
+
+		if ((models.length == 1) && (models[0].getGraph() instanceof FrozenGraph)) {
+			return models[0];
+		}
+
+		Graph[] graphs = new Graph[models.length];
+		for (int i = 0; i < models.length; i++) {
+			graphs[i] = models[i].getGraph();
+		}
+		FrozenGraph frozen = new FrozenGraph(graphs);
+		log.debug("Froze " + frozen.triples.length + " triples from " + models.length + " model(s)");
+
+		return ModelFactory.createModelForGraph(frozen);
+	}
+
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+
+		Node s = pattern.getMatchSubject();
+		Node p = pattern.getMatchPredicate();
+		Node o = pattern.getMatchObject();
+
+		// Use the most selective index available. Literal objects are matched
+		// by value, so are not looked up in the object index.
+		Triple[] candidates;
+		if (null != s) {
+			candidates = lookup(subjectIndex, s);
+		} else if ((null != o) && (!o.isLiteral())) {
+			candidates = lookup(objectIndex, o);
+		} else if (null != p) {
+			candidates = lookup(predicateIndex, p);
+		} else {
+			candidates = triples;
+		}
+
+		// Candidates match exactly unless the predicate or object is bound
+		boolean exact = (null == p) && (null == o);
+		return WrappedIterator.create(new TripleArrayIterator(candidates, exact ? null : pattern));
+	}
+
+	@Override
+	protected int graphBaseSize() {
+		return triples.length;
+	}
+
+	@Override
+	public void performAdd(Triple t) {
+		throw new AddDeniedException("Frozen graph is read-only");
+	}
+
+	@Override
+	public void performDelete(Triple t) {
+		throw new DeleteDeniedException("Frozen graph is read-only");
+	}
+
+	private static void index(Map<Node, List<Triple>> index, Node key, Triple t) {
+		List<Triple> list = index.get(key);
+		if (null == list) {
+			list = new ArrayList<Triple>(2);
+			index.put(key, list);
+		}
+		list.add(t);
+	}
+
+	private static Map<Node, Triple[]> toArrays(Map<Node, List<Triple>> index) {
+		Map<Node, Triple[]> ret = new HashMap<Node, Triple[]>(index.size() * 4 / 3 + 1);
+		for (Map.Entry<Node, List<Triple>> entry : index.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().toArray(NO_TRIPLES));
+		}
+		return ret;
+	}
+
+	private static Triple[] lookup(Map<Node, Triple[]> index, Node key) {
+		Triple[] ret = index.get(key);
+		return (null == ret) ? NO_TRIPLES : ret;
+	}
+
+	/**
+	 * Iterates an index entry, optionally keeping only triples matching a
+	 * pattern. Removal is not supported.
+	 */
+	private static class TripleArrayIterator implements Iterator<Triple> {
+
+		private final Triple[] triples;
+		private final Triple pattern;
+		private int position;
+		private Triple next;
+
+		TripleArrayIterator(Triple[] triples, Triple pattern) {
+			this.triples = triples;
+			this.pattern = pattern;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while ((null == next) && (position < triples.length)) {
+				Triple t = triples[position++];
+				if ((null == pattern) || (pattern.matches(t))) {
+					next = t;
+				}
+			}
+			return null != next;
+		}
+
+		@Override
+		public Triple next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Triple ret = next;
+			next = null;
+			return ret;
+		}
+	}
+
+}
@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.util.Arrays;
+
+/**
+ * Gorilla style compression of time-series columns, see "Gorilla: A Fast,
+ * Scalable, In-Memory Time Series Database" (Pelkonen et al., VLDB 2015).
+ * Timestamps and other long columns are encoded as delta-of-deltas, in a
+ * single bit when evenly spaced, and doubles as the XOR with their
+ * predecessor, in a single bit when unchanged and otherwise as only its
+ * meaningful bits. Used by {@link ProvenMeasurementBlock}.
+ * 
+ * @author d3j766
+ *
+ */
+final class GorillaCodec {
+
+	private GorillaCodec() {
+	}
+
+	/**
+	 * Writes longs as delta-of-deltas. The first value is written in full,
+	 * the rest by their delta-of-delta: {@code 0} if zero, otherwise
+	 * {@code 10}, {@code 110} or {@code 1110} followed by a 7, 9 or 12 bit
+	 * value, or {@code 1111} followed by all 64 bits. Deltas wrap on
+	 * overflow, which decoding reverses.
+	 */
+	static void writeLongs(BitWriter out, long[] values, int count) {
+
+		if (count == 0) {
+			return;
+		}
+
+		out.write(values[0], 64);
+		long previousDelta = 0;
+		for (int i = 1; i < count; i++) {
+			long delta = values[i] - values[i - 1];
+			long dod = delta - previousDelta;
+			if (dod == 0) {
+				out.write(0, 1);
+			} else if ((dod >= -64) && (dod <= 63)) {
+				out.write(0b10, 2);
+				out.write(dod, 7);
+			} else if ((dod >= -256) && (dod <= 255)) {
+				out.write(0b110, 3);
+				out.write(dod, 9);
+			} else if ((dod >= -2048) && (dod <= 2047)) {
+				out.write(0b1110, 4);
+				out.write(dod, 12);
+			} else {
+				out.write(0b1111, 4);
+				out.write(dod, 64);
+			}
+			previousDelta = delta;
+		}
+	}
+
+	static long[] readLongs(BitReader in, int count) {
+
+		long[] ret = new long[count];
+		if (count == 0) {
+			return ret;
+		}
+
+		ret[0] = in.read(64);
+		long previousDelta = 0;
+		for (int i = 1; i < count; i++) {
+			long dod;
+			if (in.read(1) == 0) {
+				dod = 0;
+			} else if (in.read(1) == 0) {
+				dod = in.readSigned(7);
+			} else if (in.read(1) == 0) {
+				dod = in.readSigned(9);
+			} else if (in.read(1) == 0) {
+				dod = in.readSigned(12);
+			} else {
+				dod = in.read(64);
+			}
+			long delta = previousDelta + dod;
+			ret[i] = ret[i - 1] + delta;
+			previousDelta = delta;
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes doubles as XOR with their predecessor. The first value is
+	 * written in full, the rest as {@code 0} if unchanged, otherwise as
+	 * {@code 10} followed by the meaningful XOR bits if they fit the
+	 * previous leading and trailing zero counts, or as {@code 11} followed by
+	 * 5 bits of leading zeros, 6 bits of meaningful bit count less one, and
+	 * the meaningful bits. Raw bits are used, so any NaN is kept as is.
+	 */
+	static void writeDoubles(BitWriter out, double[] values, int count) {
+
+		if (count == 0) {
+			return;
+		}
+
+		long previous = Double.doubleToRawLongBits(values[0]);
+		out.write(previous, 64);
+		int previousLeading = -1;
+		int previousTrailing = 0;
+		for (int i = 1; i < count; i++) {
+			long bits = Double.doubleToRawLongBits(values[i]);
+			long xor = bits ^ previous;
+			if (xor == 0) {
+				out.write(0, 1);
+			} else {
+				int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+				int trailing = Long.numberOfTrailingZeros(xor);
+				if ((previousLeading >= 0) && (leading >= previousLeading) && (trailing >= previousTrailing)) {
+					out.write(0b10, 2);
+					out.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+				} else {
+					int meaningful = 64 - leading - trailing;
+					out.write(0b11, 2);
+					out.write(leading, 5);
+					out.write(meaningful - 1, 6);
+					out.write(xor >>> trailing, meaningful);
+					previousLeading = leading;
+					previousTrailing = trailing;
+				}
+			}
+			previous = bits;
+		}
+	}
+
+	static double[] readDoubles(BitReader in, int count) {
+
+		double[] ret = new double[count];
+		if (count == 0) {
+			return ret;
+		}
+
+		long previous = in.read(64);
+		ret[0] = Double.longBitsToDouble(previous);
+		int previousLeading = 0;
+		int previousTrailing = 0;
+		for (int i = 1; i < count; i++) {
+			if (in.read(1) != 0) {
+				long xor;
+				if (in.read(1) == 0) {
+					xor = in.read(64 - previousLeading - previousTrailing) << previousTrailing;
+				} else {
+					previousLeading = (int) in.read(5);
+					int meaningful = (int) in.read(6) + 1;
+					previousTrailing = 64 - previousLeading - meaningful;
+					xor = in.read(meaningful) << previousTrailing;
+				}
+				previous ^= xor;
+			}
+			ret[i] = Double.longBitsToDouble(previous);
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes bits, most significant first, into a growing buffer.
+	 */
+	static final class BitWriter {
+
+		private long[] words = new long[16];
+		private long position;
+
+		/**
+		 * Writes the low bits of a value.
+		 * 
+		 * @param value
+		 *            the value
+		 * @param bits
+		 *            number of bits, 0 to 64
+		 */
+		void write(long value, int bits) {
+
+			if (bits == 0) {
+				return;
+			}
+			if (bits < 64) {
+				value &= (1L << bits) - 1;
+			}
+
+			int index = (int) (position >>> 6);
+			int free = 64 - (int) (position & 63);
+			if (index + 1 >= words.length) {
+				words = Arrays.copyOf(words, words.length * 2);
+			}
+			if (bits <= free) {
+				words[index] |= value << (free - bits);
+			} else {
+				words[index] |= value >>> (bits - free);
+				words[index + 1] |= value << (64 - (bits - free));
+			}
+			position += bits;
+		}
+
+		void writeBytes(byte[] bytes) {
+			write(bytes.length, 32);
+			for (byte b : bytes) {
+				write(b, 8);
+			}
+		}
+
+		/**
+		 * @return number of bits written
+		 */
+		long size() {
+			return position;
+		}
+
+		byte[] toByteArray() {
+			byte[] ret = new byte[(int) ((position + 7) >>> 3)];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = (byte) (words[i >>> 3] >>> (56 - ((i & 7) << 3)));
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Reads bits written by a {@link BitWriter}.
+	 */
+	static final class BitReader {
+
+		private final byte[] data;
+		private long position;
+
+		BitReader(byte[] data) {
+			this.data = data;
+		}
+
+		/**
+		 * Reads bits as the low bits of a value.
+		 * 
+		 * @param bits
+		 *            number of bits, 0 to 64
+		 * @throws IllegalArgumentException
+		 *             if the data ends before the bits
+		 */
+		long read(int bits) {
+
+			if (position + bits > ((long) data.length << 3)) {
+				throw new IllegalArgumentException("Truncated block data");
+			}
+
+			long ret = 0;
+			while (bits > 0) {
+				int available = 8 - (int) (position & 7);
+				int take = Math.min(available, bits);
+				int b = data[(int) (position >>> 3)] & 0xFF;
+				ret = (ret << take) | ((b >>> (available - take)) & ((1 << take) - 1));
+				position += take;
+				bits -= take;
+			}
+			return ret;
+		}
+
+		/**
+		 * Reads a two's complement value of a number of bits.
+		 */
+		long readSigned(int bits) {
+			return (read(bits) << (64 - bits)) >> (64 - bits);
+		}
+
+		byte[] readBytes() {
+			byte[] ret = new byte[(int) read(32)];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = (byte) read(8);
+			}
+			return ret;
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of latencies, e.g. queue wait or build times, in
+ * nanoseconds. Buckets are logarithmic with four linear sub-buckets per power
+ * of two, so percentiles are reported within 25% of the recorded values while
+ * recording is a single atomic increment.
+ * 
+ * @author d3j766
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            latency in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax(TimeUnit unit) {
+		return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public double getMean(TimeUnit unit) {
+		long n = count.get();
+		return (n == 0) ? 0 : (double) sum.get() / n / unit.toNanos(1);
+	}
+
+	/**
+	 * Provides a percentile, as the upper bound of the bucket holding it.
+	 * 
+	 * @param percentile
+	 *            the percentile, e.g. 99.0
+	 * @param unit
+	 *            result time unit
+	 * @return the percentile, 0 if nothing is recorded
+	 */
+	public long getPercentile(double percentile, TimeUnit unit) {
+
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+		long cumulative = 0;
+		int index = 0;
+		for (; index < BUCKETS; index++) {
+			cumulative += snapshot[index];
+			if (cumulative >= target) {
+				break;
+			}
+		}
+
+		return unit.convert(Math.min(upperBound(index), max.get()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Provides a copy of the recorded latencies, e.g. to later get the
+	 * latencies recorded since, see {@link #since(LatencyHistogram)}.
+	 * 
+	 * @return the copy
+	 */
+	public LatencyHistogram snapshot() {
+		LatencyHistogram ret = new LatencyHistogram();
+		for (int i = 0; i < BUCKETS; i++) {
+			ret.counts.set(i, counts.get(i));
+		}
+		ret.count.set(count.get());
+		ret.sum.set(sum.get());
+		ret.max.set(max.get());
+		return ret;
+	}
+
+	/**
+	 * Provides the latencies recorded since an earlier snapshot of this
+	 * histogram. The maximum is bounded by the highest bucket recorded since.
+	 * 
+	 * @param earlier
+	 *            the earlier snapshot
+	 * @return the latencies recorded since the snapshot
+	 */
+	public LatencyHistogram since(LatencyHistogram earlier) {
+		LatencyHistogram ret = new LatencyHistogram();
+		int highest = -1;
+		for (int i = 0; i < BUCKETS; i++) {
+			long diff = Math.max(0, counts.get(i) - earlier.counts.get(i));
+			ret.counts.set(i, diff);
+			if (diff > 0) {
+				highest = i;
+			}
+		}
+		ret.count.set(Math.max(0, count.get() - earlier.count.get()));
+		ret.sum.set(Math.max(0, sum.get() - earlier.sum.get()));
+		ret.max.set((highest < 0) ? 0 : Math.min(upperBound(highest), max.get()));
+		return ret;
+	}
+
+	/**
+	 * Clears all recorded latencies.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + String.format("%.3f", getMean(TimeUnit.MICROSECONDS) / 1000)
+				+ "ms, p50=" + getPercentile(50, TimeUnit.MILLISECONDS) + "ms, p99="
+				+ getPercentile(99, TimeUnit.MILLISECONDS) + "ms, max=" + getMax(TimeUnit.MILLISECONDS) + "ms";
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long lower = ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))) << shift;
+		long upper = lower + (1L << shift) - 1;
+		return (upper < lower) ? Long.MAX_VALUE : upper;
+	}
+
+}
@@ -0,0 +1,352 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+/**
+ * Writes {@link ProvenMeasurement}s in InfluxDB line protocol, e.g.
+ * 
+ * <pre>
+ * measurement,tag1=a,tag2=b field1=1.5,field2=3i,field3="x" 1357023600
+ * </pre>
+ * 
+ * Metadata metrics are written as tags, sorted by label, and other metrics
+ * as fields, typed by their {@link MetricValueType}: integers with an
+ * {@code i} suffix, booleans and floating point numbers as is, and strings
+ * quoted. Names, tags and string values are escaped. Timestamps are written
+ * as is, in the unit of the measurements, which must be the write precision.
+ * Measurements without fields are not written, line protocol requires at
+ * least one.
+ * 
+ * Lines are encoded as UTF-8 into a reusable buffer, then copied to the
+ * target, so once the buffer and tag scratch space have grown to the largest
+ * measurement, writing does not allocate. A writer is not thread safe, use
+ * one per thread.
+ * 
+ * @author d3j766
+ *
+ */
+public class LineProtocolWriter {
+
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	private byte[] buffer;
+
+	private int length;
+
+	private ProvenMetric[] tags = new ProvenMetric[16];
+
+	public LineProtocolWriter() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a new writer.
+	 * 
+	 * @param bufferSize
+	 *            initial line buffer size, grows as needed
+	 */
+	public LineProtocolWriter(int bufferSize) {
+		this.buffer = new byte[Math.max(64, bufferSize)];
+	}
+
+	/**
+	 * Writes a measurement line to a buffer. Nothing is written if the line
+	 * doesn't fit.
+	 * 
+	 * @param measurement
+	 *            the measurement
+	 * @param target
+	 *            the target buffer
+	 * @return number of bytes written, 0 if the measurement has no fields
+	 * @throws BufferOverflowException
+	 *             if the line doesn't fit in the target's remaining space
+	 */
+	public int write(ProvenMeasurement measurement, ByteBuffer target) {
+		int ret = encode(measurement);
+		if (ret > target.remaining()) {
+			throw new BufferOverflowException();
+		}
+		target.put(buffer, 0, ret);
+		return ret;
+	}
+
+	/**
+	 * Writes a measurement line to a stream.
+	 * 
+	 * @param measurement
+	 *            the measurement
+	 * @param out
+	 *            the target stream
+	 * @return number of bytes written, 0 if the measurement has no fields
+	 * @throws IOException
+	 *             if the stream write fails
+	 */
+	public int write(ProvenMeasurement measurement, OutputStream out) throws IOException {
+		int ret = encode(measurement);
+		out.write(buffer, 0, ret);
+		return ret;
+	}
+
+	/**
+	 * Writes measurement lines to a stream.
+	 * 
+	 * @return number of bytes written
+	 */
+	public long writeAll(Iterable<ProvenMeasurement> measurements, OutputStream out) throws IOException {
+		long ret = 0;
+		for (ProvenMeasurement measurement : measurements) {
+			ret += write(measurement, out);
+		}
+		return ret;
+	}
+
+	/**
+	 * Encodes a measurement line, ending with a newline, into the line
+	 * buffer.
+	 * 
+	 * @return the line length, 0 if the measurement has no fields
+	 */
+	private int encode(ProvenMeasurement measurement) {
+
+		length = 0;
+		String name = measurement.getMeasurementName();
+		writeEscaped((null == name) ? MessageUtils.DEFAULT_MEASUREMENT : name, false);
+
+		// Tags, sorted by label
+		int tagCount = 0;
+		int fieldCount = 0;
+		for (ProvenMetric metric : measurement.getMetrics()) {
+			if (metric.isMetadata()) {
+				if (!isEmpty(metric.getLabel()) && !isEmpty(metric.getValue())) {
+					if (tagCount == tags.length) {
+						tags = Arrays.copyOf(tags, tagCount * 2);
+					}
+					tags[tagCount++] = metric;
+				}
+			} else if (!isEmpty(metric.getLabel()) && (null != metric.getValue())) {
+				fieldCount++;
+			}
+		}
+		if (fieldCount == 0) {
+			Arrays.fill(tags, 0, tagCount, null);
+			length = 0;
+			return 0;
+		}
+
+		sortTags(tagCount);
+		for (int i = 0; i < tagCount; i++) {
+			writeByte(',');
+			writeEscaped(tags[i].getLabel(), true);
+			writeByte('=');
+			writeEscaped(tags[i].getValue(), true);
+			tags[i] = null;
+		}
+
+		// Fields
+		char separator = ' ';
+		for (ProvenMetric metric : measurement.getMetrics()) {
+			if (!metric.isMetadata() && !isEmpty(metric.getLabel()) && (null != metric.getValue())) {
+				writeByte(separator);
+				writeEscaped(metric.getLabel(), true);
+				writeByte('=');
+				writeFieldValue(metric.getValue(), metric.getValueType());
+				separator = ',';
+			}
+		}
+
+		Long timestamp = measurement.getTimestamp();
+		if (null != timestamp) {
+			writeByte(' ');
+			writeLong(timestamp);
+		}
+		writeByte('\n');
+
+		return length;
+	}
+
+	private void writeFieldValue(String value, MetricValueType valueType) {
+
+		if (null == valueType) {
+			valueType = MetricValueType.String;
+		}
+
+		switch (valueType) {
+		case Integer:
+		case Long:
+			writeChars(value);
+			writeByte('i');
+			break;
+		case Float:
+		case Double:
+		case Boolean:
+			writeChars(value);
+			break;
+		default:
+			writeByte('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if ((c == '"') || (c == '\\')) {
+					writeByte('\\');
+				}
+				i = writeChar(value, i);
+			}
+			writeByte('"');
+			break;
+		}
+	}
+
+	/**
+	 * Writes a name or tag, escaping commas and spaces, and equal signs for
+	 * tag and field keys and tag values.
+	 */
+	private void writeEscaped(String s, boolean isKeyOrTag) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == ',') || (c == ' ') || (isKeyOrTag && (c == '='))) {
+				writeByte('\\');
+			}
+			i = writeChar(s, i);
+		}
+	}
+
+	private void writeChars(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			i = writeChar(s, i);
+		}
+	}
+
+	/**
+	 * Writes the character at an index as UTF-8.
+	 * 
+	 * @return index of the last character written, i.e. of a low surrogate
+	 */
+	private int writeChar(String s, int index) {
+
+		char c = s.charAt(index);
+		ensureCapacity(4);
+		if (c < 0x80) {
+			buffer[length++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[length++] = (byte) (0xC0 | (c >> 6));
+			buffer[length++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c) && (index + 1 < s.length())
+				&& Character.isLowSurrogate(s.charAt(index + 1))) {
+			int cp = Character.toCodePoint(c, s.charAt(++index));
+			buffer[length++] = (byte) (0xF0 | (cp >> 18));
+			buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+			buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+		} else if (Character.isSurrogate(c)) {
+			buffer[length++] = '?';
+		} else {
+			buffer[length++] = (byte) (0xE0 | (c >> 12));
+			buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[length++] = (byte) (0x80 | (c & 0x3F));
+		}
+		return index;
+	}
+
+	private void writeByte(char c) {
+		ensureCapacity(1);
+		buffer[length++] = (byte) c;
+	}
+
+	private void writeLong(long value) {
+
+		ensureCapacity(20);
+		if (value == Long.MIN_VALUE) {
+			writeChars(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+
+		int start = length;
+		do {
+			buffer[length++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+
+		// Digits were written in reverse
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			byte b = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = b;
+		}
+	}
+
+	/**
+	 * Insertion sort of the tags by label, tag counts are small.
+	 */
+	private void sortTags(int count) {
+		for (int i = 1; i < count; i++) {
+			ProvenMetric tag = tags[i];
+			int j = i - 1;
+			while ((j >= 0) && (tags[j].getLabel().compareTo(tag.getLabel()) > 0)) {
+				tags[j + 1] = tags[j];
+				j--;
+			}
+			tags[j + 1] = tag;
+		}
+	}
+
+	private void ensureCapacity(int needed) {
+		if (length + needed > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + needed));
+		}
+	}
+
+	private static boolean isEmpty(String s) {
+		return (null == s) || s.isEmpty();
+	}
+
+}
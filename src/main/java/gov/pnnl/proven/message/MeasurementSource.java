@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A source of {@link ProvenMeasurement}s that can be queried locally, see
+ * {@link ProvenQueryExecutor}.
+ * 
+ * @author d3j766
+ *
+ */
+public interface MeasurementSource {
+
+	/**
+	 * Provides measurements for a measurement name within a time range.
+	 * Timestamps are in the source's time unit. A source may return
+	 * measurements outside the range; the caller filters them. Measurements
+	 * without a timestamp are only returned for an unbounded range.
+	 * 
+	 * @param measurementName
+	 *            the measurement name
+	 * @param startTime
+	 *            inclusive start of range, {@code Long.MIN_VALUE} if unbounded
+	 * @param endTime
+	 *            inclusive end of range, {@code Long.MAX_VALUE} if unbounded
+	 * @return the measurements
+	 */
+	Stream<ProvenMeasurement> getMeasurements(String measurementName, long startTime, long endTime);
+
+	/**
+	 * Provides measurements for a measurement name within a time range that
+	 * match filters. Unlike the time range, the filters are applied exactly.
+	 * By default the measurements are provided by
+	 * {@link #getMeasurements(String, long, long)} and then tested; sources
+	 * holding typed values may test them directly instead.
+	 * 
+	 * @param measurementName
+	 *            the measurement name
+	 * @param startTime
+	 *            inclusive start of range, {@code Long.MIN_VALUE} if unbounded
+	 * @param endTime
+	 *            inclusive end of range, {@code Long.MAX_VALUE} if unbounded
+	 * @param filters
+	 *            the filters, all of which must match
+	 * @return the matching measurements
+	 */
+	default Stream<ProvenMeasurement> getMeasurements(String measurementName, long startTime, long endTime,
+			List<CompiledQueryFilter> filters) {
+		Stream<ProvenMeasurement> ret = getMeasurements(measurementName, startTime, endTime);
+		return filters.isEmpty() ? ret : ret.filter(m -> filters.stream().allMatch(f -> f.test(m)));
+	}
+
+	/**
+	 * Aggregates the measurements for a measurement name within a time range
+	 * that match filters. Unlike
+	 * {@link #getMeasurements(String, long, long, List)} the time range is
+	 * applied exactly. By default the matching measurements are added to the
+	 * aggregator as measurements; sources holding typed values may add the
+	 * values directly instead, see
+	 * {@link TimeBucketAggregator#series(String[], String[], ProvenMetric.MetricFragmentIdentifier.MetricValueType[])}.
+	 * 
+	 * @param measurementName
+	 *            the measurement name
+	 * @param startTime
+	 *            inclusive start of range, {@code Long.MIN_VALUE} if unbounded
+	 * @param endTime
+	 *            inclusive end of range, {@code Long.MAX_VALUE} if unbounded
+	 * @param filters
+	 *            the filters, all of which must match
+	 * @param aggregator
+	 *            receives the matching values
+	 */
+	default void aggregate(String measurementName, long startTime, long endTime, List<CompiledQueryFilter> filters,
+			TimeBucketAggregator aggregator) {
+		Stream<ProvenMeasurement> measurements = getMeasurements(measurementName, startTime, endTime, filters);
+		if ((startTime != Long.MIN_VALUE) || (endTime != Long.MAX_VALUE)) {
+			measurements = measurements.filter(m -> (null != m.getTimestamp()) && (m.getTimestamp() >= startTime)
+					&& (m.getTimestamp() <= endTime));
+		}
+		measurements.forEach(aggregator::add);
+	}
+
+	/**
+	 * Creates a source over a collection of measurements. The collection is
+	 * scanned on each request.
+	 * 
+	 * @param measurements
+	 *            the measurements
+	 * @return the measurement source
+	 */
+	static MeasurementSource of(Collection<ProvenMeasurement> measurements) {
+		return (measurementName, startTime, endTime) -> measurements.stream()
+				.filter(m -> measurementName.equals(m.getMeasurementName()));
+	}
+
+}
@@ -0,0 +1,1134 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+import gov.pnnl.proven.message.ProvenQueryFilter.Operator;
+
+/**
+ * In-memory store holding a retention window of recent measurements, e.g. the
+ * last few minutes of simulation output, for local queries (see
+ * {@link ProvenQueryExecutor}).
+ * 
+ * Measurements are grouped into series by measurement name and tag set. Each
+ * series is a time ordered list of fixed size chunks, where timestamps are
+ * held in a {@code long[]} and each field in a primitive column, so a range
+ * scan is a binary search followed by a sequential read. Integer and long
+ * fields are held as longs and float and double fields as doubles, so values
+ * come back with their value type; a field mixing both is widened to double.
+ * Tags keep the value type of the series' first measurement. Rows older than the
+ * retention window, relative to the latest timestamp of their own series, are
+ * rejected on add and evicted a chunk at a time, so a far-ahead timestamp in
+ * one series does not evict the others. Series that are no longer written
+ * are removed once idle for longer than the idle timeout (wall clock time).
+ * Timestamps and retention use the measurement time unit, see
+ * {@link TimestampCodec#getMeasurementCodec()} (by default microseconds,
+ * epoch numbers of any precision are normalized). Measurements are stored by value only;
+ * message references and timestamp-less measurements are not retained.
+ * 
+ * @author d3j766
+ *
+ */
+public class MeasurementStore implements MeasurementSource {
+
+	private static Logger log = LoggerFactory.getLogger(MeasurementStore.class);
+
+	/**
+	 * Default retention window, in seconds.
+	 */
+	public static final long DEFAULT_RETENTION = TimeUnit.MINUTES.toSeconds(15);
+	public static final int DEFAULT_CHUNK_SIZE = 512;
+
+	/**
+	 * Default time after which a series that is not written is removed, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(15);
+
+	/**
+	 * Series, by measurement name and series key.
+	 */
+	private final Map<String, ConcurrentHashMap<String, Series>> measurements = new ConcurrentHashMap<String, ConcurrentHashMap<String, Series>>();
+
+	private final int chunkSize;
+
+	private volatile long retention;
+
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	/**
+	 * Wall clock time of the next periodic eviction, in milliseconds.
+	 */
+	private final AtomicLong nextEviction = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Notified with the measurement name when measurements are added.
+	 */
+	private final List<Consumer<String>> ingestListeners = new CopyOnWriteArrayList<Consumer<String>>();
+
+	public MeasurementStore() {
+		this(TimestampCodec.getMeasurementCodec().getUnit().convert(DEFAULT_RETENTION, TimeUnit.SECONDS),
+				DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates a new store.
+	 * 
+	 * @param retention
+	 *            retention window, in measurement time units
+	 * @param chunkSize
+	 *            number of rows per series chunk
+	 */
+	public MeasurementStore(long retention, int chunkSize) {
+		if ((retention < 0) || (chunkSize < 2)) {
+			throw new IllegalArgumentException("Invalid retention or chunk size: " + retention + ", " + chunkSize);
+		}
+		this.retention = retention;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Adds a measurement. Metadata metrics form the series tag set, the others
+	 * its fields.
+	 * 
+	 * @param measurement
+	 *            the measurement
+	 * @return true if stored, false if it has no timestamp or is outside of its
+	 *         series' retention window
+	 */
+	public boolean add(ProvenMeasurement measurement) {
+
+		Long timestamp = measurement.getTimestamp();
+		if (null == timestamp) {
+			log.debug("Measurement without timestamp not stored: " + measurement.getMeasurementName());
+			return false;
+		}
+
+		TreeMap<String, String> tags = new TreeMap<String, String>();
+		Map<String, MetricValueType> tagTypes = new HashMap<String, MetricValueType>();
+		List<ProvenMetric> fields = new ArrayList<ProvenMetric>();
+		if (null != measurement.getMetrics()) {
+			for (ProvenMetric metric : measurement.getMetrics()) {
+				if (null == metric.getValue()) {
+					continue;
+				}
+				if (metric.isMetadata()) {
+					tags.put(metric.getLabel(), metric.getValue());
+					tagTypes.put(metric.getLabel(), metric.getValueType());
+				} else {
+					fields.add(metric);
+				}
+			}
+		}
+
+		boolean ret = addRow(measurement.getMeasurementName(), tags, tagTypes, timestamp, (chunk, row) -> {
+			for (ProvenMetric field : fields) {
+				chunk.set(row, field.getLabel(), field.getValue(), field.getValueType());
+			}
+		});
+		if (ret) {
+			notifyIngest(measurement.getMeasurementName());
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds measurements.
+	 * 
+	 * @param measurements
+	 *            the measurements
+	 * @return number of measurements stored
+	 */
+	public int addAll(Collection<ProvenMeasurement> measurements) {
+		int ret = 0;
+		if (null != measurements) {
+			for (ProvenMeasurement measurement : measurements) {
+				if (add(measurement)) {
+					ret++;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds the measurements of a built message.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return number of measurements stored
+	 */
+	public int add(ProvenMessage message) {
+		return addAll(message.getMeasurements());
+	}
+
+	/**
+	 * Adds the measurements of a compressed series block, e.g. to restore
+	 * blocks from {@link #getBlocks(String, long, long)}.
+	 * 
+	 * @param block
+	 *            the block
+	 * @return number of measurements stored
+	 */
+	public int add(ProvenMeasurementBlock block) {
+		return addAll(block.toMeasurements());
+	}
+
+	/**
+	 * Adds a columnar batch of rows for a single series.
+	 * 
+	 * @param measurementName
+	 *            the measurement name
+	 * @param tags
+	 *            the series tag set
+	 * @param timestamps
+	 *            row timestamps
+	 * @param fields
+	 *            numeric field columns, by label, each the same length as
+	 *            timestamps
+	 * @return number of rows stored
+	 */
+	public int addBatch(String measurementName, Map<String, String> tags, long[] timestamps,
+			Map<String, double[]> fields) {
+		return addBatch(measurementName, tags, timestamps, fields, Collections.<String, long[]> emptyMap());
+	}
+
+	/**
+	 * Adds a columnar batch of rows for a single series, with double and long
+	 * valued fields.
+	 * 
+	 * @param measurementName
+	 *            the measurement name
+	 * @param tags
+	 *            the series tag set
+	 * @param timestamps
+	 *            row timestamps
+	 * @param fields
+	 *            double field columns, by label, each the same length as
+	 *            timestamps
+	 * @param integralFields
+	 *            long field columns, by label, each the same length as
+	 *            timestamps
+	 * @return number of rows stored
+	 */
+	public int addBatch(String measurementName, Map<String, String> tags, long[] timestamps,
+			Map<String, double[]> fields, Map<String, long[]> integralFields) {
+
+		for (Map.Entry<String, double[]> field : fields.entrySet()) {
+			if (field.getValue().length != timestamps.length) {
+				throw new IllegalArgumentException("Column length mismatch for field: " + field.getKey());
+			}
+		}
+		for (Map.Entry<String, long[]> field : integralFields.entrySet()) {
+			if (field.getValue().length != timestamps.length) {
+				throw new IllegalArgumentException("Column length mismatch for field: " + field.getKey());
+			}
+		}
+
+		TreeMap<String, String> sortedTags = new TreeMap<String, String>(tags);
+		int ret = 0;
+		for (int i = 0; i < timestamps.length; i++) {
+			int index = i;
+			if (addRow(measurementName, sortedTags, Collections.<String, MetricValueType> emptyMap(), timestamps[i],
+					(chunk, row) -> {
+						for (Map.Entry<String, double[]> field : fields.entrySet()) {
+							chunk.set(row, field.getKey(), field.getValue()[index]);
+						}
+						for (Map.Entry<String, long[]> field : integralFields.entrySet()) {
+							chunk.set(row, field.getKey(), field.getValue()[index]);
+						}
+					})) {
+				ret++;
+			}
+		}
+		if (ret > 0) {
+			notifyIngest(measurementName);
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds a listener notified, with the measurement name, when measurements
+	 * are added.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public void addIngestListener(Consumer<String> listener) {
+		ingestListeners.add(listener);
+	}
+
+	public void removeIngestListener(Consumer<String> listener) {
+		ingestListeners.remove(listener);
+	}
+
+	/**
+	 * Provides stored measurements within a time range, time ordered within
+	 * each series.
+	 */
+	@Override
+	public Stream<ProvenMeasurement> getMeasurements(String measurementName, long startTime, long endTime) {
+
+		ConcurrentHashMap<String, Series> series = measurements.get(measurementName);
+		if (null == series) {
+			return Stream.empty();
+		}
+
+		return getMeasurements(measurementName, startTime, endTime, Collections.<CompiledQueryFilter> emptyList());
+	}
+
+	/**
+	 * Provides stored measurements within a time range that match filters,
+	 * time ordered within each series. Filters on tags are tested once per
+	 * series, and filters on fields against the column values, so only
+	 * matching rows are converted to measurements.
+	 */
+	@Override
+	public Stream<ProvenMeasurement> getMeasurements(String measurementName, long startTime, long endTime,
+			List<CompiledQueryFilter> filters) {
+
+		ConcurrentHashMap<String, Series> series = measurements.get(measurementName);
+		if (null == series) {
+			return Stream.empty();
+		}
+
+		long retention = this.retention;
+		return series.values().stream().flatMap(
+				s -> s.scan(Math.max(startTime, s.getRetentionStart(retention)), endTime, filters).stream());
+	}
+
+	/**
+	 * Aggregates stored measurements within a time range that match filters,
+	 * adding the column values to the aggregator as they are held, without
+	 * converting rows to measurements.
+	 */
+	@Override
+	public void aggregate(String measurementName, long startTime, long endTime, List<CompiledQueryFilter> filters,
+			TimeBucketAggregator aggregator) {
+
+		ConcurrentHashMap<String, Series> series = measurements.get(measurementName);
+		if (null == series) {
+			return;
+		}
+
+		long retention = this.retention;
+		for (Series s : series.values()) {
+			s.aggregate(Math.max(startTime, s.getRetentionStart(retention)), endTime, filters, aggregator);
+		}
+	}
+
+	/**
+	 * Provides stored measurements within a time range as compressed blocks,
+	 * one per series, e.g. to snapshot or transfer the store. The store holds
+	 * uncompressed chunks, blocks are not kept: each call scans the series
+	 * and encodes new blocks, so callers needing them repeatedly should keep
+	 * them.
+	 */
+	public List<ProvenMeasurementBlock> getBlocks(String measurementName, long startTime, long endTime) {
+
+		ConcurrentHashMap<String, Series> series = measurements.get(measurementName);
+		List<ProvenMeasurementBlock> ret = new ArrayList<ProvenMeasurementBlock>();
+		if (null == series) {
+			return ret;
+		}
+
+		long retention = this.retention;
+		for (Series s : series.values()) {
+			List<ProvenMeasurement> rows = s.scan(Math.max(startTime, s.getRetentionStart(retention)), endTime,
+					Collections.<CompiledQueryFilter> emptyList());
+			if (!rows.isEmpty()) {
+				ret.addAll(ProvenMeasurementBlock.encode(rows));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Evicts rows older than their series' retention window, and removes
+	 * series idle for longer than the idle timeout.
+	 * 
+	 * @return number of rows evicted
+	 */
+	public int evict() {
+
+		long retention = this.retention;
+		long idleSince = System.currentTimeMillis() - idleTimeout;
+		int ret = 0;
+		for (ConcurrentHashMap<String, Series> series : measurements.values()) {
+			for (String key : series.keySet()) {
+				int[] evicted = new int[1];
+				series.computeIfPresent(key, (k, s) -> {
+					if (s.getLastWrite() < idleSince) {
+						evicted[0] = s.size();
+						return null;
+					}
+					evicted[0] = s.evictBefore(s.getRetentionStart(retention));
+					return (s.size() == 0) ? null : s;
+				});
+				ret += evicted[0];
+			}
+		}
+
+		if (ret > 0) {
+			log.debug("Evicted " + ret + " measurements");
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Removes all stored measurements.
+	 */
+	public void clear() {
+		measurements.clear();
+		nextEviction.set(Long.MIN_VALUE);
+	}
+
+	/**
+	 * @return number of stored rows
+	 */
+	public long size() {
+		long ret = 0;
+		for (ConcurrentHashMap<String, Series> series : measurements.values()) {
+			for (Series s : series.values()) {
+				ret += s.size();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of series
+	 */
+	public int seriesCount() {
+		int ret = 0;
+		for (ConcurrentHashMap<String, Series> series : measurements.values()) {
+			ret += series.size();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return latest timestamp stored, over all series, {@code Long.MIN_VALUE}
+	 *         if none
+	 */
+	public long getLatestTime() {
+		long ret = Long.MIN_VALUE;
+		for (ConcurrentHashMap<String, Series> series : measurements.values()) {
+			for (Series s : series.values()) {
+				ret = Math.max(ret, s.getLatestTime());
+			}
+		}
+		return ret;
+	}
+
+	public long getRetention() {
+		return retention;
+	}
+
+	public void setRetention(long retention) {
+		if (retention < 0) {
+			throw new IllegalArgumentException("Invalid retention: " + retention);
+		}
+		this.retention = retention;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the time after which a series that is not written is removed.
+	 * 
+	 * @param idleTimeout
+	 *            idle timeout, in milliseconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		if (idleTimeout < 0) {
+			throw new IllegalArgumentException("Invalid idle timeout: " + idleTimeout);
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	private boolean addRow(String measurementName, TreeMap<String, String> tags, Map<String, MetricValueType> tagTypes,
+			long timestamp, RowWriter writer) {
+
+		long retention = this.retention;
+		boolean[] added = new boolean[1];
+		ConcurrentHashMap<String, Series> series = measurements.computeIfAbsent(measurementName,
+				k -> new ConcurrentHashMap<String, Series>());
+		series.compute(seriesKey(tags), (k, s) -> {
+			Series ret = (null == s) ? new Series(measurementName, tags, tagTypes, chunkSize) : s;
+			added[0] = ret.add(timestamp, retention, writer);
+			return ret;
+		});
+
+		// Periodically evict series that are no longer written
+		long now = System.currentTimeMillis();
+		long next = nextEviction.get();
+		if ((now >= next) && nextEviction.compareAndSet(next, now + Math.max(1, idleTimeout / 10))) {
+			evict();
+		}
+
+		return added[0];
+	}
+
+	private void notifyIngest(String measurementName) {
+		for (Consumer<String> listener : ingestListeners) {
+			listener.accept(measurementName);
+		}
+	}
+
+	/**
+	 * Series key of a tag set, separated by control characters (see
+	 * {@link ProvenMeasurementBlock}) so labels and values containing '=' or
+	 * ',' do not collide.
+	 */
+	private static String seriesKey(TreeMap<String, String> tags) {
+		StringBuilder ret = new StringBuilder();
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			ret.append('\u0000').append(tag.getKey()).append('\u0001').append(tag.getValue());
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Writes the field values of a row.
+	 */
+	@FunctionalInterface
+	private interface RowWriter {
+		void write(Chunk chunk, int row);
+	}
+
+	/**
+	 * Time ordered, non-overlapping chunks of a single series.
+	 */
+	private static final class Series {
+
+		private final String measurementName;
+		private final String[] tagLabels;
+		private final String[] tagValues;
+		private final MetricValueType[] tagTypes;
+		private final int chunkSize;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		private volatile int size;
+		private volatile long latestTime = Long.MIN_VALUE;
+		private volatile long lastWrite = System.currentTimeMillis();
+
+		Series(String measurementName, TreeMap<String, String> tags, Map<String, MetricValueType> tagTypes,
+				int chunkSize) {
+			this.measurementName = measurementName;
+			this.tagLabels = tags.keySet().toArray(new String[tags.size()]);
+			this.tagValues = tags.values().toArray(new String[tags.size()]);
+			this.tagTypes = new MetricValueType[tagLabels.length];
+			for (int i = 0; i < tagLabels.length; i++) {
+				MetricValueType type = tagTypes.get(tagLabels[i]);
+				this.tagTypes[i] = (null == type) ? MetricValueType.String : type;
+			}
+			this.chunkSize = chunkSize;
+		}
+
+		int size() {
+			return size;
+		}
+
+		long getLatestTime() {
+			return latestTime;
+		}
+
+		long getLastWrite() {
+			return lastWrite;
+		}
+
+		long getRetentionStart(long retention) {
+			long latest = latestTime;
+			return (latest == Long.MIN_VALUE) ? Long.MIN_VALUE : latest - retention;
+		}
+
+		/**
+		 * Adds a row, unless older than the retention window, and evicts the
+		 * chunks a later timestamp moved out of it.
+		 * 
+		 * @return false if outside of the retention window
+		 */
+		boolean add(long timestamp, long retention, RowWriter writer) {
+
+			lock.writeLock().lock();
+			try {
+
+				lastWrite = System.currentTimeMillis();
+				if ((latestTime != Long.MIN_VALUE) && (latestTime - timestamp > retention)) {
+					return false;
+				}
+				if (timestamp > latestTime) {
+					latestTime = timestamp;
+					if (!chunks.isEmpty() && (chunks.get(0).last() < getRetentionStart(retention))) {
+						evictBefore(getRetentionStart(retention));
+					}
+				}
+				insert(timestamp, writer);
+				return true;
+
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private void insert(long timestamp, RowWriter writer) {
+			// Common case, append in time order
+			Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			if ((null == last) || (timestamp >= last.last())) {
+				if ((null == last) || last.isFull()) {
+					last = new Chunk(chunkSize);
+					chunks.add(last);
+				}
+				writer.write(last, last.insert(last.size, timestamp));
+				size++;
+				return;
+			}
+
+			// Out of order, insert into the chunk covering the timestamp
+			int index = Math.max(0, floorChunk(timestamp));
+			Chunk chunk = chunks.get(index);
+			if (chunk.isFull()) {
+				Chunk upper = chunk.split();
+				chunks.add(index + 1, upper);
+				if (timestamp >= upper.first()) {
+					chunk = upper;
+				}
+			}
+			writer.write(chunk, chunk.insert(chunk.upperBound(timestamp), timestamp));
+			size++;
+		}
+
+		int evictBefore(long time) {
+
+			lock.writeLock().lock();
+			try {
+				int ret = 0;
+				Iterator<Chunk> iter = chunks.iterator();
+				while (iter.hasNext()) {
+					Chunk chunk = iter.next();
+					if (chunk.last() >= time) {
+						break;
+					}
+					ret += chunk.size;
+					iter.remove();
+				}
+				size -= ret;
+				return ret;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		List<ProvenMeasurement> scan(long startTime, long endTime, List<CompiledQueryFilter> filters) {
+
+			List<CompiledQueryFilter> fieldFilters = fieldFilters(filters);
+			if (null == fieldFilters) {
+				return Collections.emptyList();
+			}
+
+			lock.readLock().lock();
+			try {
+				List<ProvenMeasurement> ret = new ArrayList<ProvenMeasurement>();
+				for (int c = Math.max(0, floorChunk(startTime)); c < chunks.size(); c++) {
+					Chunk chunk = chunks.get(c);
+					if (chunk.first() > endTime) {
+						break;
+					}
+					int end = chunk.upperBound(endTime);
+					for (int row = chunk.lowerBound(startTime); row < end; row++) {
+						if (chunk.matches(row, fieldFilters)) {
+							ret.add(chunk.toMeasurement(row, this));
+						}
+					}
+				}
+				return ret;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		void aggregate(long startTime, long endTime, List<CompiledQueryFilter> filters,
+				TimeBucketAggregator aggregator) {
+
+			List<CompiledQueryFilter> fieldFilters = fieldFilters(filters);
+			if (null == fieldFilters) {
+				return;
+			}
+
+			TimeBucketAggregator.SeriesAccumulator series = aggregator.series(tagLabels, tagValues, tagTypes);
+			lock.readLock().lock();
+			try {
+				for (int c = Math.max(0, floorChunk(startTime)); c < chunks.size(); c++) {
+					Chunk chunk = chunks.get(c);
+					if (chunk.first() > endTime) {
+						break;
+					}
+					chunk.aggregate(chunk.lowerBound(startTime), chunk.upperBound(endTime), fieldFilters, series);
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Tests the tag filters, which match all or none of the rows.
+		 * 
+		 * @return the remaining filters, null if a tag filter doesn't match
+		 */
+		private List<CompiledQueryFilter> fieldFilters(List<CompiledQueryFilter> filters) {
+			List<CompiledQueryFilter> ret = new ArrayList<CompiledQueryFilter>(filters.size());
+			for (CompiledQueryFilter filter : filters) {
+				int tag = filter.isTimeFilter() ? -1 : Arrays.binarySearch(tagLabels, filter.getField());
+				if (tag < 0) {
+					ret.add(filter);
+				} else if (!filter.test(tagValues[tag], tagTypes[tag])) {
+					return null;
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * @return index of the last chunk starting at or before time, -1 if
+		 *         none
+		 */
+		private int floorChunk(long time) {
+			int low = 0;
+			int high = chunks.size() - 1;
+			int ret = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (chunks.get(mid).first() <= time) {
+					ret = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Fixed capacity block of time ordered rows, with a column per field.
+	 */
+	private static final class Chunk {
+
+		private final long[] times;
+		private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+		private int size;
+
+		Chunk(int capacity) {
+			this.times = new long[capacity];
+		}
+
+		boolean isFull() {
+			return size == times.length;
+		}
+
+		long first() {
+			return times[0];
+		}
+
+		long last() {
+			return times[size - 1];
+		}
+
+		/**
+		 * @return first row with a time at or after time
+		 */
+		int lowerBound(long time) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (times[mid] < time) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * @return first row with a time after time
+		 */
+		int upperBound(long time) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (times[mid] <= time) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		int insert(int row, long time) {
+			System.arraycopy(times, row, times, row + 1, size - row);
+			times[row] = time;
+			for (Column column : columns.values()) {
+				column.insert(row, size);
+			}
+			size++;
+			return row;
+		}
+
+		/**
+		 * Moves the upper half of this chunk's rows into a new chunk.
+		 */
+		Chunk split() {
+			int from = size / 2;
+			Chunk ret = new Chunk(times.length);
+			ret.size = size - from;
+			System.arraycopy(times, from, ret.times, 0, ret.size);
+			for (Map.Entry<String, Column> column : columns.entrySet()) {
+				ret.columns.put(column.getKey(), column.getValue().split(from, size));
+			}
+			size = from;
+			return ret;
+		}
+
+		void set(int row, String label, String value, MetricValueType valueType) {
+			column(label, valueType).set(row, value, valueType);
+		}
+
+		void set(int row, String label, double value) {
+			column(label, MetricValueType.Double).set(row, value);
+		}
+
+		void set(int row, String label, long value) {
+			column(label, MetricValueType.Long).set(row, value);
+		}
+
+		boolean matches(int row, List<CompiledQueryFilter> filters) {
+			for (CompiledQueryFilter filter : filters) {
+				boolean match;
+				if (filter.isTimeFilter()) {
+					match = filter.test(times[row]);
+				} else {
+					Column column = columns.get(filter.getField());
+					match = ((null != column) && column.present[row]) ? column.test(row, filter)
+							: (filter.getOperator() == Operator.NE);
+				}
+				if (!match) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Adds the values of rows from (inclusive) to to (exclusive) matching
+		 * filters, a column at a time if there are no filters.
+		 */
+		void aggregate(int from, int to, List<CompiledQueryFilter> filters,
+				TimeBucketAggregator.SeriesAccumulator series) {
+			if (filters.isEmpty()) {
+				for (Map.Entry<String, Column> column : columns.entrySet()) {
+					Column c = column.getValue();
+					for (int row = from; row < to; row++) {
+						if (c.present[row]) {
+							c.addTo(series, column.getKey(), times[row], row);
+						}
+					}
+				}
+				return;
+			}
+			for (int row = from; row < to; row++) {
+				if (matches(row, filters)) {
+					for (Map.Entry<String, Column> column : columns.entrySet()) {
+						Column c = column.getValue();
+						if (c.present[row]) {
+							c.addTo(series, column.getKey(), times[row], row);
+						}
+					}
+				}
+			}
+		}
+
+		ProvenMeasurement toMeasurement(int row, Series series) {
+			Set<ProvenMetric> metrics = new HashSet<ProvenMetric>();
+			for (int i = 0; i < series.tagLabels.length; i++) {
+				metrics.add(new ProvenMetric(series.tagLabels[i], series.tagValues[i], true, series.tagTypes[i]));
+			}
+			for (Map.Entry<String, Column> column : columns.entrySet()) {
+				Column c = column.getValue();
+				if (c.present[row]) {
+					metrics.add(new ProvenMetric(column.getKey(), c.get(row), false, c.valueType));
+				}
+			}
+			return new ProvenMeasurement(series.measurementName, times[row], metrics);
+		}
+
+		private Column column(String label, MetricValueType valueType) {
+			Column ret = columns.get(label);
+			if (null == ret) {
+				ret = new Column(times.length, valueType);
+				columns.put(label, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Field column. Integer and long values are held as longs, float and
+	 * double values as doubles, other values as strings. A long column is
+	 * widened to a double column if a float or double value is added, and a
+	 * numeric column to a string column if a non-numeric value is added.
+	 */
+	private static final class Column {
+
+		private MetricValueType valueType;
+		private long[] integers;
+		private double[] numbers;
+		private String[] texts;
+		private final boolean[] present;
+
+		Column(int capacity, MetricValueType valueType) {
+			this.valueType = valueType;
+			this.present = new boolean[capacity];
+			if (isIntegral(valueType)) {
+				integers = new long[capacity];
+			} else if (isNumeric(valueType)) {
+				numbers = new double[capacity];
+			} else {
+				texts = new String[capacity];
+			}
+		}
+
+		void set(int row, long value) {
+			if (null != integers) {
+				valueType = widen(valueType, MetricValueType.Long);
+				integers[row] = value;
+				present[row] = true;
+			} else if (null != numbers) {
+				valueType = widen(valueType, MetricValueType.Long);
+				numbers[row] = value;
+				present[row] = true;
+			} else {
+				set(row, Long.toString(value), MetricValueType.Long);
+			}
+		}
+
+		void set(int row, double value) {
+			if (null != integers) {
+				toNumbers();
+			}
+			if (null != numbers) {
+				valueType = widen(valueType, MetricValueType.Double);
+				numbers[row] = value;
+				present[row] = true;
+			} else {
+				set(row, Double.toString(value), MetricValueType.Double);
+			}
+		}
+
+		void set(int row, String value, MetricValueType type) {
+
+			try {
+				if ((null != integers) && isIntegral(type)) {
+					integers[row] = Long.parseLong(value);
+					valueType = widen(valueType, type);
+					present[row] = true;
+					return;
+				}
+				if (((null != integers) || (null != numbers)) && isNumeric(type)) {
+					double number = Double.parseDouble(value);
+					if (null != integers) {
+						toNumbers();
+					}
+					numbers[row] = number;
+					valueType = widen(valueType, type);
+					present[row] = true;
+					return;
+				}
+			} catch (NumberFormatException e) {
+				// Held as text
+			}
+
+			if (null == texts) {
+				toTexts();
+			}
+			if (valueType != type) {
+				valueType = MetricValueType.String;
+			}
+			texts[row] = value;
+			present[row] = true;
+		}
+
+		String get(int row) {
+			if (null != texts) {
+				return texts[row];
+			}
+			if (null != integers) {
+				return Long.toString(integers[row]);
+			}
+			if (valueType == MetricValueType.Float) {
+				return Float.toString((float) numbers[row]);
+			}
+			return Double.toString(numbers[row]);
+		}
+
+		void addTo(TimeBucketAggregator.SeriesAccumulator series, String label, long time, int row) {
+			if (null != texts) {
+				series.add(time, label, texts[row], valueType);
+			} else if (null != integers) {
+				series.add(time, label, integers[row], valueType);
+			} else {
+				series.add(time, label, numbers[row], valueType);
+			}
+		}
+
+		boolean test(int row, CompiledQueryFilter filter) {
+			if ((null != texts) || (filter.getOperandType() == CompiledQueryFilter.OperandType.STRING)) {
+				return filter.test(get(row), valueType);
+			}
+			if (null != integers) {
+				return filter.test(integers[row]);
+			}
+			return filter.test(numbers[row]);
+		}
+
+		void insert(int row, int size) {
+			System.arraycopy(present, row, present, row + 1, size - row);
+			present[row] = false;
+			if (null != integers) {
+				System.arraycopy(integers, row, integers, row + 1, size - row);
+			} else if (null != numbers) {
+				System.arraycopy(numbers, row, numbers, row + 1, size - row);
+			} else {
+				System.arraycopy(texts, row, texts, row + 1, size - row);
+				texts[row] = null;
+			}
+		}
+
+		Column split(int from, int size) {
+			Column ret = new Column(present.length, valueType);
+			if (null != integers) {
+				System.arraycopy(integers, from, ret.integers, 0, size - from);
+			} else if (null != numbers) {
+				ret.integers = null;
+				ret.numbers = new double[present.length];
+				System.arraycopy(numbers, from, ret.numbers, 0, size - from);
+			} else {
+				ret.integers = null;
+				ret.numbers = null;
+				ret.texts = new String[present.length];
+				System.arraycopy(texts, from, ret.texts, 0, size - from);
+				Arrays.fill(texts, from, size, null);
+			}
+			System.arraycopy(present, from, ret.present, 0, size - from);
+			Arrays.fill(present, from, size, false);
+			return ret;
+		}
+
+		private void toNumbers() {
+			numbers = new double[present.length];
+			for (int i = 0; i < present.length; i++) {
+				numbers[i] = integers[i];
+			}
+			integers = null;
+		}
+
+		private void toTexts() {
+			String[] ret = new String[present.length];
+			for (int i = 0; i < present.length; i++) {
+				if (present[i]) {
+					ret[i] = get(i);
+				}
+			}
+			texts = ret;
+			integers = null;
+			numbers = null;
+		}
+
+		private static boolean isIntegral(MetricValueType valueType) {
+			return (valueType == MetricValueType.Integer) || (valueType == MetricValueType.Long);
+		}
+
+		private static boolean isNumeric(MetricValueType valueType) {
+			return isIntegral(valueType) || (valueType == MetricValueType.Float)
+					|| (valueType == MetricValueType.Double);
+		}
+
+		private static MetricValueType widen(MetricValueType current, MetricValueType added) {
+			if (current == added) {
+				return current;
+			}
+			if (isIntegral(current) && isIntegral(added)) {
+				return MetricValueType.Long;
+			}
+			return MetricValueType.Double;
+		}
+	}
+
+}
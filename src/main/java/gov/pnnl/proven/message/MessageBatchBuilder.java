@@ -0,0 +1,571 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.pnnl.proven.message.ProvenMessage.ProvenMessageBuilder;
+import gov.pnnl.proven.message.ProvenMessage.ProvenMessageBuilder.PreparedMessage;
+
+/**
+ * Builds messages in micro-batches, sharing one SHACL rule pass per batch.
+ * For small messages the fixed cost of a rule pass dominates the build,
+ * batching spreads it over up to {@link #getMaxBatchSize()} messages,
+ * collected for at most {@link #getLingerMillis()} after the first.
+ * 
+ * Messages of a batch are prepared as usual, see
+ * {@link ProvenMessageBuilder#build()}, then their data models are loaded
+ * into one graph. Blank nodes are replaced by unique resources when a data
+ * model is created, so each message owns its subjects and its root. Rule
+ * results are split back to messages by the owner of their subject.
+ * 
+ * Results must be the same as unbatched builds, so batching falls back to a
+ * rule pass per message where rules could see across messages:
+ * <ul>
+ * <li>messages sharing subjects, or referring to another message's subjects,
+ * are built unbatched</li>
+ * <li>if any result has a subject owned by no message, or a value found in
+ * another message's data but not in its owner's, e.g. from a rule pattern
+ * not joined to its focus node, the whole batch is built unbatched</li>
+ * </ul>
+ * The check is conservative, but it can't detect rules whose results depend
+ * on the absence of data, e.g. a rule inferring a value when no other node
+ * has some property: in a batch the other messages' data is visible to it, so
+ * its results may differ from an unbatched build. Batching is only equivalent
+ * for rules that are monotone, results added for a message's data are never
+ * retracted by adding other data. Domains whose shapes have non-monotone
+ * rules must be opted out, see {@link #setDomainBatched(String, boolean)};
+ * their messages are always built with their own rule pass. Queries, messages
+ * with a cached build and messages of different domains are not batched
+ * together.
+ * 
+ * @author d3j766
+ *
+ */
+public class MessageBatchBuilder {
+
+	private static Logger log = LoggerFactory.getLogger(MessageBatchBuilder.class);
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+	public static final long DEFAULT_LINGER_MILLIS = 5;
+
+	/**
+	 * How long an idle worker waits for a message before checking for
+	 * shutdown.
+	 */
+	private static final long POLL_MILLIS = 100;
+
+	private final BlockingQueue<PendingBuild> queue = new LinkedBlockingQueue<PendingBuild>();
+
+	private final Thread worker;
+
+	private volatile int maxBatchSize;
+
+	private volatile long lingerMillis;
+
+	private volatile boolean isShutdown;
+
+	/**
+	 * Domains whose messages are built unbatched, a null domain is stored as
+	 * "".
+	 */
+	private final Set<String> unbatchedDomains = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batched = new AtomicLong();
+	private final AtomicLong unbatched = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final LatencyHistogram waitTimes = new LatencyHistogram();
+	private final LatencyHistogram buildTimes = new LatencyHistogram();
+
+	public MessageBatchBuilder() {
+		this(DEFAULT_MAX_BATCH_SIZE, DEFAULT_LINGER_MILLIS);
+	}
+
+	/**
+	 * Creates a new batch builder and starts its worker.
+	 * 
+	 * @param maxBatchSize
+	 *            maximum number of messages in a batch
+	 * @param lingerMillis
+	 *            how long to collect messages for a batch after its first
+	 */
+	public MessageBatchBuilder(int maxBatchSize, long lingerMillis) {
+		setMaxBatchSize(maxBatchSize);
+		setLingerMillis(lingerMillis);
+		this.worker = new Thread(this::work, "proven-batch-build");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Queues a message build for the next batch.
+	 * 
+	 * @param builder
+	 *            the message builder
+	 * @return the built message, completed exceptionally if the build
+	 *         failed
+	 * @throws IllegalStateException
+	 *             if the batch builder is shut down
+	 */
+	public CompletableFuture<ProvenMessage> submit(ProvenMessageBuilder builder) {
+		if (isShutdown) {
+			throw new IllegalStateException("Batch builder is shut down");
+		}
+		PendingBuild pending = new PendingBuild(builder);
+		queue.add(pending);
+		if (isShutdown && queue.remove(pending)) {
+			pending.fail(new CancellationException("Batch builder is shut down"));
+		}
+		return pending.result;
+	}
+
+	/**
+	 * Builds messages in batches on the calling thread.
+	 * 
+	 * @param builders
+	 *            the message builders
+	 * @return the built messages, in builder order
+	 */
+	public List<CompletableFuture<ProvenMessage>> build(List<ProvenMessageBuilder> builders) {
+
+		List<CompletableFuture<ProvenMessage>> ret = new ArrayList<CompletableFuture<ProvenMessage>>();
+		List<PendingBuild> batch = new ArrayList<PendingBuild>();
+		for (ProvenMessageBuilder builder : builders) {
+			PendingBuild pending = new PendingBuild(builder);
+			ret.add(pending.result);
+			batch.add(pending);
+			if (batch.size() >= maxBatchSize) {
+				buildBatch(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			buildBatch(batch);
+		}
+		return ret;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets the maximum batch size, applies to the next batch.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("Invalid max batch size: " + maxBatchSize);
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getLingerMillis() {
+		return lingerMillis;
+	}
+
+	/**
+	 * Sets the linger time, applies to the next batch.
+	 */
+	public void setLingerMillis(long lingerMillis) {
+		if (lingerMillis < 0) {
+			throw new IllegalArgumentException("Invalid linger millis: " + lingerMillis);
+		}
+		this.lingerMillis = lingerMillis;
+	}
+
+	/**
+	 * Sets whether messages of a domain may share a rule pass. Domains are
+	 * batched unless opted out; opt out domains whose shapes have rules
+	 * depending on the absence of data, see class comment.
+	 * 
+	 * @param domain
+	 *            the message domain, may be null
+	 * @param isBatched
+	 *            false to build the domain's messages unbatched
+	 */
+	public void setDomainBatched(String domain, boolean isBatched) {
+		String key = (null == domain) ? "" : domain;
+		if (isBatched) {
+			unbatchedDomains.remove(key);
+		} else {
+			unbatchedDomains.add(key);
+		}
+	}
+
+	public boolean isDomainBatched(String domain) {
+		return !unbatchedDomains.contains((null == domain) ? "" : domain);
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return number of shared rule passes
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * @return number of messages built with a shared rule pass
+	 */
+	public long getBatchedCount() {
+		return batched.get();
+	}
+
+	/**
+	 * @return number of messages built with their own rule pass
+	 */
+	public long getUnbatchedCount() {
+		return unbatched.get();
+	}
+
+	/**
+	 * @return number of batches rebuilt unbatched because of their rule
+	 *         results
+	 */
+	public long getFallbackCount() {
+		return fallbacks.get();
+	}
+
+	/**
+	 * @return latencies of message builds, from submit to completion
+	 */
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * @return wait times of message builds, from submit to the start of their
+	 *         batch's build, including linger
+	 */
+	public LatencyHistogram getWaitTimes() {
+		return waitTimes;
+	}
+
+	/**
+	 * @return build times of batches, from their first prepare to their last
+	 *         completion
+	 */
+	public LatencyHistogram getBuildTimes() {
+		return buildTimes;
+	}
+
+	/**
+	 * Stops accepting builds and waits for queued builds to complete. Builds
+	 * still queued after the timeout are completed exceptionally with a
+	 * {@link CancellationException}; a batch already being built is left to
+	 * complete.
+	 * 
+	 * @return true if all queued builds were completed
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		isShutdown = true;
+		worker.join(Math.max(1, unit.toMillis(timeout)));
+		List<PendingBuild> cancelled = new ArrayList<PendingBuild>();
+		queue.drainTo(cancelled);
+		for (PendingBuild pending : cancelled) {
+			pending.fail(new CancellationException("Batch builder shut down before build"));
+		}
+		boolean ret = cancelled.isEmpty();
+		log.debug("Batch builder shut down" + (ret ? "" : ", " + cancelled.size() + " builds cancelled"));
+		return ret;
+	}
+
+	public boolean isShutdown() {
+		return isShutdown;
+	}
+
+	private void work() {
+
+		List<PendingBuild> batch = new ArrayList<PendingBuild>();
+		while (!isShutdown || !queue.isEmpty()) {
+			try {
+				PendingBuild first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (null == first) {
+					continue;
+				}
+				batch.add(first);
+				int max = maxBatchSize;
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+				while (batch.size() < max) {
+					long remaining = deadline - System.nanoTime();
+					PendingBuild next = (remaining > 0) ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+							: queue.poll();
+					if (null == next) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			buildBatch(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Builds a batch of messages, completing their results.
+	 */
+	private void buildBatch(List<PendingBuild> batch) {
+
+		long start = System.nanoTime();
+		for (PendingBuild pending : batch) {
+			waitTimes.record(start - pending.submitted);
+		}
+		buildPrepared(batch);
+		buildTimes.record(System.nanoTime() - start);
+	}
+
+	private void buildPrepared(List<PendingBuild> batch) {
+
+		// Prepare messages, group those to be batched by message model and
+		// domain
+		Map<MessageModel, Map<String, List<PendingBuild>>> groups = new IdentityHashMap<MessageModel, Map<String, List<PendingBuild>>>();
+		for (PendingBuild pending : batch) {
+			try {
+				pending.prepared = pending.builder.prepare();
+			} catch (Exception e) {
+				pending.fail(e);
+				continue;
+			}
+			String domain = pending.prepared.getMessage().getDomain();
+			if (pending.prepared.isQuery() || pending.prepared.isCached() || !isDomainBatched(domain)) {
+				buildUnbatched(pending);
+			} else {
+				groups.computeIfAbsent(pending.prepared.getMessageModel(),
+						k -> new HashMap<String, List<PendingBuild>>())
+						.computeIfAbsent((null == domain) ? "" : domain, k -> new ArrayList<PendingBuild>())
+						.add(pending);
+			}
+		}
+
+		for (Map.Entry<MessageModel, Map<String, List<PendingBuild>>> group : groups.entrySet()) {
+			for (List<PendingBuild> domainGroup : group.getValue().values()) {
+				buildShared(group.getKey(), domainGroup);
+			}
+		}
+	}
+
+	/**
+	 * Builds messages of the same message model with a shared rule pass.
+	 */
+	private void buildShared(MessageModel messageModel, List<PendingBuild> group) {
+
+		// Resource owners, and values of each message's data
+		Map<Node, Integer> owners = new HashMap<Node, Integer>();
+		List<Set<String>> values = new ArrayList<Set<String>>();
+		Set<String> allValues = new HashSet<String>();
+		Set<Integer> conflicts = new HashSet<Integer>();
+
+		for (int i = 0; i < group.size(); i++) {
+			Graph graph = group.get(i).prepared.getDataModel().getGraph();
+			ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+			while (iter.hasNext()) {
+				Integer owner = owners.putIfAbsent(iter.next().getSubject(), i);
+				if ((null != owner) && (owner != i)) {
+					conflicts.add(owner);
+					conflicts.add(i);
+				}
+			}
+		}
+
+		for (int i = 0; i < group.size(); i++) {
+			Set<String> messageValues = new HashSet<String>();
+			Graph graph = group.get(i).prepared.getDataModel().getGraph();
+			ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+			while (iter.hasNext()) {
+				Triple t = iter.next();
+				Integer owner = owners.get(t.getObject());
+				if ((null != owner) && (owner != i)) {
+					conflicts.add(owner);
+					conflicts.add(i);
+				}
+				messageValues.add(valueOf(t.getSubject()));
+				messageValues.add(valueOf(t.getObject()));
+			}
+			values.add(messageValues);
+			allValues.addAll(messageValues);
+		}
+
+		List<PendingBuild> shared = new ArrayList<PendingBuild>();
+		int[] sharedIndex = new int[group.size()];
+		for (int i = 0; i < group.size(); i++) {
+			if (conflicts.contains(i)) {
+				sharedIndex[i] = -1;
+				buildUnbatched(group.get(i));
+			} else {
+				sharedIndex[i] = shared.size();
+				shared.add(group.get(i));
+			}
+		}
+		if (!conflicts.isEmpty()) {
+			log.debug(conflicts.size() + " messages share resources, built unbatched");
+		}
+		if (shared.size() < 2) {
+			shared.forEach(this::buildUnbatched);
+			return;
+		}
+
+		// Shared rule pass, split results by subject owner
+		List<Model> parts = new ArrayList<Model>();
+		Model batchModel = ModelFactory.createDefaultModel();
+		for (PendingBuild pending : shared) {
+			parts.add(ModelFactory.createDefaultModel());
+			batchModel.add(pending.prepared.getDataModel());
+		}
+
+		Model results;
+		try {
+			results = MessageUtils.getShaclRuleResults(messageModel, batchModel);
+		} catch (Exception e) {
+			log.warn("Shared SHACL rule pass failed, building unbatched", e);
+			fallbacks.incrementAndGet();
+			shared.forEach(this::buildUnbatched);
+			return;
+		}
+
+		ExtendedIterator<Triple> iter = results.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		while (iter.hasNext()) {
+			Triple t = iter.next();
+			Integer owner = owners.get(t.getSubject());
+			int index = (null == owner) ? -1 : sharedIndex[owner];
+			String value = valueOf(t.getObject());
+			if ((index < 0) || (allValues.contains(value) && !values.get(owner).contains(value))) {
+				log.debug("Ambiguous SHACL rule result, building batch unbatched: " + t);
+				iter.close();
+				fallbacks.incrementAndGet();
+				shared.forEach(this::buildUnbatched);
+				return;
+			}
+			parts.get(index).getGraph().add(t);
+		}
+
+		batches.incrementAndGet();
+		batched.addAndGet(shared.size());
+		for (int i = 0; i < shared.size(); i++) {
+			PendingBuild pending = shared.get(i);
+			try {
+				Model dataModel = pending.prepared.getDataModel().union(parts.get(i));
+				pending.complete(ProvenMessageBuilder.complete(pending.prepared, dataModel));
+			} catch (Exception e) {
+				pending.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Builds a prepared message with its own rule pass.
+	 */
+	private void buildUnbatched(PendingBuild pending) {
+		unbatched.incrementAndGet();
+		try {
+			Model dataModel = ProvenMessageBuilder.addShaclRuleResults(pending.prepared);
+			pending.complete(ProvenMessageBuilder.complete(pending.prepared, dataModel));
+		} catch (Exception e) {
+			pending.fail(e);
+		}
+	}
+
+	/**
+	 * Value of a node, as compared between messages.
+	 */
+	private static String valueOf(Node node) {
+		return node.isLiteral() ? node.getLiteralLexicalForm() : node.toString();
+	}
+
+	/**
+	 * A queued build.
+	 */
+	private final class PendingBuild {
+
+		private final ProvenMessageBuilder builder;
+		private final CompletableFuture<ProvenMessage> result = new CompletableFuture<ProvenMessage>();
+		private final long submitted = System.nanoTime();
+		private PreparedMessage prepared;
+
+		PendingBuild(ProvenMessageBuilder builder) {
+			this.builder = builder;
+		}
+
+		void complete(ProvenMessage message) {
+			latencies.record(System.nanoTime() - submitted);
+			result.complete(message);
+		}
+
+		void fail(Exception e) {
+			if (null != prepared) {
+				prepared.release();
+			}
+			latencies.record(System.nanoTime() - submitted);
+			result.completeExceptionally(e);
+		}
+	}
+
+}
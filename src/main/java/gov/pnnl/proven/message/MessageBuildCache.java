@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of message builds, keyed by domain and a SHA-256 hash of the
+ * normalized message payload. Static messages, e.g. model and structure
+ * descriptions, are often resent unchanged; a cached build skips their
+ * JSON-LD parse and SHACL rule processing. See
+ * {@link ProvenMessage.ProvenMessageBuilder#buildCache(MessageBuildCache)}.
+ * 
+ * A cache hit provides copies of the cached statements and measurements,
+ * with blank node replacement URIs (see {@link MessageUtils}) renewed as a
+ * build would, while message id and {@link MessageProperties} are the new
+ * message's own. Payloads are normalized by removing whitespace outside of
+ * JSON strings, so reformatted payloads hit, while payloads with reordered
+ * keys miss.
+ * 
+ * Entries hold the version of the message model they were built with. An
+ * entry built with another version than its domain's current model, e.g.
+ * after a model reload, is removed when next looked up. The least recently
+ * used entries are evicted once the cache holds more than its maximum
+ * entries or weight, the number of cached statements and measurements.
+ * 
+ * @author d3j766
+ *
+ */
+public class MessageBuildCache {
+
+	private static Logger log = LoggerFactory.getLogger(MessageBuildCache.class);
+
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+	public static final long DEFAULT_MAX_WEIGHT = 1000000;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	});
+
+	private final int maxEntries;
+
+	private final long maxWeight;
+
+	private final boolean isStaticOnly;
+
+	/**
+	 * Cached builds, by key, in access order. Guards {@link #weight}.
+	 */
+	private final Map<String, CachedBuild> entries = new LinkedHashMap<String, CachedBuild>(16, 0.75f, true);
+
+	private long weight;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong stale = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public MessageBuildCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT, true);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param maxEntries
+	 *            maximum number of cached builds
+	 * @param maxWeight
+	 *            maximum number of cached statements and measurements
+	 * @param isStaticOnly
+	 *            if true, only builds of messages flagged as static are
+	 *            cached, otherwise all builds except queries
+	 */
+	public MessageBuildCache(int maxEntries, long maxWeight, boolean isStaticOnly) {
+		if ((maxEntries < 1) || (maxWeight < 1)) {
+			throw new IllegalArgumentException("Invalid max entries or weight: " + maxEntries + ", " + maxWeight);
+		}
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.isStaticOnly = isStaticOnly;
+	}
+
+	/**
+	 * @return true if the message's build may be cached
+	 */
+	boolean isCacheable(ProvenMessage pm) {
+		return (!isStaticOnly || pm.isStatic()) && (null != pm.getMessage());
+	}
+
+	/**
+	 * Provides a message's cache key.
+	 */
+	String getKey(ProvenMessage pm) {
+		byte[] digest = digests.get().digest(normalize(pm.getMessage()).getBytes(StandardCharsets.UTF_8));
+		StringBuilder ret = new StringBuilder();
+		ret.append((null == pm.getDomain()) ? "" : pm.getDomain()).append('|');
+		for (byte b : digest) {
+			ret.append(HEX[(b >>> 4) & 0xF]).append(HEX[b & 0xF]);
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Copies a cached build to a new message.
+	 * 
+	 * @param key
+	 *            the message's cache key
+	 * @param version
+	 *            version of the message model the message would be built with
+	 * @param pm
+	 *            the new message
+	 * @return true if the build was cached
+	 */
+	boolean copyTo(String key, long version, ProvenMessage pm) {
+
+		CachedBuild cached;
+		synchronized (entries) {
+			cached = entries.get(key);
+			if ((null != cached) && (cached.version != version)) {
+				remove(key);
+				stale.incrementAndGet();
+				cached = null;
+			}
+		}
+		if (null == cached) {
+			misses.incrementAndGet();
+			return false;
+		}
+
+		hits.incrementAndGet();
+		Map<String, String> uris = new HashMap<String, String>();
+		pm.setMessageContent(cached.messageContent);
+		pm.setStatements(copyStatements(cached.statements, uris));
+		pm.setMeasurements(copyMeasurements(cached.measurements, uris));
+		return true;
+	}
+
+	/**
+	 * Caches a message's build. Only builds with measurements or statements
+	 * are cached, i.e. not queries.
+	 * 
+	 * @param key
+	 *            the message's cache key
+	 * @param version
+	 *            version of the message model the message was built with
+	 * @param pm
+	 *            the built message
+	 */
+	void put(String key, long version, ProvenMessage pm) {
+
+		MessageContent content = pm.getMessageContent();
+		if ((content == MessageContent.Query) || (content == MessageContent.ContinuousQuery)) {
+			return;
+		}
+
+		// Cache a copy, the built message may be changed by its user
+		CachedBuild cached = new CachedBuild(version, content, copyStatements(pm.getStatements(), null),
+				copyMeasurements(pm.getMeasurements(), null));
+		synchronized (entries) {
+			remove(key);
+			entries.put(key, cached);
+			weight += cached.weight;
+			Iterator<CachedBuild> iter = entries.values().iterator();
+			while (((entries.size() > maxEntries) || (weight > maxWeight)) && iter.hasNext()) {
+				weight -= iter.next().weight;
+				iter.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached builds.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			weight = 0;
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return number of cached statements and measurements
+	 */
+	public long getWeight() {
+		synchronized (entries) {
+			return weight;
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of entries removed for a changed model version
+	 */
+	public long getStaleCount() {
+		return stale.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public boolean isStaticOnly() {
+		return isStaticOnly;
+	}
+
+	/**
+	 * Removes whitespace outside of JSON strings.
+	 * 
+	 * @param json
+	 *            the JSON payload
+	 * @return the normalized payload
+	 */
+	static String normalize(String json) {
+
+		StringBuilder ret = new StringBuilder(json.length());
+		boolean inString = false;
+		boolean isEscaped = false;
+		for (int i = 0; i < json.length(); i++) {
+			char c = json.charAt(i);
+			if (inString) {
+				if (isEscaped) {
+					isEscaped = false;
+				} else if (c == '\\') {
+					isEscaped = true;
+				} else if (c == '"') {
+					inString = false;
+				}
+			} else if (c == '"') {
+				inString = true;
+			} else if (Character.isWhitespace(c)) {
+				continue;
+			}
+			ret.append(c);
+		}
+		return ret.toString();
+	}
+
+	private void remove(String key) {
+		CachedBuild removed = entries.remove(key);
+		if (null != removed) {
+			weight -= removed.weight;
+		}
+	}
+
+	/**
+	 * Copies statements, renewing blank node replacement URIs if a mapping is
+	 * provided.
+	 */
+	private static List<ProvenStatement> copyStatements(Collection<ProvenStatement> statements,
+			Map<String, String> uris) {
+
+		List<ProvenStatement> ret = new ArrayList<ProvenStatement>();
+		if (null != statements) {
+			for (ProvenStatement s : statements) {
+				String object = s.getObject();
+				if (s.getObjectValueType() == ProvenStatement.ObjectValueType.URI) {
+					object = renew(object, uris);
+				}
+				ret.add(new ProvenStatement(renew(s.getSubject(), uris), renew(s.getPredicate(), uris), object,
+						s.getObjectValueType()));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies measurements, renewing blank node replacement URIs if a mapping
+	 * is provided.
+	 */
+	private static List<ProvenMeasurement> copyMeasurements(Collection<ProvenMeasurement> measurements,
+			Map<String, String> uris) {
+
+		if (null == measurements) {
+			return null;
+		}
+
+		List<ProvenMeasurement> ret = new ArrayList<ProvenMeasurement>();
+		for (ProvenMeasurement m : measurements) {
+			Set<ProvenMetric> metrics = new HashSet<ProvenMetric>();
+			for (ProvenMetric metric : m.getMetrics()) {
+				metrics.add(new ProvenMetric(metric.getLabel(), metric.getValue(), metric.isMetadata(),
+						metric.getValueType()));
+			}
+			ProvenMeasurement copy = new ProvenMeasurement(m.getMeasurementName(), m.getTimestamp(), metrics);
+			copy.setProvenMessage(renew(m.getProvenMessage(), uris));
+			copy.setProvenMessageMeasurement(renew(m.getProvenMessageMeasurement(), uris));
+			ret.add(copy);
+		}
+		return ret;
+	}
+
+	private static URI renew(URI uri, Map<String, String> uris) {
+		if ((null == uri) || (null == uris)) {
+			return uri;
+		}
+		String renewed = renew(uri.toString(), uris);
+		return (renewed.equals(uri.toString())) ? uri : URI.create(renewed);
+	}
+
+	private static String renew(String uri, Map<String, String> uris) {
+		if ((null == uri) || (null == uris) || !MessageUtils.isBNReplacementURI(uri)) {
+			return uri;
+		}
+		return uris.computeIfAbsent(uri, k -> MessageUtils.getBNReplacementURI());
+	}
+
+	/**
+	 * A cached build.
+	 */
+	private static final class CachedBuild {
+
+		private final long version;
+		private final MessageContent messageContent;
+		private final List<ProvenStatement> statements;
+		private final List<ProvenMeasurement> measurements;
+		private final long weight;
+
+		CachedBuild(long version, MessageContent messageContent, List<ProvenStatement> statements,
+				List<ProvenMeasurement> measurements) {
+			this.version = version;
+			this.messageContent = messageContent;
+			this.statements = statements;
+			this.measurements = measurements;
+			this.weight = 1 + statements.size() + ((null == measurements) ? 0 : measurements.size());
+		}
+	}
+
+}
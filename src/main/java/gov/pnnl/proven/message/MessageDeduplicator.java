@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.pnnl.proven.message.exception.DuplicateProvenMessageException;
+
+/**
+ * Detects duplicate message deliveries, e.g. from upstream retries, by
+ * message id and optionally by a SHA-256 hash of the raw message payload.
+ * Checked before a message's JSON-LD is parsed, see
+ * {@link ProvenMessage.ProvenMessageBuilder#deduplicator(MessageDeduplicator)},
+ * so duplicates don't pay for a build and store.
+ * 
+ * Messages are remembered in an exact set, so a new message is never
+ * rejected. The horizon is the shorter of a number of rotating windows, whose
+ * oldest messages are forgotten when a new window starts, and the most recent
+ * {@code maxRecent} messages; redeliveries of older messages are let through.
+ * Memory is bounded by {@code maxRecent}, regardless of uptime.
+ * 
+ * {@link #check(UUID, String)} reserves a message until it is remembered or
+ * released, so concurrent deliveries of the same message aren't both built.
+ * 
+ * @author d3j766
+ *
+ */
+public class MessageDeduplicator {
+
+	private static Logger log = LoggerFactory.getLogger(MessageDeduplicator.class);
+
+	public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	public static final int DEFAULT_WINDOWS = 4;
+	public static final int DEFAULT_MAX_RECENT = 100000;
+
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	});
+
+	private final long windowMillis;
+
+	private final int windows;
+
+	private final int maxRecent;
+
+	private final boolean isContentChecked;
+
+	private final Map<Key, Long> recent;
+
+	/**
+	 * Keys of checked messages, neither remembered nor released yet.
+	 */
+	private final Set<Key> pending = new HashSet<Key>();
+
+	private long windowStart;
+
+	private final AtomicLong idDuplicates = new AtomicLong();
+	private final AtomicLong contentDuplicates = new AtomicLong();
+
+	public MessageDeduplicator() {
+		this(DEFAULT_WINDOW_MILLIS, DEFAULT_WINDOWS, DEFAULT_MAX_RECENT, false);
+	}
+
+	/**
+	 * Creates a new deduplicator.
+	 * 
+	 * @param windowMillis
+	 *            length of a window
+	 * @param windows
+	 *            number of windows remembered, the horizon is between
+	 *            {@code windows - 1} and {@code windows} window lengths
+	 * @param maxRecent
+	 *            maximum messages remembered, the id and content hash of a
+	 *            message count as two if content is checked
+	 * @param isContentChecked
+	 *            if true, payload content hashes are also checked
+	 */
+	public MessageDeduplicator(long windowMillis, int windows, int maxRecent, boolean isContentChecked) {
+
+		if ((windowMillis <= 0) || (windows < 1) || (maxRecent < 1)) {
+			throw new IllegalArgumentException("Invalid deduplicator configuration");
+		}
+
+		this.windowMillis = windowMillis;
+		this.windows = windows;
+		this.maxRecent = maxRecent;
+		this.isContentChecked = isContentChecked;
+		this.windowStart = System.currentTimeMillis();
+		this.recent = new LinkedHashMap<Key, Long>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+				return size() > MessageDeduplicator.this.maxRecent;
+			}
+		};
+	}
+
+	/**
+	 * Checks if a message is a duplicate and reserves it, in one step. Until
+	 * remembered with {@link #add(Fingerprint)} once processed, or released
+	 * with {@link #release(Fingerprint)} if processing failed, other checks
+	 * of the message find it a duplicate. A released message may be retried.
+	 * 
+	 * @param messageId
+	 *            the message id
+	 * @param payload
+	 *            the raw message payload, may be null
+	 * @return the message's fingerprint
+	 * @throws DuplicateProvenMessageException
+	 *             if the message is a duplicate
+	 */
+	public Fingerprint check(UUID messageId, String payload) throws DuplicateProvenMessageException {
+		Fingerprint ret = fingerprint(messageId, payload);
+		synchronized (this) {
+			if (contains(ret)) {
+				throw new DuplicateProvenMessageException("Duplicate message: " + messageId);
+			}
+			pending.add(ret.id);
+			if (null != ret.content) {
+				pending.add(ret.content);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Provides a message's fingerprint, its id and content hash if content is
+	 * checked.
+	 */
+	public Fingerprint fingerprint(UUID messageId, String payload) {
+		if (isContentChecked && (null != payload)) {
+			byte[] digest = digests.get().digest(payload.getBytes(StandardCharsets.UTF_8));
+			ByteBuffer buffer = ByteBuffer.wrap(digest);
+			return new Fingerprint(messageId, new Key(buffer.getLong(), buffer.getLong(), true));
+		}
+		return new Fingerprint(messageId, null);
+	}
+
+	/**
+	 * @return true if the message was seen within the horizon or is
+	 *         reserved, by id or content
+	 */
+	public synchronized boolean contains(Fingerprint fingerprint) {
+
+		rotate();
+		if (contains(fingerprint.id)) {
+			idDuplicates.incrementAndGet();
+			return true;
+		}
+		if ((null != fingerprint.content) && contains(fingerprint.content)) {
+			contentDuplicates.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remembers a message, ending its reservation if any.
+	 */
+	public synchronized void add(Fingerprint fingerprint) {
+		rotate();
+		release(fingerprint);
+		add(fingerprint.id);
+		if (null != fingerprint.content) {
+			add(fingerprint.content);
+		}
+	}
+
+	/**
+	 * Ends a message's reservation without remembering it, e.g. after its
+	 * processing failed.
+	 */
+	public synchronized void release(Fingerprint fingerprint) {
+		pending.remove(fingerprint.id);
+		if (null != fingerprint.content) {
+			pending.remove(fingerprint.content);
+		}
+	}
+
+	/**
+	 * Checks and remembers a message in one step.
+	 * 
+	 * @return true if the message was not seen before
+	 */
+	public synchronized boolean record(UUID messageId, String payload) {
+		Fingerprint fingerprint = fingerprint(messageId, payload);
+		if (contains(fingerprint)) {
+			return false;
+		}
+		add(fingerprint);
+		return true;
+	}
+
+	/**
+	 * @return number of duplicates found by message id
+	 */
+	public long getIdDuplicateCount() {
+		return idDuplicates.get();
+	}
+
+	/**
+	 * @return number of duplicates found by content hash only
+	 */
+	public long getContentDuplicateCount() {
+		return contentDuplicates.get();
+	}
+
+	public synchronized int getRecentSize() {
+		return recent.size();
+	}
+
+	public synchronized int getPendingSize() {
+		return pending.size();
+	}
+
+	public boolean isContentChecked() {
+		return isContentChecked;
+	}
+
+	/**
+	 * Forgets all messages.
+	 */
+	public synchronized void clear() {
+		recent.clear();
+		pending.clear();
+		windowStart = System.currentTimeMillis();
+	}
+
+	private boolean contains(Key key) {
+		return recent.containsKey(key) || pending.contains(key);
+	}
+
+	private void add(Key key) {
+		recent.put(key, windowStart);
+	}
+
+	/**
+	 * Starts new windows if due, forgetting messages beyond the horizon.
+	 */
+	private void rotate() {
+
+		long now = System.currentTimeMillis();
+		if (now - windowStart < windowMillis) {
+			return;
+		}
+
+		windowStart += ((now - windowStart) / windowMillis) * windowMillis;
+
+		long horizon = windowStart - (windows - 1) * windowMillis;
+		Iterator<Long> iter = recent.values().iterator();
+		while (iter.hasNext() && (iter.next() < horizon)) {
+			iter.remove();
+		}
+		log.debug("Deduplication window rotated, " + recent.size() + " recent messages");
+	}
+
+	/**
+	 * A message's id and optional content hash.
+	 */
+	public static final class Fingerprint {
+
+		private final Key id;
+		private final Key content;
+
+		private Fingerprint(UUID messageId, Key content) {
+			this.id = new Key(messageId.getMostSignificantBits(), messageId.getLeastSignificantBits(), false);
+			this.content = content;
+		}
+	}
+
+	/**
+	 * 128 bit key, of a message id or content hash.
+	 */
+	private static final class Key {
+
+		private final long hi;
+		private final long lo;
+		private final boolean isContent;
+
+		Key(long hi, long lo, boolean isContent) {
+			this.hi = hi;
+			this.lo = lo;
+			this.isContent = isContent;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(hi ^ lo) ^ (isContent ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return (hi == other.hi) && (lo == other.lo) && (isContent == other.isContent);
+		}
+	}
+
+}
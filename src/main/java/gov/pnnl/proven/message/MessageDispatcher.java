@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes built {@link ProvenMessage}s to {@link MessageHandler}s by content
+ * stream (see {@link MessageContent#getStream()}).
+ * 
+ * Each stream has its own bounded queue and worker threads, so a flood of
+ * messages on one stream, e.g. explicit disclosures, fills only that stream's
+ * queue and can't delay another stream's, e.g. queries. A message is passed
+ * to each of its stream's handlers, in registration order. When a stream's
+ * queue is full, {@link #dispatch(ProvenMessage)} rejects the message and
+ * {@link #dispatch(ProvenMessage, long, TimeUnit)} waits for space.
+ * 
+ * @author d3j766
+ *
+ */
+public class MessageDispatcher {
+
+	private static Logger log = LoggerFactory.getLogger(MessageDispatcher.class);
+
+	public static final int DEFAULT_WORKERS = 2;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	/**
+	 * How long an idle worker waits for a message before checking for
+	 * shutdown.
+	 */
+	private static final long POLL_MILLIS = 100;
+
+	private final Map<String, ContentStream> streams = new ConcurrentHashMap<String, ContentStream>();
+
+	private volatile boolean isShutdown;
+
+	/**
+	 * Configures a stream's workers and queue capacity. Must be called before
+	 * the stream's first handler is registered.
+	 * 
+	 * @param stream
+	 *            the stream name
+	 * @param workers
+	 *            number of worker threads
+	 * @param queueCapacity
+	 *            maximum number of queued messages
+	 * @throws IllegalStateException
+	 *             if the stream already has handlers
+	 */
+	public void configure(String stream, int workers, int queueCapacity) {
+		if ((workers < 1) || (queueCapacity < 1)) {
+			throw new IllegalArgumentException("Invalid workers or queue capacity: " + workers + ", " + queueCapacity);
+		}
+		if (null != streams.putIfAbsent(stream, new ContentStream(stream, workers, queueCapacity))) {
+			throw new IllegalStateException("Stream already configured: " + stream);
+		}
+	}
+
+	public void configure(MessageContent content, int workers, int queueCapacity) {
+		configure(content.getStream(), workers, queueCapacity);
+	}
+
+	/**
+	 * Registers a handler for a stream, starting the stream's workers if it
+	 * is the first.
+	 * 
+	 * @param stream
+	 *            the stream name
+	 * @param handler
+	 *            the handler
+	 */
+	public void register(String stream, MessageHandler handler) {
+		if (isShutdown) {
+			throw new IllegalStateException("Dispatcher is shut down");
+		}
+		streams.computeIfAbsent(stream, k -> new ContentStream(k, DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY))
+				.add(handler);
+	}
+
+	public void register(MessageContent content, MessageHandler handler) {
+		register(content.getStream(), handler);
+	}
+
+	/**
+	 * Queues a message on its stream, if there is space.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return false if the stream has no handlers, its queue is full, or the
+	 *         dispatcher is shut down
+	 */
+	public boolean dispatch(ProvenMessage message) {
+		ContentStream stream = getStream(message);
+		return (null != stream) && stream.offer(message);
+	}
+
+	/**
+	 * Queues a message on its stream, waiting for space if necessary.
+	 * 
+	 * @param message
+	 *            the message
+	 * @param timeout
+	 *            maximum time to wait
+	 * @param unit
+	 *            timeout unit
+	 * @return false if the stream has no handlers, its queue stayed full, or
+	 *         the dispatcher is shut down
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean dispatch(ProvenMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+		ContentStream stream = getStream(message);
+		return (null != stream) && stream.offer(message, timeout, unit);
+	}
+
+	/**
+	 * Stops accepting messages and waits for queued messages to be handled.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait
+	 * @param unit
+	 *            timeout unit
+	 * @return true if all queued messages were handled
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		isShutdown = true;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean ret = true;
+		for (ContentStream stream : streams.values()) {
+			ret &= stream.join(deadline);
+		}
+		log.debug("Message dispatcher shut down" + (ret ? "" : ", messages left unhandled"));
+		return ret;
+	}
+
+	public boolean isShutdown() {
+		return isShutdown;
+	}
+
+	/**
+	 * @return number of messages queued on a stream
+	 */
+	public int getQueueSize(String stream) {
+		ContentStream s = streams.get(stream);
+		return (null == s) ? 0 : s.queue.size();
+	}
+
+	/**
+	 * @return number of messages rejected by a stream
+	 */
+	public long getRejectedCount(String stream) {
+		ContentStream s = streams.get(stream);
+		return (null == s) ? 0 : s.rejected.get();
+	}
+
+	/**
+	 * @return number of messages handled by a stream
+	 */
+	public long getHandledCount(String stream) {
+		ContentStream s = streams.get(stream);
+		return (null == s) ? 0 : s.handled.get();
+	}
+
+	/**
+	 * @return number of handler failures of a stream
+	 */
+	public long getFailedCount(String stream) {
+		ContentStream s = streams.get(stream);
+		return (null == s) ? 0 : s.failed.get();
+	}
+
+	private ContentStream getStream(ProvenMessage message) {
+
+		MessageContent content = message.getMessageContent();
+		ContentStream ret = (null == content) ? null : streams.get(content.getStream());
+		if ((null == ret) || ret.handlers.isEmpty()) {
+			log.debug("No handlers for message content: " + content);
+			ret = null;
+		}
+		return ret;
+	}
+
+	/**
+	 * A stream's handlers, queue and workers.
+	 */
+	private final class ContentStream {
+
+		private final String name;
+		private final int workerCount;
+		private final BlockingQueue<ProvenMessage> queue;
+		private final List<MessageHandler> handlers = new CopyOnWriteArrayList<MessageHandler>();
+		private final List<Thread> workers = new ArrayList<Thread>();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong handled = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+
+		ContentStream(String name, int workerCount, int queueCapacity) {
+			this.name = name;
+			this.workerCount = workerCount;
+			this.queue = new ArrayBlockingQueue<ProvenMessage>(queueCapacity);
+		}
+
+		synchronized void add(MessageHandler handler) {
+			handlers.add(handler);
+			if (workers.isEmpty()) {
+				String prefix = "proven-dispatch-" + name.substring(name.lastIndexOf('.') + 1) + "-";
+				for (int i = 0; i < workerCount; i++) {
+					Thread t = new Thread(this::work, prefix + i);
+					t.setDaemon(true);
+					workers.add(t);
+					t.start();
+				}
+			}
+		}
+
+		boolean offer(ProvenMessage message) {
+			return accept(message, !isShutdown && queue.offer(message));
+		}
+
+		boolean offer(ProvenMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+			return accept(message, !isShutdown && queue.offer(message, timeout, unit));
+		}
+
+		/**
+		 * Counts a rejected message. A message queued as the dispatcher shuts
+		 * down may be left after the workers have drained the queue and
+		 * stopped, so it is taken back and rejected, unless a worker already
+		 * took it.
+		 */
+		private boolean accept(ProvenMessage message, boolean isQueued) {
+			boolean ret = isQueued && !(isShutdown && queue.remove(message));
+			if (!ret) {
+				rejected.incrementAndGet();
+			}
+			return ret;
+		}
+
+		synchronized boolean join(long deadline) throws InterruptedException {
+			for (Thread worker : workers) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining > 0) {
+					worker.join(remaining);
+				}
+			}
+			return queue.isEmpty();
+		}
+
+		private void work() {
+			while (!isShutdown || !queue.isEmpty()) {
+				ProvenMessage message;
+				try {
+					message = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (null != message) {
+					handle(message);
+				}
+			}
+		}
+
+		private void handle(ProvenMessage message) {
+			for (MessageHandler handler : handlers) {
+				try {
+					handler.handle(message);
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					log.error("Handler failed for message " + message.getMessageId() + " on " + name, e);
+				}
+			}
+			handled.incrementAndGet();
+		}
+	}
+
+}
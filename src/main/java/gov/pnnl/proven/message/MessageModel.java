@@ -41,16 +41,27 @@
 package gov.pnnl.proven.message;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.apache.commons.io.IOUtils;
-import org.apache.jena.graph.Graph;
-import org.apache.jena.graph.compose.MultiUnion;
-import org.apache.jena.ontology.OntModelSpec;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.riot.RDFDataMgr;
@@ -72,6 +83,17 @@ import static gov.pnnl.proven.message.MessageModelFile.ModelConfig.*;
  * terms to model concepts, ontology files describing class concept structures,
  * and SHACL Shapes files providing validation and inference rules.
  * 
+ * Each part of the model is loaded on first use. Ontology and shapes files are
+ * parsed in parallel, or decoded from a {@link MessageModelSnapshot} if one
+ * matching the model files is packaged with them. Use {@link #initialize()} to
+ * load all parts up front, e.g. at service startup, instead of on the first
+ * message build.
+ * 
+ * The current model can be replaced at runtime using {@link #reload()} or
+ * {@link #reload(Path)}. A reloaded model is fully loaded off-thread and then
+ * published with an atomic swap; callers holding the previous instance (e.g.
+ * an in-flight message build) continue to use it.
+ * 
  * @author d3j766
  *
  */
@@ -81,21 +103,112 @@ public class MessageModel {
 
 	public static final String MESSAGE_MODEL_PATH = "message-model/";
 
-	private static MessageModel instance;
+	/**
+	 * Load timing keys, see {@link #getLoadTimes()}. Individual model files are
+	 * reported using their resource name.
+	 */
+	public static final String RAW_FILES_LOAD_TIME = "raw-files";
+	public static final String ONTOLOGY_LOAD_TIME = "ontology";
+	public static final String SHAPES_LOAD_TIME = "shapes";
+	public static final String SHACL_SYSTEM_LOAD_TIME = "shacl-system";
+	public static final String SNAPSHOT_LOAD_TIME = "snapshot";
+
+	/**
+	 * The current model. Created on first call to {@link #getInstance()}, and
+	 * replaced on reload. Creating the instance does not load any part of the
+	 * model.
+	 */
+	private static final AtomicReference<MessageModel> instance = new AtomicReference<MessageModel>();
+
+	/**
+	 * Source of model versions, see {@link #getVersion()}.
+	 */
+	private static final AtomicLong versions = new AtomicLong();
+
+	/**
+	 * Single thread used to build reloaded models, so reloads are published in
+	 * the order they were requested.
+	 */
+	private static final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "message-model-reload");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Maximum number of parsed model files kept for sharing, see
+	 * {@link #sharedModelFiles}.
+	 */
+	private static final int MAX_SHARED_MODEL_FILES = 64;
+
+	/**
+	 * Parsed ontology and shapes files, keyed by a checksum of the file
+	 * contents. Models that register the same file (e.g. proven.jsonld shared
+	 * by several domain models, or an unchanged file on reload) parse it only
+	 * once. The parsed models are frozen, so can be shared safely.
+	 */
+	private static final Map<String, Model> sharedModelFiles = Collections
+			.synchronizedMap(new LinkedHashMap<String, Model>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Model> eldest) {
+					return size() > MAX_SHARED_MODEL_FILES;
+				}
+			});
+
+	/**
+	 * Report of the most recent warm-up, see {@link #warmUp(int)}.
+	 */
+	private static volatile WarmUpReport warmUpReport;
+
+	/**
+	 * Directory containing the model files, or null if the model files are
+	 * loaded from the classpath.
+	 */
+	private final Path modelDirectory;
+
+	/**
+	 * Classpath resource path of the model files, see
+	 * {@link #MESSAGE_MODEL_PATH}.
+	 */
+	private final String modelPath;
+
+	/**
+	 * Identifies this model instance, increases with each created model.
+	 */
+	private final long version;
 
-	private MessageModel() {
-		log.debug("Loading message model...");
-		loadMessageModel();
+	private MessageModel(Path modelDirectory, String modelPath) {
+		this.modelDirectory = modelDirectory;
+		this.modelPath = modelPath;
+		this.version = versions.incrementAndGet();
 	}
 
-	static {
-		try {
-			instance = new MessageModel();
-		} catch (MessageModelInstanceException ex) {
-			throw ex;
-		}
+	/**
+	 * Creates a new, unloaded, message model.
+	 * 
+	 * @param modelDirectory
+	 *            directory containing the model files, or null if the model
+	 *            files are loaded from the classpath
+	 * @param modelPath
+	 *            classpath resource path of the model files, ending with "/"
+	 * @return the new model
+	 */
+	static MessageModel create(Path modelDirectory, String modelPath) {
+		return new MessageModel(modelDirectory, modelPath);
 	}
 
+	/**
+	 * Guards loading of the raw model files and context.
+	 */
+	private final Object rawFilesLock = new Object();
+
+	/**
+	 * Guards loading of the ontology and shapes models.
+	 */
+	private final Object modelsLock = new Object();
+
 	/**
 	 * Raw model files. See the different {@link MessageModelFile} types. Each
 	 * file is stored as a string. Assumption is these are "small" and not many.
@@ -103,23 +216,34 @@ public class MessageModel {
 	 * single resource folder contains all model files making the resource name
 	 * unique and why it is used as the key.
 	 */
-	private Map<String, String> rawModelFiles = new HashMap<String, String>();
+	private volatile Map<String, String> rawModelFiles;
 
 	/**
 	 * JSON-LD context definition used to describe/map term values to IRI's
 	 */
-	private String context;
+	private volatile String context;
 
 	/**
-	 * Ontology model.
+	 * Ontology model. Read-only, see {@link FrozenGraph}.
 	 */
-	private Model ontologyModel;
+	private volatile Model ontologyModel;
 
 	/**
-	 * SHACL shapes model, union of both ontology (i.e. OWL/RDF) and shapes
-	 * files.
+	 * SHACL shapes model, union of the SHACL system model and shapes files.
+	 * Read-only, see {@link FrozenGraph}.
+	 */
+	private volatile Model shapesModel;
+
+	/**
+	 * Rule shapes of the shapes model, indexed by target. Created on first
+	 * use.
+	 */
+	private volatile ShaclRuleTargets ruleTargets;
+
+	/**
+	 * Load times in milliseconds, in order of completion.
 	 */
-	private Model shapesModel;
+	private final Map<String, Long> loadTimes = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
 
 	/**
 	 * Exception creating MesssageModel instance. Is a runtime exception
@@ -141,29 +265,206 @@ public class MessageModel {
 	}
 
 	public static MessageModel getInstance() {
-		return instance;
+		MessageModel ret = instance.get();
+		if (null == ret) {
+			instance.compareAndSet(null, new MessageModel(null, MESSAGE_MODEL_PATH));
+			ret = instance.get();
+		}
+		return ret;
+	}
+
+	/**
+	 * Reloads the message model from the classpath. See {@link #reload(Path)}.
+	 * 
+	 * @return the new model, completed once it has been published
+	 */
+	public static CompletableFuture<MessageModel> reload() {
+		return reload(null);
+	}
+
+	/**
+	 * Reloads the message model from a directory containing the model registry
+	 * file and the model files it lists. The new model is fully loaded on a
+	 * background thread and then replaces the current model. If loading fails
+	 * the current model is kept, and the returned future completes
+	 * exceptionally.
+	 * 
+	 * @param modelDirectory
+	 *            directory containing the model files, or null to reload from
+	 *            the classpath
+	 * @return the new model, completed once it has been published
+	 */
+	public static CompletableFuture<MessageModel> reload(Path modelDirectory) {
+		return loadAsync(new MessageModel(modelDirectory, MESSAGE_MODEL_PATH)).thenApply(mm -> {
+			instance.set(mm);
+			log.info("Message model version " + mm.getVersion() + " reloaded from " + mm.getSource());
+			return mm;
+		});
+	}
+
+	/**
+	 * Fully loads a model on the reload thread.
+	 * 
+	 * @param mm
+	 *            the model to load
+	 * @return the model, completed once loaded
+	 */
+	static CompletableFuture<MessageModel> loadAsync(MessageModel mm) {
+		return CompletableFuture.supplyAsync(() -> {
+			mm.loadMessageModel();
+			return mm;
+		}, reloadExecutor);
+	}
+
+	/**
+	 * Indicates if the model registry file exists for this model's location.
+	 * 
+	 * @return true if the model registry file exists
+	 */
+	boolean exists() {
+		try (InputStream resourceIn = openModelResource(getModelResourcePath(MODEL_REGISTRY_FILE))) {
+			return null != resourceIn;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Identifies this model instance. Each loaded or reloaded model has a
+	 * higher version than the models created before it.
+	 * 
+	 * @return the model version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Describes where the model files are loaded from.
+	 * 
+	 * @return model directory, or the classpath resource path of the model
+	 *         files
+	 */
+	public String getSource() {
+		return (null == modelDirectory) ? ("classpath:" + modelPath) : modelDirectory.toString();
+	}
+
+	/**
+	 * Loads all parts of the message model, if not already loaded. Services
+	 * can call this at startup so the first message build does not pay the
+	 * model load cost.
+	 * 
+	 * @return the loaded {@code MessageModel}
+	 */
+	public static MessageModel initialize() {
+		MessageModel mm = getInstance();
+		mm.loadMessageModel();
+		return mm;
+	}
+
+	/**
+	 * Initializes the message model and warms up message building using the
+	 * bundled sample messages, covering explicit measurement, input
+	 * difference, and query messages. Warm-up stops once the build latency
+	 * reaches a steady state, or after the provided number of iterations. See
+	 * {@link #getWarmUpReport()} to gate readiness on the result.
+	 * 
+	 * @param iterations
+	 *            maximum number of warm-up iterations, each building every
+	 *            sample once
+	 * @return the warm-up report
+	 */
+	public static WarmUpReport warmUp(int iterations) {
+		return warmUp(iterations, MessageModelWarmUp.bundledSamples());
+	}
+
+	/**
+	 * Initializes the message model and warms up message building using the
+	 * provided sample messages. See {@link #warmUp(int)}.
+	 * 
+	 * @param iterations
+	 *            maximum number of warm-up iterations, each building every
+	 *            sample once
+	 * @param samples
+	 *            JSON sample messages
+	 * @return the warm-up report
+	 */
+	public static WarmUpReport warmUp(int iterations, Collection<String> samples) {
+		initialize();
+		WarmUpReport ret = MessageModelWarmUp.run(iterations, samples);
+		warmUpReport = ret;
+		return ret;
+	}
+
+	/**
+	 * Provides the report of the most recent warm-up.
+	 * 
+	 * @return the warm-up report, or null if no warm-up has been run
+	 */
+	public static WarmUpReport getWarmUpReport() {
+		return warmUpReport;
+	}
+
+	/**
+	 * Indicates if all parts of the model have been loaded.
+	 * 
+	 * @return true if context, ontology, and shapes models are loaded
+	 */
+	public boolean isInitialized() {
+		return (null != context) && (null != ontologyModel) && (null != shapesModel);
+	}
+
+	/**
+	 * Provides load times, in milliseconds, for the model parts and model
+	 * files loaded so far.
+	 * 
+	 * @return load times keyed by model part or resource name
+	 */
+	public Map<String, Long> getLoadTimes() {
+		synchronized (loadTimes) {
+			return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(loadTimes));
+		}
 	}
 
 	public String getContext() {
+		if (null == context) {
+			loadContext();
+		}
 		return context;
-
 	}
 
 	public Model getOntologyModel() {
+		if (null == ontologyModel) {
+			loadModels(true, false);
+		}
 		return ontologyModel;
 	}
 
 	public Model getShapesModel() {
+		if (null == shapesModel) {
+			loadModels(false, true);
+		}
 		return shapesModel;
 	}
 
+	ShaclRuleTargets getRuleTargets() {
+		if (null == ruleTargets) {
+			synchronized (modelsLock) {
+				if (null == ruleTargets) {
+					ruleTargets = new ShaclRuleTargets(getShapesModel(), getOntologyModel());
+				}
+			}
+		}
+		return ruleTargets;
+	}
+
 	public String getModelFile(String resourceName) throws Exception {
 
 		String ret = null;
 
 		String resourcePath = getModelResourcePath(resourceName);
 
-		try (InputStream resourceIn = this.getClass().getClassLoader().getResourceAsStream(resourcePath)) {
+		try (InputStream resourceIn = openModelResource(resourcePath)) {
 
 			List<String> contents = IOUtils.readLines(resourceIn, Charset.defaultCharset());
 
@@ -182,9 +483,18 @@ public class MessageModel {
 	}
 
 	private void loadMessageModel() {
-		loadRawModelFiles();
+		long start = System.currentTimeMillis();
 		loadContext();
-		loadModels();
+		loadModels(true, true);
+		log.info("Message model initialized in " + (System.currentTimeMillis() - start) + " ms, load times: "
+				+ getLoadTimes());
+	}
+
+	private Map<String, String> getRawModelFiles() {
+		if (null == rawModelFiles) {
+			loadRawModelFiles();
+		}
+		return rawModelFiles;
 	}
 
 	/**
@@ -193,122 +503,361 @@ public class MessageModel {
 	 */
 	private void loadRawModelFiles() {
 
-		String resourcePath = getModelResourcePath(MODEL_REGISTRY_FILE);
+		synchronized (rawFilesLock) {
 
-		try (InputStream resourceIn = this.getClass().getClassLoader().getResourceAsStream(resourcePath)) {
+			if (null != rawModelFiles) {
+				return;
+			}
 
-			// Read file list from registry
-			List<String> resources = IOUtils.readLines(resourceIn, Charset.defaultCharset());
+			long start = System.currentTimeMillis();
+			Map<String, String> files = new HashMap<String, String>();
+			String resourcePath = getModelResourcePath(MODEL_REGISTRY_FILE);
 
-			log.debug("After file lookup..." + resources);
+			try (InputStream resourceIn = openModelResource(resourcePath)) {
 
-			int contextCnt = 0;
-			int shapesCnt = 0;
-			int ontologyCnt = 0;
-			for (String resource : resources) {
+				// Read file list from registry
+				List<String> resources = IOUtils.readLines(resourceIn, Charset.defaultCharset());
 
-				log.debug("model file name: " + resource);
+				log.debug("After file lookup..." + resources);
 
-				// Must be recognized as a MessageModelFile type
-				MessageModelFile mmf = MessageModelFile.modelFileType(resource);
-				if (null != mmf) {
+				int contextCnt = 0;
+				int shapesCnt = 0;
+				int ontologyCnt = 0;
+				for (String resource : resources) {
 
-					if (mmf == MessageModelFile.CONTEXT) {
-						contextCnt++;
-					}
+					log.debug("model file name: " + resource);
 
-					if ((mmf == MessageModelFile.ONTOLOGY)) {
-						ontologyCnt++;
-					}
+					// Must be recognized as a MessageModelFile type
+					MessageModelFile mmf = MessageModelFile.modelFileType(resource);
+					if (null != mmf) {
 
-					if ((mmf == MessageModelFile.SHAPES)) {
-						shapesCnt++;
+						if (mmf == MessageModelFile.CONTEXT) {
+							contextCnt++;
+						}
+
+						if ((mmf == MessageModelFile.ONTOLOGY)) {
+							ontologyCnt++;
+						}
+
+						if ((mmf == MessageModelFile.SHAPES)) {
+							shapesCnt++;
+						}
+
+						String modelFile = getModelFile(resource);
+						files.put(resource, modelFile);
 					}
+				}
+
+				log.debug("Raw files loaded: " + files.size());
+
+				// Ensure there is a context file
+				if (contextCnt == 0) {
+					throw new MissingMessageModelContextException();
+				}
+
+				// Ensure there are not multiple context files
+				if (contextCnt > 1) {
+					throw new MultipleMessageModelContextException();
+				}
+
+				// Ensure there is an ontology file
+				if (ontologyCnt < 1) {
+					throw new MissingMessageModelOntologyException();
+				}
+
+				// Ensure there is a shapes file
+				if (shapesCnt < 1) {
+					throw new MissingMessageModelShapesException();
+				}
+
+			} catch (Exception e) {
+				throw new MessageModelInstanceException("Failed to load raw model files.", e);
+			}
+
+			rawModelFiles = files;
+			loadTimes.put(RAW_FILES_LOAD_TIME, System.currentTimeMillis() - start);
+		}
+	}
 
-					String modelFile = getModelFile(resource);
-					rawModelFiles.put(resource, modelFile);
+	private void loadContext() {
+		synchronized (rawFilesLock) {
+			if (null != context) {
+				return;
+			}
+			Map<String, String> files = getRawModelFiles();
+			for (String resourceName : files.keySet()) {
+				if (isContext(resourceName)) {
+					context = files.get(resourceName);
 				}
 			}
+		}
+	}
 
-			log.debug("Raw files loaded: " + rawModelFiles.size());
+	/**
+	 * Loads the requested models, if not already loaded. Model files are
+	 * parsed in parallel, one task per file.
+	 * 
+	 * @param loadOntology
+	 *            if true, the ontology model is loaded
+	 * @param loadShapes
+	 *            if true, the shapes model is loaded
+	 */
+	private void loadModels(boolean loadOntology, boolean loadShapes) {
+
+		synchronized (modelsLock) {
 
-			// Ensure there is a context file
-			if (contextCnt == 0) {
-				throw new MissingMessageModelContextException();
+			loadOntology = loadOntology && (null == ontologyModel);
+			loadShapes = loadShapes && (null == shapesModel);
+			if (!loadOntology && !loadShapes) {
+				return;
 			}
 
-			// Ensure there are not multiple context files
-			if (contextCnt > 1) {
-				throw new MultipleMessageModelContextException();
+			long start = System.currentTimeMillis();
+			Map<String, String> files = getRawModelFiles();
+			MessageModelSnapshot snapshot = loadSnapshot(files);
+			Map<String, Callable<Model>> tasks = new LinkedHashMap<String, Callable<Model>>();
+			for (String resourceName : files.keySet()) {
+				if ((loadOntology && isOntology(resourceName)) || (loadShapes && isShapes(resourceName))) {
+					String modelStr = files.get(resourceName);
+					tasks.put(resourceName, () -> loadModelFile(resourceName, modelStr, snapshot));
+				}
+			}
+			if (loadShapes) {
+				tasks.put(SHACL_SYSTEM_LOAD_TIME, () -> {
+					long taskStart = System.currentTimeMillis();
+					Model ret = SHACLSystemModel.getSHACLModel();
+					loadTimes.put(SHACL_SYSTEM_LOAD_TIME, System.currentTimeMillis() - taskStart);
+					return ret;
+				});
 			}
 
-			// Ensure there is an ontology file
-			if (ontologyCnt < 1) {
-				throw new MissingMessageModelOntologyException();
+			Map<String, Model> models = runLoadTasks(tasks);
+
+			if (loadOntology) {
+				List<Model> parts = new ArrayList<Model>();
+				for (String resourceName : models.keySet()) {
+					if (isOntology(resourceName)) {
+						parts.add(models.get(resourceName));
+					}
+				}
+				ontologyModel = FrozenGraph.freeze(parts.toArray(new Model[parts.size()]));
+				loadTimes.put(ONTOLOGY_LOAD_TIME, System.currentTimeMillis() - start);
 			}
 
-			// Ensure there is a shapes file
-			if (shapesCnt < 1) {
-				throw new MissingMessageModelShapesException();
+			if (loadShapes) {
+
+				// Add SHACL model
+				List<Model> parts = new ArrayList<Model>();
+				parts.add(models.get(SHACL_SYSTEM_LOAD_TIME));
+				for (String resourceName : models.keySet()) {
+					if (isShapes(resourceName)) {
+						parts.add(models.get(resourceName));
+					}
+				}
+				shapesModel = FrozenGraph.freeze(parts.toArray(new Model[parts.size()]));
+				loadTimes.put(SHAPES_LOAD_TIME, System.currentTimeMillis() - start);
+			}
+		}
+	}
+
+	/**
+	 * Runs model load tasks in parallel and waits for all to complete.
+	 * 
+	 * @param tasks
+	 *            load tasks keyed by resource name
+	 * @return loaded models keyed by resource name
+	 */
+	private Map<String, Model> runLoadTasks(Map<String, Callable<Model>> tasks) {
+
+		Map<String, Model> ret = new LinkedHashMap<String, Model>();
+		int poolSize = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(poolSize, r -> {
+			Thread t = new Thread(r, "message-model-loader");
+			t.setDaemon(true);
+			return t;
+		});
+
+		try {
+			Map<String, Future<Model>> futures = new LinkedHashMap<String, Future<Model>>();
+			for (String resourceName : tasks.keySet()) {
+				futures.put(resourceName, executor.submit(tasks.get(resourceName)));
+			}
+			for (String resourceName : futures.keySet()) {
+				ret.put(resourceName, futures.get(resourceName).get());
+			}
+		} catch (ExecutionException e) {
+			throw new MessageModelInstanceException("Failed to create shapes and ontology models.", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessageModelInstanceException("Interrupted creating shapes and ontology models.", e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Loads the model snapshot packaged with the model files, if any. The
+	 * snapshot is only returned if it was created from the provided model
+	 * files.
+	 * 
+	 * @param files
+	 *            the raw model files
+	 * @return the snapshot, or null if there is no valid snapshot
+	 */
+	private MessageModelSnapshot loadSnapshot(Map<String, String> files) {
+
+		MessageModelSnapshot ret = null;
+		long start = System.currentTimeMillis();
+		String resourcePath = getModelResourcePath(MODEL_SNAPSHOT_FILE);
+
+		try (InputStream resourceIn = openModelResource(resourcePath)) {
+
+			if (null != resourceIn) {
+				MessageModelSnapshot snapshot = MessageModelSnapshot.read(resourceIn);
+				if (snapshot.matches(files)) {
+					ret = snapshot;
+					loadTimes.put(SNAPSHOT_LOAD_TIME, System.currentTimeMillis() - start);
+				} else {
+					log.info("Message model snapshot is out of date, loading from model files.");
+				}
 			}
 
 		} catch (Exception e) {
-			throw new MessageModelInstanceException("Failed to load raw model files.", e);
+			log.warn("Failed to read message model snapshot, loading from model files.", e);
 		}
+
+		return ret;
 	}
 
-	private void loadContext() {
-		for (String resourceName : rawModelFiles.keySet()) {
-			if (isContext(resourceName)) {
-				context = rawModelFiles.get(resourceName);
+	/**
+	 * Creates a snapshot of the ontology and shapes files. The files are
+	 * parsed from source, not from an existing snapshot.
+	 * 
+	 * @return the snapshot
+	 */
+	MessageModelSnapshot createSnapshot() {
+
+		Map<String, String> files = getRawModelFiles();
+		Map<String, Callable<Model>> tasks = new LinkedHashMap<String, Callable<Model>>();
+		for (String resourceName : files.keySet()) {
+			if (isOntology(resourceName) || isShapes(resourceName)) {
+				String modelStr = files.get(resourceName);
+				tasks.put(resourceName, () -> parseModelFile(resourceName, modelStr));
 			}
 		}
+
+		return MessageModelSnapshot.create(files, runLoadTasks(tasks));
 	}
 
-	private void loadModels() {
+	/**
+	 * Provides the model for an ontology or shapes file. A model already
+	 * parsed from the same file contents is shared; otherwise the file is
+	 * decoded from the snapshot, if available, or parsed.
+	 * 
+	 * @param resourceName
+	 *            name of model file
+	 * @param modelStr
+	 *            model file contents
+	 * @param snapshot
+	 *            the model snapshot, may be null
+	 * @return the model
+	 */
+	private Model loadModelFile(String resourceName, String modelStr, MessageModelSnapshot snapshot) {
 
-		shapesModel = ModelFactory.createDefaultModel();
-		ontologyModel = ModelFactory.createDefaultModel();
+		String key = MessageModelSnapshot.checksum(modelStr);
+		Model ret = sharedModelFiles.get(key);
 
-		List<Graph> shapesGraphs = new ArrayList<Graph>();
-		List<Graph> ontologyGraphs = new ArrayList<Graph>();
-		for (String resourceName : rawModelFiles.keySet()) {
+		if (null == ret) {
+			if ((null != snapshot) && (snapshot.hasModel(resourceName))) {
+				ret = decodeModelFile(resourceName, snapshot);
+			} else {
+				ret = parseModelFile(resourceName, modelStr);
+			}
+			ret = FrozenGraph.freeze(ret);
+			sharedModelFiles.put(key, ret);
+		} else {
+			log.debug("Shared model file: " + resourceName);
+		}
 
-			if ((isShapes(resourceName) || isOntology(resourceName))) {
+		return ret;
+	}
 
-				String modelStr = rawModelFiles.get(resourceName);
+	/**
+	 * Decodes an ontology or shapes file from the model snapshot into a new
+	 * model.
+	 * 
+	 * @param resourceName
+	 *            name of model file, used to report load time
+	 * @param snapshot
+	 *            the model snapshot
+	 * @return the decoded model
+	 */
+	private Model decodeModelFile(String resourceName, MessageModelSnapshot snapshot) {
 
-				Model model;
-				try (InputStream in = new ByteArrayInputStream(modelStr.getBytes())) {
+		long start = System.currentTimeMillis();
+		Model model;
+		try {
+			model = snapshot.getModel(resourceName);
+		} catch (Exception e) {
+			throw new MessageModelInstanceException("Failed to decode model snapshot file: " + resourceName, e);
+		}
+		loadTimes.put(resourceName, System.currentTimeMillis() - start);
 
-					model = ModelFactory.createDefaultModel();
-					RDFDataMgr.read(model, in, RDFLanguages.JSONLD);
+		return model;
+	}
 
-				} catch (Exception e) {
-					throw new MessageModelInstanceException("Failed to create shapes and ontology models.", e);
-				}
+	/**
+	 * Parses a JSON-LD ontology or shapes file into a new model.
+	 * 
+	 * @param resourceName
+	 *            name of model file, used to report load time
+	 * @param modelStr
+	 *            model file contents
+	 * @return the parsed model
+	 */
+	private Model parseModelFile(String resourceName, String modelStr) {
 
-				// shapesModel = shapesModel.union(model);
+		long start = System.currentTimeMillis();
+		Model model;
+		try (InputStream in = new ByteArrayInputStream(modelStr.getBytes())) {
 
-				if (isOntology(resourceName)) {
-					ontologyModel.add(model);
-					shapesGraphs.add(model.getGraph());
-					ontologyGraphs.add(model.getGraph());
-				}
+			model = ModelFactory.createDefaultModel();
+			RDFDataMgr.read(model, in, RDFLanguages.JSONLD);
 
-				if (isShapes(resourceName)) {
-					shapesModel.add(model);
-					shapesGraphs.add(model.getGraph());
-				}
+		} catch (Exception e) {
+			throw new MessageModelInstanceException("Failed to create shapes and ontology models.", e);
+		}
+		loadTimes.put(resourceName, System.currentTimeMillis() - start);
+
+		return model;
+	}
 
+	/**
+	 * Opens a model resource from the model directory or, if there is none,
+	 * the classpath.
+	 * 
+	 * @param resourcePath
+	 *            the model resource path
+	 * @return the resource input, or null if the resource does not exist
+	 * @throws IOException
+	 *             if the resource exists but could not be opened
+	 */
+	private InputStream openModelResource(String resourcePath) throws IOException {
+
+		InputStream ret = null;
+
+		if (null == modelDirectory) {
+			ret = this.getClass().getClassLoader().getResourceAsStream(resourcePath);
+		} else {
+			Path file = modelDirectory.resolve(resourcePath.substring(modelPath.length()));
+			if (Files.isRegularFile(file)) {
+				ret = Files.newInputStream(file);
 			}
 		}
 
-		// Add SHACL model
-		Model unionModel = SHACLSystemModel.getSHACLModel();
-		MultiUnion unionGraph = new MultiUnion(new Graph[] { unionModel.getGraph(), shapesModel.getGraph() });
-		shapesModel = ModelFactory.createModelForGraph(unionGraph);
-
+		return ret;
 	}
 
 	/**
@@ -318,7 +867,7 @@ public class MessageModel {
 	 * @return resource path
 	 */
 	private String getModelResourcePath(String resourceName) {
-		return MESSAGE_MODEL_PATH + resourceName;
+		return modelPath + resourceName;
 	}
 
 	/**
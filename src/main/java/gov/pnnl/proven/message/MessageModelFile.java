@@ -72,6 +72,7 @@ public enum MessageModelFile {
 		public static final String MODEL_CONTEXT_FILE_REGEX = ".*\\.context$";
 		public static final String MODEL_STRUCTURE_FILE_REGEX = ".*(?!\\.shapes)\\.jsonld$";
 		public static final String MODEL_SHAPES_FILE_REGEX = ".*\\.shapes\\.jsonld$";
+		public static final String MODEL_SNAPSHOT_FILE = "message-model.snapshot";
 	}
 
 	private static Logger log = LoggerFactory.getLogger(MessageModel.class);
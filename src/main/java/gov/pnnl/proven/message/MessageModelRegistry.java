@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the {@link MessageModel} for a {@link ProvenMessage} domain. A
+ * domain may provide its own context, ontology, and shapes files, in a
+ * sub-folder of the message model resource path named after the domain (e.g.
+ * {@code message-model/<domain>/model-files}) or, if a model directory is
+ * configured, in a sub-directory of the model directory named after the
+ * domain. Domain models are loaded the first time the domain is seen. Messages
+ * without a domain, or with a domain that does not provide its own model
+ * files, use the default model, see {@link MessageModel#getInstance()}.
+ * 
+ * Loaded domain models are cached; once the cache is full, the least recently
+ * used domain model is evicted. Model files with the same contents (e.g. a
+ * shared proven.jsonld) are parsed once and shared between domain models.
+ * 
+ * @author d3j766
+ *
+ */
+public class MessageModelRegistry {
+
+	private static Logger log = LoggerFactory.getLogger(MessageModelRegistry.class);
+
+	public static final int DEFAULT_MAX_DOMAIN_MODELS = 16;
+
+	/**
+	 * Domain names that can be mapped to a model location. Other domains use
+	 * the default model.
+	 */
+	private static final Pattern DOMAIN_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+	private static final MessageModelRegistry instance = new MessageModelRegistry();
+
+	/**
+	 * A cached domain model. A null model indicates the domain does not
+	 * provide its own model files and uses the default model.
+	 */
+	private static class DomainModel {
+
+		private final MessageModel model;
+
+		private volatile long lastAccess;
+
+		DomainModel(MessageModel model, long lastAccess) {
+			this.model = model;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final Map<String, DomainModel> domainModels = new ConcurrentHashMap<String, DomainModel>();
+
+	/**
+	 * Access clock used for least recently used eviction.
+	 */
+	private final AtomicLong accessClock = new AtomicLong();
+
+	private volatile int maxDomainModels = DEFAULT_MAX_DOMAIN_MODELS;
+
+	/**
+	 * Directory containing domain model sub-directories, if any.
+	 */
+	private volatile Path modelDirectory;
+
+	private MessageModelRegistry() {
+	}
+
+	public static MessageModelRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Provides the message model for a domain, loading it if this is the
+	 * first time the domain is seen. Loading only locates the domain's model
+	 * files; the model parts themselves are loaded on first use.
+	 * 
+	 * @param domain
+	 *            the message domain, may be null
+	 * @return the domain's message model, or the default model if the domain
+	 *         does not provide its own model files
+	 */
+	public MessageModel getModel(String domain) {
+
+		if ((null == domain) || (!DOMAIN_NAME.matcher(domain).matches())) {
+			return MessageModel.getInstance();
+		}
+
+		DomainModel dm = domainModels.get(domain);
+		if (null == dm) {
+			dm = domainModels.computeIfAbsent(domain, d -> new DomainModel(locateModel(d), accessClock.get()));
+			evict();
+		}
+		dm.lastAccess = accessClock.incrementAndGet();
+
+		return (null == dm.model) ? MessageModel.getInstance() : dm.model;
+	}
+
+	/**
+	 * Reloads a domain's model files. The new model is fully loaded on a
+	 * background thread and then replaces the domain's current model; builds
+	 * already using the previous model continue to use it.
+	 * 
+	 * @param domain
+	 *            the message domain
+	 * @return the domain's new message model, or the default model if the
+	 *         domain does not provide its own model files
+	 */
+	public CompletableFuture<MessageModel> reload(String domain) {
+
+		if ((null == domain) || (!DOMAIN_NAME.matcher(domain).matches())) {
+			return MessageModel.reload();
+		}
+
+		MessageModel mm = locateModel(domain);
+		if (null == mm) {
+			domainModels.put(domain, new DomainModel(null, accessClock.incrementAndGet()));
+			evict();
+			return CompletableFuture.completedFuture(MessageModel.getInstance());
+		}
+
+		return MessageModel.loadAsync(mm).thenApply(loaded -> {
+			domainModels.put(domain, new DomainModel(loaded, accessClock.incrementAndGet()));
+			evict();
+			log.info("Message model version " + loaded.getVersion() + " for domain " + domain + " reloaded from "
+					+ loaded.getSource());
+			return loaded;
+		});
+	}
+
+	/**
+	 * Removes all cached domain models. Domain models are loaded again the
+	 * next time their domain is seen.
+	 */
+	public void clear() {
+		domainModels.clear();
+	}
+
+	/**
+	 * Number of domains currently cached.
+	 * 
+	 * @return cached domain count
+	 */
+	public int size() {
+		return domainModels.size();
+	}
+
+	public int getMaxDomainModels() {
+		return maxDomainModels;
+	}
+
+	/**
+	 * Sets the maximum number of cached domain models.
+	 * 
+	 * @param maxDomainModels
+	 *            maximum number of cached domains, must be positive
+	 */
+	public void setMaxDomainModels(int maxDomainModels) {
+		if (maxDomainModels < 1) {
+			throw new IllegalArgumentException("Maximum domain models must be positive: " + maxDomainModels);
+		}
+		this.maxDomainModels = maxDomainModels;
+		evict();
+	}
+
+	public Path getModelDirectory() {
+		return modelDirectory;
+	}
+
+	/**
+	 * Sets a directory to search for domain model files, before the
+	 * classpath. Cached domain models are cleared.
+	 * 
+	 * @param modelDirectory
+	 *            directory containing a sub-directory per domain, or null to
+	 *            only use the classpath
+	 */
+	public void setModelDirectory(Path modelDirectory) {
+		this.modelDirectory = modelDirectory;
+		clear();
+	}
+
+	/**
+	 * Locates a domain's model files, first in the model directory and then
+	 * on the classpath.
+	 * 
+	 * @param domain
+	 *            the message domain
+	 * @return a new unloaded model for the domain, or null if the domain does
+	 *         not provide its own model files
+	 */
+	private MessageModel locateModel(String domain) {
+
+		MessageModel ret = null;
+
+		Path dir = modelDirectory;
+		if ((null != dir) && (Files.isDirectory(dir.resolve(domain)))) {
+			ret = MessageModel.create(dir.resolve(domain), MessageModel.MESSAGE_MODEL_PATH);
+		}
+
+		if ((null == ret) || (!ret.exists())) {
+			ret = MessageModel.create(null, MessageModel.MESSAGE_MODEL_PATH + domain + "/");
+		}
+
+		if (!ret.exists()) {
+			log.debug("No message model for domain " + domain + ", using default model.");
+			ret = null;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Evicts least recently used domain models until the cache is within its
+	 * maximum size.
+	 */
+	private void evict() {
+
+		while (domainModels.size() > maxDomainModels) {
+
+			String eldest = null;
+			long eldestAccess = Long.MAX_VALUE;
+			for (Map.Entry<String, DomainModel> entry : domainModels.entrySet()) {
+				if (entry.getValue().lastAccess < eldestAccess) {
+					eldest = entry.getKey();
+					eldestAccess = entry.getValue().lastAccess;
+				}
+			}
+
+			if ((null == eldest) || (null == domainModels.remove(eldest))) {
+				break;
+			}
+			log.debug("Evicted message model for domain " + eldest);
+		}
+	}
+
+}
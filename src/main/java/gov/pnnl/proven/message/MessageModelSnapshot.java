@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFLanguages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static gov.pnnl.proven.message.MessageModelFile.ModelConfig.*;
+
+/**
+ * Binary snapshot of the parsed ontology and shapes model files, used by
+ * {@link MessageModel} to avoid JSON-LD parsing at startup. Each model file is
+ * stored as an RDF Thrift encoded graph, keyed by its resource name. The
+ * snapshot records a checksum of the model source files it was created from;
+ * a snapshot is only used if its checksum matches the current sources.
+ * 
+ * The snapshot is created at build time (see the {@code messageModelSnapshot}
+ * Gradle task) using {@link #main(String[])}, and packaged in the jar as
+ * {@link MessageModelFile.ModelConfig#MODEL_SNAPSHOT_FILE}.
+ * 
+ * @author d3j766
+ *
+ */
+public class MessageModelSnapshot {
+
+	private static Logger log = LoggerFactory.getLogger(MessageModelSnapshot.class);
+
+	/**
+	 * Snapshot file header and format version.
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x50524D53;
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private static final String CHECKSUM_ALGORITHM = "SHA-256";
+
+	/**
+	 * Checksum of the model source files used to create the snapshot.
+	 */
+	private final String checksum;
+
+	/**
+	 * RDF Thrift encoded model files, keyed by resource name.
+	 */
+	private final Map<String, byte[]> models;
+
+	private MessageModelSnapshot(String checksum, Map<String, byte[]> models) {
+		this.checksum = checksum;
+		this.models = models;
+	}
+
+	/**
+	 * Creates a snapshot of the ontology and shapes files of a message model.
+	 * 
+	 * @param rawModelFiles
+	 *            the model source files, keyed by resource name
+	 * @param parsedModels
+	 *            the parsed ontology and shapes models, keyed by resource name
+	 * @return the new snapshot
+	 */
+	public static MessageModelSnapshot create(Map<String, String> rawModelFiles, Map<String, Model> parsedModels) {
+
+		Map<String, byte[]> models = new LinkedHashMap<String, byte[]>();
+		for (String resourceName : parsedModels.keySet()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			RDFDataMgr.write(out, parsedModels.get(resourceName), RDFFormat.RDF_THRIFT);
+			models.put(resourceName, out.toByteArray());
+		}
+
+		return new MessageModelSnapshot(checksum(rawModelFiles), models);
+	}
+
+	/**
+	 * Reads a snapshot.
+	 * 
+	 * @param in
+	 *            snapshot input, not closed by this method
+	 * @return the snapshot
+	 * @throws IOException
+	 *             if the input is not a readable snapshot
+	 */
+	public static MessageModelSnapshot read(InputStream in) throws IOException {
+
+		DataInputStream din = new DataInputStream(in);
+
+		if (din.readInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("Not a message model snapshot");
+		}
+		int version = din.readInt();
+		if (version != SNAPSHOT_VERSION) {
+			throw new IOException("Unsupported message model snapshot version: " + version);
+		}
+
+		String checksum = din.readUTF();
+		int count = din.readInt();
+		Map<String, byte[]> models = new LinkedHashMap<String, byte[]>();
+		for (int i = 0; i < count; i++) {
+			String resourceName = din.readUTF();
+			byte[] model = new byte[din.readInt()];
+			din.readFully(model);
+			models.put(resourceName, model);
+		}
+
+		return new MessageModelSnapshot(checksum, models);
+	}
+
+	/**
+	 * Writes the snapshot.
+	 * 
+	 * @param out
+	 *            snapshot output, not closed by this method
+	 * @throws IOException
+	 *             if the snapshot could not be written
+	 */
+	public void write(OutputStream out) throws IOException {
+
+		DataOutputStream dout = new DataOutputStream(out);
+		dout.writeInt(SNAPSHOT_MAGIC);
+		dout.writeInt(SNAPSHOT_VERSION);
+		dout.writeUTF(checksum);
+		dout.writeInt(models.size());
+		for (String resourceName : models.keySet()) {
+			byte[] model = models.get(resourceName);
+			dout.writeUTF(resourceName);
+			dout.writeInt(model.length);
+			dout.write(model);
+		}
+		dout.flush();
+	}
+
+	/**
+	 * Determines if the snapshot was created from the provided model source
+	 * files.
+	 * 
+	 * @param rawModelFiles
+	 *            the model source files, keyed by resource name
+	 * @return true if the snapshot checksum matches the source files
+	 */
+	public boolean matches(Map<String, String> rawModelFiles) {
+		return checksum.equals(checksum(rawModelFiles));
+	}
+
+	/**
+	 * Indicates if the snapshot contains the model file.
+	 * 
+	 * @param resourceName
+	 *            name of model file
+	 * @return true if model file is in the snapshot
+	 */
+	public boolean hasModel(String resourceName) {
+		return models.containsKey(resourceName);
+	}
+
+	/**
+	 * Decodes a model file from the snapshot into a new model.
+	 * 
+	 * @param resourceName
+	 *            name of model file
+	 * @return the model, or null if the model file is not in the snapshot
+	 */
+	public Model getModel(String resourceName) {
+
+		Model ret = null;
+		byte[] model = models.get(resourceName);
+		if (null != model) {
+			ret = ModelFactory.createDefaultModel();
+			RDFDataMgr.read(ret, new ByteArrayInputStream(model), RDFLanguages.THRIFT);
+		}
+
+		return ret;
+	}
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * Computes the checksum of a set of model source files. Files are digested
+	 * in resource name order, so the checksum does not depend on registry
+	 * order.
+	 * 
+	 * @param rawModelFiles
+	 *            the model source files, keyed by resource name
+	 * @return hex encoded checksum
+	 */
+	public static String checksum(Map<String, String> rawModelFiles) {
+
+		MessageDigest digest = newDigest();
+		for (Map.Entry<String, String> file : new TreeMap<String, String>(rawModelFiles).entrySet()) {
+			digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(file.getValue().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Computes the checksum of a single model source file's contents.
+	 * 
+	 * @param content
+	 *            the model file contents
+	 * @return hex encoded checksum
+	 */
+	public static String checksum(String content) {
+		return toHex(newDigest().digest(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(CHECKSUM_ALGORITHM + " digest not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Creates a snapshot of the message model on the classpath.
+	 * 
+	 * @param args
+	 *            output directory for the snapshot file
+	 * @throws IOException
+	 *             if the snapshot could not be written
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length != 1) {
+			throw new IllegalArgumentException("Usage: MessageModelSnapshot <output directory>");
+		}
+
+		File dir = new File(args[0]);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Failed to create snapshot directory: " + dir);
+		}
+
+		MessageModelSnapshot snapshot = MessageModel.getInstance().createSnapshot();
+		File snapshotFile = new File(dir, MODEL_SNAPSHOT_FILE);
+		try (OutputStream out = new FileOutputStream(snapshotFile)) {
+			snapshot.write(out);
+		}
+
+		log.info("Message model snapshot written: " + snapshotFile);
+	}
+
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up message building by repeatedly building a set of representative
+ * sample messages, so the JIT compiles the Jena and TopBraid code paths used
+ * by a build before live traffic arrives. Each iteration (round) builds every
+ * sample once. Warm-up stops once round latency reaches a steady state, or
+ * the iteration limit is reached.
+ * 
+ * Steady state is reached when the mean round latency of a window of rounds
+ * is within {@link #STEADY_STATE_TOLERANCE} of the previous window's mean.
+ * 
+ * @author d3j766
+ *
+ */
+class MessageModelWarmUp {
+
+	private static Logger log = LoggerFactory.getLogger(MessageModelWarmUp.class);
+
+	/**
+	 * Bundled sample messages, covering explicit measurement, input difference,
+	 * and query messages.
+	 */
+	static final String[] BUNDLED_SAMPLES = { "sim-output-test.json", "sim-output-test3.json",
+			"sim-output-test4.json", "sim-output2-test.json", "sim-input-test.json", "sim-input-test2.json",
+			"sim-query-test.json", "sim-query-test2.json" };
+
+	static final double STEADY_STATE_TOLERANCE = 0.05;
+	static final int MIN_WINDOW = 5;
+	static final int MAX_WINDOW = 50;
+
+	private MessageModelWarmUp() {
+	}
+
+	/**
+	 * Loads the bundled sample messages.
+	 * 
+	 * @return sample messages
+	 */
+	static List<String> bundledSamples() {
+
+		List<String> ret = new ArrayList<String>();
+		for (String sample : BUNDLED_SAMPLES) {
+			String resourcePath = MessageModel.MESSAGE_MODEL_PATH + sample;
+			try (InputStream in = MessageModelWarmUp.class.getClassLoader().getResourceAsStream(resourcePath)) {
+				if (null != in) {
+					ret.add(IOUtils.toString(in, StandardCharsets.UTF_8));
+				} else {
+					log.warn("Missing warm-up sample: " + resourcePath);
+				}
+			} catch (Exception e) {
+				log.warn("Failed to read warm-up sample: " + resourcePath, e);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Runs the warm-up.
+	 * 
+	 * @param iterations
+	 *            maximum number of rounds
+	 * @param samples
+	 *            sample messages, each built once per round
+	 * @return the warm-up report
+	 */
+	static WarmUpReport run(int iterations, Collection<String> samples) {
+
+		long start = System.currentTimeMillis();
+		int window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, iterations / 10));
+		Map<MessageContent, Integer> builds = new EnumMap<MessageContent, Integer>(MessageContent.class);
+		Set<String> failures = new LinkedHashSet<String>();
+
+		long firstRound = 0;
+		long windowTotal = 0;
+		long previousWindowMean = 0;
+		long lastWindowMean = 0;
+		int steadyStateIteration = -1;
+		int iteration = 0;
+
+		while (iteration < iterations) {
+
+			iteration++;
+			long roundStart = System.nanoTime();
+			int sampleIndex = 0;
+			for (String sample : samples) {
+				sampleIndex++;
+				try {
+					ProvenMessage pm = ProvenMessage.message(sample).build();
+					Integer count = builds.get(pm.getMessageContent());
+					builds.put(pm.getMessageContent(), (null == count) ? 1 : count + 1);
+				} catch (Exception e) {
+					if (failures.add("sample " + sampleIndex + ": " + e.getMessage())) {
+						log.warn("Warm-up sample " + sampleIndex + " failed to build", e);
+					}
+				}
+			}
+			long round = System.nanoTime() - roundStart;
+
+			if (iteration == 1) {
+				firstRound = round;
+			}
+
+			windowTotal += round;
+			if (iteration % window == 0) {
+				lastWindowMean = windowTotal / window;
+				windowTotal = 0;
+				if ((previousWindowMean > 0) && (Math.abs(lastWindowMean - previousWindowMean) <= previousWindowMean
+						* STEADY_STATE_TOLERANCE)) {
+					steadyStateIteration = iteration;
+					break;
+				}
+				previousWindowMean = lastWindowMean;
+			}
+		}
+
+		WarmUpReport ret = new WarmUpReport(iteration, steadyStateIteration, firstRound, lastWindowMean,
+				System.currentTimeMillis() - start, builds, new ArrayList<String>(failures));
+		log.info("Message build warm-up complete: " + ret);
+
+		return ret;
+	}
+
+}
@@ -44,12 +44,15 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import org.apache.jena.graph.BlankNodeId;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
@@ -95,6 +98,8 @@ public class MessageUtils {
 	public static final String NAME_PROP = PROVEN_MESSAGE_NS + "hasName";
 	public static final String TIMESTAMP_PROP = PROVEN_MESSAGE_NS + "hasTimestamp";
 	public static final String QUERY_MEASUREMENT_PROP = PROVEN_MESSAGE_NS +  "hasQueryMeasurement";
+	public static final String QUERY_AGGREGATE_PROP = PROVEN_MESSAGE_NS + "hasQueryAggregate";
+	public static final String QUERY_BUCKET_SIZE_PROP = PROVEN_MESSAGE_NS + "hasQueryBucketSize";
 	public static final String DATE_FORMAT_1 = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
 	public static final String DATE_FORMAT_2 = "yyyy-MM-dd' 'HH:mm:ss.SSSSSS";
 	public static final String DEFAULT_MEASUREMENT = "PROVEN_MEASUREMENT";
@@ -107,8 +112,20 @@ public class MessageUtils {
 	public static final Property nameProp = ResourceFactory.createProperty(NAME_PROP);
 	public static final Property timestampProp = ResourceFactory.createProperty(TIMESTAMP_PROP);
 	public static final Property queryMeasurementProp = ResourceFactory.createProperty(QUERY_MEASUREMENT_PROP);
+	public static final Property queryAggregateProp = ResourceFactory.createProperty(QUERY_AGGREGATE_PROP);
+	public static final Property queryBucketSizeProp = ResourceFactory.createProperty(QUERY_BUCKET_SIZE_PROP);
 
-	private final static MessageModel messageModel = MessageModel.getInstance();
+	/**
+	 * Date time conversion, see {@link #convertDateTimeStr(String)}.
+	 */
+	private static final TimestampCodec DATE_TIME_CODEC = new TimestampCodec(TimeUnit.MILLISECONDS, null,
+			ZoneId.systemDefault());
+
+	/**
+	 * Blank node id of a replacement URI, see {@link #getBNReplacementURI()}.
+	 */
+	private static final Pattern BN_ID = Pattern
+			.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
 
 	/**
 	 * Prepends context file to a json message. The context provides a mapping
@@ -120,6 +137,20 @@ public class MessageUtils {
 	 * @return the json message with context prepended.
 	 */
 	public static String prependContext(String jsonMessage) {
+		return prependContext(MessageModel.getInstance(), jsonMessage);
+	}
+
+	/**
+	 * Prepends the context of the provided message model to a json message.
+	 * 
+	 * @param messageModel
+	 *            the message model providing the context.
+	 * @param jsonMessage
+	 *            provided json message for which context will be appended.
+	 * 
+	 * @return the json message with context prepended.
+	 */
+	public static String prependContext(MessageModel messageModel, String jsonMessage) {
 		String context = messageModel.getContext();
 		String ret = jsonMessage.replaceFirst("\\{", "{" + context);
 		return ret;
@@ -137,7 +168,8 @@ public class MessageUtils {
 		Model replacementModel = ModelFactory.createDefaultModel();
 
 		// Content type of message data model
-		// Explicit is default
+		// Explicit is default. A query requested as continuous keeps that type.
+		boolean isContinuousQuery = (pm.getMessageContent() == MessageContent.ContinuousQuery);
 		pm.setMessageContent(MessageContent.Explicit);
 
 		// Listing of statements
@@ -162,7 +194,8 @@ public class MessageUtils {
 			boolean contentTypeFound = false;
 			if (!contentTypeFound) {
 				if (predicate.equals(queryTypeProp)) {
-					pm.setMessageContent(MessageContent.Query);
+					// Continuous queries are also queries, keep their type
+					pm.setMessageContent(isContinuousQuery ? MessageContent.ContinuousQuery : MessageContent.Query);
 					contentTypeFound = true;
 				}
 			}
@@ -316,13 +349,61 @@ public class MessageUtils {
 	}
 
 	public static Model addShaclRuleResults(Model dataModel) {
+		return addShaclRuleResults(MessageModel.getInstance(), dataModel);
+	}
+
+	public static Model addShaclRuleResults(MessageModel messageModel, Model dataModel) {
+		return dataModel.union(getShaclRuleResults(messageModel, dataModel));
+	}
 
+	/**
+	 * Runs all SHACL rules of a message model against a data model.
+	 * 
+	 * @param messageModel
+	 *            the message model providing the shapes
+	 * @param dataModel
+	 *            the data model, not modified
+	 * @return the rule results only
+	 */
+	static Model getShaclRuleResults(MessageModel messageModel, Model dataModel) {
 		Model shapesModel = messageModel.getShapesModel();
-		Model ontologyModel = messageModel.getOntologyModel();
-		Model dataAndOntologyModel = dataModel.union(ontologyModel);
+		return RuleUtil.executeRules(dataModel, shapesModel, null, null);
+	}
+
+	/**
+	 * Adds SHACL rule results, running only the rules of shapes that target
+	 * the data model. Results are the same as
+	 * {@link #addShaclRuleResults(MessageModel, Model)}; rule execution is
+	 * skipped if no rule shape targets the data, and if the targeted rules
+	 * infer data targeted by other rule shapes, all rules are run instead.
+	 * Intended for small messages, e.g. queries, targeted by few rules.
+	 * 
+	 * @param messageModel
+	 *            the message model providing the shapes
+	 * @param dataModel
+	 *            the message data model
+	 * @return the data model with rule results
+	 */
+	public static Model addTargetedShaclRuleResults(MessageModel messageModel, Model dataModel) {
+
+		ShaclRuleTargets targets = messageModel.getRuleTargets();
+		Set<Node> targeted = targets.getTargetedShapes(dataModel.getGraph());
+		if (targeted.isEmpty()) {
+			log.debug("No SHACL rule shapes target message data, rules not run");
+			return dataModel;
+		}
+		if (targeted.size() == targets.size()) {
+			return addShaclRuleResults(messageModel, dataModel);
+		}
+
+		Model results = RuleUtil.executeRules(dataModel, targets.getShapesModel(targeted), null, null);
+		Model ret = dataModel.union(results);
+		if (!targeted.containsAll(targets.getTargetedShapes(ret.getGraph()))) {
+			log.debug("SHACL rule results target other rule shapes, running all rules");
+			ret = addShaclRuleResults(messageModel, dataModel);
+		}
 
-		Model results = RuleUtil.executeRules(dataModel, shapesModel, null, null);
-		return dataModel.union(results);
+		return ret;
 	}
 
 	/**
@@ -421,10 +502,12 @@ public class MessageUtils {
 						}
 
 						// hasTimestamp (long epoch format is standard for
-						// proven messaging)
+						// proven messaging, date times are also accepted),
+						// normalized to the measurement time unit by the
+						// measurement codec, whatever their precision
 						if (tPredicate.equals(timestampProp.asNode())) {
 							String dateStr = tObject.getLiteral().getLexicalForm();
-							pm.setTimestamp(Long.valueOf(dateStr));
+							pm.setTimestamp(TimestampCodec.getMeasurementCodec().parse(dateStr));
 						}
 
 					}
@@ -438,31 +521,22 @@ public class MessageUtils {
 		return ret;
 	}
 
+	/**
+	 * Converts a date time string, see {@link #DATE_FORMAT_1} and
+	 * {@link #DATE_FORMAT_2}, or epoch number to epoch milliseconds. Date
+	 * times ending in 'Z' are UTC, others are in the JVM's default zone.
+	 * 
+	 * @param dateStr
+	 *            the date time string
+	 * @return epoch milliseconds, null if the string is not valid
+	 */
 	public static Long convertDateTimeStr(String dateStr) {
 
 		Long ret = null;
 
-		// Format 1
-		if (null == ret) {
-			try {
-				SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT_1);
-				ret = sdf.parse(dateStr).getTime();
-			} catch (Exception e) {
-				ret = null;
-			}
-		}
-
-		// Format 2
-		if (null == ret) {
-			try {
-				SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT_2);
-				ret = sdf.parse(dateStr).getTime();
-			} catch (Exception e) {
-				ret = null;
-			}
-		}
-
-		if (null == ret) {
+		try {
+			ret = DATE_TIME_CODEC.parse(dateStr);
+		} catch (IllegalArgumentException e) {
 			log.warn("Invalid date time string provided in message: " + dateStr);
 		}
 
@@ -490,6 +564,21 @@ public class MessageUtils {
                 tsq.setMeasurementName(measIter.next().getObject().getLiteral().getLexicalForm());
 			}
 			
+			// Get aggregations, if any
+			ExtendedIterator<Triple> aggIter = modelGraph.find(Node.ANY, queryAggregateProp.asNode(), Node.ANY);
+			while (aggIter.hasNext()) {
+				String name = aggIter.next().getObject().getLiteral().getLexicalForm();
+				ProvenQueryTimeSeries.Aggregation aggregation = ProvenQueryTimeSeries.Aggregation.fromName(name);
+				if (null == aggregation) {
+					throw new InvalidProvenQueryException("Unsupported query aggregate: " + name);
+				}
+				tsq.addAggregation(aggregation);
+			}
+			ExtendedIterator<Triple> bucketIter = modelGraph.find(Node.ANY, queryBucketSizeProp.asNode(), Node.ANY);
+			while (bucketIter.hasNext()) {
+				tsq.setBucketSize(Long.parseLong(bucketIter.next().getObject().getLiteral().getLexicalForm()));
+			}
+
 			// Get Query Filter object, assumption is a single Query Filter
 			// object with one or more Query Filter properties.
 			URI pqfUri = null;
@@ -518,13 +607,7 @@ public class MessageUtils {
 					if (tObject.isLiteral()) {
 
 						String field = tPredicate.getLocalName().toString();
-						String tObjectDatatype = tObject.getLiteralDatatype().getURI();
-						String datatype;
-						if(tObjectDatatype.contains("::")) {
-							datatype = tObjectDatatype.split("::")[1];
-						}
-						else
-							datatype = tObjectDatatype.split("#")[1];
+						String datatype = ProvenQueryFilter.datatypeOf(tObject.getLiteralDatatype().getURI());
 						String value = tObject.getLiteral().getLexicalForm();
 						ProvenQueryFilter pqf = new ProvenQueryFilter();
 						pqf.setField(field);
@@ -568,8 +651,21 @@ public class MessageUtils {
 		return provenMessage;
 	}
 
-	private static String getBNReplacementURI() {
+	/**
+	 * Provides a new URI to replace a blank node. Blank node ids are random
+	 * UUIDs, so replacement URIs are unique to a message build.
+	 */
+	static String getBNReplacementURI() {
 		return PROVEN_MESSAGE_NS + BlankNodeId.create();
 	}
 
+	/**
+	 * Tests if a URI is a blank node replacement, see
+	 * {@link #getBNReplacementURI()}.
+	 */
+	static boolean isBNReplacementURI(String uri) {
+		return uri.startsWith(PROVEN_MESSAGE_NS)
+				&& BN_ID.matcher(uri).region(PROVEN_MESSAGE_NS.length(), uri.length()).matches();
+	}
+
 }
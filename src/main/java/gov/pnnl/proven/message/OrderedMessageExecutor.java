@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs message work in order per key, and in parallel across keys. By default
+ * messages are keyed by {@link ProvenMessage#getSource()}, so e.g. a
+ * simulation's input differences are applied in the order submitted, while
+ * other sources' messages are processed on other cores.
+ * 
+ * Each key has a FIFO queue, drained by at most one task at a time on a
+ * work-stealing {@link ForkJoinPool}. A drain task runs a limited number of
+ * its key's work items, then yields to other keys by resubmitting itself, so
+ * a busy key can't hold a worker indefinitely, and idle workers steal queued
+ * drain tasks from busy ones. A key's queue is removed once drained, keeping
+ * memory proportional to the keys with pending work. Messages without a key,
+ * e.g. with no source, are ordered among themselves.
+ * 
+ * @author d3j766
+ *
+ */
+public class OrderedMessageExecutor {
+
+	private static Logger log = LoggerFactory.getLogger(OrderedMessageExecutor.class);
+
+	/**
+	 * Key of messages for which the key function provides none.
+	 */
+	private static final Object NO_KEY = new Object();
+
+	/**
+	 * Maximum work items a drain task runs before yielding to other keys.
+	 */
+	private static final int DRAIN_LIMIT = 64;
+
+	private final ForkJoinPool pool;
+
+	private final Function<? super ProvenMessage, ?> keyFunction;
+
+	private final Map<Object, KeyQueue> queues = new ConcurrentHashMap<Object, KeyQueue>();
+
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private final Object idle = new Object();
+
+	private volatile boolean isShutdown;
+
+	/**
+	 * Creates an executor keyed by message source, with a worker per
+	 * available processor.
+	 */
+	public OrderedMessageExecutor() {
+		this(ProvenMessage::getSource, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a new executor.
+	 * 
+	 * @param keyFunction
+	 *            provides a message's ordering key, may return null
+	 * @param workers
+	 *            number of worker threads
+	 */
+	public OrderedMessageExecutor(Function<? super ProvenMessage, ?> keyFunction, int workers) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("Invalid workers: " + workers);
+		}
+		this.keyFunction = keyFunction;
+		AtomicInteger threads = new AtomicInteger();
+		this.pool = new ForkJoinPool(workers, p -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			t.setName("proven-ordered-" + threads.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}, null, true);
+	}
+
+	/**
+	 * Queues a message for a handler, after earlier messages with the same
+	 * key.
+	 * 
+	 * @param message
+	 *            the message
+	 * @param handler
+	 *            the message handler
+	 * @return completed when the message is handled
+	 */
+	public CompletableFuture<Void> submit(ProvenMessage message, MessageHandler handler) {
+		return submit(keyFunction.apply(message), () -> {
+			handler.handle(message);
+			return null;
+		});
+	}
+
+	/**
+	 * Queues work, after earlier work with the same key.
+	 * 
+	 * @param key
+	 *            the ordering key, may be null
+	 * @param work
+	 *            the work
+	 * @return the result
+	 * @throws IllegalStateException
+	 *             if the executor is shut down
+	 */
+	public <T> CompletableFuture<T> submit(Object key, Callable<T> work) {
+
+		if (isShutdown) {
+			throw new IllegalStateException("Ordered executor is shut down");
+		}
+
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		Runnable task = () -> {
+			try {
+				result.complete(work.call());
+				completed.incrementAndGet();
+			} catch (Throwable e) {
+				failed.incrementAndGet();
+				result.completeExceptionally(e);
+			}
+		};
+
+		// Queue changes and drain scheduling are atomic per key
+		pending.incrementAndGet();
+		queues.compute((null == key) ? NO_KEY : key, (k, queue) -> {
+			KeyQueue ret = (null == queue) ? new KeyQueue(k) : queue;
+			ret.tasks.add(task);
+			if (!ret.isScheduled) {
+				ret.isScheduled = true;
+				pool.execute(ret);
+			}
+			return ret;
+		});
+
+		return result;
+	}
+
+	/**
+	 * @return number of keys with queued or running work
+	 */
+	public int getKeyCount() {
+		return queues.size();
+	}
+
+	/**
+	 * @return number of queued or running work items
+	 */
+	public long getPendingCount() {
+		return pending.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return number of tasks stolen by idle workers
+	 */
+	public long getStealCount() {
+		return pool.getStealCount();
+	}
+
+	/**
+	 * Stops accepting work and waits for queued work to complete.
+	 * 
+	 * @return true if all queued work was completed
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		isShutdown = true;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (idle) {
+			long remaining;
+			while ((pending.get() > 0) && ((remaining = deadline - System.nanoTime()) > 0)) {
+				TimeUnit.NANOSECONDS.timedWait(idle, remaining);
+			}
+		}
+		pool.shutdown();
+		boolean ret = (pending.get() == 0);
+		log.debug("Ordered executor shut down" + (ret ? "" : ", work left incomplete"));
+		return ret;
+	}
+
+	public boolean isShutdown() {
+		return isShutdown;
+	}
+
+	/**
+	 * A key's work queue, and its drain task.
+	 */
+	private final class KeyQueue implements Runnable {
+
+		private final Object key;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * Only changed within the key's map compute.
+		 */
+		private boolean isScheduled;
+
+		KeyQueue(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+
+			int count = 0;
+			Runnable task;
+			while ((count < DRAIN_LIMIT) && (null != (task = tasks.poll()))) {
+				task.run();
+				count++;
+			}
+
+			// Yield to other keys if work remains, otherwise remove the queue
+			queues.compute(key, (k, queue) -> {
+				if (tasks.isEmpty()) {
+					isScheduled = false;
+					return null;
+				}
+				pool.execute(this);
+				return this;
+			});
+
+			// Counted after the queue is removed, so it's gone once idle
+			if (pending.addAndGet(-count) == 0) {
+				synchronized (idle) {
+					idle.notifyAll();
+				}
+			}
+		}
+	}
+
+}
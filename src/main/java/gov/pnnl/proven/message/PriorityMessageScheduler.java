@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.pnnl.proven.message.ProvenMessage.ProvenMessageBuilder;
+
+/**
+ * Runs message build and dispatch work on a shared worker pool, ordered by
+ * priority class of the message content (see {@link #getPriority}): queries
+ * and administrative messages first, then disclosures, then static content.
+ * 
+ * Ordering uses a virtual deadline, the submit time plus the priority class's
+ * aging offset. Work runs in deadline order, so lower priority work is only
+ * passed over by higher priority work submitted less than the difference of
+ * their offsets after it, and is never starved. Queue wait times are recorded
+ * per priority class.
+ * 
+ * The queue bound is kept with permits, taken on submit and returned when
+ * work starts, so concurrent submissions can't overfill it. Worker threads
+ * are started up front; otherwise the first submissions would each start a
+ * worker and run at once, passing over queued higher priority work.
+ * 
+ * @author d3j766
+ *
+ */
+public class PriorityMessageScheduler {
+
+	private static Logger log = LoggerFactory.getLogger(PriorityMessageScheduler.class);
+
+	public static final int DEFAULT_MAX_QUEUED = 10000;
+
+	/**
+	 * Priority classes, with their default aging offsets.
+	 */
+	public enum Priority {
+		High(0), Normal(50), Low(500);
+
+		private final long defaultOffsetMillis;
+
+		Priority(long defaultOffsetMillis) {
+			this.defaultOffsetMillis = defaultOffsetMillis;
+		}
+
+		public long getDefaultOffsetMillis() {
+			return defaultOffsetMillis;
+		}
+	}
+
+	private final ThreadPoolExecutor executor;
+
+	private final int maxQueued;
+
+	/**
+	 * Free queue slots.
+	 */
+	private final Semaphore queueSlots;
+
+	private final Map<Priority, Long> offsetNanos = new EnumMap<Priority, Long>(Priority.class);
+
+	private final Map<Priority, LatencyHistogram> waitTimes = new EnumMap<Priority, LatencyHistogram>(
+			Priority.class);
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	public PriorityMessageScheduler() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_QUEUED);
+	}
+
+	/**
+	 * Creates a new scheduler.
+	 * 
+	 * @param workers
+	 *            number of worker threads
+	 * @param maxQueued
+	 *            maximum number of queued tasks, further submissions are
+	 *            rejected
+	 */
+	public PriorityMessageScheduler(int workers, int maxQueued) {
+
+		if ((workers < 1) || (maxQueued < 1)) {
+			throw new IllegalArgumentException("Invalid workers or max queued: " + workers + ", " + maxQueued);
+		}
+
+		this.maxQueued = maxQueued;
+		this.queueSlots = new Semaphore(maxQueued);
+		for (Priority priority : Priority.values()) {
+			offsetNanos.put(priority, TimeUnit.MILLISECONDS.toNanos(priority.getDefaultOffsetMillis()));
+			waitTimes.put(priority, new LatencyHistogram());
+		}
+
+		AtomicInteger threads = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), r -> {
+					Thread t = new Thread(r, "proven-scheduler-" + threads.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				});
+		this.executor.prestartAllCoreThreads();
+	}
+
+	/**
+	 * Provides the priority class of message content.
+	 * 
+	 * @param content
+	 *            the message content
+	 * @return the priority class
+	 */
+	public static Priority getPriority(MessageContent content) {
+		Priority ret = Priority.Normal;
+		if (null != content) {
+			switch (content) {
+			case Query:
+			case ContinuousQuery:
+			case Administrative:
+				ret = Priority.High;
+				break;
+			case Static:
+				ret = Priority.Low;
+				break;
+			default:
+				break;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Schedules work for message content.
+	 * 
+	 * @param content
+	 *            the message content, determines priority class
+	 * @param work
+	 *            the work
+	 * @return the result
+	 * @throws RejectedExecutionException
+	 *             if the queue is full or the scheduler is shut down
+	 */
+	public <T> CompletableFuture<T> submit(MessageContent content, Callable<T> work) {
+
+		if (!queueSlots.tryAcquire()) {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("Scheduler queue is full: " + maxQueued);
+		}
+
+		Priority priority = getPriority(content);
+		ScheduledWork<T> task = new ScheduledWork<T>(priority, work);
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			queueSlots.release();
+			rejected.incrementAndGet();
+			throw e;
+		}
+		return task.result;
+	}
+
+	/**
+	 * Schedules a message build. Messages flagged as static are built with
+	 * {@link Priority#Low}.
+	 * 
+	 * @param builder
+	 *            the message builder
+	 * @return the built message
+	 */
+	public CompletableFuture<ProvenMessage> submitBuild(ProvenMessageBuilder builder) {
+		return submit(builder.getExpectedContent(), builder::build);
+	}
+
+	/**
+	 * Schedules a built message for a handler.
+	 * 
+	 * @param message
+	 *            the message
+	 * @param handler
+	 *            the message handler
+	 * @return completed when the message is handled
+	 */
+	public CompletableFuture<Void> submitDispatch(ProvenMessage message, MessageHandler handler) {
+		return submit(message.getMessageContent(), () -> {
+			handler.handle(message);
+			return null;
+		});
+	}
+
+	/**
+	 * @return queue wait times of a priority class
+	 */
+	public LatencyHistogram getWaitTimes(Priority priority) {
+		return waitTimes.get(priority);
+	}
+
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getAgingOffset(Priority priority, TimeUnit unit) {
+		return unit.convert(offsetNanos.get(priority), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the aging offset of a priority class, applies to work submitted
+	 * afterwards.
+	 */
+	public synchronized void setAgingOffset(Priority priority, long offset, TimeUnit unit) {
+		if (offset < 0) {
+			throw new IllegalArgumentException("Invalid aging offset: " + offset);
+		}
+		offsetNanos.put(priority, unit.toNanos(offset));
+	}
+
+	/**
+	 * Stops accepting work and waits for queued work to complete.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		executor.shutdown();
+		boolean ret = executor.awaitTermination(timeout, unit);
+		for (Priority priority : Priority.values()) {
+			log.debug("Scheduler " + priority + " wait times: " + waitTimes.get(priority));
+		}
+		return ret;
+	}
+
+	/**
+	 * Work ordered by virtual deadline, then submit order.
+	 */
+	private final class ScheduledWork<T> implements Runnable, Comparable<ScheduledWork<?>> {
+
+		private final Priority priority;
+		private final Callable<T> work;
+		private final long submitted = System.nanoTime();
+		private final long deadline;
+		private final long order = sequence.getAndIncrement();
+		private final CompletableFuture<T> result = new CompletableFuture<T>();
+
+		ScheduledWork(Priority priority, Callable<T> work) {
+			this.priority = priority;
+			this.work = work;
+			this.deadline = submitted + offsetNanos.get(priority);
+		}
+
+		@Override
+		public void run() {
+			queueSlots.release();
+			waitTimes.get(priority).record(System.nanoTime() - submitted);
+			if (result.isDone()) {
+				return;
+			}
+			try {
+				result.complete(work.call());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public int compareTo(ScheduledWork<?> other) {
+			// Deadlines are compared by difference, nanoTime may overflow
+			long diff = deadline - other.deadline;
+			if (diff == 0) {
+				diff = order - other.order;
+			}
+			return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+		}
+	}
+
+}
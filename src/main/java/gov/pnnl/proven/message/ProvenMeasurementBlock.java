@@ -0,0 +1,562 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+import gov.pnnl.proven.message.GorillaCodec.BitReader;
+import gov.pnnl.proven.message.GorillaCodec.BitWriter;
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+/**
+ * Compressed block of a measurement series, i.e. measurements sharing a name
+ * and tag set, ordered by time. Timestamps and long fields are stored as
+ * delta-of-deltas and double fields as XOR with the previous value (see
+ * {@link GorillaCodec}), so regularly sampled and slowly changing series,
+ * e.g. gridappsd magnitude and angle streams, take a few bits per point
+ * instead of 16 bytes. Boolean fields take a bit per point, string fields
+ * are stored as is.
+ * 
+ * Field values are kept by value, as in {@link MeasurementStore}, so a
+ * decoded block is equal in value but not always in form to its
+ * measurements:
+ * <ul>
+ * <li>numbers come back in their canonical form, e.g. "120.00" as "120.0"
+ * and "007" as "7"</li>
+ * <li>a field mixing numeric types is widened to one column and value type,
+ * Long for Integer and Long values, otherwise Double, e.g. an Integer "3"
+ * comes back as a Double "3.0"; per-row value types are not kept</li>
+ * <li>metrics with a null value are dropped, only present values are
+ * encoded</li>
+ * </ul>
+ * Callers needing the original forms should send the measurements
+ * themselves.
+ * 
+ * Created using {@link #encode(Collection)}.
+ * 
+ * @author d3j766
+ *
+ */
+@XmlRootElement
+public class ProvenMeasurementBlock implements IdentifiedDataSerializable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static Logger log = LoggerFactory.getLogger(ProvenMeasurementBlock.class);
+
+	/**
+	 * Field column types.
+	 */
+	public static final byte LONG_COLUMN = 0;
+	public static final byte DOUBLE_COLUMN = 1;
+	public static final byte BOOLEAN_COLUMN = 2;
+	public static final byte STRING_COLUMN = 3;
+
+	private String measurementName;
+
+	private String[] tagLabels;
+
+	private String[] tagValues;
+
+	private String[] tagValueTypes;
+
+	private String[] fieldLabels;
+
+	private byte[] fieldTypes;
+
+	private String[] fieldValueTypes;
+
+	private int count;
+
+	private long startTime;
+
+	private long endTime;
+
+	/**
+	 * Bit stream of the timestamps followed by each field's presence and
+	 * values.
+	 */
+	private byte[] data;
+
+	public ProvenMeasurementBlock() {
+	}
+
+	/**
+	 * Encodes a series' measurements.
+	 * 
+	 * @param rows
+	 *            the measurements, sharing a name and tags, ordered by time
+	 */
+	private ProvenMeasurementBlock(List<ProvenMeasurement> rows) {
+
+		ProvenMeasurement first = rows.get(0);
+		this.measurementName = first.getMeasurementName();
+		this.count = rows.size();
+		this.startTime = first.getTimestamp();
+		this.endTime = rows.get(count - 1).getTimestamp();
+
+		TreeMap<String, ProvenMetric> tags = tags(first);
+		this.tagLabels = new String[tags.size()];
+		this.tagValues = new String[tags.size()];
+		this.tagValueTypes = new String[tags.size()];
+		int tag = 0;
+		for (ProvenMetric metric : tags.values()) {
+			tagLabels[tag] = metric.getLabel();
+			tagValues[tag] = metric.getValue();
+			tagValueTypes[tag] = valueTypeOf(metric).name();
+			tag++;
+		}
+
+		TreeMap<String, ProvenMetric[]> fields = new TreeMap<String, ProvenMetric[]>();
+		for (int row = 0; row < count; row++) {
+			for (ProvenMetric metric : rows.get(row).getMetrics()) {
+				if (!metric.isMetadata() && (null != metric.getValue())) {
+					fields.computeIfAbsent(metric.getLabel(), l -> new ProvenMetric[count])[row] = metric;
+				}
+			}
+		}
+		this.fieldLabels = fields.keySet().toArray(new String[fields.size()]);
+		this.fieldTypes = new byte[fields.size()];
+		this.fieldValueTypes = new String[fields.size()];
+
+		BitWriter out = new BitWriter();
+		long[] times = new long[count];
+		for (int row = 0; row < count; row++) {
+			times[row] = rows.get(row).getTimestamp();
+		}
+		GorillaCodec.writeLongs(out, times, count);
+
+		int field = 0;
+		for (ProvenMetric[] column : fields.values()) {
+			byte type = columnType(column);
+			fieldTypes[field] = type;
+			fieldValueTypes[field] = columnValueType(column, type).name();
+			writeColumn(out, column, type);
+			field++;
+		}
+		this.data = out.toByteArray();
+	}
+
+	/**
+	 * Encodes measurements into a block per series.
+	 * 
+	 * @param measurements
+	 *            the measurements, in any order
+	 * @return the blocks, in order of each series' first measurement
+	 * @throws IllegalArgumentException
+	 *             if a measurement has no timestamp
+	 */
+	public static List<ProvenMeasurementBlock> encode(Collection<ProvenMeasurement> measurements) {
+
+		Map<String, List<ProvenMeasurement>> series = new LinkedHashMap<String, List<ProvenMeasurement>>();
+		for (ProvenMeasurement measurement : measurements) {
+			if (null == measurement.getTimestamp()) {
+				throw new IllegalArgumentException(
+						"Measurement without a timestamp can't be block encoded: " + measurement.getMeasurementName());
+			}
+			series.computeIfAbsent(seriesKey(measurement), k -> new ArrayList<ProvenMeasurement>()).add(measurement);
+		}
+
+		List<ProvenMeasurementBlock> ret = new ArrayList<ProvenMeasurementBlock>(series.size());
+		for (List<ProvenMeasurement> rows : series.values()) {
+			rows.sort(Comparator.comparing(ProvenMeasurement::getTimestamp));
+			ProvenMeasurementBlock block = new ProvenMeasurementBlock(rows);
+			log.debug("Encoded " + block.count + " measurements of " + block.measurementName + " into "
+					+ block.data.length + " bytes");
+			ret.add(block);
+		}
+		return ret;
+	}
+
+	/**
+	 * Decodes blocks back to measurements.
+	 * 
+	 * @param blocks
+	 *            the blocks
+	 * @return the measurements, ordered by block then time
+	 */
+	public static List<ProvenMeasurement> decode(Collection<ProvenMeasurementBlock> blocks) {
+		List<ProvenMeasurement> ret = new ArrayList<ProvenMeasurement>();
+		for (ProvenMeasurementBlock block : blocks) {
+			ret.addAll(block.toMeasurements());
+		}
+		return ret;
+	}
+
+	/**
+	 * Decodes the block back to measurements.
+	 * 
+	 * @return the measurements, ordered by time
+	 * @throws IllegalArgumentException
+	 *             if the block's data is truncated
+	 */
+	public List<ProvenMeasurement> toMeasurements() {
+
+		List<Set<ProvenMetric>> metrics = new ArrayList<Set<ProvenMetric>>(count);
+		for (int row = 0; row < count; row++) {
+			Set<ProvenMetric> rowMetrics = new HashSet<ProvenMetric>();
+			for (int tag = 0; tag < tagLabels.length; tag++) {
+				rowMetrics.add(new ProvenMetric(tagLabels[tag], tagValues[tag], true,
+						MetricValueType.valueOf(tagValueTypes[tag])));
+			}
+			metrics.add(rowMetrics);
+		}
+
+		BitReader in = new BitReader(data);
+		long[] times = GorillaCodec.readLongs(in, count);
+		for (int field = 0; field < fieldLabels.length; field++) {
+			readColumn(in, field, metrics);
+		}
+
+		List<ProvenMeasurement> ret = new ArrayList<ProvenMeasurement>(count);
+		for (int row = 0; row < count; row++) {
+			ret.add(new ProvenMeasurement(measurementName, times[row], metrics.get(row)));
+		}
+		return ret;
+	}
+
+	private static void writeColumn(BitWriter out, ProvenMetric[] column, byte type) {
+
+		int present = 0;
+		for (ProvenMetric metric : column) {
+			if (null != metric) {
+				present++;
+			}
+		}
+		if (present == column.length) {
+			out.write(1, 1);
+		} else {
+			out.write(0, 1);
+			for (ProvenMetric metric : column) {
+				out.write((null == metric) ? 0 : 1, 1);
+			}
+		}
+
+		switch (type) {
+		case LONG_COLUMN:
+			long[] longs = new long[present];
+			int i = 0;
+			for (ProvenMetric metric : column) {
+				if (null != metric) {
+					longs[i++] = Long.parseLong(metric.getValue());
+				}
+			}
+			GorillaCodec.writeLongs(out, longs, present);
+			break;
+		case DOUBLE_COLUMN:
+			double[] doubles = new double[present];
+			int j = 0;
+			for (ProvenMetric metric : column) {
+				if (null != metric) {
+					doubles[j++] = Double.parseDouble(metric.getValue());
+				}
+			}
+			GorillaCodec.writeDoubles(out, doubles, present);
+			break;
+		case BOOLEAN_COLUMN:
+			for (ProvenMetric metric : column) {
+				if (null != metric) {
+					out.write(Boolean.parseBoolean(metric.getValue()) ? 1 : 0, 1);
+				}
+			}
+			break;
+		default:
+			for (ProvenMetric metric : column) {
+				if (null != metric) {
+					out.writeBytes(metric.getValue().getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			break;
+		}
+	}
+
+	private void readColumn(BitReader in, int field, List<Set<ProvenMetric>> metrics) {
+
+		boolean[] present = new boolean[count];
+		int n = 0;
+		boolean all = (in.read(1) == 1);
+		for (int row = 0; row < count; row++) {
+			present[row] = all || (in.read(1) == 1);
+			if (present[row]) {
+				n++;
+			}
+		}
+
+		String label = fieldLabels[field];
+		MetricValueType valueType = MetricValueType.valueOf(fieldValueTypes[field]);
+		long[] longs = (fieldTypes[field] == LONG_COLUMN) ? GorillaCodec.readLongs(in, n) : null;
+		double[] doubles = (fieldTypes[field] == DOUBLE_COLUMN) ? GorillaCodec.readDoubles(in, n) : null;
+		int i = 0;
+		for (int row = 0; row < count; row++) {
+			if (!present[row]) {
+				continue;
+			}
+			String value;
+			switch (fieldTypes[field]) {
+			case LONG_COLUMN:
+				value = Long.toString(longs[i]);
+				break;
+			case DOUBLE_COLUMN:
+				value = (valueType == MetricValueType.Float) ? Float.toString((float) doubles[i])
+						: Double.toString(doubles[i]);
+				break;
+			case BOOLEAN_COLUMN:
+				value = Boolean.toString(in.read(1) == 1);
+				break;
+			default:
+				value = new String(in.readBytes(), StandardCharsets.UTF_8);
+				break;
+			}
+			metrics.get(row).add(new ProvenMetric(label, value, false, valueType));
+			i++;
+		}
+	}
+
+	/**
+	 * Picks the most compact column type holding all of a field's values.
+	 */
+	private static byte columnType(ProvenMetric[] column) {
+
+		boolean longs = true;
+		boolean doubles = true;
+		boolean booleans = true;
+		for (ProvenMetric metric : column) {
+			if (null == metric) {
+				continue;
+			}
+			MetricValueType type = valueTypeOf(metric);
+			String value = metric.getValue();
+			boolean integral = (type == MetricValueType.Integer) || (type == MetricValueType.Long);
+			longs = longs && integral && isLong(value);
+			doubles = doubles && (integral || (type == MetricValueType.Float) || (type == MetricValueType.Double))
+					&& isDouble(value);
+			booleans = booleans && (type == MetricValueType.Boolean)
+					&& ("true".equals(value) || "false".equals(value));
+		}
+
+		if (longs) {
+			return LONG_COLUMN;
+		}
+		if (doubles) {
+			return DOUBLE_COLUMN;
+		}
+		if (booleans) {
+			return BOOLEAN_COLUMN;
+		}
+		return STRING_COLUMN;
+	}
+
+	/**
+	 * @return the value type shared by a field's values, otherwise the
+	 *         column's widest type
+	 */
+	private static MetricValueType columnValueType(ProvenMetric[] column, byte type) {
+
+		MetricValueType ret = null;
+		for (ProvenMetric metric : column) {
+			if (null == metric) {
+				continue;
+			}
+			MetricValueType valueType = valueTypeOf(metric);
+			if (null == ret) {
+				ret = valueType;
+			} else if (ret != valueType) {
+				switch (type) {
+				case LONG_COLUMN:
+					return MetricValueType.Long;
+				case DOUBLE_COLUMN:
+					return MetricValueType.Double;
+				default:
+					return MetricValueType.String;
+				}
+			}
+		}
+		return (null == ret) ? MetricValueType.String : ret;
+	}
+
+	private static MetricValueType valueTypeOf(ProvenMetric metric) {
+		return (null == metric.getValueType()) ? MetricValueType.String : metric.getValueType();
+	}
+
+	private static boolean isLong(String value) {
+		try {
+			Long.parseLong(value);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static boolean isDouble(String value) {
+		try {
+			Double.parseDouble(value);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static TreeMap<String, ProvenMetric> tags(ProvenMeasurement measurement) {
+		TreeMap<String, ProvenMetric> ret = new TreeMap<String, ProvenMetric>();
+		for (ProvenMetric metric : measurement.getMetrics()) {
+			if (metric.isMetadata() && (null != metric.getValue())) {
+				ret.put(metric.getLabel(), metric);
+			}
+		}
+		return ret;
+	}
+
+	private static String seriesKey(ProvenMeasurement measurement) {
+		StringBuilder ret = new StringBuilder(measurement.getMeasurementName());
+		for (ProvenMetric metric : tags(measurement).values()) {
+			ret.append('\u0000').append(metric.getLabel()).append('\u0001').append(metric.getValue())
+					.append('\u0001').append(valueTypeOf(metric));
+		}
+		return ret.toString();
+	}
+
+	@Override
+	public void readData(ObjectDataInput in) throws IOException {
+		this.measurementName = in.readUTF();
+		this.tagLabels = in.readUTFArray();
+		this.tagValues = in.readUTFArray();
+		this.tagValueTypes = in.readUTFArray();
+		this.fieldLabels = in.readUTFArray();
+		this.fieldTypes = in.readByteArray();
+		this.fieldValueTypes = in.readUTFArray();
+		this.count = in.readInt();
+		this.startTime = in.readLong();
+		this.endTime = in.readLong();
+		this.data = in.readByteArray();
+	}
+
+	@Override
+	public void writeData(ObjectDataOutput out) throws IOException {
+		out.writeUTF(this.measurementName);
+		out.writeUTFArray(this.tagLabels);
+		out.writeUTFArray(this.tagValues);
+		out.writeUTFArray(this.tagValueTypes);
+		out.writeUTFArray(this.fieldLabels);
+		out.writeByteArray(this.fieldTypes);
+		out.writeUTFArray(this.fieldValueTypes);
+		out.writeInt(this.count);
+		out.writeLong(this.startTime);
+		out.writeLong(this.endTime);
+		out.writeByteArray(this.data);
+	}
+
+	@Override
+	public int getFactoryId() {
+		return ProvenMessageIDSFactory.FACTORY_ID;
+	}
+
+	@Override
+	public int getId() {
+		return ProvenMessageIDSFactory.PROVEN_MEASUREMENT_BLOCK_TYPE;
+	}
+
+	public String getMeasurementName() {
+		return measurementName;
+	}
+
+	/**
+	 * @return the series' tags, by label
+	 */
+	public Map<String, String> getTags() {
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (int i = 0; i < tagLabels.length; i++) {
+			ret.put(tagLabels[i], tagValues[i]);
+		}
+		return ret;
+	}
+
+	public String[] getFieldLabels() {
+		return fieldLabels.clone();
+	}
+
+	public byte getFieldType(int field) {
+		return fieldTypes[field];
+	}
+
+	/**
+	 * @return number of measurements
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * @return size of the compressed timestamps and fields in bytes
+	 */
+	public int getEncodedSize() {
+		return data.length;
+	}
+
+}
@@ -56,6 +56,7 @@ import org.slf4j.LoggerFactory;
 import com.hazelcast.nio.ObjectDataInput;
 import com.hazelcast.nio.ObjectDataOutput;
 import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import gov.pnnl.proven.message.exception.DuplicateProvenMessageException;
 import gov.pnnl.proven.message.exception.InvalidProvenMessageException;
 
 /**
@@ -380,6 +381,8 @@ public class ProvenMessage implements IdentifiedDataSerializable, Serializable {
 		private String source;
 		private List<String> keywords = new ArrayList<String>();
 		private String messageKey;
+		private MessageDeduplicator deduplicator;
+		private MessageBuildCache buildCache;
 
 		/**
 		 * Constructor is protected, use static method
@@ -417,6 +420,54 @@ public class ProvenMessage implements IdentifiedDataSerializable, Serializable {
 			return this;
 		}
 
+		/**
+		 * Provides the message id, e.g. assigned upstream so that redelivered
+		 * messages keep their id. Default is a new random id.
+		 * 
+		 * @param messageId
+		 *            the message id
+		 * 
+		 * @return the {@code ProvenMessageBuilder}
+		 * 
+		 */
+		public ProvenMessageBuilder messageId(UUID messageId) {
+			this.messageId = messageId;
+			return this;
+		}
+
+		/**
+		 * Rejects duplicate messages at build, before the message is parsed.
+		 * Built messages are remembered by the deduplicator. Default is no
+		 * duplicate check.
+		 * 
+		 * @param deduplicator
+		 *            the deduplicator, shared by builds to check against each
+		 *            other
+		 * 
+		 * @return the {@code ProvenMessageBuilder}
+		 * 
+		 */
+		public ProvenMessageBuilder deduplicator(MessageDeduplicator deduplicator) {
+			this.deduplicator = deduplicator;
+			return this;
+		}
+
+		/**
+		 * Reuses cached builds of unchanged messages, skipping their parsing
+		 * and rule processing. Default is no build cache.
+		 * 
+		 * @param buildCache
+		 *            the build cache, shared by builds to reuse each other's
+		 *            results
+		 * 
+		 * @return the {@code ProvenMessageBuilder}
+		 * 
+		 */
+		public ProvenMessageBuilder buildCache(MessageBuildCache buildCache) {
+			this.buildCache = buildCache;
+			return this;
+		}
+
 		/**
 		 * Adds a message name. If no name is available at build, the builder
 		 * will generate a new message name.
@@ -522,17 +573,62 @@ public class ProvenMessage implements IdentifiedDataSerializable, Serializable {
 			return this;
 		}
 
+		/**
+		 * Provides the content type the message is expected to have, e.g. to
+		 * schedule its build. Messages flagged as static are
+		 * {@link MessageContent#Static}.
+		 * 
+		 * @return the expected message content
+		 */
+		MessageContent getExpectedContent() {
+			return isStatic ? MessageContent.Static : messageContent;
+		}
+
 		/**
 		 * Builds and returns a new ProvenMessage using current builder
 		 * settings.
 		 * 
 		 * @return a {@code ProvenMessage}
+		 * @throws DuplicateProvenMessageException
+		 *             if a deduplicator is set and the message is a duplicate
 		 * @throws InvalidProvenMessageException
 		 *             if build fails a {@link InvalidProvenMessageException} is
 		 *             thrown.
 		 */
 		public ProvenMessage build() throws InvalidProvenMessageException {
 
+			PreparedMessage prepared = prepare();
+			Model dataModel;
+			try {
+				dataModel = addShaclRuleResults(prepared);
+			} catch (Exception e) {
+				prepared.release();
+				throw new InvalidProvenMessageException("Failed to build message", e);
+			}
+
+			return complete(prepared, dataModel);
+		}
+
+		/**
+		 * First build step, creates the message and its initial data model
+		 * from current builder settings. The data model is ready for SHACL
+		 * rule processing, which is left to the caller, see
+		 * {@link #addShaclRuleResults(PreparedMessage)}.
+		 * 
+		 * @return the prepared message
+		 * @throws DuplicateProvenMessageException
+		 *             if a deduplicator is set and the message is a duplicate
+		 * @throws InvalidProvenMessageException
+		 *             if the data model could not be created
+		 */
+		PreparedMessage prepare() throws InvalidProvenMessageException {
+
+			// Reject duplicates before any parsing
+			MessageDeduplicator.Fingerprint fingerprint = null;
+			if (null != deduplicator) {
+				fingerprint = deduplicator.check(this.messageId, this.message);
+			}
+
 			// Create a new proven message and transfer data from builder
 			ProvenMessage pm = new ProvenMessage();
 			pm.messageId = this.messageId;
@@ -547,35 +643,185 @@ public class ProvenMessage implements IdentifiedDataSerializable, Serializable {
 
 			try {
 
+				// Use the same domain model for the whole build, even if the
+				// message model is reloaded in the meantime
+				MessageModel messageModel = MessageModelRegistry.getInstance().getModel(pm.domain);
+
+				// Reuse a cached build of the same content and model
+				String cacheKey = null;
+				if ((null != buildCache) && buildCache.isCacheable(pm)) {
+					cacheKey = buildCache.getKey(pm);
+					if (buildCache.copyTo(cacheKey, messageModel.getVersion(), pm)) {
+						PreparedMessage ret = new PreparedMessage(pm, messageModel, null);
+						ret.isCached = true;
+						ret.setDeduplicator(deduplicator, fingerprint);
+						return ret;
+					}
+				}
+
 				// Construct initial data model
-				String message = MessageUtils.prependContext(pm.message);
+				String message = MessageUtils.prependContext(messageModel, pm.message);
 				Model dataModel = MessageUtils.createMessageDataModel(pm, message);
 
 				// TODO determine how/if should utilize OWL reasoning
 				// dataModel = MessageUtils.addHierarchies(dataModel);
 
-				// SHACL rule processing to produce final message data model
-				dataModel = MessageUtils.addShaclRuleResults(dataModel);
+				PreparedMessage ret = new PreparedMessage(pm, messageModel, dataModel);
+				if (null != cacheKey) {
+					ret.buildCache = buildCache;
+					ret.cacheKey = cacheKey;
+				}
+				ret.setDeduplicator(deduplicator, fingerprint);
+				return ret;
+
+			} catch (Exception e) {
+				if (null != fingerprint) {
+					deduplicator.release(fingerprint);
+				}
+				throw new InvalidProvenMessageException("Failed to build message", e);
+			}
+		}
+
+		/**
+		 * SHACL rule processing of a prepared message, producing its final
+		 * data model. Queries are small and targeted by few rules, only those
+		 * are run.
+		 * 
+		 * @param prepared
+		 *            the prepared message
+		 * @return the data model with rule results, null if the message's
+		 *         build was cached
+		 */
+		static Model addShaclRuleResults(PreparedMessage prepared) {
+			if (prepared.isCached()) {
+				return null;
+			}
+			if (prepared.isQuery()) {
+				return MessageUtils.addTargetedShaclRuleResults(prepared.messageModel, prepared.dataModel);
+			}
+			return MessageUtils.addShaclRuleResults(prepared.messageModel, prepared.dataModel);
+		}
+
+		/**
+		 * Last build step, sets a prepared message's statements, measurements
+		 * and query from its final data model.
+		 * 
+		 * @param prepared
+		 *            the prepared message
+		 * @param dataModel
+		 *            the final data model, including SHACL rule results.
+		 *            Not used if the message's build was cached.
+		 * @return the built {@code ProvenMessage}
+		 * @throws InvalidProvenMessageException
+		 *             if build fails a {@link InvalidProvenMessageException} is
+		 *             thrown.
+		 */
+		static ProvenMessage complete(PreparedMessage prepared, Model dataModel) throws InvalidProvenMessageException {
+
+			ProvenMessage pm = prepared.message;
+
+			// Cached builds already have their statements and measurements
+			if (!prepared.isCached()) {
+
+				try {
+
+					// Save model statements in proven message
+					pm.statements = MessageUtils.getProvenStatements(dataModel);
+
+					// Set measurements if explicit content
+					if (pm.messageContent == MessageContent.Explicit) {
+						pm.measurements = MessageUtils.getProvenMeasurements(dataModel);
+					}
 
-				// Save model statements in proven message
-				pm.statements = MessageUtils.getProvenStatements(dataModel);
+					// Set query if query content
+					if (prepared.isQuery()) {
+						pm.tsQuery = MessageUtils.getProvenQuery(dataModel);
+					}
 
-				// Set measurements if explicit content
-				if (pm.messageContent == MessageContent.Explicit) {
-					pm.measurements = MessageUtils.getProvenMeasurements(dataModel);
+				} catch (Exception e) {
+					prepared.release();
+					throw new InvalidProvenMessageException("Failed to build message", e);
 				}
 
-				// Set query if query content
-				if (pm.messageContent == MessageContent.Query) {
-					pm.tsQuery = MessageUtils.getProvenQuery(dataModel);
+				if (null != prepared.buildCache) {
+					prepared.buildCache.put(prepared.cacheKey, prepared.messageModel.getVersion(), pm);
 				}
+			}
 
-			} catch (Exception e) {
-				throw new InvalidProvenMessageException("Failed to build message", e);
+			// Only built messages are remembered, failed ones are released
+			// and may be retried
+			if (null != prepared.deduplicator) {
+				prepared.deduplicator.add(prepared.fingerprint);
+				prepared.deduplicator = null;
 			}
 
 			return pm;
 		}
 
+		/**
+		 * A message with its initial data model, ready for SHACL rule
+		 * processing.
+		 */
+		static final class PreparedMessage {
+
+			private final ProvenMessage message;
+			private final MessageModel messageModel;
+			private final Model dataModel;
+			private MessageDeduplicator deduplicator;
+			private MessageDeduplicator.Fingerprint fingerprint;
+			private MessageBuildCache buildCache;
+			private String cacheKey;
+			private boolean isCached;
+
+			PreparedMessage(ProvenMessage message, MessageModel messageModel, Model dataModel) {
+				this.message = message;
+				this.messageModel = messageModel;
+				this.dataModel = dataModel;
+			}
+
+			ProvenMessage getMessage() {
+				return message;
+			}
+
+			MessageModel getMessageModel() {
+				return messageModel;
+			}
+
+			Model getDataModel() {
+				return dataModel;
+			}
+
+			void setDeduplicator(MessageDeduplicator deduplicator, MessageDeduplicator.Fingerprint fingerprint) {
+				if (null != fingerprint) {
+					this.deduplicator = deduplicator;
+					this.fingerprint = fingerprint;
+				}
+			}
+
+			/**
+			 * Releases the message's deduplicator reservation after a failed
+			 * build, if not already remembered or released.
+			 */
+			void release() {
+				if (null != deduplicator) {
+					deduplicator.release(fingerprint);
+					deduplicator = null;
+				}
+			}
+
+			/**
+			 * @return true if the message's build was copied from a build
+			 *         cache, it has no data model
+			 */
+			boolean isCached() {
+				return isCached;
+			}
+
+			boolean isQuery() {
+				return (message.messageContent == MessageContent.Query)
+						|| (message.messageContent == MessageContent.ContinuousQuery);
+			}
+		}
+
 	}
 }
@@ -27,6 +27,9 @@ public class ProvenMessageIDSFactory implements DataSerializableFactory {
 	public static final int PROVEN_QUERY_FILTER_TYPE = 6;
 	public static final int PROVEN_QUERY_TIME_SERIES_TYPE = 7;
 	public static final int PROVEN_STATEMENT_TYPE = 8;
+	public static final int PROVEN_MESSAGE_RESPONSE_FRAME_TYPE = 9;
+	public static final int PROVEN_QUERY_RESULT_TYPE = 10;
+	public static final int PROVEN_MEASUREMENT_BLOCK_TYPE = 11;
 
 	@Override
 	public IdentifiedDataSerializable create(int typeId) {
@@ -49,6 +52,12 @@ public class ProvenMessageIDSFactory implements DataSerializableFactory {
 			return new ProvenQueryTimeSeries();
 		case (PROVEN_STATEMENT_TYPE):
 			return new ProvenStatement();
+		case (PROVEN_MESSAGE_RESPONSE_FRAME_TYPE):
+			return new ProvenMessageResponseFrame();
+		case (PROVEN_QUERY_RESULT_TYPE):
+			return new ProvenQueryResult();
+		case (PROVEN_MEASUREMENT_BLOCK_TYPE):
+			return new ProvenMeasurementBlock();
 		default:
 			return null;
 		}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * A frame of a chunked response to a {@link ProvenMessage} request. Large
+ * results, e.g. of historical time-series queries, are sent as a sequence of
+ * frames instead of a single {@link ProvenMessageResponse}. Frames of a
+ * response share the request's id, are numbered from 0, and the final frame is
+ * flagged as last. If producing the response failed, the final frame carries
+ * an error instead of a payload, and the frames before it are incomplete. See
+ * {@link ResponseFrameProducer}.
+ * 
+ * @author d3j766
+ *
+ */
+@XmlRootElement
+public class ProvenMessageResponseFrame implements IdentifiedDataSerializable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static Logger log = LoggerFactory.getLogger(ProvenMessageResponseFrame.class);
+
+	private static final byte[] NO_PAYLOAD = new byte[0];
+
+	private String requestId;
+
+	private long sequence;
+
+	private boolean isLast;
+
+	/**
+	 * Frame content, UTF-8 encoded.
+	 */
+	private byte[] payload = NO_PAYLOAD;
+
+	/**
+	 * Reason the response failed, null unless this is a failed last frame.
+	 */
+	private String error;
+
+	public ProvenMessageResponseFrame() {
+	}
+
+	public ProvenMessageResponseFrame(String requestId, long sequence, boolean isLast, byte[] payload) {
+		this.requestId = requestId;
+		this.sequence = sequence;
+		this.isLast = isLast;
+		this.payload = (null == payload) ? NO_PAYLOAD : payload;
+	}
+
+	/**
+	 * Creates the last frame of a failed response.
+	 * 
+	 * @param requestId
+	 *            id of the request being responded to
+	 * @param sequence
+	 *            the frame's sequence number
+	 * @param error
+	 *            reason the response failed
+	 */
+	public static ProvenMessageResponseFrame error(String requestId, long sequence, String error) {
+		ProvenMessageResponseFrame ret = new ProvenMessageResponseFrame(requestId, sequence, true, NO_PAYLOAD);
+		ret.error = (null == error) ? "" : error;
+		return ret;
+	}
+
+	@Override
+	public void readData(ObjectDataInput in) throws IOException {
+
+		this.requestId = in.readUTF();
+		this.sequence = in.readLong();
+		this.isLast = in.readBoolean();
+		this.payload = in.readByteArray();
+		this.error = in.readUTF();
+	}
+
+	@Override
+	public void writeData(ObjectDataOutput out) throws IOException {
+
+		out.writeUTF(this.requestId);
+		out.writeLong(this.sequence);
+		out.writeBoolean(this.isLast);
+		out.writeByteArray(this.payload);
+		out.writeUTF(this.error);
+	}
+
+	@Override
+	public int getFactoryId() {
+		return ProvenMessageIDSFactory.FACTORY_ID;
+	}
+
+	@Override
+	public int getId() {
+		return ProvenMessageIDSFactory.PROVEN_MESSAGE_RESPONSE_FRAME_TYPE;
+	}
+
+	public String getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(String requestId) {
+		this.requestId = requestId;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public boolean isLast() {
+		return isLast;
+	}
+
+	public void setLast(boolean isLast) {
+		this.isLast = isLast;
+	}
+
+	/**
+	 * @return true if this is the last frame of a failed response
+	 */
+	public boolean isError() {
+		return null != error;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public void setPayload(byte[] payload) {
+		this.payload = (null == payload) ? NO_PAYLOAD : payload;
+	}
+
+}
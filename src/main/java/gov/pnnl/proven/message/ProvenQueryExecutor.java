@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+/**
+ * Executes a {@link ProvenQueryTimeSeries} against a local
+ * {@link MeasurementSource}, e.g. recently built measurements held in memory,
+ * instead of a remote time-series store.
+ * 
+ * Queries are compiled (see {@link CompiledQuery}); time filters give the
+ * time range requested from the source, and the remaining filters are passed
+ * to the source, which evaluates them against the metric with the same label
+ * (see {@link MeasurementSource#getMeasurements(String, long, long, List)}).
+ * Query times and measurement timestamps may use different time units, by
+ * default those of {@link TimestampCodec}; query times are converted to the
+ * measurement time unit. Aggregated queries (see
+ * {@link ProvenQueryTimeSeries#getAggregations()}) return a measurement per
+ * time bucket and series (see {@link TimeBucketAggregator}) instead of raw
+ * measurements.
+ * 
+ * Results are provided as measurements, as a columnar
+ * {@link ProvenQueryResult}, or sent as response frames (see
+ * {@link ResponseFrameProducer}); with a cache, each form of a result is
+ * created once and shared.
+ * 
+ * @author d3j766
+ *
+ */
+public class ProvenQueryExecutor {
+
+	private static Logger log = LoggerFactory.getLogger(ProvenQueryExecutor.class);
+
+	public static final TimeUnit DEFAULT_MEASUREMENT_TIME_UNIT = TimeUnit.MICROSECONDS;
+	public static final TimeUnit DEFAULT_QUERY_TIME_UNIT = TimeUnit.MICROSECONDS;
+
+	private final MeasurementSource source;
+
+	private volatile TimeUnit measurementTimeUnit = TimestampCodec.getMeasurementCodec().getUnit();
+
+	private volatile TimeUnit queryTimeUnit = TimestampCodec.getQueryCodec().getUnit();
+
+	private volatile QueryResultCache cache;
+
+	public ProvenQueryExecutor(MeasurementSource source) {
+		this.source = source;
+	}
+
+	/**
+	 * Executes a query.
+	 * 
+	 * @param query
+	 *            the time-series query
+	 * @return matching measurements, in source order
+	 * @throws InvalidProvenQueryException
+	 *             if a query filter is invalid
+	 */
+	public Stream<ProvenMeasurement> execute(ProvenQueryTimeSeries query) throws InvalidProvenQueryException {
+		return execute(CompiledQuery.compile(query));
+	}
+
+	/**
+	 * Executes a compiled query.
+	 * 
+	 * @param query
+	 *            the compiled query
+	 * @return matching measurements, in source order
+	 */
+	public Stream<ProvenMeasurement> execute(CompiledQuery query) {
+
+		QueryResultCache cache = this.cache;
+		if (null == cache) {
+			return executeUncached(query);
+		}
+
+		String key = cacheKey(query);
+		List<ProvenMeasurement> ret = cache.get(source, key);
+		if (null == ret) {
+			ret = executeAndCache(cache, key, query);
+		}
+
+		return ret.stream();
+	}
+
+	/**
+	 * Executes a compiled query into a columnar result. A cached result is
+	 * encoded once and shared by later requests for the same query.
+	 * 
+	 * @param query
+	 *            the compiled query
+	 * @param requestId
+	 *            id of the request the result is for
+	 * @return the query result
+	 */
+	public ProvenQueryResult executeResult(CompiledQuery query, String requestId) {
+
+		QueryResultCache cache = this.cache;
+		ProvenQueryResult ret = null;
+		if (null != cache) {
+			String key = cacheKey(query);
+			ret = cache.getQueryResult(source, key);
+			if (null == ret) {
+				ret = new ProvenQueryResult.Builder(query.getMeasurementName())
+						.addAll(executeAndCache(cache, key, query)).build();
+			}
+		} else {
+			List<ProvenMeasurement> results = executeUncached(query).collect(Collectors.toList());
+			ret = new ProvenQueryResult.Builder(query.getMeasurementName()).addAll(results).build();
+		}
+
+		return ret.withRequestId(requestId);
+	}
+
+	/**
+	 * Executes a compiled query and sends the results to a response frame
+	 * producer, which is closed. The rows of a cached result are formatted
+	 * once and shared by later requests for the same query.
+	 * 
+	 * @param query
+	 *            the compiled query
+	 * @param producer
+	 *            the response frame producer
+	 */
+	public void execute(CompiledQuery query, ResponseFrameProducer producer) {
+
+		QueryResultCache cache = this.cache;
+		if (null == cache) {
+			producer.produce(executeUncached(query));
+			return;
+		}
+
+		String key = cacheKey(query);
+		List<byte[]> rows = cache.getResponseRows(source, key);
+		if (null != rows) {
+			producer.produceRows(rows);
+		} else {
+			producer.produce(executeAndCache(cache, key, query).stream());
+		}
+	}
+
+	/**
+	 * Time units are part of the key, the same query may give different
+	 * results for other units. The cache keys results by source.
+	 */
+	private String cacheKey(CompiledQuery query) {
+		return queryTimeUnit + "/" + measurementTimeUnit + "|" + query.getFingerprint();
+	}
+
+	private List<ProvenMeasurement> executeAndCache(QueryResultCache cache, String key, CompiledQuery query) {
+		long generation = cache.getGeneration(query.getMeasurementName());
+		List<ProvenMeasurement> ret = executeUncached(query).collect(Collectors.toList());
+		cache.put(source, key, query.getMeasurementName(), ret, generation);
+		return ret;
+	}
+
+	private Stream<ProvenMeasurement> executeUncached(CompiledQuery query) {
+
+		long startTime = toMeasurementTime(query.getStartTime(), true);
+		long endTime = toMeasurementTime(query.getEndTime(), false);
+
+		log.debug("Executing local query on " + query.getMeasurementName() + " [" + startTime + ", " + endTime
+				+ "] " + query.getFilters());
+
+		if (query.isAggregated()) {
+			return aggregate(query, startTime, endTime);
+		}
+
+		Stream<ProvenMeasurement> ret = source.getMeasurements(query.getMeasurementName(), startTime, endTime,
+				query.getFilters());
+		if (query.hasTimeRange()) {
+			ret = ret.filter(inTimeRange(startTime, endTime));
+		}
+
+		return ret;
+	}
+
+	public QueryResultCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets a cache for query results, null for none.
+	 * 
+	 * @param cache
+	 *            the query result cache
+	 */
+	public void setCache(QueryResultCache cache) {
+		this.cache = cache;
+	}
+
+	public TimeUnit getMeasurementTimeUnit() {
+		return measurementTimeUnit;
+	}
+
+	public void setMeasurementTimeUnit(TimeUnit measurementTimeUnit) {
+		this.measurementTimeUnit = measurementTimeUnit;
+	}
+
+	public TimeUnit getQueryTimeUnit() {
+		return queryTimeUnit;
+	}
+
+	public void setQueryTimeUnit(TimeUnit queryTimeUnit) {
+		this.queryTimeUnit = queryTimeUnit;
+	}
+
+	/**
+	 * Aggregates query results into time buckets, see
+	 * {@link MeasurementSource#aggregate(String, long, long, List, TimeBucketAggregator)}.
+	 * The bucket size is converted to measurement time units, and is at least
+	 * 1.
+	 */
+	private Stream<ProvenMeasurement> aggregate(CompiledQuery query, long startTime, long endTime) {
+		long bucketSize = 0;
+		if (query.getBucketSize() > 0) {
+			bucketSize = Math.max(1, measurementTimeUnit.convert(query.getBucketSize(), queryTimeUnit));
+		}
+		TimeBucketAggregator aggregator = new TimeBucketAggregator(query.getMeasurementName(),
+				query.getAggregations(), bucketSize);
+		source.aggregate(query.getMeasurementName(), startTime, endTime, query.getFilters(), aggregator);
+		return aggregator.results();
+	}
+
+	private long toMeasurementTime(long queryTime, boolean isStart) {
+		return toMeasurementTime(queryTime, queryTimeUnit, measurementTimeUnit, isStart);
+	}
+
+	/**
+	 * Converts a query time to the measurement time unit. Start times are
+	 * rounded up and end times rounded down, so the converted range does not
+	 * include times outside of the original range. Unbounded times
+	 * ({@code Long.MIN_VALUE} and {@code Long.MAX_VALUE}) are unchanged.
+	 */
+	static long toMeasurementTime(long queryTime, TimeUnit queryTimeUnit, TimeUnit measurementTimeUnit,
+			boolean isStart) {
+
+		if ((queryTime == Long.MIN_VALUE) || (queryTime == Long.MAX_VALUE)) {
+			return queryTime;
+		}
+
+		long ret = measurementTimeUnit.convert(queryTime, queryTimeUnit);
+		if (isStart && (queryTimeUnit.convert(ret, measurementTimeUnit) < queryTime)) {
+			ret++;
+		}
+		if (!isStart && (queryTimeUnit.convert(ret, measurementTimeUnit) > queryTime)) {
+			ret--;
+		}
+
+		return ret;
+	}
+
+	private static Predicate<ProvenMeasurement> inTimeRange(long startTime, long endTime) {
+		return m -> (null != m.getTimestamp()) && (m.getTimestamp() >= startTime) && (m.getTimestamp() <= endTime);
+	}
+
+}
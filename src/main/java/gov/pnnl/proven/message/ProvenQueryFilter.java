@@ -52,6 +52,8 @@ import com.hazelcast.nio.ObjectDataInput;
 import com.hazelcast.nio.ObjectDataOutput;
 import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
 
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
 /**
  * Represents a time-series query filter expression. Can be added to a
  * {@link ProvenQueryTimeSeries} to filter query results.
@@ -65,6 +67,48 @@ public class ProvenQueryFilter implements IdentifiedDataSerializable, Serializab
 	private static final long serialVersionUID = 1L;
 
 	private static Logger log = LoggerFactory.getLogger(ProvenQueryFilter.class);
+
+	/**
+	 * Fields identifying the inclusive start and end of a query's time range.
+	 */
+	public static final String START_TIME_FIELD = "startTime";
+	public static final String END_TIME_FIELD = "endTime";
+
+	/**
+	 * Field identifying the measurement time, may be used with any
+	 * {@link Operator} other than {@link Operator#NE}.
+	 */
+	public static final String TIME_FIELD = "time";
+
+	/**
+	 * Separates an operator prefix from its operand(s) in a filter value, e.g.
+	 * "gt:100" or "between:10,20".
+	 */
+	public static final String OPERATOR_DELIMITER = ":";
+	public static final String RANGE_DELIMITER = ",";
+
+	/**
+	 * Filter comparison operators. A filter value without an operator prefix
+	 * is an equality comparison.
+	 */
+	public enum Operator {
+		EQ, NE, GT, GE, LT, LE, BETWEEN;
+
+		static Operator fromValue(String value) {
+			Operator ret = EQ;
+			int index = (null == value) ? -1 : value.indexOf(OPERATOR_DELIMITER);
+			if (index > 0) {
+				String prefix = value.substring(0, index);
+				for (Operator op : values()) {
+					if (op.name().equalsIgnoreCase(prefix)) {
+						ret = op;
+						break;
+					}
+				}
+			}
+			return ret;
+		}
+	}
 	
 	/**
 	 * Identifies the time-series field to filter.
@@ -128,6 +172,56 @@ public class ProvenQueryFilter implements IdentifiedDataSerializable, Serializab
 		return datatype;
 	}
 
+	/**
+	 * @return the comparison operator, given by the value's prefix
+	 */
+	public Operator getOperator() {
+		return Operator.fromValue(value);
+	}
+
+	/**
+	 * @return the comparison value(s), without an operator prefix
+	 */
+	public String getOperand() {
+		String ret = value;
+		String prefix = getOperator().name() + OPERATOR_DELIMITER;
+		if ((null != value) && value.regionMatches(true, 0, prefix, 0, prefix.length())) {
+			ret = value.substring(prefix.length());
+		}
+		return ret;
+	}
+
+	/**
+	 * Derives a filter datatype from a literal datatype URI, e.g.
+	 * "pm:TimeSeriesField::Double" or "xsd#string".
+	 * 
+	 * @param datatypeUri
+	 *            the literal datatype URI
+	 * @return the datatype
+	 */
+	static String datatypeOf(String datatypeUri) {
+		String ret = datatypeUri;
+		int index = datatypeUri.lastIndexOf("::");
+		if (index >= 0) {
+			ret = datatypeUri.substring(index + 2);
+		} else if ((index = datatypeUri.lastIndexOf('#')) >= 0) {
+			ret = datatypeUri.substring(index + 1);
+		}
+		return ret;
+	}
+
+	/**
+	 * Compiles this filter into a typed predicate.
+	 * 
+	 * @return the compiled filter
+	 * @throws InvalidProvenQueryException
+	 *             if the filter's operand(s) are invalid for its datatype or
+	 *             operator
+	 */
+	public CompiledQueryFilter compile() throws InvalidProvenQueryException {
+		return new CompiledQueryFilter(this);
+	}
+
 	public void setField(String field) {
 		this.field = field;
 	}
@@ -0,0 +1,705 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+/**
+ * Time-series query results in columnar form. Rows share a single time
+ * column; each field has a typed column (long, double or string) with a
+ * presence bitmap, and each tag a column of codes into a shared tag value
+ * dictionary. Times, tag codes and long columns are serialized as offsets
+ * from their minimum in the fewest bytes that hold them. Numbers are
+ * carried as binary values instead of text, so consumers read them without
+ * parsing; see {@link Cursor}.
+ * 
+ * Built using {@link Builder}, e.g. from local query results (see
+ * {@link ProvenQueryExecutor}).
+ * 
+ * Sent as its own message, in place of a text {@link ProvenMessageResponse},
+ * and correlated to its request by {@link #getRequestId()}; the response
+ * types' wire formats are unchanged. See ProvenQueryResultBenchmark (jmh
+ * source set) for size and decode cost compared to a text response.
+ * 
+ * @author d3j766
+ *
+ */
+@XmlRootElement
+public class ProvenQueryResult implements IdentifiedDataSerializable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static Logger log = LoggerFactory.getLogger(ProvenQueryResult.class);
+
+	/**
+	 * Field column types.
+	 */
+	public static final byte LONG_COLUMN = 0;
+	public static final byte DOUBLE_COLUMN = 1;
+	public static final byte STRING_COLUMN = 2;
+
+	/**
+	 * Timestamp of rows without one.
+	 */
+	public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+	/**
+	 * Tag code of rows without the tag.
+	 */
+	public static final int NO_TAG = -1;
+
+	/**
+	 * Id of the request the results are for, if any.
+	 */
+	private String requestId;
+
+	private String measurementName;
+
+	private int rowCount;
+
+	private long[] times;
+
+	private String[] dictionary;
+
+	private String[] tagNames;
+
+	private int[][] tagCodes;
+
+	private String[] fieldNames;
+
+	private byte[] fieldTypes;
+
+	/**
+	 * Field presence bitmaps, a bit per row.
+	 */
+	private long[][] presence;
+
+	private long[][] longColumns;
+
+	private double[][] doubleColumns;
+
+	private String[][] stringColumns;
+
+	public ProvenQueryResult() {
+	}
+
+	@Override
+	public void readData(ObjectDataInput in) throws IOException {
+
+		this.requestId = in.readUTF();
+		this.measurementName = in.readUTF();
+		this.rowCount = in.readInt();
+		this.times = readPacked(in);
+		this.dictionary = in.readUTFArray();
+		this.tagNames = in.readUTFArray();
+		this.tagCodes = new int[tagNames.length][];
+		for (int i = 0; i < tagNames.length; i++) {
+			tagCodes[i] = readPackedInts(in);
+		}
+		this.fieldNames = in.readUTFArray();
+		this.fieldTypes = in.readByteArray();
+		this.presence = new long[fieldNames.length][];
+		this.longColumns = new long[fieldNames.length][];
+		this.doubleColumns = new double[fieldNames.length][];
+		this.stringColumns = new String[fieldNames.length][];
+		for (int i = 0; i < fieldNames.length; i++) {
+			presence[i] = in.readLongArray();
+			switch (fieldTypes[i]) {
+			case LONG_COLUMN:
+				longColumns[i] = readPacked(in);
+				break;
+			case DOUBLE_COLUMN:
+				doubleColumns[i] = in.readDoubleArray();
+				break;
+			default:
+				stringColumns[i] = in.readUTFArray();
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void writeData(ObjectDataOutput out) throws IOException {
+
+		out.writeUTF(this.requestId);
+		out.writeUTF(this.measurementName);
+		out.writeInt(this.rowCount);
+		writePacked(out, this.times);
+		out.writeUTFArray(this.dictionary);
+		out.writeUTFArray(this.tagNames);
+		for (int[] codes : this.tagCodes) {
+			writePacked(out, codes);
+		}
+		out.writeUTFArray(this.fieldNames);
+		out.writeByteArray(this.fieldTypes);
+		for (int i = 0; i < fieldNames.length; i++) {
+			out.writeLongArray(this.presence[i]);
+			switch (fieldTypes[i]) {
+			case LONG_COLUMN:
+				writePacked(out, this.longColumns[i]);
+				break;
+			case DOUBLE_COLUMN:
+				out.writeDoubleArray(this.doubleColumns[i]);
+				break;
+			default:
+				out.writeUTFArray(this.stringColumns[i]);
+				break;
+			}
+		}
+	}
+
+	@Override
+	public int getFactoryId() {
+		return ProvenMessageIDSFactory.FACTORY_ID;
+	}
+
+	@Override
+	public int getId() {
+		return ProvenMessageIDSFactory.PROVEN_QUERY_RESULT_TYPE;
+	}
+
+	public String getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(String requestId) {
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Provides this result for a request. The result's columns are shared,
+	 * not copied; results are not modified once built, e.g. a cached result
+	 * (see {@link QueryResultCache#getQueryResult(MeasurementSource, String)})
+	 * is sent for each request.
+	 * 
+	 * @param requestId
+	 *            id of the request
+	 * @return a result with the request id
+	 */
+	public ProvenQueryResult withRequestId(String requestId) {
+		ProvenQueryResult ret = new ProvenQueryResult();
+		ret.requestId = requestId;
+		ret.measurementName = measurementName;
+		ret.rowCount = rowCount;
+		ret.times = times;
+		ret.dictionary = dictionary;
+		ret.tagNames = tagNames;
+		ret.tagCodes = tagCodes;
+		ret.fieldNames = fieldNames;
+		ret.fieldTypes = fieldTypes;
+		ret.presence = presence;
+		ret.longColumns = longColumns;
+		ret.doubleColumns = doubleColumns;
+		ret.stringColumns = stringColumns;
+		return ret;
+	}
+
+	public String getMeasurementName() {
+		return measurementName;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public String[] getFieldNames() {
+		return fieldNames.clone();
+	}
+
+	public byte getFieldType(int field) {
+		return fieldTypes[field];
+	}
+
+	/**
+	 * @return the field's index, -1 if not a field
+	 */
+	public int getFieldIndex(String name) {
+		return indexOf(fieldNames, name);
+	}
+
+	public String[] getTagNames() {
+		return tagNames.clone();
+	}
+
+	/**
+	 * @return the tag's index, -1 if not a tag
+	 */
+	public int getTagIndex(String name) {
+		return indexOf(tagNames, name);
+	}
+
+	/**
+	 * @return a new cursor positioned before the first row
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Converts the rows back to measurements.
+	 * 
+	 * @return the measurements
+	 */
+	public List<ProvenMeasurement> toMeasurements() {
+		List<ProvenMeasurement> ret = new ArrayList<ProvenMeasurement>(rowCount);
+		Cursor cursor = cursor();
+		while (cursor.next()) {
+			Set<ProvenMetric> metrics = new HashSet<ProvenMetric>();
+			for (int tag = 0; tag < tagNames.length; tag++) {
+				String value = cursor.getTag(tag);
+				if (null != value) {
+					metrics.add(new ProvenMetric(tagNames[tag], value, true, MetricValueType.String));
+				}
+			}
+			for (int field = 0; field < fieldNames.length; field++) {
+				if (cursor.isPresent(field)) {
+					switch (fieldTypes[field]) {
+					case LONG_COLUMN:
+						metrics.add(new ProvenMetric(fieldNames[field], Long.toString(cursor.getLong(field)), false,
+								MetricValueType.Long));
+						break;
+					case DOUBLE_COLUMN:
+						metrics.add(new ProvenMetric(fieldNames[field], Double.toString(cursor.getDouble(field)),
+								false, MetricValueType.Double));
+						break;
+					default:
+						metrics.add(new ProvenMetric(fieldNames[field], cursor.getString(field), false,
+								MetricValueType.String));
+						break;
+					}
+				}
+			}
+			long time = cursor.getTime();
+			ret.add(new ProvenMeasurement(measurementName, (time == NO_TIMESTAMP) ? null : time, metrics));
+		}
+		return ret;
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes values as offsets from their minimum, each in the fewest bytes
+	 * (0, 1, 2, 4 or 8) that hold the largest offset. Times, tag codes and
+	 * integral fields mostly span a small range, so this is a fraction of a
+	 * plain long array.
+	 */
+	private static void writePacked(ObjectDataOutput out, long[] values) throws IOException {
+
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (long value : values) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		out.writeInt(values.length);
+		if (values.length == 0) {
+			return;
+		}
+		long range = max - min;
+		int width = (range < 0) ? 8 : (range == 0) ? 0 : (range < 0x100L) ? 1 : (range < 0x10000L) ? 2 : (range < 0x100000000L) ? 4 : 8;
+		out.writeLong(min);
+		out.writeByte(width);
+		byte[] packed = new byte[values.length * width];
+		for (int i = 0, p = 0; i < values.length; i++) {
+			long offset = values[i] - min;
+			for (int b = 0; b < width; b++) {
+				packed[p++] = (byte) (offset >>> (8 * b));
+			}
+		}
+		out.writeByteArray(packed);
+	}
+
+	private static long[] readPacked(ObjectDataInput in) throws IOException {
+
+		long[] ret = new long[in.readInt()];
+		if (ret.length == 0) {
+			return ret;
+		}
+		long min = in.readLong();
+		int width = in.readByte();
+		byte[] packed = in.readByteArray();
+		for (int i = 0, p = 0; i < ret.length; i++) {
+			long offset = 0;
+			for (int b = 0; b < width; b++) {
+				offset |= (packed[p++] & 0xFFL) << (8 * b);
+			}
+			ret[i] = min + offset;
+		}
+		return ret;
+	}
+
+	private static void writePacked(ObjectDataOutput out, int[] values) throws IOException {
+		long[] longs = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			longs[i] = values[i];
+		}
+		writePacked(out, longs);
+	}
+
+	private static int[] readPackedInts(ObjectDataInput in) throws IOException {
+		long[] longs = readPacked(in);
+		int[] ret = new int[longs.length];
+		for (int i = 0; i < longs.length; i++) {
+			ret[i] = (int) longs[i];
+		}
+		return ret;
+	}
+
+	/**
+	 * Forward-only row cursor. Values are read from the columns as
+	 * primitives; nothing is boxed or parsed.
+	 */
+	public final class Cursor {
+
+		private int row = -1;
+
+		private Cursor() {
+		}
+
+		/**
+		 * Moves to the next row.
+		 * 
+		 * @return false if there are no more rows
+		 */
+		public boolean next() {
+			if (row < rowCount) {
+				row++;
+			}
+			return row < rowCount;
+		}
+
+		public int getRow() {
+			return row;
+		}
+
+		/**
+		 * @return the row's timestamp, {@link ProvenQueryResult#NO_TIMESTAMP}
+		 *         if none
+		 */
+		public long getTime() {
+			return times[row];
+		}
+
+		public boolean isPresent(int field) {
+			return (presence[field][row >>> 6] & (1L << row)) != 0;
+		}
+
+		/**
+		 * @return the value of a long or double field, 0 if not present
+		 */
+		public long getLong(int field) {
+			return (fieldTypes[field] == DOUBLE_COLUMN) ? (long) doubleColumns[field][row] : longColumns[field][row];
+		}
+
+		/**
+		 * @return the value of a long or double field, 0 if not present
+		 */
+		public double getDouble(int field) {
+			return (fieldTypes[field] == LONG_COLUMN) ? longColumns[field][row] : doubleColumns[field][row];
+		}
+
+		/**
+		 * @return the value of a string field, null if not present
+		 */
+		public String getString(int field) {
+			return stringColumns[field][row];
+		}
+
+		/**
+		 * @return the tag's value code, {@link ProvenQueryResult#NO_TAG} if
+		 *         the row doesn't have the tag
+		 */
+		public int getTagCode(int tag) {
+			return tagCodes[tag][row];
+		}
+
+		/**
+		 * @return the tag's value, null if the row doesn't have the tag
+		 */
+		public String getTag(int tag) {
+			int code = tagCodes[tag][row];
+			return (code == NO_TAG) ? null : dictionary[code];
+		}
+	}
+
+	/**
+	 * Builds a result from measurements, one row per measurement. Field
+	 * column types follow the metric value types; a long column is widened to
+	 * double, and a numeric column to string, when a value requires it.
+	 */
+	public static class Builder {
+
+		private final String measurementName;
+		private int rowCount;
+		private long[] times = new long[16];
+		private final Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+		private final Map<String, int[]> tags = new LinkedHashMap<String, int[]>();
+		private final Map<String, ColumnBuilder> fields = new LinkedHashMap<String, ColumnBuilder>();
+
+		public Builder(String measurementName) {
+			this.measurementName = measurementName;
+		}
+
+		public Builder add(ProvenMeasurement measurement) {
+
+			int row = rowCount++;
+			ensureCapacity(rowCount);
+			Long timestamp = measurement.getTimestamp();
+			times[row] = (null == timestamp) ? NO_TIMESTAMP : timestamp;
+
+			if (null != measurement.getMetrics()) {
+				for (ProvenMetric metric : measurement.getMetrics()) {
+					if (metric.isMetadata()) {
+						int[] codes = tags.get(metric.getLabel());
+						if (null == codes) {
+							codes = new int[times.length];
+							Arrays.fill(codes, NO_TAG);
+							tags.put(metric.getLabel(), codes);
+						}
+						codes[row] = code(metric.getValue());
+					} else {
+						ColumnBuilder column = fields.get(metric.getLabel());
+						if (null == column) {
+							column = new ColumnBuilder(times.length);
+							fields.put(metric.getLabel(), column);
+						}
+						column.set(row, metric);
+					}
+				}
+			}
+
+			return this;
+		}
+
+		public Builder addAll(Iterable<ProvenMeasurement> measurements) {
+			for (ProvenMeasurement measurement : measurements) {
+				add(measurement);
+			}
+			return this;
+		}
+
+		public ProvenQueryResult build() {
+
+			ProvenQueryResult ret = new ProvenQueryResult();
+			ret.measurementName = measurementName;
+			ret.rowCount = rowCount;
+			ret.times = Arrays.copyOf(times, rowCount);
+			ret.dictionary = dictionary.keySet().toArray(new String[dictionary.size()]);
+
+			ret.tagNames = tags.keySet().toArray(new String[tags.size()]);
+			ret.tagCodes = new int[tags.size()][];
+			int i = 0;
+			for (int[] codes : tags.values()) {
+				ret.tagCodes[i++] = Arrays.copyOf(codes, rowCount);
+			}
+
+			int fieldCount = fields.size();
+			ret.fieldNames = fields.keySet().toArray(new String[fieldCount]);
+			ret.fieldTypes = new byte[fieldCount];
+			ret.presence = new long[fieldCount][];
+			ret.longColumns = new long[fieldCount][];
+			ret.doubleColumns = new double[fieldCount][];
+			ret.stringColumns = new String[fieldCount][];
+			i = 0;
+			for (ColumnBuilder column : fields.values()) {
+				ret.fieldTypes[i] = column.type;
+				ret.presence[i] = Arrays.copyOf(column.presence, (rowCount + 63) >>> 6);
+				switch (column.type) {
+				case LONG_COLUMN:
+					ret.longColumns[i] = Arrays.copyOf(column.longs, rowCount);
+					break;
+				case DOUBLE_COLUMN:
+					ret.doubleColumns[i] = Arrays.copyOf(column.doubles, rowCount);
+					break;
+				default:
+					ret.stringColumns[i] = Arrays.copyOf(column.strings, rowCount);
+					break;
+				}
+				i++;
+			}
+
+			return ret;
+		}
+
+		private int code(String value) {
+			Integer ret = dictionary.get(value);
+			if (null == ret) {
+				ret = dictionary.size();
+				dictionary.put(value, ret);
+			}
+			return ret;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > times.length) {
+				int newLength = Math.max(capacity, times.length * 2);
+				times = Arrays.copyOf(times, newLength);
+				for (Map.Entry<String, int[]> tag : tags.entrySet()) {
+					int[] codes = Arrays.copyOf(tag.getValue(), newLength);
+					Arrays.fill(codes, tag.getValue().length, newLength, NO_TAG);
+					tag.setValue(codes);
+				}
+				for (ColumnBuilder column : fields.values()) {
+					column.resize(newLength);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Growable field column.
+	 */
+	private static final class ColumnBuilder {
+
+		private byte type = LONG_COLUMN;
+		private long[] presence;
+		private long[] longs;
+		private double[] doubles;
+		private String[] strings;
+
+		ColumnBuilder(int capacity) {
+			presence = new long[(capacity + 63) >>> 6];
+			longs = new long[capacity];
+		}
+
+		void resize(int capacity) {
+			presence = Arrays.copyOf(presence, (capacity + 63) >>> 6);
+			if (null != longs) {
+				longs = Arrays.copyOf(longs, capacity);
+			}
+			if (null != doubles) {
+				doubles = Arrays.copyOf(doubles, capacity);
+			}
+			if (null != strings) {
+				strings = Arrays.copyOf(strings, capacity);
+			}
+		}
+
+		void set(int row, ProvenMetric metric) {
+
+			String value = metric.getValue();
+			if (null == value) {
+				return;
+			}
+			MetricValueType valueType = metric.getValueType();
+			boolean isIntegral = (valueType == MetricValueType.Integer) || (valueType == MetricValueType.Long);
+			boolean isDecimal = (valueType == MetricValueType.Float) || (valueType == MetricValueType.Double);
+
+			if ((type == LONG_COLUMN) && isIntegral) {
+				try {
+					longs[row] = Long.parseLong(value);
+					presence[row >>> 6] |= 1L << row;
+					return;
+				} catch (NumberFormatException e) {
+					// Widened
+				}
+			}
+			if ((type != STRING_COLUMN) && (isIntegral || isDecimal)) {
+				try {
+					double number = Double.parseDouble(value);
+					toDoubles();
+					doubles[row] = number;
+					presence[row >>> 6] |= 1L << row;
+					return;
+				} catch (NumberFormatException e) {
+					// Widened
+				}
+			}
+
+			toStrings();
+			strings[row] = value;
+			presence[row >>> 6] |= 1L << row;
+		}
+
+		private void toDoubles() {
+			if (type == LONG_COLUMN) {
+				doubles = new double[longs.length];
+				for (int i = 0; i < longs.length; i++) {
+					doubles[i] = longs[i];
+				}
+				longs = null;
+				type = DOUBLE_COLUMN;
+			}
+		}
+
+		private void toStrings() {
+			if (type != STRING_COLUMN) {
+				int length = (type == LONG_COLUMN) ? longs.length : doubles.length;
+				strings = new String[length];
+				for (int i = 0; i < length; i++) {
+					if ((presence[i >>> 6] & (1L << i)) != 0) {
+						strings[i] = (type == LONG_COLUMN) ? Long.toString(longs[i]) : Double.toString(doubles[i]);
+					}
+				}
+				longs = null;
+				doubles = null;
+				type = STRING_COLUMN;
+			}
+		}
+	}
+
+}
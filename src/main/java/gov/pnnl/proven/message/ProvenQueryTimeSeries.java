@@ -66,6 +66,29 @@ public class ProvenQueryTimeSeries implements IdentifiedDataSerializable, Serial
 	private static final long serialVersionUID = 1L;
 
 	private static Logger log = LoggerFactory.getLogger(ProvenQueryTimeSeries.class);
+
+	/**
+	 * Aggregations that can be computed over query results, per field and
+	 * time bucket.
+	 */
+	public enum Aggregation {
+		Count, Min, Max, Mean, Last;
+
+		/**
+		 * @return the aggregation with the name, ignoring case, or null if
+		 *         none
+		 */
+		public static Aggregation fromName(String name) {
+			Aggregation ret = null;
+			for (Aggregation aggregation : values()) {
+				if (aggregation.name().equalsIgnoreCase(name)) {
+					ret = aggregation;
+					break;
+				}
+			}
+			return ret;
+		}
+	}
 	
 	/**
 	 * Name of measurement, identifies a time-series measurement container. If
@@ -84,6 +107,18 @@ public class ProvenQueryTimeSeries implements IdentifiedDataSerializable, Serial
 	 */
 	private List<ProvenQueryFilter> filters;
 
+	/**
+	 * Aggregations to compute instead of returning raw measurements, null or
+	 * empty if none.
+	 */
+	private List<Aggregation> aggregations;
+
+	/**
+	 * Aggregation time bucket size, in query time units. If 0, aggregations
+	 * are computed over the whole query time range.
+	 */
+	private long bucketSize;
+
 	
 	public ProvenQueryTimeSeries() {
 	}
@@ -96,6 +131,15 @@ public class ProvenQueryTimeSeries implements IdentifiedDataSerializable, Serial
 		filters.add(filter);
 	}
 
+	void addAggregation(Aggregation aggregation) {
+		if (null == aggregations) {
+			aggregations = new ArrayList<Aggregation>();
+		}
+		if (!aggregations.contains(aggregation)) {
+			aggregations.add(aggregation);
+		}
+	}
+
 	
 	@Override
 	public void readData(ObjectDataInput in) throws IOException {
@@ -104,6 +148,14 @@ public class ProvenQueryTimeSeries implements IdentifiedDataSerializable, Serial
 		String provenMessageStr = in.readUTF();
 		this.provenMessage = ((provenMessageStr.isEmpty()) ? null : URI.create(provenMessageStr));
 		this.filters = in.readObject();
+		String aggregationsStr = in.readUTF();
+		this.aggregations = null;
+		if (!aggregationsStr.isEmpty()) {
+			for (String name : aggregationsStr.split(",")) {
+				addAggregation(Aggregation.valueOf(name));
+			}
+		}
+		this.bucketSize = in.readLong();
 	}
 	
 	@Override
@@ -111,8 +163,15 @@ public class ProvenQueryTimeSeries implements IdentifiedDataSerializable, Serial
 		
 		out.writeUTF(this.measurementName);
 		out.writeUTF((null == this.provenMessage) ? ("") : this.provenMessage.toString());
-		out.writeUTF(this.provenMessage.toString());
 		out.writeObject(this.filters);
+		StringBuilder aggregationsStr = new StringBuilder();
+		if (null != this.aggregations) {
+			for (Aggregation aggregation : this.aggregations) {
+				aggregationsStr.append((aggregationsStr.length() == 0) ? "" : ",").append(aggregation.name());
+			}
+		}
+		out.writeUTF(aggregationsStr.toString());
+		out.writeLong(this.bucketSize);
 	}
 	
 	
@@ -152,4 +211,27 @@ public class ProvenQueryTimeSeries implements IdentifiedDataSerializable, Serial
 		this.filters = filters;
 	}
 
+	public List<Aggregation> getAggregations() {
+		return aggregations;
+	}
+
+	public void setAggregations(List<Aggregation> aggregations) {
+		this.aggregations = aggregations;
+	}
+
+	public long getBucketSize() {
+		return bucketSize;
+	}
+
+	public void setBucketSize(long bucketSize) {
+		this.bucketSize = bucketSize;
+	}
+
+	/**
+	 * @return true if query results are aggregated
+	 */
+	public boolean isAggregated() {
+		return (null != aggregations) && (!aggregations.isEmpty());
+	}
+
 }
@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of local time-series query results, keyed by the queried
+ * {@link MeasurementSource} and a query key, e.g. the query fingerprint (see
+ * {@link CompiledQuery#getFingerprint()}). Sources are compared by identity,
+ * so executors over different sources can share a cache. Entries expire after
+ * a time to live, and the least recently used entries are evicted once the
+ * cache is full. Entries for a measurement are invalidated when measurements
+ * with its name are added to an attached {@link MeasurementStore}.
+ * 
+ * Results are copied once when cached, into unmodifiable lists and metric
+ * sets, and cache hits share that copy; callers must not modify the provided
+ * measurements or metrics. The encodings of a cached result used to respond
+ * to queries, a {@link ProvenQueryResult} and response rows (see
+ * {@link ResponseFrameProducer}), are created on first use and shared as
+ * well.
+ * 
+ * @author d3j766
+ *
+ */
+public class QueryResultCache {
+
+	private static Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	/**
+	 * Number of invalidation generations, measurement names share a
+	 * generation by hash.
+	 */
+	private static final int GENERATIONS = 64;
+
+	private final int maxEntries;
+
+	private volatile long ttlNanos;
+
+	/**
+	 * Cached results, by key, in access order. Also guards
+	 * {@link #byMeasurement} updates.
+	 */
+	private final Map<Key, CachedResult> entries;
+
+	/**
+	 * Keys of cached results, by measurement name. Names without cached
+	 * results are removed.
+	 */
+	private final Map<String, Set<Key>> byMeasurement = new ConcurrentHashMap<String, Set<Key>>();
+
+	/**
+	 * Invalidation counts, by measurement name hash. Bounded, a collision
+	 * only causes a result not to be cached.
+	 */
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public QueryResultCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param maxEntries
+	 *            maximum number of cached results
+	 * @param ttlMillis
+	 *            time to live of cached results, in milliseconds
+	 */
+	public QueryResultCache(int maxEntries, long ttlMillis) {
+		if ((maxEntries < 1) || (ttlMillis < 0)) {
+			throw new IllegalArgumentException("Invalid max entries or TTL: " + maxEntries + ", " + ttlMillis);
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+				boolean ret = size() > QueryResultCache.this.maxEntries;
+				if (ret) {
+					unindex(eldest.getKey(), eldest.getValue());
+				}
+				return ret;
+			}
+		};
+	}
+
+	/**
+	 * Invalidates cached results when measurements are added to a store.
+	 * 
+	 * @param store
+	 *            the measurement store
+	 */
+	public void attach(MeasurementStore store) {
+		store.addIngestListener(this::invalidate);
+	}
+
+	/**
+	 * Provides cached results.
+	 * 
+	 * @param source
+	 *            the queried source
+	 * @param queryKey
+	 *            the query key
+	 * @return the shared, unmodifiable results, null if not cached or expired
+	 */
+	public List<ProvenMeasurement> get(MeasurementSource source, String queryKey) {
+		CachedResult entry = getEntry(source, queryKey);
+		return (null == entry) ? null : entry.results;
+	}
+
+	/**
+	 * Provides cached results in columnar form, encoded on first use.
+	 * 
+	 * @param source
+	 *            the queried source
+	 * @param queryKey
+	 *            the query key
+	 * @return the shared result, without request id (see
+	 *         {@link ProvenQueryResult#withRequestId(String)}), null if not
+	 *         cached or expired
+	 */
+	public ProvenQueryResult getQueryResult(MeasurementSource source, String queryKey) {
+
+		CachedResult entry = getEntry(source, queryKey);
+		if (null == entry) {
+			return null;
+		}
+
+		ProvenQueryResult ret = entry.queryResult;
+		if (null == ret) {
+			ret = new ProvenQueryResult.Builder(entry.measurementName).addAll(entry.results).build();
+			entry.queryResult = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Provides cached results as response rows, formatted on first use, see
+	 * {@link ResponseFrameProducer#produceRows(List)}.
+	 * 
+	 * @param source
+	 *            the queried source
+	 * @param queryKey
+	 *            the query key
+	 * @return the shared, unmodifiable rows, null if not cached or expired
+	 */
+	public List<byte[]> getResponseRows(MeasurementSource source, String queryKey) {
+
+		CachedResult entry = getEntry(source, queryKey);
+		if (null == entry) {
+			return null;
+		}
+
+		List<byte[]> ret = entry.responseRows;
+		if (null == ret) {
+			ret = Collections.unmodifiableList(ResponseFrameProducer.format(entry.results));
+			entry.responseRows = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Provides the current invalidation generation of a measurement. Read it
+	 * before executing a query, and pass it to
+	 * {@link #put(MeasurementSource, String, String, List, long)}, so results
+	 * computed while measurements were being added aren't cached.
+	 * 
+	 * @param measurementName
+	 *            the measurement name
+	 * @return the generation
+	 */
+	public long getGeneration(String measurementName) {
+		return generations.get(generationIndex(measurementName));
+	}
+
+	/**
+	 * Caches an unmodifiable copy of query results.
+	 * 
+	 * @param source
+	 *            the queried source
+	 * @param queryKey
+	 *            the query key
+	 * @param measurementName
+	 *            the query's measurement name
+	 * @param results
+	 *            the query results
+	 * @param generation
+	 *            the measurement's generation before the query was executed
+	 * @return true if cached, false if the measurement was invalidated since
+	 */
+	public boolean put(MeasurementSource source, String queryKey, String measurementName,
+			List<ProvenMeasurement> results, long generation) {
+
+		Key key = new Key(source, queryKey);
+		CachedResult entry = new CachedResult(measurementName, copy(results), System.nanoTime());
+		synchronized (entries) {
+
+			// Index before checking the generation, an invalidation either
+			// finds the key or has already changed the generation
+			Set<Key> keys = byMeasurement.computeIfAbsent(measurementName, k -> ConcurrentHashMap.<Key> newKeySet());
+			keys.add(key);
+			if (generation != getGeneration(measurementName)) {
+				CachedResult previous = entries.remove(key);
+				unindex(key, (null == previous) ? entry : previous);
+				return false;
+			}
+			entries.put(key, entry);
+		}
+		return true;
+	}
+
+	/**
+	 * Invalidates the cached results of a measurement.
+	 * 
+	 * @param measurementName
+	 *            the measurement name
+	 */
+	public void invalidate(String measurementName) {
+
+		generations.incrementAndGet(generationIndex(measurementName));
+		if (!byMeasurement.containsKey(measurementName)) {
+			return;
+		}
+
+		synchronized (entries) {
+			Set<Key> keys = byMeasurement.remove(measurementName);
+			if (null != keys) {
+				for (Key key : keys) {
+					entries.remove(key);
+				}
+				log.debug("Invalidated " + keys.size() + " cached query results for " + measurementName);
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			byMeasurement.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getTtlMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+	}
+
+	public void setTtlMillis(long ttlMillis) {
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException("Invalid TTL: " + ttlMillis);
+		}
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private CachedResult getEntry(MeasurementSource source, String queryKey) {
+
+		Key key = new Key(source, queryKey);
+		CachedResult ret = null;
+		synchronized (entries) {
+			CachedResult entry = entries.get(key);
+			if (null != entry) {
+				if (System.nanoTime() - entry.created <= ttlNanos) {
+					ret = entry;
+				} else {
+					entries.remove(key);
+					unindex(key, entry);
+				}
+			}
+		}
+
+		if (null == ret) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes a key from the measurement index, called holding the entries
+	 * lock.
+	 */
+	private void unindex(Key key, CachedResult entry) {
+		Set<Key> keys = byMeasurement.get(entry.measurementName);
+		if (null != keys) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				byMeasurement.remove(entry.measurementName);
+			}
+		}
+	}
+
+	private static int generationIndex(String measurementName) {
+		return (null == measurementName) ? 0 : (measurementName.hashCode() & (GENERATIONS - 1));
+	}
+
+	private static List<ProvenMeasurement> copy(List<ProvenMeasurement> measurements) {
+		List<ProvenMeasurement> ret = new ArrayList<ProvenMeasurement>(measurements.size());
+		for (ProvenMeasurement m : measurements) {
+			Set<ProvenMetric> metrics = new HashSet<ProvenMetric>();
+			if (null != m.getMetrics()) {
+				for (ProvenMetric metric : m.getMetrics()) {
+					metrics.add(new ProvenMetric(metric.getLabel(), metric.getValue(), metric.isMetadata(),
+							metric.getValueType()));
+				}
+			}
+			ProvenMeasurement copy = new ProvenMeasurement(m.getMeasurementName(), m.getTimestamp(),
+					Collections.unmodifiableSet(metrics));
+			copy.setProvenMessage(m.getProvenMessage());
+			copy.setProvenMessageMeasurement(m.getProvenMessageMeasurement());
+			ret.add(copy);
+		}
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * Cache key, a query key of a source. Sources are compared by identity.
+	 */
+	private static final class Key {
+
+		private final MeasurementSource source;
+		private final String queryKey;
+
+		Key(MeasurementSource source, String queryKey) {
+			this.source = source;
+			this.queryKey = queryKey;
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * System.identityHashCode(source)) + queryKey.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return (source == other.source) && queryKey.equals(other.queryKey);
+		}
+	}
+
+	private static final class CachedResult {
+
+		private final String measurementName;
+		private final List<ProvenMeasurement> results;
+		private final long created;
+
+		/**
+		 * Encodings of the results, created on first use. Racing threads may
+		 * each create one, they are equal.
+		 */
+		private volatile ProvenQueryResult queryResult;
+		private volatile List<byte[]> responseRows;
+
+		CachedResult(String measurementName, List<ProvenMeasurement> results, long created) {
+			this.measurementName = measurementName;
+			this.results = results;
+			this.created = created;
+		}
+	}
+
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+/**
+ * Produces a chunked response as a sequence of
+ * {@link ProvenMessageResponseFrame}s. Rows are added as they are produced,
+ * and a frame is emitted to the sink each time the buffered rows reach the
+ * frame size, so at most about one frame of the response is held in memory.
+ * Closing the producer emits the last frame, which may be empty. If producing
+ * the response fails, {@link #fail(Throwable)} instead emits a last frame
+ * carrying the error, so the receiver doesn't take a partial response for a
+ * complete one.
+ * 
+ * A frame's payload is one or more complete rows, each a UTF-8 line. Rows are
+ * never split across frames; a row larger than the frame size is emitted in a
+ * frame of its own. Measurements are written as JSON objects, e.g.
+ * {@code {"measurement":"weather","time":1530628494,"value":2.5}}.
+ * 
+ * @author d3j766
+ *
+ */
+public class ResponseFrameProducer implements AutoCloseable {
+
+	private static Logger log = LoggerFactory.getLogger(ResponseFrameProducer.class);
+
+	public static final int DEFAULT_FRAME_SIZE = 32 * 1024;
+
+	private static final Pattern JSON_NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+	private final String requestId;
+
+	private final int frameSize;
+
+	private final Consumer<ProvenMessageResponseFrame> sink;
+
+	private byte[] buffer;
+
+	private int length;
+
+	private long sequence;
+
+	private long rows;
+
+	private boolean isClosed;
+
+	private boolean isFailed;
+
+	/**
+	 * Reused for formatting measurement rows.
+	 */
+	private final StringBuilder row = new StringBuilder();
+
+	public ResponseFrameProducer(String requestId, Consumer<ProvenMessageResponseFrame> sink) {
+		this(requestId, DEFAULT_FRAME_SIZE, sink);
+	}
+
+	/**
+	 * Creates a new producer.
+	 * 
+	 * @param requestId
+	 *            id of the request being responded to
+	 * @param frameSize
+	 *            target payload size of each frame, in bytes
+	 * @param sink
+	 *            receives frames, in sequence order
+	 */
+	public ResponseFrameProducer(String requestId, int frameSize, Consumer<ProvenMessageResponseFrame> sink) {
+		if (frameSize < 1) {
+			throw new IllegalArgumentException("Invalid frame size: " + frameSize);
+		}
+		this.requestId = requestId;
+		this.frameSize = frameSize;
+		this.sink = sink;
+		this.buffer = new byte[frameSize];
+	}
+
+	/**
+	 * Adds a row.
+	 * 
+	 * @param line
+	 *            the row, without a line terminator
+	 */
+	public void addRow(String line) {
+		addRow(line.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Adds a measurement row.
+	 * 
+	 * @param measurement
+	 *            the measurement
+	 */
+	public void addMeasurement(ProvenMeasurement measurement) {
+		addRow(format(measurement, row));
+	}
+
+	/**
+	 * Adds all measurements of a stream, e.g. local query results (see
+	 * {@link ProvenQueryExecutor}), and closes this producer. If the stream
+	 * fails, the response is failed and the error rethrown.
+	 * 
+	 * @param measurements
+	 *            the measurements
+	 */
+	public void produce(Stream<ProvenMeasurement> measurements) {
+		try {
+			measurements.forEach(this::addMeasurement);
+		} catch (RuntimeException | Error e) {
+			fail(e);
+			throw e;
+		}
+		close();
+	}
+
+	/**
+	 * Adds rows formatted by {@link #format(List)}, e.g. cached query results
+	 * (see {@link QueryResultCache#getResponseRows(MeasurementSource, String)}),
+	 * and closes this producer.
+	 * 
+	 * @param lines
+	 *            the rows, each without a line terminator
+	 */
+	public void produceRows(List<byte[]> lines) {
+		try {
+			for (byte[] line : lines) {
+				addRow(line);
+			}
+		} catch (RuntimeException | Error e) {
+			fail(e);
+			throw e;
+		}
+		close();
+	}
+
+	/**
+	 * Formats measurements as rows, the way
+	 * {@link #addMeasurement(ProvenMeasurement)} adds them.
+	 * 
+	 * @param measurements
+	 *            the measurements
+	 * @return UTF-8 rows, without line terminators
+	 */
+	public static List<byte[]> format(List<ProvenMeasurement> measurements) {
+		List<byte[]> ret = new ArrayList<byte[]>(measurements.size());
+		StringBuilder sb = new StringBuilder();
+		for (ProvenMeasurement measurement : measurements) {
+			ret.add(format(measurement, sb).getBytes(StandardCharsets.UTF_8));
+		}
+		return ret;
+	}
+
+	/**
+	 * Emits the last frame.
+	 */
+	@Override
+	public void close() {
+		if (!isClosed) {
+			isClosed = true;
+			emit(true);
+			buffer = null;
+			log.debug("Response " + requestId + " sent as " + sequence + " frames, " + rows + " rows");
+		}
+	}
+
+	/**
+	 * Emits a last frame carrying the error instead of the rows not yet
+	 * emitted. Does nothing if this producer is already closed or failed.
+	 * 
+	 * @param cause
+	 *            reason the response failed
+	 */
+	public void fail(Throwable cause) {
+		if (!isClosed) {
+			isClosed = true;
+			isFailed = true;
+			String error = (null == cause.getMessage()) ? cause.getClass().getName() : cause.getMessage();
+			sink.accept(ProvenMessageResponseFrame.error(requestId, sequence++, error));
+			length = 0;
+			buffer = null;
+			log.warn("Response " + requestId + " failed after " + sequence + " frames: " + error);
+		}
+	}
+
+	/**
+	 * @return true if the response was failed, see {@link #fail(Throwable)}
+	 */
+	public boolean isFailed() {
+		return isFailed;
+	}
+
+	/**
+	 * @return number of frames emitted
+	 */
+	public long getFrameCount() {
+		return sequence;
+	}
+
+	/**
+	 * @return number of rows added
+	 */
+	public long getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Adds a row.
+	 * 
+	 * @param bytes
+	 *            the UTF-8 row, without a line terminator
+	 */
+	public void addRow(byte[] bytes) {
+
+		if (isClosed) {
+			throw new IllegalStateException("Response is closed: " + requestId);
+		}
+
+		int required = bytes.length + 1;
+		if ((length > 0) && (length + required > frameSize)) {
+			emit(false);
+		}
+		if (length + required > buffer.length) {
+			buffer = Arrays.copyOf(buffer, length + required);
+		}
+
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+		buffer[length++] = '\n';
+		rows++;
+
+		if (length >= frameSize) {
+			emit(false);
+		}
+	}
+
+	private void emit(boolean isLast) {
+		sink.accept(new ProvenMessageResponseFrame(requestId, sequence++, isLast, Arrays.copyOf(buffer, length)));
+		length = 0;
+		if (buffer.length > frameSize) {
+			buffer = new byte[frameSize];
+		}
+	}
+
+	private static String format(ProvenMeasurement measurement, StringBuilder row) {
+
+		row.setLength(0);
+		row.append("{\"measurement\":");
+		appendString(row, measurement.getMeasurementName());
+		if (null != measurement.getTimestamp()) {
+			row.append(",\"time\":").append(measurement.getTimestamp().longValue());
+		}
+		if (null != measurement.getMetrics()) {
+			for (ProvenMetric metric : measurement.getMetrics()) {
+				row.append(',');
+				appendString(row, metric.getLabel());
+				row.append(':');
+				if (isNumber(metric)) {
+					row.append(metric.getValue());
+				} else {
+					appendString(row, metric.getValue());
+				}
+			}
+		}
+		row.append('}');
+
+		return row.toString();
+	}
+
+	private static boolean isNumber(ProvenMetric metric) {
+		MetricValueType type = metric.getValueType();
+		return (null != metric.getValue())
+				&& ((type == MetricValueType.Integer) || (type == MetricValueType.Long)
+						|| (type == MetricValueType.Float) || (type == MetricValueType.Double))
+				&& JSON_NUMBER.matcher(metric.getValue()).matches();
+	}
+
+	private static void appendString(StringBuilder sb, String value) {
+		if (null == value) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+				break;
+			}
+		}
+		sb.append('"');
+	}
+
+}
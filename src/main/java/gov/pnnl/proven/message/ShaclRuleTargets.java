@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.shared.AddDeniedException;
+import org.apache.jena.shared.DeleteDeniedException;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.topbraid.shacl.vocabulary.SH;
+
+/**
+ * Rule shapes of a message model's shapes model, indexed by their targets.
+ * Used to find the rule shapes targeting a data graph, so that only their
+ * rules need to be run (see
+ * {@link MessageUtils#addTargetedShaclRuleResults(MessageModel, Model)}).
+ * 
+ * Node targets and custom (sh:target) targets can't be decided from the data
+ * graph alone, so shapes having them are always considered targeted. Class
+ * targets include all subclasses known to the ontology and shapes models. A
+ * data graph defining its own subclasses targets all rule shapes.
+ * 
+ * @author d3j766
+ *
+ */
+final class ShaclRuleTargets {
+
+	private static Logger log = LoggerFactory.getLogger(ShaclRuleTargets.class);
+
+	/**
+	 * Maximum number of cached rule-filtered shapes models.
+	 */
+	private static final int MAX_VIEWS = 32;
+
+	private final Model shapesModel;
+
+	private final Set<Node> ruleShapes = new HashSet<Node>();
+
+	private final Set<Node> alwaysTargeted = new HashSet<Node>();
+
+	private final Map<Node, Set<Node>> byClass = new HashMap<Node, Set<Node>>();
+
+	private final Map<Node, Set<Node>> bySubjectsOf = new HashMap<Node, Set<Node>>();
+
+	private final Map<Node, Set<Node>> byObjectsOf = new HashMap<Node, Set<Node>>();
+
+	/**
+	 * Shapes models restricted to the rules of a set of targeted shapes.
+	 */
+	private final Map<Set<Node>, Model> views = new ConcurrentHashMap<Set<Node>, Model>();
+
+	ShaclRuleTargets(Model shapesModel, Model ontologyModel) {
+
+		this.shapesModel = shapesModel;
+		Graph shapes = shapesModel.getGraph();
+		Map<Node, Set<Node>> subClasses = new HashMap<Node, Set<Node>>();
+		addSubClasses(subClasses, ontologyModel.getGraph());
+		addSubClasses(subClasses, shapes);
+
+		ExtendedIterator<Triple> rules = shapes.find(Node.ANY, SH.rule.asNode(), Node.ANY);
+		while (rules.hasNext()) {
+			ruleShapes.add(rules.next().getSubject());
+		}
+
+		for (Node shape : ruleShapes) {
+
+			if (shapes.contains(shape, SH.targetNode.asNode(), Node.ANY)
+					|| shapes.contains(shape, SH.target.asNode(), Node.ANY)) {
+				alwaysTargeted.add(shape);
+			}
+
+			Set<Node> targetClasses = new HashSet<Node>();
+			for (Triple t3 : shapes.find(shape, SH.targetClass.asNode(), Node.ANY).toList()) {
+				targetClasses.add(t3.getObject());
+			}
+			if (shapes.contains(shape, RDF.type.asNode(), RDFS.Class.asNode())
+					|| shapes.contains(shape, RDF.type.asNode(), OWL.Class.asNode())) {
+				targetClasses.add(shape);
+			}
+			for (Node targetClass : targetClasses) {
+				for (Node cls : closure(subClasses, targetClass)) {
+					index(byClass, cls, shape);
+				}
+			}
+
+			for (Triple t3 : shapes.find(shape, SH.targetSubjectsOf.asNode(), Node.ANY).toList()) {
+				index(bySubjectsOf, t3.getObject(), shape);
+			}
+			for (Triple t3 : shapes.find(shape, SH.targetObjectsOf.asNode(), Node.ANY).toList()) {
+				index(byObjectsOf, t3.getObject(), shape);
+			}
+		}
+
+		log.debug("Indexed " + ruleShapes.size() + " SHACL rule shapes, " + alwaysTargeted.size()
+				+ " always targeted");
+	}
+
+	/**
+	 * @return number of rule shapes
+	 */
+	int size() {
+		return ruleShapes.size();
+	}
+
+	/**
+	 * Finds the rule shapes targeting a data graph.
+	 * 
+	 * @param data
+	 *            the data graph
+	 * @return the targeted rule shapes
+	 */
+	Set<Node> getTargetedShapes(Graph data) {
+
+		if (data.contains(Node.ANY, RDFS.subClassOf.asNode(), Node.ANY)) {
+			return Collections.unmodifiableSet(ruleShapes);
+		}
+
+		Set<Node> ret = new HashSet<Node>(alwaysTargeted);
+		for (Map.Entry<Node, Set<Node>> entry : byClass.entrySet()) {
+			if (!ret.containsAll(entry.getValue()) && data.contains(Node.ANY, RDF.type.asNode(), entry.getKey())) {
+				ret.addAll(entry.getValue());
+			}
+		}
+		for (Map.Entry<Node, Set<Node>> entry : bySubjectsOf.entrySet()) {
+			if (!ret.containsAll(entry.getValue()) && data.contains(Node.ANY, entry.getKey(), Node.ANY)) {
+				ret.addAll(entry.getValue());
+			}
+		}
+		for (Map.Entry<Node, Set<Node>> entry : byObjectsOf.entrySet()) {
+			if (!ret.containsAll(entry.getValue()) && data.contains(Node.ANY, entry.getKey(), Node.ANY)) {
+				ret.addAll(entry.getValue());
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Provides the shapes model without the rules of untargeted shapes. All
+	 * other shapes model statements, e.g. rule conditions, are kept.
+	 * 
+	 * @param targeted
+	 *            the targeted rule shapes
+	 * @return the restricted shapes model
+	 */
+	Model getShapesModel(Set<Node> targeted) {
+
+		if (targeted.containsAll(ruleShapes)) {
+			return shapesModel;
+		}
+
+		Model ret = views.get(targeted);
+		if (null == ret) {
+			if (views.size() >= MAX_VIEWS) {
+				views.clear();
+			}
+			Set<Node> excluded = new HashSet<Node>(ruleShapes);
+			excluded.removeAll(targeted);
+			ret = ModelFactory.createModelForGraph(new RuleFilteredGraph(shapesModel.getGraph(), excluded));
+			views.put(new HashSet<Node>(targeted), ret);
+		}
+		return ret;
+	}
+
+	private static void addSubClasses(Map<Node, Set<Node>> subClasses, Graph graph) {
+		ExtendedIterator<Triple> iter = graph.find(Node.ANY, RDFS.subClassOf.asNode(), Node.ANY);
+		while (iter.hasNext()) {
+			Triple t3 = iter.next();
+			index(subClasses, t3.getObject(), t3.getSubject());
+		}
+	}
+
+	/**
+	 * @return the class and all of its subclasses
+	 */
+	private static Set<Node> closure(Map<Node, Set<Node>> subClasses, Node cls) {
+		Set<Node> ret = new LinkedHashSet<Node>();
+		Deque<Node> pending = new ArrayDeque<Node>();
+		pending.add(cls);
+		while (!pending.isEmpty()) {
+			Node next = pending.remove();
+			if (ret.add(next) && subClasses.containsKey(next)) {
+				pending.addAll(subClasses.get(next));
+			}
+		}
+		return ret;
+	}
+
+	private static void index(Map<Node, Set<Node>> index, Node key, Node value) {
+		Set<Node> values = index.get(key);
+		if (null == values) {
+			values = new HashSet<Node>();
+			index.put(key, values);
+		}
+		values.add(value);
+	}
+
+	/**
+	 * Read-only view of a shapes graph hiding the sh:rule statements of
+	 * excluded shapes.
+	 */
+	private static final class RuleFilteredGraph extends GraphBase {
+
+		private final Graph base;
+		private final Set<Node> excluded;
+
+		RuleFilteredGraph(Graph base, Set<Node> excluded) {
+			this.base = base;
+			this.excluded = excluded;
+		}
+
+		@Override
+		protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+			ExtendedIterator<Triple> ret = base.find(pattern);
+			Node p = pattern.getMatchPredicate();
+			if ((null == p) || p.equals(SH.rule.asNode())) {
+				ret = ret.filterDrop(
+						t3 -> t3.getPredicate().equals(SH.rule.asNode()) && excluded.contains(t3.getSubject()));
+			}
+			return ret;
+		}
+
+		@Override
+		protected PrefixMapping createPrefixMapping() {
+			return base.getPrefixMapping();
+		}
+
+		@Override
+		public void performAdd(Triple t) {
+			throw new AddDeniedException("Shapes graph view is read-only");
+		}
+
+		@Override
+		public void performDelete(Triple t) {
+			throw new DeleteDeniedException("Shapes graph view is read-only");
+		}
+	}
+
+}
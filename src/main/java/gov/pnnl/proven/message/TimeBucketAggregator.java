@@ -0,0 +1,411 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+import gov.pnnl.proven.message.ProvenQueryTimeSeries.Aggregation;
+
+/**
+ * Streaming aggregation of measurements into fixed time buckets. Measurements
+ * are aggregated per series, i.e. per tag set, and each field (non-metadata
+ * metric) of each series in each bucket has a single accumulator, so memory
+ * and result size depend on the number of buckets, series and fields, not on
+ * the number of measurements added.
+ * 
+ * Results are one measurement per bucket and series, timestamped with the
+ * bucket start, having the series' tags and a field per aggregated field and
+ * aggregation, labeled {@code <field>_<aggregation>}, e.g. "value_mean". Min,
+ * max and mean are computed over values of a numeric value type (integer,
+ * long, float or double) only; count and last include all values.
+ * 
+ * Measurements are added as {@link ProvenMeasurement}s, or as typed values
+ * through a {@link SeriesAccumulator}, e.g. by a
+ * {@link MeasurementStore} reading its primitive columns, so values need not
+ * be formatted and parsed again.
+ * 
+ * @author d3j766
+ *
+ */
+public class TimeBucketAggregator {
+
+	private final String measurementName;
+	private final List<Aggregation> aggregations;
+	private final long bucketSize;
+
+	/**
+	 * Series accumulators by bucket and series key. Buckets in time order,
+	 * series in key order.
+	 */
+	private final TreeMap<Long, TreeMap<String, SeriesBucket>> buckets = new TreeMap<Long, TreeMap<String, SeriesBucket>>();
+
+	/**
+	 * Earliest timestamp added.
+	 */
+	private long firstTime = Long.MAX_VALUE;
+
+	/**
+	 * Creates a new aggregator.
+	 * 
+	 * @param measurementName
+	 *            name of result measurements
+	 * @param aggregations
+	 *            the aggregations to compute
+	 * @param bucketSize
+	 *            bucket size, in measurement time units. If 0, all
+	 *            measurements are aggregated into a single bucket,
+	 *            timestamped with the earliest measurement.
+	 */
+	public TimeBucketAggregator(String measurementName, List<Aggregation> aggregations, long bucketSize) {
+		if (bucketSize < 0) {
+			throw new IllegalArgumentException("Invalid bucket size: " + bucketSize);
+		}
+		this.measurementName = measurementName;
+		this.aggregations = aggregations;
+		this.bucketSize = bucketSize;
+	}
+
+	/**
+	 * Adds a measurement. Measurements without a timestamp are ignored.
+	 * 
+	 * @param measurement
+	 *            the measurement
+	 */
+	public void add(ProvenMeasurement measurement) {
+
+		Long timestamp = measurement.getTimestamp();
+		if ((null == timestamp) || (null == measurement.getMetrics())) {
+			return;
+		}
+
+		TreeMap<String, ProvenMetric> tags = new TreeMap<String, ProvenMetric>();
+		for (ProvenMetric metric : measurement.getMetrics()) {
+			if (metric.isMetadata() && (null != metric.getValue())) {
+				tags.put(metric.getLabel(), metric);
+			}
+		}
+
+		StringBuilder key = new StringBuilder();
+		for (ProvenMetric tag : tags.values()) {
+			appendTag(key, tag.getLabel(), tag.getValue());
+		}
+		SeriesBucket fields = bucket(timestamp, key.toString(), tags.values());
+
+		for (ProvenMetric metric : measurement.getMetrics()) {
+			if (!metric.isMetadata()) {
+				fields.field(metric.getLabel()).add(timestamp, metric.getValue(), metric.getValueType());
+			}
+		}
+	}
+
+	/**
+	 * Provides an accumulator for the values of a single series.
+	 * 
+	 * @param tagLabels
+	 *            the series' tag labels, in label order
+	 * @param tagValues
+	 *            the series' tag values
+	 * @param tagTypes
+	 *            the series' tag value types
+	 * @return the series accumulator
+	 */
+	public SeriesAccumulator series(String[] tagLabels, String[] tagValues, MetricValueType[] tagTypes) {
+		StringBuilder key = new StringBuilder();
+		List<ProvenMetric> tags = new ArrayList<ProvenMetric>(tagLabels.length);
+		for (int i = 0; i < tagLabels.length; i++) {
+			appendTag(key, tagLabels[i], tagValues[i]);
+			tags.add(new ProvenMetric(tagLabels[i], tagValues[i], true, tagTypes[i]));
+		}
+		return new SeriesAccumulator(key.toString(), tags);
+	}
+
+	/**
+	 * @return number of buckets
+	 */
+	public int size() {
+		return buckets.size();
+	}
+
+	/**
+	 * @return a measurement per bucket and series, in time order
+	 */
+	public Stream<ProvenMeasurement> results() {
+		return buckets.entrySet().stream().flatMap(bucket -> {
+			long timestamp = (bucketSize == 0) ? firstTime : bucket.getKey();
+			return bucket.getValue().values().stream().map(series -> series.result(timestamp));
+		});
+	}
+
+	private SeriesBucket bucket(long timestamp, String seriesKey, Collection<ProvenMetric> tags) {
+		firstTime = Math.min(firstTime, timestamp);
+		long bucket = bucketOf(timestamp);
+		TreeMap<String, SeriesBucket> series = buckets.get(bucket);
+		if (null == series) {
+			series = new TreeMap<String, SeriesBucket>();
+			buckets.put(bucket, series);
+		}
+		SeriesBucket ret = series.get(seriesKey);
+		if (null == ret) {
+			ret = new SeriesBucket(tags);
+			series.put(seriesKey, ret);
+		}
+		return ret;
+	}
+
+	private long bucketOf(long timestamp) {
+		return (bucketSize == 0) ? 0 : Math.floorDiv(timestamp, bucketSize) * bucketSize;
+	}
+
+	/**
+	 * Appends a tag to a series key. Labels and values are separated by
+	 * control characters, as in {@link ProvenMeasurementBlock}, so tags
+	 * containing '=' or ',' do not collide.
+	 */
+	private static void appendTag(StringBuilder key, String label, String value) {
+		key.append('\u0000').append(label).append('\u0001').append(value);
+	}
+
+	private static boolean isNumeric(MetricValueType valueType) {
+		return (valueType == MetricValueType.Integer) || (valueType == MetricValueType.Long)
+				|| (valueType == MetricValueType.Float) || (valueType == MetricValueType.Double);
+	}
+
+	/**
+	 * Adds typed field values of a single series. Values are expected in
+	 * about time order; the bucket of the previous value is reused.
+	 */
+	public final class SeriesAccumulator {
+
+		private final String key;
+		private final List<ProvenMetric> tags;
+		private long bucket = Long.MIN_VALUE;
+		private SeriesBucket fields;
+
+		private SeriesAccumulator(String key, List<ProvenMetric> tags) {
+			this.key = key;
+			this.tags = tags;
+		}
+
+		public void add(long timestamp, String field, long value, MetricValueType valueType) {
+			accumulator(timestamp, field).add(timestamp, value, valueType);
+		}
+
+		public void add(long timestamp, String field, double value, MetricValueType valueType) {
+			accumulator(timestamp, field).add(timestamp, value, valueType);
+		}
+
+		public void add(long timestamp, String field, String value, MetricValueType valueType) {
+			accumulator(timestamp, field).add(timestamp, value, valueType);
+		}
+
+		private Accumulator accumulator(long timestamp, String field) {
+			long current = bucketOf(timestamp);
+			if ((null == fields) || (current != bucket)) {
+				fields = bucket(timestamp, key, tags);
+				bucket = current;
+			} else {
+				firstTime = Math.min(firstTime, timestamp);
+			}
+			return fields.field(field);
+		}
+	}
+
+	/**
+	 * Field accumulators of a single series in a single bucket.
+	 */
+	private final class SeriesBucket {
+
+		private final Collection<ProvenMetric> tags;
+		private final Map<String, Accumulator> fields = new HashMap<String, Accumulator>();
+
+		SeriesBucket(Collection<ProvenMetric> tags) {
+			this.tags = tags;
+		}
+
+		Accumulator field(String label) {
+			Accumulator ret = fields.get(label);
+			if (null == ret) {
+				ret = new Accumulator();
+				fields.put(label, ret);
+			}
+			return ret;
+		}
+
+		ProvenMeasurement result(long timestamp) {
+			Set<ProvenMetric> metrics = new HashSet<ProvenMetric>();
+			for (ProvenMetric tag : tags) {
+				metrics.add(new ProvenMetric(tag.getLabel(), tag.getValue(), true, tag.getValueType()));
+			}
+			for (Map.Entry<String, Accumulator> field : fields.entrySet()) {
+				for (Aggregation aggregation : aggregations) {
+					ProvenMetric metric = field.getValue().result(field.getKey(), aggregation);
+					if (null != metric) {
+						metrics.add(metric);
+					}
+				}
+			}
+			return new ProvenMeasurement(measurementName, timestamp, metrics);
+		}
+	}
+
+	/**
+	 * Running aggregates of a single field of a series in a single bucket.
+	 */
+	private static final class Accumulator {
+
+		private long count;
+		private long numericCount;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		private double sum;
+		private long lastTime = Long.MIN_VALUE;
+		private MetricValueType lastType;
+
+		/**
+		 * Last value, formatted on demand; text, or a long or double value
+		 * if {@link #last} is null.
+		 */
+		private String last;
+		private boolean isLastLong;
+		private long lastLong;
+		private double lastDouble;
+
+		void add(long timestamp, String value, MetricValueType valueType) {
+
+			if (null == value) {
+				return;
+			}
+
+			count++;
+			if (isNumeric(valueType)) {
+				try {
+					addNumber(Double.parseDouble(value));
+				} catch (NumberFormatException e) {
+					// Malformed number, only counted
+				}
+			}
+
+			if (timestamp >= lastTime) {
+				lastTime = timestamp;
+				last = value;
+				lastType = valueType;
+			}
+		}
+
+		void add(long timestamp, long value, MetricValueType valueType) {
+			count++;
+			addNumber(value);
+			if (timestamp >= lastTime) {
+				lastTime = timestamp;
+				last = null;
+				isLastLong = true;
+				lastLong = value;
+				lastType = valueType;
+			}
+		}
+
+		void add(long timestamp, double value, MetricValueType valueType) {
+			count++;
+			addNumber(value);
+			if (timestamp >= lastTime) {
+				lastTime = timestamp;
+				last = null;
+				isLastLong = false;
+				lastDouble = value;
+				lastType = valueType;
+			}
+		}
+
+		private void addNumber(double number) {
+			if (!Double.isNaN(number)) {
+				numericCount++;
+				min = Math.min(min, number);
+				max = Math.max(max, number);
+				sum += number;
+			}
+		}
+
+		private String last() {
+			if ((null != last) || (count == 0)) {
+				return last;
+			}
+			if (isLastLong) {
+				return Long.toString(lastLong);
+			}
+			return (lastType == MetricValueType.Float) ? Float.toString((float) lastDouble)
+					: Double.toString(lastDouble);
+		}
+
+		ProvenMetric result(String field, Aggregation aggregation) {
+
+			String label = field + "_" + aggregation.name().toLowerCase();
+			switch (aggregation) {
+			case Count:
+				return new ProvenMetric(label, Long.toString(count), false, MetricValueType.Long);
+			case Min:
+				return (numericCount == 0) ? null
+						: new ProvenMetric(label, Double.toString(min), false, MetricValueType.Double);
+			case Max:
+				return (numericCount == 0) ? null
+						: new ProvenMetric(label, Double.toString(max), false, MetricValueType.Double);
+			case Mean:
+				return (numericCount == 0) ? null
+						: new ProvenMetric(label, Double.toString(sum / numericCount), false, MetricValueType.Double);
+			case Last:
+				String value = last();
+				return (null == value) ? null
+						: new ProvenMetric(label, value, false, (null == lastType) ? MetricValueType.String : lastType);
+			default:
+				return null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses message timestamps into epoch time, normalized to one time unit.
+ * Supported are epoch numbers, with an optional decimal fraction, and date
+ * times of the forms
+ * 
+ * <pre>
+ * 2018-05-12T04:54:53.763Z
+ * 2018-05-12 04:54:53.763141
+ * 2018-05-12T04:54:53+02:00
+ * </pre>
+ * 
+ * i.e. {@link MessageUtils#DATE_FORMAT_1} and
+ * {@link MessageUtils#DATE_FORMAT_2}, with a fraction of up to nine digits
+ * (more are truncated) and an optional 'Z' or offset. 'Z' is UTC, date times
+ * without either use the codec's zone.
+ * 
+ * Epoch numbers are in the codec's epoch precision or, if it has none,
+ * detected by magnitude: seconds below 10^11 (until year 5138), milliseconds
+ * below 10^14, microseconds below 10^17, nanoseconds otherwise. So e.g.
+ * second measurement timestamps and microsecond query times are both
+ * normalized to one unit, and are comparable without re-parsing.
+ * Conversions to a coarser unit round down (toward negative infinity, not
+ * zero), e.g. -1.5 seconds is -2 seconds, so a timestamp falls in the unit
+ * interval containing it. Timestamps out of the unit's long range are
+ * rejected rather than clamped.
+ * 
+ * The measurement codec normalizes to microseconds by default, so second,
+ * millisecond and microsecond measurement timestamps are all kept without
+ * loss and compare correctly with each other.
+ * 
+ * Parsing is hand-written and does not allocate for epoch numbers and date
+ * times with a fixed offset zone. Codecs are immutable and thread safe.
+ * 
+ * @author d3j766
+ *
+ */
+public class TimestampCodec {
+
+	private static final long SECONDS_LIMIT = 100000000000L;
+	private static final long MILLISECONDS_LIMIT = 100000000000000L;
+	private static final long MICROSECONDS_LIMIT = 100000000000000000L;
+
+	private static final int[] DAYS_IN_MONTH = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+	private static volatile TimestampCodec measurementCodec = new TimestampCodec(
+			ProvenQueryExecutor.DEFAULT_MEASUREMENT_TIME_UNIT);
+
+	private static volatile TimestampCodec queryCodec = new TimestampCodec(
+			ProvenQueryExecutor.DEFAULT_QUERY_TIME_UNIT);
+
+	private final TimeUnit unit;
+
+	private final TimeUnit epochPrecision;
+
+	private final ZoneId zone;
+
+	/**
+	 * Creates a codec detecting epoch precision, with date times without zone
+	 * in UTC.
+	 * 
+	 * @param unit
+	 *            the unit timestamps are normalized to
+	 */
+	public TimestampCodec(TimeUnit unit) {
+		this(unit, null, ZoneOffset.UTC);
+	}
+
+	/**
+	 * Creates a new codec.
+	 * 
+	 * @param unit
+	 *            the unit timestamps are normalized to
+	 * @param epochPrecision
+	 *            the unit of epoch numbers, null to detect it
+	 * @param zone
+	 *            zone of date times without 'Z' or offset
+	 */
+	public TimestampCodec(TimeUnit unit, TimeUnit epochPrecision, ZoneId zone) {
+		if ((null == unit) || (null == zone)) {
+			throw new IllegalArgumentException("Timestamp unit and zone are required");
+		}
+		this.unit = unit;
+		this.epochPrecision = epochPrecision;
+		this.zone = zone;
+	}
+
+	/**
+	 * @return codec of measurement timestamps, see
+	 *         {@link MessageUtils#getProvenMeasurements}
+	 */
+	public static TimestampCodec getMeasurementCodec() {
+		return measurementCodec;
+	}
+
+	public static void setMeasurementCodec(TimestampCodec codec) {
+		measurementCodec = codec;
+	}
+
+	/**
+	 * @return codec of query time filters, see {@link CompiledQueryFilter}
+	 */
+	public static TimestampCodec getQueryCodec() {
+		return queryCodec;
+	}
+
+	public static void setQueryCodec(TimestampCodec codec) {
+		queryCodec = codec;
+	}
+
+	public TimeUnit getUnit() {
+		return unit;
+	}
+
+	/**
+	 * @return the unit of epoch numbers, null if detected
+	 */
+	public TimeUnit getEpochPrecision() {
+		return epochPrecision;
+	}
+
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	/**
+	 * Detects the precision of an epoch number by its magnitude.
+	 * 
+	 * @param epoch
+	 *            the epoch number
+	 * @return its precision
+	 */
+	public static TimeUnit detectPrecision(long epoch) {
+		long abs = (epoch == Long.MIN_VALUE) ? Long.MAX_VALUE : Math.abs(epoch);
+		if (abs < SECONDS_LIMIT) {
+			return TimeUnit.SECONDS;
+		}
+		if (abs < MILLISECONDS_LIMIT) {
+			return TimeUnit.MILLISECONDS;
+		}
+		if (abs < MICROSECONDS_LIMIT) {
+			return TimeUnit.MICROSECONDS;
+		}
+		return TimeUnit.NANOSECONDS;
+	}
+
+	/**
+	 * Normalizes an epoch number to the codec's unit.
+	 * 
+	 * @param epoch
+	 *            the epoch number, in the codec's epoch precision, or detected
+	 * @return the timestamp in the codec's unit
+	 * @throws IllegalArgumentException
+	 *             if the timestamp is out of range of the unit
+	 */
+	public long normalize(long epoch) {
+		TimeUnit precision = (null == epochPrecision) ? detectPrecision(epoch) : epochPrecision;
+		try {
+			return convert(epoch, precision, 0);
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException("Timestamp out of range: " + epoch);
+		}
+	}
+
+	/**
+	 * Parses a timestamp.
+	 * 
+	 * @param timestamp
+	 *            an epoch number or date time, surrounding whitespace is
+	 *            ignored
+	 * @return the timestamp in the codec's unit
+	 * @throws IllegalArgumentException
+	 *             if the timestamp is not valid
+	 */
+	public long parse(String timestamp) {
+
+		if (null == timestamp) {
+			throw new IllegalArgumentException("Missing timestamp");
+		}
+
+		int start = 0;
+		int end = timestamp.length();
+		while ((start < end) && Character.isWhitespace(timestamp.charAt(start))) {
+			start++;
+		}
+		while ((end > start) && Character.isWhitespace(timestamp.charAt(end - 1))) {
+			end--;
+		}
+
+		if ((end - start > 4) && (timestamp.charAt(start + 4) == '-')) {
+			return parseDateTime(timestamp, start, end);
+		}
+		return parseEpoch(timestamp, start, end);
+	}
+
+	private long parseEpoch(String s, int start, int end) {
+
+		int i = start;
+		boolean isNegative = false;
+		if ((i < end) && ((s.charAt(i) == '-') || (s.charAt(i) == '+'))) {
+			isNegative = (s.charAt(i) == '-');
+			i++;
+		}
+
+		int digitsStart = i;
+		long value = 0;
+		for (; (i < end) && isDigit(s.charAt(i)); i++) {
+			if (value > (Long.MAX_VALUE - 9) / 10) {
+				throw invalid(s);
+			}
+			value = value * 10 + (s.charAt(i) - '0');
+		}
+		if (i == digitsStart) {
+			throw invalid(s);
+		}
+
+		// Fraction, of up to nine digits, in the epoch precision
+		long fraction = 0;
+		long scale = 1;
+		if ((i < end) && (s.charAt(i) == '.')) {
+			i++;
+			for (; (i < end) && isDigit(s.charAt(i)); i++) {
+				if (scale < 1000000000L) {
+					fraction = fraction * 10 + (s.charAt(i) - '0');
+					scale *= 10;
+				}
+			}
+		}
+		if (i != end) {
+			throw invalid(s);
+		}
+
+		if (isNegative) {
+			value = -value;
+			fraction = -fraction;
+		}
+		TimeUnit precision = (null == epochPrecision) ? detectPrecision(value) : epochPrecision;
+		long precisionNanos = precision.toNanos(1);
+		long fractionNanos = ((precisionNanos % scale) == 0) ? (precisionNanos / scale) * fraction
+				: Math.floorDiv(precisionNanos * fraction, scale);
+		try {
+			return convert(value, precision, fractionNanos);
+		} catch (ArithmeticException e) {
+			throw invalid(s);
+		}
+	}
+
+	private long parseDateTime(String s, int start, int end) {
+
+		int i = start;
+		if (end - start < 19) {
+			throw invalid(s);
+		}
+
+		int year = digits(s, i, 4);
+		int month = digits(s, i + 5, 2);
+		int day = digits(s, i + 8, 2);
+		char separator = s.charAt(i + 10);
+		int hour = digits(s, i + 11, 2);
+		int minute = digits(s, i + 14, 2);
+		int second = digits(s, i + 17, 2);
+		if ((s.charAt(i + 7) != '-') || ((separator != 'T') && (separator != ' ')) || (s.charAt(i + 13) != ':')
+				|| (s.charAt(i + 16) != ':')) {
+			throw invalid(s);
+		}
+		if ((month < 1) || (month > 12) || (day < 1) || (day > DAYS_IN_MONTH[month - 1])
+				|| ((month == 2) && (day == 29) && !isLeapYear(year)) || (hour > 23) || (minute > 59)
+				|| (second > 59)) {
+			throw invalid(s);
+		}
+		i += 19;
+
+		// Fraction, of up to nine digits, in nanoseconds
+		long nanos = 0;
+		if ((i < end) && (s.charAt(i) == '.')) {
+			i++;
+			int digitsStart = i;
+			long scale = 100000000L;
+			for (; (i < end) && isDigit(s.charAt(i)); i++) {
+				nanos += (s.charAt(i) - '0') * scale;
+				scale /= 10;
+			}
+			if (i == digitsStart) {
+				throw invalid(s);
+			}
+		}
+
+		long localSeconds = daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second;
+
+		// Zone, 'Z', an offset or none
+		long offsetSeconds;
+		if (i == end) {
+			if (zone instanceof ZoneOffset) {
+				offsetSeconds = ((ZoneOffset) zone).getTotalSeconds();
+			} else {
+				offsetSeconds = zone.getRules()
+						.getOffset(LocalDateTime.ofEpochSecond(localSeconds, 0, ZoneOffset.UTC)).getTotalSeconds();
+			}
+		} else if ((s.charAt(i) == 'Z') && (i + 1 == end)) {
+			offsetSeconds = 0;
+		} else if (((s.charAt(i) == '+') || (s.charAt(i) == '-')) && (end - i == 6) && (s.charAt(i + 3) == ':')) {
+			offsetSeconds = digits(s, i + 1, 2) * 3600L + digits(s, i + 4, 2) * 60L;
+			if (s.charAt(i) == '-') {
+				offsetSeconds = -offsetSeconds;
+			}
+		} else {
+			throw invalid(s);
+		}
+
+		try {
+			return convert(localSeconds - offsetSeconds, TimeUnit.SECONDS, nanos);
+		} catch (ArithmeticException e) {
+			throw invalid(s);
+		}
+	}
+
+	/**
+	 * Converts a time to the codec's unit, rounding down.
+	 * 
+	 * @param value
+	 *            the time in its precision
+	 * @param precision
+	 *            the time's unit
+	 * @param fractionNanos
+	 *            nanoseconds added to the time, less than a precision unit
+	 * @throws ArithmeticException
+	 *             if the result is out of range
+	 */
+	private long convert(long value, TimeUnit precision, long fractionNanos) {
+		long precisionNanos = precision.toNanos(1);
+		long unitNanos = unit.toNanos(1);
+		if (unitNanos <= precisionNanos) {
+			return Math.addExact(Math.multiplyExact(value, precisionNanos / unitNanos),
+					Math.floorDiv(fractionNanos, unitNanos));
+		}
+		long ratio = unitNanos / precisionNanos;
+		return Math.floorDiv(value, ratio)
+				+ Math.floorDiv(Math.floorMod(value, ratio) * precisionNanos + fractionNanos, unitNanos);
+	}
+
+	/**
+	 * Days since 1970-01-01 of a proleptic Gregorian date.
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		long y = (month <= 2) ? year - 1 : year;
+		long era = ((y >= 0) ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static boolean isLeapYear(int year) {
+		return ((year % 4) == 0) && (((year % 100) != 0) || ((year % 400) == 0));
+	}
+
+	private static int digits(String s, int index, int count) {
+		int ret = 0;
+		for (int i = index; i < index + count; i++) {
+			char c = s.charAt(i);
+			if (!isDigit(c)) {
+				throw invalid(s);
+			}
+			ret = ret * 10 + (c - '0');
+		}
+		return ret;
+	}
+
+	private static boolean isDigit(char c) {
+		return (c >= '0') && (c <= '9');
+	}
+
+	private static IllegalArgumentException invalid(String s) {
+		return new IllegalArgumentException("Invalid timestamp: " + s);
+	}
+
+	@Override
+	public String toString() {
+		return "unit=" + unit + ", precision=" + ((null == epochPrecision) ? "detected" : epochPrecision)
+				+ ", zone=" + zone;
+	}
+
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+package gov.pnnl.proven.message;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of a message model warm-up, see {@link MessageModel#warmUp(int)}.
+ * Latencies are for a round, that is, one build of each warm-up sample
+ * message.
+ * 
+ * @author d3j766
+ *
+ */
+public class WarmUpReport {
+
+	private final int iterations;
+	private final int steadyStateIteration;
+	private final long firstRoundNanos;
+	private final long steadyStateRoundNanos;
+	private final long totalMillis;
+	private final Map<MessageContent, Integer> builds;
+	private final List<String> failures;
+
+	WarmUpReport(int iterations, int steadyStateIteration, long firstRoundNanos, long steadyStateRoundNanos,
+			long totalMillis, Map<MessageContent, Integer> builds, List<String> failures) {
+		this.iterations = iterations;
+		this.steadyStateIteration = steadyStateIteration;
+		this.firstRoundNanos = firstRoundNanos;
+		this.steadyStateRoundNanos = steadyStateRoundNanos;
+		this.totalMillis = totalMillis;
+		this.builds = Collections.unmodifiableMap(builds);
+		this.failures = Collections.unmodifiableList(failures);
+	}
+
+	/**
+	 * Indicates if round latency stabilized during the warm-up.
+	 * 
+	 * @return true if steady-state latency was reached
+	 */
+	public boolean isSteadyState() {
+		return steadyStateIteration > 0;
+	}
+
+	/**
+	 * Number of rounds run.
+	 * 
+	 * @return rounds run
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Round at which steady-state latency was reached.
+	 * 
+	 * @return the round number, or -1 if steady state was not reached
+	 */
+	public int getSteadyStateIteration() {
+		return steadyStateIteration;
+	}
+
+	public long getFirstRoundNanos() {
+		return firstRoundNanos;
+	}
+
+	/**
+	 * Mean round latency over the last measured window.
+	 * 
+	 * @return mean round latency in nanoseconds
+	 */
+	public long getSteadyStateRoundNanos() {
+		return steadyStateRoundNanos;
+	}
+
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	/**
+	 * Number of successful builds for each message content type exercised.
+	 * 
+	 * @return build counts by content type
+	 */
+	public Map<MessageContent, Integer> getBuilds() {
+		return builds;
+	}
+
+	/**
+	 * Samples that failed to build, each reported once.
+	 * 
+	 * @return failure descriptions
+	 */
+	public List<String> getFailures() {
+		return failures;
+	}
+
+	@Override
+	public String toString() {
+		return "WarmUpReport [iterations=" + iterations + ", steadyStateIteration=" + steadyStateIteration
+				+ ", firstRoundNanos=" + firstRoundNanos + ", steadyStateRoundNanos=" + steadyStateRoundNanos
+				+ ", totalMillis=" + totalMillis + ", builds=" + builds + ", failures=" + failures.size() + "]";
+	}
+
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import gov.pnnl.proven.message.AdaptiveBatchController.Decision;
+
+public class AdaptiveBatchControllerTest {
+
+	/**
+	 * Batch builder reporting set counts, latencies are recorded by the
+	 * tests.
+	 */
+	private static final class RecordedBuilder extends MessageBatchBuilder {
+
+		private int queueSize;
+		private long batches;
+		private long batched;
+		private long unbatched;
+
+		RecordedBuilder(int maxBatchSize, long lingerMillis) {
+			super(maxBatchSize, lingerMillis);
+		}
+
+		/**
+		 * Records builds of a window, each with the same latencies.
+		 */
+		void record(int builds, long waitMillis, long buildMillis) {
+			for (int i = 0; i < builds; i++) {
+				getWaitTimes().record(TimeUnit.MILLISECONDS.toNanos(waitMillis));
+				getBuildTimes().record(TimeUnit.MILLISECONDS.toNanos(buildMillis));
+				getLatencies().record(TimeUnit.MILLISECONDS.toNanos(waitMillis + buildMillis));
+			}
+		}
+
+		@Override
+		public int getQueueSize() {
+			return queueSize;
+		}
+
+		@Override
+		public long getBatchCount() {
+			return batches;
+		}
+
+		@Override
+		public long getBatchedCount() {
+			return batched;
+		}
+
+		@Override
+		public long getUnbatchedCount() {
+			return unbatched;
+		}
+	}
+
+	private RecordedBuilder builder;
+
+	private AdaptiveBatchController controller(int batchSize, long lingerMillis) {
+		builder = new RecordedBuilder(batchSize, lingerMillis);
+		AdaptiveBatchController ret = new AdaptiveBatchController(builder, 100, TimeUnit.MILLISECONDS);
+		ret.setHeadroom(0.5);
+		return ret;
+	}
+
+	@After
+	public void shutdown() throws InterruptedException {
+		if (null != builder) {
+			builder.shutdown(1, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void holdsWithoutBuilds() {
+		AdaptiveBatchController controller = controller(32, 4);
+		assertEquals(Decision.Hold, controller.adjust());
+		assertEquals(32, controller.getBatchSize());
+		assertEquals(4, controller.getLingerMillis());
+		assertEquals(1, controller.getDecisionCount(Decision.Hold));
+	}
+
+	@Test
+	public void decreasesLingerWhenWaitDominates() {
+		AdaptiveBatchController controller = controller(32, 8);
+		builder.record(100, 400, 10);
+
+		assertEquals(Decision.DecreaseLinger, controller.adjust());
+		assertEquals(4, controller.getLingerMillis());
+		assertEquals(32, controller.getBatchSize());
+		assertEquals(400, controller.getLastWaitP99(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void decreasesBatchSizeWhenBuildDominates() {
+		AdaptiveBatchController controller = controller(32, 8);
+		builder.record(100, 10, 400);
+
+		assertEquals(Decision.DecreaseBatchSize, controller.adjust());
+		assertEquals(16, controller.getBatchSize());
+		assertEquals(8, controller.getLingerMillis());
+	}
+
+	@Test
+	public void decreasesBatchSizeForWaitsWithoutLinger() {
+		AdaptiveBatchController controller = controller(8, 0);
+		builder.record(100, 400, 10);
+		assertEquals(Decision.DecreaseBatchSize, controller.adjust());
+		assertEquals(4, controller.getBatchSize());
+	}
+
+	@Test
+	public void decreasesLingerAtMinimumBatchSize() {
+		AdaptiveBatchController controller = controller(1, 8);
+		builder.record(100, 10, 400);
+
+		assertEquals(Decision.DecreaseLinger, controller.adjust());
+		assertEquals(1, controller.getBatchSize());
+		assertEquals(4, controller.getLingerMillis());
+	}
+
+	@Test
+	public void growsBatchSizeWithBacklog() {
+		AdaptiveBatchController controller = controller(32, 0);
+		controller.setBatchSizeLimits(1, 34, 4);
+		builder.queueSize = 40;
+		builder.record(100, 1, 1);
+
+		assertEquals(Decision.IncreaseBatchSize, controller.adjust());
+		assertEquals(34, controller.getBatchSize());
+		assertEquals(40, controller.getLastQueueSize());
+
+		// At the limit, a backlog doesn't grow it further
+		builder.record(100, 1, 1);
+		assertEquals(Decision.Hold, controller.adjust());
+		assertEquals(34, controller.getBatchSize());
+	}
+
+	@Test
+	public void growsLingerOnlyWhileBatching() {
+		AdaptiveBatchController controller = controller(32, 0);
+		controller.setLingerLimits(1, 1);
+
+		// All builds fell back to unbatched
+		builder.unbatched = 100;
+		builder.record(100, 1, 1);
+		assertEquals(Decision.Hold, controller.adjust());
+		assertEquals(0.0, controller.getLastBatchedFraction(), 0);
+
+		// Under-filled batches
+		builder.batches = 25;
+		builder.batched = 100;
+		builder.record(100, 1, 1);
+		assertEquals(Decision.IncreaseLinger, controller.adjust());
+		assertEquals(1, controller.getLingerMillis());
+		assertEquals(4.0, controller.getLastBatchFill(), 0);
+		assertEquals(1.0, controller.getLastBatchedFraction(), 0);
+
+		// At the limit
+		builder.batches = 50;
+		builder.batched = 200;
+		builder.record(100, 1, 1);
+		assertEquals(Decision.Hold, controller.adjust());
+	}
+
+	@Test
+	public void holdsBetweenHeadroomAndTarget() {
+		AdaptiveBatchController controller = controller(32, 4);
+		builder.queueSize = 100;
+		builder.record(100, 35, 35);
+
+		assertEquals(Decision.Hold, controller.adjust());
+		assertEquals(32, controller.getBatchSize());
+		assertEquals(4, controller.getLingerMillis());
+	}
+
+	@Test
+	public void adjustsOnBuildsSinceLastAdjustment() {
+		AdaptiveBatchController controller = controller(32, 8);
+		builder.record(100, 400, 10);
+		assertEquals(Decision.DecreaseLinger, controller.adjust());
+
+		// The slow builds are not seen again
+		assertEquals(Decision.Hold, controller.adjust());
+		builder.record(100, 1, 1);
+		builder.queueSize = 32;
+		assertEquals(Decision.IncreaseBatchSize, controller.adjust());
+		assertEquals(1, controller.getDecisionCount(Decision.DecreaseLinger));
+		assertEquals(1, controller.getDecisionCount(Decision.IncreaseBatchSize));
+		assertEquals(Decision.IncreaseBatchSize, controller.getLastDecision());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidBatchSizeLimits() {
+		controller(32, 4).setBatchSizeLimits(8, 4, 1);
+	}
+
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static gov.pnnl.proven.message.TestMeasurements.times;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+public class CompiledQueryFilterTest {
+
+	private static CompiledQueryFilter filter(String field, String value, String datatype)
+			throws InvalidProvenQueryException {
+		return new ProvenQueryFilter(field, value, datatype).compile();
+	}
+
+	private static ProvenMeasurement measurement(long timestamp, String mrid, String magnitude, String count) {
+		return TestMeasurements.measurement(timestamp, tag("mrid", mrid),
+				field("magnitude", magnitude, MetricValueType.Double),
+				(null == count) ? null : field("count", count, MetricValueType.Integer));
+	}
+
+	@Test
+	public void longFilterComparesDecimalValues() throws InvalidProvenQueryException {
+		CompiledQueryFilter filter = filter("magnitude", "GT:2", "integer");
+		assertTrue(filter.test("2.5"));
+		assertFalse(filter.test("1.5"));
+		assertTrue(filter.test("2.5", MetricValueType.Double));
+		assertFalse(filter.test("2", MetricValueType.Long));
+	}
+
+	@Test
+	public void numericFilterDoesNotMatchText() throws InvalidProvenQueryException {
+		assertFalse(filter("magnitude", "GT:2", "double").test("high", MetricValueType.String));
+		assertTrue(filter("magnitude", "NE:2", "double").test("high", MetricValueType.String));
+		assertFalse(filter("magnitude", "GT:2", "double").test("x", MetricValueType.Double));
+	}
+
+	@Test
+	public void largeIntegersCompareExactly() throws InvalidProvenQueryException {
+		CompiledQueryFilter filter = filter("count", "EQ:9007199254740993", "long");
+		assertTrue(filter.test("9007199254740993", MetricValueType.Long));
+		assertFalse(filter.test("9007199254740992", MetricValueType.Long));
+	}
+
+	@Test
+	public void storeMatchesGenericSource() throws InvalidProvenQueryException {
+
+		List<ProvenMeasurement> measurements = new ArrayList<ProvenMeasurement>();
+		for (int i = 0; i < 40; i++) {
+			measurements.add(measurement(i, "_" + (i % 3), Double.toString(i * 0.5), (i % 4 == 0) ? null
+					: Integer.toString(i)));
+		}
+		MeasurementStore store = new MeasurementStore(1000, 8);
+		store.addAll(measurements);
+		MeasurementSource source = MeasurementSource.of(measurements);
+
+		List<List<CompiledQueryFilter>> queries = Arrays.asList(
+				Arrays.asList(filter("magnitude", "GE:5.5", "double")),
+				Arrays.asList(filter("mrid", "_1", "string"), filter("count", "LT:30", "integer")),
+				Arrays.asList(filter("count", "NE:7", "integer")),
+				Arrays.asList(filter("magnitude", "BETWEEN:3,9", "integer"), filter("mrid", "NE:_2", "string")),
+				Arrays.asList(filter("mrid", "_9", "string")));
+		for (List<CompiledQueryFilter> filters : queries) {
+			assertEquals(filters.toString(), times(source.getMeasurements("voltage", 0, 100, filters)
+					.collect(Collectors.toList())), times(store.getMeasurements("voltage", 0, 100, filters)
+							.collect(Collectors.toList())));
+		}
+		assertEquals(29, store.getMeasurements("voltage", 0, 100, queries.get(0)).count());
+	}
+
+}
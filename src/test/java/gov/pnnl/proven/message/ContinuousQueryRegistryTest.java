@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+public class ContinuousQueryRegistryTest {
+
+	private static ProvenQueryTimeSeries query(ProvenQueryFilter... filters) {
+		ProvenQueryTimeSeries ret = new ProvenQueryTimeSeries();
+		ret.setMeasurementName(TestMeasurements.MEASUREMENT);
+		ret.setFilters(new ArrayList<ProvenQueryFilter>(Arrays.asList(filters)));
+		return ret;
+	}
+
+	private static ProvenMeasurement voltage(String mrid, String magnitude) {
+		return measurement(1, tag("mrid", mrid), field("magnitude", magnitude, MetricValueType.Double));
+	}
+
+	@Test
+	public void matchesIndexedAndResidualFilters() throws InvalidProvenQueryException {
+		ContinuousQueryRegistry registry = new ContinuousQueryRegistry();
+		List<String> matched = new CopyOnWriteArrayList<String>();
+		registry.register(query(new ProvenQueryFilter("mrid", "_a", "string"),
+				new ProvenQueryFilter("magnitude", "GT:1", "double")), (s, m) -> matched.add("indexed"));
+		registry.register(query(new ProvenQueryFilter("magnitude", "LT:1", "double")),
+				(s, m) -> matched.add("residual"));
+
+		assertEquals(1, registry.match(voltage("_a", "2.0")));
+		assertEquals(0, registry.match(voltage("_b", "2.0")));
+		assertEquals(1, registry.match(voltage("_b", "0.5")));
+		assertEquals(0, registry.match(measurement("current", 1, tag("mrid", "_a"))));
+		assertEquals(Arrays.asList("indexed", "residual"), matched);
+	}
+
+	@Test
+	public void prunesCancelledQueries() throws InvalidProvenQueryException {
+		ContinuousQueryRegistry registry = new ContinuousQueryRegistry();
+		List<ContinuousQueryRegistry.Subscription> subscriptions = new ArrayList<ContinuousQueryRegistry.Subscription>();
+		for (int i = 0; i < 10; i++) {
+			subscriptions.add(registry.register(query(new ProvenQueryFilter("mrid", "_" + i, "string")),
+					(s, m) -> {
+					}));
+		}
+		subscriptions.add(registry.register(query(), (s, m) -> {
+		}));
+		assertEquals(1, registry.getIndexCount());
+
+		for (ContinuousQueryRegistry.Subscription subscription : subscriptions) {
+			subscription.cancel();
+		}
+		assertEquals(0, registry.size());
+		assertEquals(0, registry.getIndexCount());
+	}
+
+	@Test
+	public void keepsQueriesRegisteredWhilePruning() throws Exception {
+		ContinuousQueryRegistry registry = new ContinuousQueryRegistry();
+		ProvenQueryTimeSeries query = query(new ProvenQueryFilter("mrid", "_a", "string"));
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 4; t++) {
+				futures.add(pool.submit(() -> {
+					for (int i = 0; i < 500; i++) {
+						registry.register(query, (s, m) -> {
+						}).cancel();
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(0, registry.getIndexCount());
+
+		registry.register(query, (s, m) -> {
+		});
+		assertEquals(1, registry.match(voltage("_a", "1.0")));
+	}
+
+}
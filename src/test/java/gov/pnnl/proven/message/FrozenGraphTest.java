@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.shared.AddDeniedException;
+import org.apache.jena.shared.DeleteDeniedException;
+import org.junit.Test;
+
+public class FrozenGraphTest {
+
+	private static final String NS = "http://proven.pnnl.gov/test#";
+
+	private static Statement statement(String s, String p, String o) {
+		return ResourceFactory.createStatement(ResourceFactory.createResource(NS + s),
+				ResourceFactory.createProperty(NS + p), ResourceFactory.createResource(NS + o));
+	}
+
+	private static Model model(Statement... statements) {
+		Model ret = ModelFactory.createDefaultModel();
+		for (Statement statement : statements) {
+			ret.add(statement);
+		}
+		return ret;
+	}
+
+	@Test
+	public void mergesModelsWithoutDuplicates() {
+		Statement shared = statement("a", "p", "b");
+		Statement first = statement("a", "p", "c");
+		Statement second = statement("d", "q", "b");
+
+		Model frozen = FrozenGraph.freeze(model(shared, first), model(shared, second));
+
+		assertEquals(3, frozen.size());
+		assertTrue(frozen.contains(shared));
+		assertTrue(frozen.contains(first));
+		assertTrue(frozen.contains(second));
+
+		Node a = NodeFactory.createURI(NS + "a");
+		Node b = NodeFactory.createURI(NS + "b");
+		assertEquals(2, frozen.getGraph().find(a, Node.ANY, Node.ANY).toList().size());
+		assertEquals(2, frozen.getGraph().find(Node.ANY, Node.ANY, b).toList().size());
+		assertTrue(frozen.getGraph().contains(Triple.create(a, NodeFactory.createURI(NS + "p"), b)));
+	}
+
+	@Test
+	public void rejectsChanges() {
+		Statement statement = statement("a", "p", "b");
+		Model frozen = FrozenGraph.freeze(model(statement));
+
+		try {
+			frozen.add(statement("x", "p", "y"));
+			fail("Frozen model accepted an added statement");
+		} catch (AddDeniedException e) {
+			// expected
+		}
+		try {
+			frozen.remove(statement);
+			fail("Frozen model accepted a removed statement");
+		} catch (DeleteDeniedException e) {
+			// expected
+		}
+		assertEquals(1, frozen.size());
+		assertTrue(frozen.contains(statement));
+	}
+
+	@Test
+	public void keepsFrozenModel() {
+		Model frozen = FrozenGraph.freeze(model(statement("a", "p", "b")));
+		assertSame(frozen, FrozenGraph.freeze(frozen));
+	}
+
+	@Test
+	public void freezesMessageModelGraphs() {
+		MessageModel mm = MessageModel.create(null, MessageModel.MESSAGE_MODEL_PATH);
+		assertTrue(mm.getShapesModel().getGraph() instanceof FrozenGraph);
+		assertTrue(mm.getOntologyModel().getGraph() instanceof FrozenGraph);
+		try {
+			mm.getShapesModel().add(statement("x", "p", "y"));
+			fail("Shared shapes model accepted an added statement");
+		} catch (AddDeniedException e) {
+			// expected
+		}
+	}
+
+}
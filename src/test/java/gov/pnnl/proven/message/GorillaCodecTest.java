@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static gov.pnnl.proven.message.TestMeasurements.metrics;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.GorillaCodec.BitReader;
+import gov.pnnl.proven.message.GorillaCodec.BitWriter;
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+public class GorillaCodecTest {
+
+	private static long[] roundTrip(long[] values) {
+		BitWriter out = new BitWriter();
+		GorillaCodec.writeLongs(out, values, values.length);
+		return GorillaCodec.readLongs(new BitReader(out.toByteArray()), values.length);
+	}
+
+	private static double[] roundTrip(double[] values) {
+		BitWriter out = new BitWriter();
+		GorillaCodec.writeDoubles(out, values, values.length);
+		return GorillaCodec.readDoubles(new BitReader(out.toByteArray()), values.length);
+	}
+
+	@Test
+	public void roundTripsLongsOfEveryDeltaOfDeltaWidth() {
+
+		// Delta-of-deltas of 0, 7, 9, 12 and 64 bits, and wrapping deltas
+		long[] values = { 1530628305L, 1530628306L, 1530628307L, 1530628370L, 1530628200L, 1530630000L,
+				1530628305L + (1L << 40), 0L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, -1L };
+		assertArrayEquals(values, roundTrip(values));
+		assertArrayEquals(new long[] { Long.MIN_VALUE }, roundTrip(new long[] { Long.MIN_VALUE }));
+		assertEquals(0, roundTrip(new long[0]).length);
+	}
+
+	@Test
+	public void roundTripsEvenlySpacedLongsInABitEach() {
+		long[] values = new long[1000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 1530628305L + 3 * i;
+		}
+		BitWriter out = new BitWriter();
+		GorillaCodec.writeLongs(out, values, values.length);
+
+		// Full first value, a 7 bit first delta, then a bit per value
+		assertEquals(64 + 9 + 998, out.size());
+		assertArrayEquals(values, GorillaCodec.readLongs(new BitReader(out.toByteArray()), values.length));
+	}
+
+	@Test
+	public void roundTripsDoublesBitExactly() {
+		double otherNaN = Double.longBitsToDouble(0x7FF8000000000001L);
+		double[] values = { 120.0, 120.0, 120.5, -0.0, 0.0, Double.NaN, otherNaN, Double.NaN,
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE, 1.0e-300,
+				119.99999999999999 };
+		double[] decoded = roundTrip(values);
+		assertEquals(values.length, decoded.length);
+		for (int i = 0; i < values.length; i++) {
+			assertEquals("value " + i, Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decoded[i]));
+		}
+		assertEquals(0, roundTrip(new double[0]).length);
+	}
+
+	@Test
+	public void rejectsTruncatedData() {
+		BitWriter out = new BitWriter();
+		GorillaCodec.writeLongs(out, new long[] { 1, 2, 1000000 }, 3);
+		byte[] data = out.toByteArray();
+		try {
+			GorillaCodec.readLongs(new BitReader(Arrays.copyOf(data, data.length - 2)), 3);
+			fail("Truncated data read");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void roundTripsBlockWithMissingValues() {
+		ProvenMetric tag = tag("mrid", "_abc");
+		List<ProvenMeasurement> measurements = Arrays.asList(
+				measurement(2, tag, field("angle", "NaN", MetricValueType.Double),
+						field("count", "3", MetricValueType.Integer)),
+				measurement(1, tag, field("angle", "-12.5", MetricValueType.Double),
+						field("count", Long.toString(Long.MAX_VALUE), MetricValueType.Long),
+						field("state", "open", MetricValueType.String)),
+				measurement(3, tag, field("count", null, MetricValueType.Integer)));
+
+		List<ProvenMeasurementBlock> blocks = ProvenMeasurementBlock.encode(measurements);
+		assertEquals(1, blocks.size());
+		List<ProvenMeasurement> rows = blocks.get(0).toMeasurements();
+		assertEquals(3, rows.size());
+
+		Map<String, ProvenMetric> first = metrics(rows.get(0));
+		assertEquals(Long.valueOf(1), rows.get(0).getTimestamp());
+		assertEquals("_abc", first.get("mrid").getValue());
+		assertEquals("-12.5", first.get("angle").getValue());
+		assertEquals(Long.toString(Long.MAX_VALUE), first.get("count").getValue());
+		assertEquals(MetricValueType.Long, first.get("count").getValueType());
+		assertEquals("open", first.get("state").getValue());
+
+		// Mixed Integer and Long widened to Long, NaN kept
+		Map<String, ProvenMetric> second = metrics(rows.get(1));
+		assertEquals("NaN", second.get("angle").getValue());
+		assertEquals("3", second.get("count").getValue());
+		assertEquals(MetricValueType.Long, second.get("count").getValueType());
+		assertFalse(second.containsKey("state"));
+
+		// Null valued metrics are dropped
+		Map<String, ProvenMetric> third = metrics(rows.get(2));
+		assertEquals(Collections.singleton("mrid"), third.keySet());
+	}
+
+}
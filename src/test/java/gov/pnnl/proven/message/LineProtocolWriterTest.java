@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+public class LineProtocolWriterTest {
+
+	private static String line(LineProtocolWriter writer, ProvenMeasurement measurement) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int length = writer.write(measurement, out);
+		assertEquals(out.size(), length);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String line(ProvenMeasurement measurement) throws IOException {
+		return line(new LineProtocolWriter(), measurement);
+	}
+
+	@Test
+	public void writesSortedEscapedTags() throws IOException {
+		assertEquals("volt\\ age\\,x,a=x\\ y\\=z,b=2 count=3i 10\n",
+				line(measurement("volt age,x", 10, tag("b", "2"), tag("a", "x y=z"),
+						field("count", "3", MetricValueType.Integer))));
+	}
+
+	@Test
+	public void writesFieldsByValueType() throws IOException {
+		LineProtocolWriter writer = new LineProtocolWriter();
+		assertEquals("m n=3i 1\n", line(writer, measurement("m", 1, field("n", "3", MetricValueType.Integer))));
+		assertEquals("m n=4i 1\n", line(writer, measurement("m", 1, field("n", "4", MetricValueType.Long))));
+		assertEquals("m x=1.5 1\n", line(writer, measurement("m", 1, field("x", "1.5", MetricValueType.Float))));
+		assertEquals("m x=-2.5 1\n", line(writer, measurement("m", 1, field("x", "-2.5", MetricValueType.Double))));
+		assertEquals("m ok=true 1\n", line(writer, measurement("m", 1, field("ok", "true", MetricValueType.Boolean))));
+		assertEquals("m s=\"a\\\"b\\\\c, d\" 1\n",
+				line(writer, measurement("m", 1, field("s", "a\"b\\c, d", MetricValueType.String))));
+		assertEquals("m s=\"7\" 1\n", line(writer, measurement("m", 1, field("s", "7", null))));
+	}
+
+	@Test
+	public void skipsMeasurementsWithoutFields() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(0, new LineProtocolWriter().write(measurement("m", 1, tag("a", "1")), out));
+		assertEquals(0, new LineProtocolWriter().write(measurement("m", 1, field("", "1", MetricValueType.Integer)), out));
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	public void leavesOutEmptyTagsAndMissingParts() throws IOException {
+		ProvenMeasurement measurement = measurement(null, 1, tag("a", ""), tag("", "b"),
+				field("n", "1", MetricValueType.Integer));
+		measurement.setTimestamp(null);
+		assertEquals(MessageUtils.DEFAULT_MEASUREMENT + " n=1i\n", line(measurement));
+	}
+
+	@Test
+	public void writesNegativeAndExtremeTimestamps() throws IOException {
+		for (long timestamp : new long[] { 0, -1, -1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE }) {
+			assertEquals("m n=1i " + timestamp + "\n",
+					line(measurement("m", timestamp, field("n", "1", MetricValueType.Integer))));
+		}
+	}
+
+	@Test
+	public void encodesUtf8() throws IOException {
+		String text = "\u00e9\u20ac\ud83d\ude00";
+		assertEquals("m,t=" + text + " s=\"" + text + "\" 1\n",
+				line(measurement("m", 1, tag("t", text), field("s", text, MetricValueType.String))));
+
+		// Unpaired surrogates can't be encoded
+		assertEquals("m s=\"?x\" 1\n", line(measurement("m", 1, field("s", "\ud83dx", MetricValueType.String))));
+	}
+
+	@Test
+	public void growsLineBufferAndTags() throws IOException {
+		char[] chars = new char[1000];
+		Arrays.fill(chars, 'n');
+		String name = new String(chars);
+		List<ProvenMetric> metrics = new ArrayList<ProvenMetric>();
+		StringBuilder expected = new StringBuilder(name);
+		for (int i = 10; i < 50; i++) {
+			metrics.add(tag("t" + i, Integer.toString(i)));
+			expected.append(",t").append(i).append('=').append(i);
+		}
+		metrics.add(field("n", "1", MetricValueType.Integer));
+		expected.append(" n=1i 1\n");
+
+		LineProtocolWriter writer = new LineProtocolWriter(1);
+		ProvenMeasurement measurement = measurement(name, 1, metrics.toArray(new ProvenMetric[0]));
+		assertEquals(expected.toString(), line(writer, measurement));
+		assertEquals(expected.toString(), line(writer, measurement));
+		assertEquals("m n=1i 1\n", line(writer, measurement("m", 1, field("n", "1", MetricValueType.Integer))));
+	}
+
+	@Test
+	public void writesWholeLinesToBuffers() {
+		LineProtocolWriter writer = new LineProtocolWriter();
+		ProvenMeasurement measurement = measurement("m", 1, field("n", "1", MetricValueType.Integer));
+		ByteBuffer target = ByteBuffer.allocate(12);
+		assertEquals(9, writer.write(measurement, target));
+		try {
+			writer.write(measurement, target);
+			fail();
+		} catch (BufferOverflowException e) {
+			// Expected
+		}
+		assertEquals(9, target.position());
+		assertEquals("m n=1i 1\n", new String(target.array(), 0, target.position(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void writesAllLines() throws IOException {
+		List<ProvenMeasurement> measurements = Arrays.asList(
+				measurement("m", 1, field("n", "1", MetricValueType.Integer)),
+				measurement("m", 2, tag("a", "1")),
+				measurement("m", 3, field("n", "3", MetricValueType.Integer)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(18, new LineProtocolWriter().writeAll(measurements, out));
+		assertEquals("m n=1i 1\nm n=3i 3\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+}
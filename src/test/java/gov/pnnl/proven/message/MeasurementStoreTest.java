@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static gov.pnnl.proven.message.TestMeasurements.metrics;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static gov.pnnl.proven.message.TestMeasurements.times;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+public class MeasurementStoreTest {
+
+	private static List<ProvenMeasurement> scan(MeasurementStore store) {
+		return store.getMeasurements(TestMeasurements.MEASUREMENT, Long.MIN_VALUE, Long.MAX_VALUE)
+				.collect(Collectors.toList());
+	}
+
+	private static List<ProvenMeasurement> scan(MeasurementStore store, String mrid) {
+		return scan(store).stream().filter(m -> mrid.equals(metrics(m).get("mrid").getValue()))
+				.collect(Collectors.toList());
+	}
+
+	@Test
+	public void keepsLongValuesExactly() {
+		MeasurementStore store = new MeasurementStore(1000, 4);
+		long large = (1L << 53) + 1;
+		store.add(measurement(1, field("count", Long.toString(large), MetricValueType.Long)));
+		store.add(measurement(2, field("count", "7", MetricValueType.Integer)));
+
+		List<ProvenMeasurement> rows = scan(store);
+		ProvenMetric first = metrics(rows.get(0)).get("count");
+		assertEquals(Long.toString(large), first.getValue());
+		assertEquals(MetricValueType.Long, first.getValueType());
+		assertEquals("7", metrics(rows.get(1)).get("count").getValue());
+	}
+
+	@Test
+	public void keepsIntegerValueType() {
+		MeasurementStore store = new MeasurementStore(1000, 4);
+		store.add(measurement(1, field("count", "3", MetricValueType.Integer)));
+
+		ProvenMetric count = metrics(scan(store).get(0)).get("count");
+		assertEquals("3", count.getValue());
+		assertEquals(MetricValueType.Integer, count.getValueType());
+	}
+
+	@Test
+	public void widensMixedNumericFieldToDouble() {
+		MeasurementStore store = new MeasurementStore(1000, 4);
+		store.add(measurement(1, field("value", "3", MetricValueType.Integer)));
+		store.add(measurement(2, field("value", "2.5", MetricValueType.Double)));
+
+		List<ProvenMeasurement> rows = scan(store);
+		assertEquals("3.0", metrics(rows.get(0)).get("value").getValue());
+		assertEquals(MetricValueType.Double, metrics(rows.get(1)).get("value").getValueType());
+	}
+
+	@Test
+	public void keepsTagValueType() {
+		MeasurementStore store = new MeasurementStore(1000, 4);
+		store.add(measurement(1, new ProvenMetric("phase", "2", true, MetricValueType.Integer),
+				field("value", "1.5", MetricValueType.Double)));
+
+		ProvenMetric phase = metrics(scan(store).get(0)).get("phase");
+		assertEquals(MetricValueType.Integer, phase.getValueType());
+		assertTrue(phase.isMetadata());
+	}
+
+	@Test
+	public void addsLongBatchColumns() {
+		MeasurementStore store = new MeasurementStore(1000, 4);
+		long large = Long.MAX_VALUE - 1;
+		store.addBatch("voltage", Collections.singletonMap("mrid", "_a"), new long[] { 1, 2 },
+				Collections.singletonMap("magnitude", new double[] { 1.5, 2.5 }),
+				Collections.singletonMap("count", new long[] { large, 3 }));
+
+		List<ProvenMeasurement> rows = scan(store);
+		assertEquals(2, rows.size());
+		assertEquals(Long.toString(large), metrics(rows.get(0)).get("count").getValue());
+		assertEquals(MetricValueType.Long, metrics(rows.get(0)).get("count").getValueType());
+		assertEquals("2.5", metrics(rows.get(1)).get("magnitude").getValue());
+	}
+
+	@Test
+	public void keepsValuesAcrossChunkSplits() {
+		MeasurementStore store = new MeasurementStore(1000, 2);
+		for (long t : new long[] { 10, 20, 30, 15, 25, 5 }) {
+			store.add(measurement(t, field("count", Long.toString(t * 1000000000000L), MetricValueType.Long)));
+		}
+
+		List<ProvenMeasurement> rows = scan(store);
+		assertEquals(6, rows.size());
+		long previous = Long.MIN_VALUE;
+		for (ProvenMeasurement row : rows) {
+			long t = row.getTimestamp();
+			assertTrue(t > previous);
+			assertEquals(Long.toString(t * 1000000000000L), metrics(row).get("count").getValue());
+			previous = t;
+		}
+	}
+
+	@Test
+	public void keepsRetentionWindowPerSeries() {
+		MeasurementStore store = new MeasurementStore(100, 4);
+		for (long t = 0; t <= 50; t += 10) {
+			assertTrue(store.add(measurement(t, tag("mrid", "_a"), field("value", "1", MetricValueType.Integer))));
+		}
+
+		// A far-ahead timestamp only moves its own series' window
+		assertTrue(store.add(measurement(1000000, tag("mrid", "_b"), field("value", "1", MetricValueType.Integer))));
+		assertEquals(1000000, store.getLatestTime());
+		assertEquals(6, scan(store, "_a").size());
+		assertTrue(store.add(measurement(60, tag("mrid", "_a"), field("value", "1", MetricValueType.Integer))));
+		assertFalse(store.add(measurement(60, tag("mrid", "_b"), field("value", "1", MetricValueType.Integer))));
+
+		assertTrue(store.add(measurement(200, tag("mrid", "_a"), field("value", "1", MetricValueType.Integer))));
+		assertEquals(Collections.singleton(200L), times(scan(store, "_a")));
+		assertEquals(1, scan(store, "_b").size());
+		assertEquals(2, store.size());
+	}
+
+	@Test
+	public void removesIdleSeries() throws InterruptedException {
+		MeasurementStore store = new MeasurementStore(100, 4);
+		store.add(measurement(1, tag("mrid", "_a"), field("value", "1", MetricValueType.Integer)));
+		store.add(measurement(2, tag("mrid", "_a"), field("value", "2", MetricValueType.Integer)));
+		assertEquals(0, store.evict());
+
+		store.setIdleTimeout(0);
+		Thread.sleep(5);
+		assertEquals(2, store.evict());
+		assertEquals(0, store.seriesCount());
+	}
+
+	@Test
+	public void keepsSeriesWithSeparatorsInTagsApart() {
+		MeasurementStore store = new MeasurementStore(100, 4);
+		store.add(measurement(1, tag("a", "1,b=2"), field("value", "1", MetricValueType.Integer)));
+		store.add(measurement(1, tag("a", "1"), tag("b", "2"), field("value", "2", MetricValueType.Integer)));
+		assertEquals(2, store.seriesCount());
+		assertEquals(Arrays.asList(1L, 1L), scan(store).stream().map(ProvenMeasurement::getTimestamp)
+				.collect(Collectors.toList()));
+	}
+
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMessage.ProvenMessageBuilder;
+
+public class MessageBatchBuilderTest {
+
+	/**
+	 * Message ids and blank node replacement URIs are random UUIDs, unique to
+	 * a build.
+	 */
+	private static final Pattern ID = Pattern
+			.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+	private static String normalize(Object value) {
+		return (null == value) ? "null" : ID.matcher(value.toString()).replaceAll("<id>");
+	}
+
+	private static List<String> statements(ProvenMessage message) {
+		List<String> ret = new ArrayList<String>();
+		if (null != message.getStatements()) {
+			for (ProvenStatement s : message.getStatements()) {
+				ret.add(normalize(s.getSubject()) + " " + normalize(s.getPredicate()) + " " + normalize(s.getObject())
+						+ " " + s.getObjectValueType());
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private static List<String> measurements(ProvenMessage message) {
+		List<String> ret = new ArrayList<String>();
+		Collection<ProvenMeasurement> measurements = message.getMeasurements();
+		if (null != measurements) {
+			for (ProvenMeasurement m : measurements) {
+				TreeSet<String> metrics = new TreeSet<String>();
+				for (ProvenMetric metric : m.getMetrics()) {
+					metrics.add(metric.getLabel() + "=" + metric.getValue() + " " + metric.isMetadata() + " "
+							+ metric.getValueType());
+				}
+				ret.add(m.getMeasurementName() + " " + m.getTimestamp() + " " + metrics + " "
+						+ normalize(m.getProvenMessage()) + " " + normalize(m.getProvenMessageMeasurement()));
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private static List<ProvenMessageBuilder> builders() throws Exception {
+		List<ProvenMessageBuilder> ret = new ArrayList<ProvenMessageBuilder>();
+		for (String name : MessageModelWarmUp.BUNDLED_SAMPLES) {
+			ret.add(ProvenMessage.message(sample(name)));
+		}
+		return ret;
+	}
+
+	private static void assertSameMessage(String name, ProvenMessage expected, ProvenMessage actual) {
+		assertEquals(name, expected.getMessageContent(), actual.getMessageContent());
+		assertEquals(name, statements(expected), statements(actual));
+		assertEquals(name, measurements(expected), measurements(actual));
+	}
+
+	@Test
+	public void buildsSamplesInOneBatchLikeUnbatchedBuilds() throws Exception {
+		List<ProvenMessageBuilder> builders = builders();
+		MessageBatchBuilder batchBuilder = new MessageBatchBuilder(builders.size(), 0);
+		List<CompletableFuture<ProvenMessage>> results = batchBuilder.build(builders);
+
+		for (int i = 0; i < builders.size(); i++) {
+			String name = MessageModelWarmUp.BUNDLED_SAMPLES[i];
+			ProvenMessage expected = ProvenMessage.message(sample(name)).build();
+			assertSameMessage(name, expected, results.get(i).get());
+		}
+
+		assertEquals(builders.size(), batchBuilder.getBatchedCount() + batchBuilder.getUnbatchedCount());
+		assertEquals(batchBuilder.getBatchedCount() > 0, batchBuilder.getBatchCount() > 0);
+		// Queries are never batched
+		assertTrue(batchBuilder.getUnbatchedCount() >= 2);
+		// A fallback rebuilds its whole batch unbatched
+		assertTrue(batchBuilder.getFallbackCount() <= batchBuilder.getUnbatchedCount());
+		assertTrue(batchBuilder.shutdown(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void buildsOptedOutDomainsUnbatched() throws Exception {
+		List<ProvenMessageBuilder> builders = builders();
+		MessageBatchBuilder batchBuilder = new MessageBatchBuilder(builders.size(), 0);
+		List<String> domains = new ArrayList<String>();
+		for (ProvenMessageBuilder builder : builders()) {
+			domains.add(builder.build().getDomain());
+		}
+		for (String domain : domains) {
+			batchBuilder.setDomainBatched(domain, false);
+		}
+		List<CompletableFuture<ProvenMessage>> results = batchBuilder.build(builders);
+
+		for (int i = 0; i < builders.size(); i++) {
+			String name = MessageModelWarmUp.BUNDLED_SAMPLES[i];
+			assertSameMessage(name, ProvenMessage.message(sample(name)).build(), results.get(i).get());
+		}
+		assertEquals(0, batchBuilder.getBatchCount());
+		assertEquals(0, batchBuilder.getBatchedCount());
+		assertEquals(0, batchBuilder.getFallbackCount());
+		assertEquals(builders.size(), batchBuilder.getUnbatchedCount());
+		assertTrue(batchBuilder.shutdown(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void buildsSingleMessageUnbatched() throws Exception {
+		MessageBatchBuilder batchBuilder = new MessageBatchBuilder();
+		String name = "sim-output-test.json";
+		ProvenMessage message = batchBuilder.submit(ProvenMessage.message(sample(name))).get();
+		assertSameMessage(name, ProvenMessage.message(sample(name)).build(), message);
+
+		assertEquals(0, batchBuilder.getBatchedCount());
+		assertEquals(0, batchBuilder.getFallbackCount());
+		assertEquals(1, batchBuilder.getUnbatchedCount());
+		assertTrue(batchBuilder.shutdown(1, TimeUnit.SECONDS));
+	}
+
+}
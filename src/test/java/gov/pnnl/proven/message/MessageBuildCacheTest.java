@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static gov.pnnl.proven.message.TestMeasurements.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+public class MessageBuildCacheTest {
+
+	private static final String PAYLOAD = "{ \"model\": { \"name\": \"feeder 1\" } }";
+
+	private static final URI TYPE = URI.create("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
+
+	/**
+	 * A built static message, with a blank node replaced in its statements
+	 * and measurement.
+	 */
+	private static ProvenMessage built(String payload, URI blankNode) {
+		ProvenMessage ret = new ProvenMessage();
+		ret.setMessage(payload);
+		ret.setDomain("proven.pnnl.gov");
+		ret.setStatic(true);
+		ret.setMessageContent(MessageContent.Static);
+		ret.setStatements(new ArrayList<ProvenStatement>(Arrays.asList(
+				new ProvenStatement(blankNode, TYPE, "http://proven.pnnl.gov/feeder",
+						ProvenStatement.ObjectValueType.URI),
+				new ProvenStatement(blankNode, URI.create("http://proven.pnnl.gov/name"), "feeder 1",
+						ProvenStatement.ObjectValueType.Literal))));
+		ProvenMeasurement measurement = measurement(1, tag("mrid", "_a"),
+				field("magnitude", "1.5", MetricValueType.Double));
+		measurement.setProvenMessageMeasurement(blankNode);
+		ret.setMeasurements(new ArrayList<ProvenMeasurement>(Arrays.asList(measurement)));
+		return ret;
+	}
+
+	private static ProvenMessage resent(String payload) {
+		ProvenMessage ret = new ProvenMessage();
+		ret.setMessage(payload);
+		ret.setDomain("proven.pnnl.gov");
+		ret.setStatic(true);
+		return ret;
+	}
+
+	private static URI blankNode() {
+		return URI.create(MessageUtils.getBNReplacementURI());
+	}
+
+	@Test
+	public void copiesCachedBuildWithRenewedBlankNodes() {
+		MessageBuildCache cache = new MessageBuildCache();
+		URI blankNode = blankNode();
+		ProvenMessage pm = built(PAYLOAD, blankNode);
+		String key = cache.getKey(pm);
+		cache.put(key, 1, pm);
+		assertEquals(1, cache.size());
+		assertEquals(4, cache.getWeight());
+
+		ProvenMessage copy = resent(PAYLOAD);
+		assertTrue(cache.copyTo(cache.getKey(copy), 1, copy));
+		assertEquals(MessageContent.Static, copy.getMessageContent());
+		List<ProvenStatement> statements = new ArrayList<ProvenStatement>(copy.getStatements());
+		assertEquals(2, statements.size());
+
+		// Renewed consistently across statements and measurements
+		URI renewed = statements.get(0).getSubject();
+		assertNotEquals(blankNode, renewed);
+		assertTrue(MessageUtils.isBNReplacementURI(renewed.toString()));
+		assertEquals(renewed, statements.get(1).getSubject());
+		assertEquals("feeder 1", statements.get(1).getObject());
+		ProvenMeasurement measurement = copy.getMeasurements().iterator().next();
+		assertEquals(renewed, measurement.getProvenMessageMeasurement());
+		assertEquals("1.5", values(measurement).get("magnitude"));
+
+		// Each hit gets its own blank nodes
+		ProvenMessage other = resent(PAYLOAD);
+		assertTrue(cache.copyTo(cache.getKey(other), 1, other));
+		assertNotEquals(renewed, other.getStatements().iterator().next().getSubject());
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void keepsCachedBuildWhenBuiltMessageChanges() {
+		MessageBuildCache cache = new MessageBuildCache();
+		ProvenMessage pm = built(PAYLOAD, blankNode());
+		String key = cache.getKey(pm);
+		cache.put(key, 1, pm);
+		pm.getStatements().clear();
+
+		ProvenMessage copy = resent(PAYLOAD);
+		assertTrue(cache.copyTo(key, 1, copy));
+		assertEquals(2, copy.getStatements().size());
+	}
+
+	@Test
+	public void keysNormalizedPayloadByDomain() {
+		MessageBuildCache cache = new MessageBuildCache();
+		String reformatted = "{\"model\":{\n\t\"name\" : \"feeder 1\"}}";
+		assertEquals(cache.getKey(resent(PAYLOAD)), cache.getKey(resent(reformatted)));
+
+		// Whitespace in strings and key order are significant
+		assertNotEquals(cache.getKey(resent(PAYLOAD)), cache.getKey(resent(PAYLOAD.replace("feeder 1", "feeder  1"))));
+		assertNotEquals(cache.getKey(resent("{\"a\":1,\"b\":2}")), cache.getKey(resent("{\"b\":2,\"a\":1}")));
+		ProvenMessage otherDomain = resent(PAYLOAD);
+		otherDomain.setDomain("other.gov");
+		assertNotEquals(cache.getKey(resent(PAYLOAD)), cache.getKey(otherDomain));
+
+		assertEquals("{\"a\":\"x \\\" y\"}", MessageBuildCache.normalize("{ \"a\" : \"x \\\" y\" }"));
+	}
+
+	@Test
+	public void removesBuildsOfOtherModelVersions() {
+		MessageBuildCache cache = new MessageBuildCache();
+		ProvenMessage pm = built(PAYLOAD, blankNode());
+		String key = cache.getKey(pm);
+		cache.put(key, 1, pm);
+
+		assertFalse(cache.copyTo(key, 2, resent(PAYLOAD)));
+		assertEquals(1, cache.getStaleCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedBuilds() {
+		MessageBuildCache cache = new MessageBuildCache(2, 100, true);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 3; i++) {
+			ProvenMessage pm = built("{\"model\":" + i + "}", blankNode());
+			keys.add(cache.getKey(pm));
+			cache.put(keys.get(i), 1, pm);
+			if (i == 1) {
+				// Used, so the second build is evicted instead
+				assertTrue(cache.copyTo(keys.get(0), 1, resent("{\"model\":0}")));
+			}
+		}
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertTrue(cache.copyTo(keys.get(0), 1, resent("{\"model\":0}")));
+		assertFalse(cache.copyTo(keys.get(1), 1, resent("{\"model\":1}")));
+
+		// Evicted by weight
+		cache = new MessageBuildCache(10, 5, true);
+		cache.put("a", 1, built("{\"model\":0}", blankNode()));
+		cache.put("b", 1, built("{\"model\":1}", blankNode()));
+		assertEquals(1, cache.size());
+		assertEquals(4, cache.getWeight());
+	}
+
+	@Test
+	public void cachesOnlyEligibleBuilds() {
+		MessageBuildCache cache = new MessageBuildCache();
+		ProvenMessage pm = built(PAYLOAD, blankNode());
+		assertTrue(cache.isCacheable(pm));
+		pm.setStatic(false);
+		assertFalse(cache.isCacheable(pm));
+		assertTrue(new MessageBuildCache(10, 100, false).isCacheable(pm));
+		pm.setMessage(null);
+		assertFalse(new MessageBuildCache(10, 100, false).isCacheable(pm));
+
+		ProvenMessage query = built(PAYLOAD, blankNode());
+		query.setMessageContent(MessageContent.Query);
+		cache.put("query", 1, query);
+		assertEquals(0, cache.size());
+
+		ProvenMessage copy = resent(PAYLOAD);
+		assertFalse(cache.copyTo("query", 1, copy));
+		assertNull(copy.getStatements());
+	}
+
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class MessageDispatcherTest {
+
+	private static ProvenMessage message(MessageContent content) {
+		ProvenMessage ret = new ProvenMessage();
+		ret.setMessageContent(content);
+		return ret;
+	}
+
+	@Test
+	public void routesMessagesByStream() throws InterruptedException {
+		MessageDispatcher dispatcher = new MessageDispatcher();
+		List<String> handled = new CopyOnWriteArrayList<String>();
+		dispatcher.register(MessageContent.Query, m -> handled.add("first"));
+		dispatcher.register(MessageContent.Query, m -> handled.add("second"));
+
+		assertTrue(dispatcher.dispatch(message(MessageContent.Query)));
+		assertFalse(dispatcher.dispatch(message(MessageContent.Explicit)));
+		assertFalse(dispatcher.dispatch(new ProvenMessage()));
+		assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+
+		assertEquals(2, handled.size());
+		assertEquals("first", handled.get(0));
+		assertEquals(1, dispatcher.getHandledCount(MessageContent.Query.getStream()));
+		assertEquals(0, dispatcher.getHandledCount(MessageContent.Explicit.getStream()));
+	}
+
+	@Test
+	public void rejectsWhenQueueIsFull() throws InterruptedException {
+		MessageDispatcher dispatcher = new MessageDispatcher();
+		String stream = MessageContent.Explicit.getStream();
+		dispatcher.configure(MessageContent.Explicit, 1, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		dispatcher.register(MessageContent.Explicit, m -> {
+			started.countDown();
+			release.await();
+		});
+
+		assertTrue(dispatcher.dispatch(message(MessageContent.Explicit)));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(dispatcher.dispatch(message(MessageContent.Explicit)));
+		assertFalse(dispatcher.dispatch(message(MessageContent.Explicit)));
+		assertFalse(dispatcher.dispatch(message(MessageContent.Explicit), 10, TimeUnit.MILLISECONDS));
+		assertEquals(1, dispatcher.getQueueSize(stream));
+		assertEquals(2, dispatcher.getRejectedCount(stream));
+
+		release.countDown();
+		assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+		assertEquals(2, dispatcher.getHandledCount(stream));
+		assertFalse(dispatcher.dispatch(message(MessageContent.Explicit)));
+		assertEquals(3, dispatcher.getRejectedCount(stream));
+	}
+
+	@Test
+	public void countsHandlerFailures() throws InterruptedException {
+		MessageDispatcher dispatcher = new MessageDispatcher();
+		String stream = MessageContent.Query.getStream();
+		AtomicLong after = new AtomicLong();
+		dispatcher.register(MessageContent.Query, m -> {
+			throw new IllegalStateException("failed");
+		});
+		dispatcher.register(MessageContent.Query, m -> after.incrementAndGet());
+
+		dispatcher.dispatch(message(MessageContent.Query));
+		dispatcher.dispatch(message(MessageContent.Query));
+		assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+
+		assertEquals(2, dispatcher.getFailedCount(stream));
+		assertEquals(2, dispatcher.getHandledCount(stream));
+		assertEquals(2, after.get());
+	}
+
+	@Test
+	public void handlesEveryAcceptedMessageDuringShutdown() throws InterruptedException {
+		for (int round = 0; round < 20; round++) {
+			MessageDispatcher dispatcher = new MessageDispatcher();
+			String stream = MessageContent.Explicit.getStream();
+			dispatcher.register(MessageContent.Explicit, m -> {
+			});
+
+			AtomicLong accepted = new AtomicLong();
+			AtomicLong attempts = new AtomicLong();
+			List<Thread> producers = new ArrayList<Thread>();
+			for (int i = 0; i < 4; i++) {
+				Thread t = new Thread(() -> {
+					// Keep dispatching for a while after shutdown starts
+					int afterShutdown = 0;
+					while (afterShutdown < 1000) {
+						if (dispatcher.isShutdown()) {
+							afterShutdown++;
+						}
+						attempts.incrementAndGet();
+						if (dispatcher.dispatch(message(MessageContent.Explicit))) {
+							accepted.incrementAndGet();
+						}
+					}
+				});
+				producers.add(t);
+				t.start();
+			}
+
+			Thread.sleep(5);
+			assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+			for (Thread t : producers) {
+				t.join();
+			}
+
+			assertEquals(0, dispatcher.getQueueSize(stream));
+			assertEquals(accepted.get(), dispatcher.getHandledCount(stream));
+			assertEquals(attempts.get(), accepted.get() + dispatcher.getRejectedCount(stream));
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.junit.Test;
+
+public class MessageModelSnapshotTest {
+
+	private static final String SHAPES = "proven-shapes.jsonld";
+
+	private static Map<String, String> rawFiles(String shapes) {
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("proven-context.jsonld", "{}");
+		ret.put(SHAPES, shapes);
+		return ret;
+	}
+
+	private static Model model() {
+		Model ret = ModelFactory.createDefaultModel();
+		ret.add(ResourceFactory.createStatement(ResourceFactory.createResource("http://proven.pnnl.gov/s"),
+				ResourceFactory.createProperty("http://proven.pnnl.gov/p"),
+				ResourceFactory.createPlainLiteral("value")));
+		return ret;
+	}
+
+	@Test
+	public void roundTripsModels() throws IOException {
+		Model model = model();
+		MessageModelSnapshot snapshot = MessageModelSnapshot.create(rawFiles("shapes"),
+				Collections.singletonMap(SHAPES, model));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		snapshot.write(out);
+		MessageModelSnapshot read = MessageModelSnapshot.read(new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(snapshot.getChecksum(), read.getChecksum());
+		assertTrue(read.matches(rawFiles("shapes")));
+		assertTrue(read.hasModel(SHAPES));
+		assertTrue(read.getModel(SHAPES).isIsomorphicWith(model));
+		assertFalse(read.hasModel("other.jsonld"));
+		assertNull(read.getModel("other.jsonld"));
+	}
+
+	@Test
+	public void matchesOnlyUnchangedSources() {
+		MessageModelSnapshot snapshot = MessageModelSnapshot.create(rawFiles("shapes"),
+				Collections.<String, Model> emptyMap());
+		assertFalse(snapshot.matches(rawFiles("changed shapes")));
+
+		// Registry order does not matter
+		Map<String, String> reordered = new LinkedHashMap<String, String>();
+		reordered.put(SHAPES, "shapes");
+		reordered.put("proven-context.jsonld", "{}");
+		assertTrue(snapshot.matches(reordered));
+	}
+
+	@Test
+	public void checksumSeparatesFileNamesFromContents() {
+		Map<String, String> first = Collections.singletonMap("ab", "c");
+		Map<String, String> second = Collections.singletonMap("a", "bc");
+		assertNotEquals(MessageModelSnapshot.checksum(first), MessageModelSnapshot.checksum(second));
+	}
+
+	@Test
+	public void rejectsOtherInput() {
+		try {
+			MessageModelSnapshot.read(new ByteArrayInputStream("not a snapshot".getBytes(StandardCharsets.UTF_8)));
+			fail("Read a snapshot from other input");
+		} catch (IOException e) {
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OrderedMessageExecutorTest {
+
+	@Test
+	public void runsWorkInOrderPerKey() throws Exception {
+		OrderedMessageExecutor executor = new OrderedMessageExecutor(ProvenMessage::getSource, 4);
+		Map<Object, List<Integer>> runs = new ConcurrentHashMap<Object, List<Integer>>();
+		List<Thread> submitters = new ArrayList<Thread>();
+		for (int k = 0; k < 8; k++) {
+			String key = "source" + k;
+			runs.put(key, new CopyOnWriteArrayList<Integer>());
+			Thread t = new Thread(() -> {
+				// More than a drain task runs before yielding
+				for (int i = 0; i < 500; i++) {
+					int item = i;
+					executor.submit(key, () -> runs.get(key).add(item));
+				}
+			});
+			submitters.add(t);
+			t.start();
+		}
+		for (Thread t : submitters) {
+			t.join();
+		}
+		assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+
+		for (List<Integer> items : runs.values()) {
+			assertEquals(500, items.size());
+			for (int i = 0; i < items.size(); i++) {
+				assertEquals(i, items.get(i).intValue());
+			}
+		}
+		assertEquals(4000, executor.getCompletedCount());
+		assertEquals(0, executor.getPendingCount());
+		assertEquals(0, executor.getKeyCount());
+	}
+
+	@Test
+	public void runsKeysInParallel() throws Exception {
+		OrderedMessageExecutor executor = new OrderedMessageExecutor(ProvenMessage::getSource, 2);
+		CountDownLatch other = new CountDownLatch(1);
+
+		// Completes only if the other key's work runs meanwhile
+		CompletableFuture<Boolean> waiting = executor.submit("a", () -> other.await(5, TimeUnit.SECONDS));
+		executor.submit("b", () -> {
+			other.countDown();
+			return null;
+		});
+
+		assertTrue(waiting.get(10, TimeUnit.SECONDS));
+		assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void keysMessagesBySource() throws Exception {
+		OrderedMessageExecutor executor = new OrderedMessageExecutor(ProvenMessage::getSource, 2);
+		List<String> handled = new CopyOnWriteArrayList<String>();
+		CountDownLatch release = new CountDownLatch(1);
+		executor.submit("sim", () -> release.await(5, TimeUnit.SECONDS));
+
+		List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+		for (String name : Arrays.asList("first", "second", "third")) {
+			ProvenMessage message = new ProvenMessage();
+			message.setSource("sim");
+			message.setName(name);
+			results.add(executor.submit(message, m -> handled.add(m.getName())));
+		}
+		ProvenMessage unkeyed = new ProvenMessage();
+		unkeyed.setName("unkeyed");
+		executor.submit(unkeyed, m -> handled.add(m.getName())).get(5, TimeUnit.SECONDS);
+
+		// Work of other keys isn't held up by the blocked source
+		assertEquals(Arrays.asList("unkeyed"), handled);
+
+		release.countDown();
+		for (CompletableFuture<Void> result : results) {
+			result.get(5, TimeUnit.SECONDS);
+		}
+		assertEquals(Arrays.asList("unkeyed", "first", "second", "third"), handled);
+		assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void continuesAfterFailedWork() throws Exception {
+		OrderedMessageExecutor executor = new OrderedMessageExecutor(ProvenMessage::getSource, 2);
+		CompletableFuture<Object> failing = executor.submit(null, () -> {
+			throw new IllegalStateException("failed");
+		});
+		CompletableFuture<String> next = executor.submit(null, () -> "next");
+
+		try {
+			failing.get(5, TimeUnit.SECONDS);
+			fail("Expected failure");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals("next", next.get(5, TimeUnit.SECONDS));
+		assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+		assertEquals(1, executor.getFailedCount());
+		assertEquals(1, executor.getCompletedCount());
+	}
+
+	@Test
+	public void rejectsWorkAfterShutdown() throws Exception {
+		OrderedMessageExecutor executor = new OrderedMessageExecutor(ProvenMessage::getSource, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		executor.submit("a", () -> release.await(5, TimeUnit.SECONDS));
+
+		// Queued work isn't complete before the timeout
+		assertEquals(false, executor.shutdown(50, TimeUnit.MILLISECONDS));
+		assertTrue(executor.isShutdown());
+		try {
+			executor.submit("a", () -> null);
+			fail("Expected rejection");
+		} catch (IllegalStateException e) {
+			// Shut down
+		}
+		release.countDown();
+	}
+
+}
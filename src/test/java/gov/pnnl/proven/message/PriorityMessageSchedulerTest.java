@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.PriorityMessageScheduler.Priority;
+
+public class PriorityMessageSchedulerTest {
+
+	/**
+	 * Occupies the scheduler's single worker until released.
+	 */
+	private static CountDownLatch block(PriorityMessageScheduler scheduler) throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		scheduler.submit(MessageContent.Query, () -> {
+			started.countDown();
+			return release.await(5, TimeUnit.SECONDS);
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		return release;
+	}
+
+	@Test
+	public void runsWorkInPriorityOrder() throws Exception {
+		PriorityMessageScheduler scheduler = new PriorityMessageScheduler(1, 100);
+		CountDownLatch release = block(scheduler);
+
+		List<MessageContent> order = new CopyOnWriteArrayList<MessageContent>();
+		for (MessageContent content : Arrays.asList(MessageContent.Static, MessageContent.Explicit,
+				MessageContent.Query)) {
+			scheduler.submit(content, () -> order.add(content));
+		}
+		release.countDown();
+		assertTrue(scheduler.shutdown(5, TimeUnit.SECONDS));
+
+		assertEquals(Arrays.asList(MessageContent.Query, MessageContent.Explicit, MessageContent.Static), order);
+		assertEquals(1, scheduler.getWaitTimes(Priority.Low).getCount());
+	}
+
+	@Test
+	public void runsAgedWorkBeforeLaterHigherPriorityWork() throws Exception {
+		PriorityMessageScheduler scheduler = new PriorityMessageScheduler(1, 100);
+		scheduler.setAgingOffset(Priority.Low, 0, TimeUnit.MILLISECONDS);
+		scheduler.setAgingOffset(Priority.High, 1, TimeUnit.SECONDS);
+		assertEquals(1000, scheduler.getAgingOffset(Priority.High, TimeUnit.MILLISECONDS));
+		CountDownLatch release = block(scheduler);
+
+		List<MessageContent> order = new CopyOnWriteArrayList<MessageContent>();
+		scheduler.submit(MessageContent.Static, () -> order.add(MessageContent.Static));
+		scheduler.submit(MessageContent.Query, () -> order.add(MessageContent.Query));
+		release.countDown();
+		assertTrue(scheduler.shutdown(5, TimeUnit.SECONDS));
+
+		assertEquals(Arrays.asList(MessageContent.Static, MessageContent.Query), order);
+	}
+
+	@Test
+	public void boundsQueueUnderConcurrentSubmissions() throws Exception {
+		int maxQueued = 10;
+		PriorityMessageScheduler scheduler = new PriorityMessageScheduler(1, maxQueued);
+		CountDownLatch release = block(scheduler);
+
+		List<CompletableFuture<Object>> accepted = new CopyOnWriteArrayList<CompletableFuture<Object>>();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> submitters = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int j = 0; j < 10; j++) {
+					try {
+						accepted.add(scheduler.submit(MessageContent.Explicit, () -> null));
+					} catch (RejectedExecutionException e) {
+						// Queue full
+					}
+				}
+			});
+			submitters.add(t);
+			t.start();
+		}
+		start.countDown();
+		for (Thread t : submitters) {
+			t.join();
+		}
+
+		assertEquals(maxQueued, accepted.size());
+		assertEquals(maxQueued, scheduler.getQueueSize());
+		assertEquals(80 - maxQueued, scheduler.getRejectedCount());
+
+		// Slots are returned as work starts
+		release.countDown();
+		for (CompletableFuture<Object> result : accepted) {
+			result.get(5, TimeUnit.SECONDS);
+		}
+		assertEquals(0, scheduler.getQueueSize());
+		assertTrue(scheduler.submit(MessageContent.Explicit, () -> true).get(5, TimeUnit.SECONDS));
+		assertTrue(scheduler.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void completesFailedWorkExceptionally() throws Exception {
+		PriorityMessageScheduler scheduler = new PriorityMessageScheduler(2, 10);
+		CompletableFuture<Object> result = scheduler.submit(MessageContent.Explicit, () -> {
+			throw new IllegalStateException("failed");
+		});
+		try {
+			result.get(5, TimeUnit.SECONDS);
+			fail("Expected failure");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		ProvenMessage message = new ProvenMessage();
+		message.setMessageContent(MessageContent.Query);
+		List<ProvenMessage> handled = new CopyOnWriteArrayList<ProvenMessage>();
+		scheduler.submitDispatch(message, handled::add).get(5, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList(message), handled);
+		assertTrue(scheduler.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void rejectsWorkAfterShutdown() throws Exception {
+		PriorityMessageScheduler scheduler = new PriorityMessageScheduler(1, 1);
+		assertTrue(scheduler.shutdown(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 2; i++) {
+			try {
+				scheduler.submit(MessageContent.Explicit, () -> null);
+				fail("Expected rejection");
+			} catch (RejectedExecutionException e) {
+				// Shut down, not full: the queue slot is returned
+			}
+		}
+		assertEquals(2, scheduler.getRejectedCount());
+	}
+
+	@Test
+	public void prioritizesContent() {
+		assertEquals(Priority.High, PriorityMessageScheduler.getPriority(MessageContent.Query));
+		assertEquals(Priority.High, PriorityMessageScheduler.getPriority(MessageContent.ContinuousQuery));
+		assertEquals(Priority.High, PriorityMessageScheduler.getPriority(MessageContent.Administrative));
+		assertEquals(Priority.Normal, PriorityMessageScheduler.getPriority(MessageContent.Explicit));
+		assertEquals(Priority.Normal, PriorityMessageScheduler.getPriority(null));
+		assertEquals(Priority.Low, PriorityMessageScheduler.getPriority(MessageContent.Static));
+	}
+
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static gov.pnnl.proven.message.TestMeasurements.times;
+import static gov.pnnl.proven.message.TestMeasurements.values;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+import gov.pnnl.proven.message.ProvenQueryTimeSeries.Aggregation;
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+public class ProvenQueryExecutorTest {
+
+	private static final long BASE = 1500000000L;
+
+	private static ProvenQueryExecutor executor() {
+		List<ProvenMeasurement> measurements = new ArrayList<ProvenMeasurement>();
+		for (int i = 0; i < 10; i++) {
+			measurements.add(measurement(BASE + i, tag("mrid", (i % 2 == 0) ? "_a" : "_b"),
+					field("magnitude", Integer.toString(i), MetricValueType.Integer)));
+		}
+		ProvenQueryExecutor ret = new ProvenQueryExecutor(MeasurementSource.of(measurements));
+		ret.setMeasurementTimeUnit(TimeUnit.SECONDS);
+		ret.setQueryTimeUnit(TimeUnit.MICROSECONDS);
+		return ret;
+	}
+
+	private static ProvenQueryTimeSeries query(ProvenQueryFilter... filters) {
+		ProvenQueryTimeSeries ret = new ProvenQueryTimeSeries();
+		ret.setMeasurementName(TestMeasurements.MEASUREMENT);
+		ret.setFilters(new ArrayList<ProvenQueryFilter>(Arrays.asList(filters)));
+		return ret;
+	}
+
+	@Test
+	public void filtersTimeRangeAndFields() throws InvalidProvenQueryException {
+		ProvenQueryTimeSeries query = query(
+				new ProvenQueryFilter(ProvenQueryFilter.START_TIME_FIELD, "GE:" + (BASE + 3), null),
+				new ProvenQueryFilter(ProvenQueryFilter.END_TIME_FIELD, "LE:" + (BASE + 7), null),
+				new ProvenQueryFilter("mrid", "_a", "string"));
+
+		List<ProvenMeasurement> results = executor().execute(query).collect(Collectors.toList());
+		assertEquals(Arrays.asList(BASE + 4, BASE + 6), new ArrayList<Long>(times(results)));
+	}
+
+	@Test
+	public void returnsAllMeasurementsWithoutFilters() throws InvalidProvenQueryException {
+		assertEquals(10, executor().execute(query()).count());
+	}
+
+	@Test
+	public void convertsQueryTimesInsideRange() {
+		TimeUnit micros = TimeUnit.MICROSECONDS;
+		TimeUnit millis = TimeUnit.MILLISECONDS;
+		assertEquals(2, ProvenQueryExecutor.toMeasurementTime(1500, micros, millis, true));
+		assertEquals(1, ProvenQueryExecutor.toMeasurementTime(1500, micros, millis, false));
+		assertEquals(2, ProvenQueryExecutor.toMeasurementTime(2000, micros, millis, true));
+		assertEquals(2, ProvenQueryExecutor.toMeasurementTime(2000, micros, millis, false));
+		assertEquals(-1, ProvenQueryExecutor.toMeasurementTime(-1500, micros, millis, true));
+		assertEquals(-2, ProvenQueryExecutor.toMeasurementTime(-1500, micros, millis, false));
+		assertEquals(Long.MIN_VALUE, ProvenQueryExecutor.toMeasurementTime(Long.MIN_VALUE, micros, millis, true));
+		assertEquals(Long.MAX_VALUE, ProvenQueryExecutor.toMeasurementTime(Long.MAX_VALUE, micros, millis, false));
+	}
+
+	@Test
+	public void aggregatesBucketsInQueryTimeUnits() throws InvalidProvenQueryException {
+		ProvenQueryTimeSeries query = query(new ProvenQueryFilter("mrid", "_a", "string"));
+		query.setAggregations(Arrays.asList(Aggregation.Mean, Aggregation.Count));
+		query.setBucketSize(TimeUnit.SECONDS.toMicros(5));
+
+		List<ProvenMeasurement> results = executor().execute(query).collect(Collectors.toList());
+		assertEquals(2, results.size());
+		assertEquals(BASE, results.get(0).getTimestamp().longValue());
+		assertEquals("2.0", values(results.get(0)).get("magnitude_mean"));
+		assertEquals("3", values(results.get(0)).get("magnitude_count"));
+		assertEquals(BASE + 5, results.get(1).getTimestamp().longValue());
+		assertEquals("7.0", values(results.get(1)).get("magnitude_mean"));
+		assertEquals("2", values(results.get(1)).get("magnitude_count"));
+		assertEquals("_a", values(results.get(1)).get("mrid"));
+	}
+
+	@Test
+	public void cachesResultsPerQuery() throws InvalidProvenQueryException {
+		ProvenQueryExecutor executor = executor();
+		executor.setCache(new QueryResultCache());
+		ProvenQueryTimeSeries query = query(new ProvenQueryFilter("mrid", "_b", "string"));
+
+		List<ProvenMeasurement> first = executor.execute(query).collect(Collectors.toList());
+		List<ProvenMeasurement> second = executor.execute(query).collect(Collectors.toList());
+		assertEquals(times(first), times(second));
+		assertEquals(5, second.size());
+	}
+
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static gov.pnnl.proven.message.TestMeasurements.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.hazelcast.internal.serialization.InternalSerializationService;
+import com.hazelcast.internal.serialization.impl.DefaultSerializationServiceBuilder;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+public class ProvenQueryResultTest {
+
+	private static ProvenQueryResult serialize(ProvenQueryResult result) {
+		InternalSerializationService serialization = new DefaultSerializationServiceBuilder()
+				.addDataSerializableFactory(ProvenMessageIDSFactory.FACTORY_ID, new ProvenMessageIDSFactory())
+				.build();
+		return serialization.toObject(serialization.toData(result));
+	}
+
+	private static void assertSameRows(ProvenQueryResult expected, ProvenQueryResult actual) {
+		assertEquals(expected.getMeasurementName(), actual.getMeasurementName());
+		assertEquals(expected.getRowCount(), actual.getRowCount());
+		assertEquals(Arrays.asList(expected.getTagNames()), Arrays.asList(actual.getTagNames()));
+		assertEquals(Arrays.asList(expected.getFieldNames()), Arrays.asList(actual.getFieldNames()));
+		List<ProvenMeasurement> expectedRows = expected.toMeasurements();
+		List<ProvenMeasurement> actualRows = actual.toMeasurements();
+		for (int i = 0; i < expectedRows.size(); i++) {
+			assertEquals(expectedRows.get(i).getTimestamp(), actualRows.get(i).getTimestamp());
+			assertEquals(values(expectedRows.get(i)), values(actualRows.get(i)));
+		}
+	}
+
+	@Test
+	public void readsTypedColumnsWithCursor() {
+		ProvenQueryResult result = new ProvenQueryResult.Builder("voltage")
+				.add(measurement(10, tag("mrid", "_a"), field("count", "5", MetricValueType.Long),
+						field("magnitude", "1", MetricValueType.Integer),
+						field("state", "7", MetricValueType.Integer)))
+				.add(measurement(20, tag("mrid", "_b"), field("magnitude", "2.5", MetricValueType.Double),
+						field("state", "open", MetricValueType.String)))
+				.add(new ProvenMeasurement("voltage", null,
+						new HashSet<ProvenMetric>(Arrays.asList(tag("mrid", "_a")))))
+				.build();
+
+		assertEquals(3, result.getRowCount());
+		int count = result.getFieldIndex("count");
+		int magnitude = result.getFieldIndex("magnitude");
+		int state = result.getFieldIndex("state");
+		int mrid = result.getTagIndex("mrid");
+		assertEquals(-1, result.getFieldIndex("mrid"));
+		assertEquals(-1, result.getTagIndex("count"));
+		assertEquals(ProvenQueryResult.LONG_COLUMN, result.getFieldType(count));
+		assertEquals(ProvenQueryResult.DOUBLE_COLUMN, result.getFieldType(magnitude));
+		assertEquals(ProvenQueryResult.STRING_COLUMN, result.getFieldType(state));
+
+		ProvenQueryResult.Cursor cursor = result.cursor();
+		assertTrue(cursor.next());
+		assertEquals(10, cursor.getTime());
+		assertEquals(5, cursor.getLong(count));
+		assertEquals(1.0, cursor.getDouble(magnitude), 0);
+		assertEquals("7", cursor.getString(state));
+		assertEquals("_a", cursor.getTag(mrid));
+
+		assertTrue(cursor.next());
+		assertEquals(20, cursor.getTime());
+		assertFalse(cursor.isPresent(count));
+		assertEquals(2.5, cursor.getDouble(magnitude), 0);
+		assertEquals(2, cursor.getLong(magnitude));
+		assertEquals("open", cursor.getString(state));
+		assertEquals("_b", cursor.getTag(mrid));
+
+		assertTrue(cursor.next());
+		assertEquals(ProvenQueryResult.NO_TIMESTAMP, cursor.getTime());
+		assertFalse(cursor.isPresent(magnitude));
+		assertNull(cursor.getString(state));
+		assertEquals("_a", cursor.getTag(mrid));
+		assertEquals(0, cursor.getTagCode(mrid));
+
+		assertFalse(cursor.next());
+		assertFalse(cursor.next());
+		assertNull(result.toMeasurements().get(2).getTimestamp());
+	}
+
+	@Test
+	public void marksMissingTagsAndFieldsPastFirstBitmapWord() {
+		ProvenQueryResult.Builder builder = new ProvenQueryResult.Builder("voltage");
+		for (int i = 0; i < 150; i++) {
+			builder.add(measurement(i, (i % 2 == 0) ? tag("mrid", "_" + (i % 3)) : null,
+					(i % 70 == 0) ? field("magnitude", Integer.toString(i), MetricValueType.Integer) : null));
+		}
+		ProvenQueryResult result = builder.build();
+
+		int magnitude = result.getFieldIndex("magnitude");
+		int mrid = result.getTagIndex("mrid");
+		ProvenQueryResult.Cursor cursor = result.cursor();
+		while (cursor.next()) {
+			int row = cursor.getRow();
+			assertEquals(row, cursor.getTime());
+			assertEquals(row % 70 == 0, cursor.isPresent(magnitude));
+			if (row % 70 == 0) {
+				assertEquals(row, cursor.getLong(magnitude));
+			}
+			if (row % 2 == 0) {
+				assertEquals("_" + (row % 3), cursor.getTag(mrid));
+			} else {
+				assertEquals(ProvenQueryResult.NO_TAG, cursor.getTagCode(mrid));
+				assertNull(cursor.getTag(mrid));
+			}
+		}
+		assertEquals(150, cursor.getRow());
+	}
+
+	@Test
+	public void convertsRowsBackToMeasurements() {
+		List<ProvenMeasurement> measurements = new ArrayList<ProvenMeasurement>();
+		for (int i = 0; i < 20; i++) {
+			measurements.add(measurement(1000 + i, tag("mrid", "_" + (i % 4)),
+					field("magnitude", Double.toString(i * 0.5), MetricValueType.Double),
+					field("count", Integer.toString(i), MetricValueType.Long),
+					field("state", (i % 2 == 0) ? "open" : "closed", MetricValueType.String)));
+		}
+		List<ProvenMeasurement> rows = new ProvenQueryResult.Builder("voltage").addAll(measurements).build()
+				.toMeasurements();
+
+		assertEquals(measurements.size(), rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			assertEquals("voltage", rows.get(i).getMeasurementName());
+			assertEquals(measurements.get(i).getTimestamp(), rows.get(i).getTimestamp());
+			assertEquals(values(measurements.get(i)), values(rows.get(i)));
+		}
+	}
+
+	@Test
+	public void serializesColumns() {
+		ProvenQueryResult.Builder builder = new ProvenQueryResult.Builder("voltage");
+		for (int i = 0; i < 100; i++) {
+			builder.add(measurement(1500000000000L + i * 1000, tag("mrid", "_" + (i % 5)),
+					(i % 3 == 0) ? tag("phase", "A") : null,
+					field("small", Integer.toString(i), MetricValueType.Integer),
+					field("wide", Long.toString((i % 2 == 0) ? Long.MIN_VALUE : Long.MAX_VALUE),
+							MetricValueType.Long),
+					field("magnitude", Double.toString(i / 3.0), MetricValueType.Double),
+					(i % 4 == 0) ? field("state", "s" + i, MetricValueType.String) : null));
+		}
+		builder.add(measurement(0));
+		ProvenQueryResult result = builder.build();
+		result.setRequestId("r1");
+
+		ProvenQueryResult copy = serialize(result);
+		assertEquals("r1", copy.getRequestId());
+		assertSameRows(result, copy);
+		int wide = copy.getFieldIndex("wide");
+		ProvenQueryResult.Cursor cursor = copy.cursor();
+		cursor.next();
+		assertEquals(Long.MIN_VALUE, cursor.getLong(wide));
+		cursor.next();
+		assertEquals(Long.MAX_VALUE, cursor.getLong(wide));
+
+		ProvenQueryResult empty = serialize(new ProvenQueryResult.Builder("voltage").build());
+		assertEquals(0, empty.getRowCount());
+		assertNull(empty.getRequestId());
+		assertFalse(empty.cursor().next());
+	}
+
+	@Test
+	public void sharesColumnsBetweenRequests() {
+		ProvenQueryResult result = new ProvenQueryResult.Builder("voltage")
+				.add(measurement(1, tag("mrid", "_a"), field("magnitude", "1.5", MetricValueType.Double))).build();
+		ProvenQueryResult first = result.withRequestId("r1");
+		ProvenQueryResult second = result.withRequestId("r2");
+
+		assertEquals("r1", first.getRequestId());
+		assertEquals("r2", second.getRequestId());
+		assertNull(result.getRequestId());
+		assertSame(result.getMeasurementName(), second.getMeasurementName());
+		assertSameRows(result, first);
+		assertSameRows(result, serialize(second));
+	}
+
+}
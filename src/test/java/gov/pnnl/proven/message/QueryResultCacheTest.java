@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+public class QueryResultCacheTest {
+
+	private static List<ProvenMeasurement> measurements(String value) {
+		return Collections.singletonList(measurement(1L, field("magnitude", value, MetricValueType.Double)));
+	}
+
+	private static CompiledQuery query() throws InvalidProvenQueryException {
+		ProvenQueryTimeSeries query = new ProvenQueryTimeSeries();
+		query.setMeasurementName("voltage");
+		return CompiledQuery.compile(query);
+	}
+
+	private static String value(List<ProvenMeasurement> results) {
+		return results.get(0).getMetrics().iterator().next().getValue();
+	}
+
+	@Test
+	public void keepsResultsOfSourcesApart() throws InvalidProvenQueryException {
+		QueryResultCache cache = new QueryResultCache();
+		ProvenQueryExecutor first = new ProvenQueryExecutor(MeasurementSource.of(measurements("1.0")));
+		ProvenQueryExecutor second = new ProvenQueryExecutor(MeasurementSource.of(measurements("2.0")));
+		first.setCache(cache);
+		second.setCache(cache);
+
+		assertEquals("1.0", value(first.execute(query()).collect(Collectors.toList())));
+		assertEquals("2.0", value(second.execute(query()).collect(Collectors.toList())));
+		assertEquals("1.0", value(first.execute(query()).collect(Collectors.toList())));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void sharesUnmodifiableCopy() {
+		QueryResultCache cache = new QueryResultCache();
+		MeasurementSource source = MeasurementSource.of(measurements("1.0"));
+		List<ProvenMeasurement> results = new ArrayList<ProvenMeasurement>(measurements("1.0"));
+		cache.put(source, "q", "voltage", results, cache.getGeneration("voltage"));
+		results.get(0).getMetrics().iterator().next().setValue("changed");
+
+		List<ProvenMeasurement> hit = cache.get(source, "q");
+		assertEquals("1.0", value(hit));
+		assertSame(hit, cache.get(source, "q"));
+		try {
+			hit.get(0).getMetrics().clear();
+			fail("Cached metrics were modified");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			hit.clear();
+			fail("Cached results were modified");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void encodesOnce() {
+		QueryResultCache cache = new QueryResultCache();
+		MeasurementSource source = MeasurementSource.of(measurements("1.0"));
+		assertNull(cache.getQueryResult(source, "q"));
+		assertNull(cache.getResponseRows(source, "q"));
+		cache.put(source, "q", "voltage", measurements("1.0"), cache.getGeneration("voltage"));
+
+		ProvenQueryResult result = cache.getQueryResult(source, "q");
+		assertEquals(1, result.getRowCount());
+		assertSame(result, cache.getQueryResult(source, "q"));
+		assertSame(cache.getResponseRows(source, "q"), cache.getResponseRows(source, "q"));
+		assertEquals(1, cache.getResponseRows(source, "q").size());
+	}
+
+	@Test
+	public void sharesEncodedResults() throws InvalidProvenQueryException {
+		QueryResultCache cache = new QueryResultCache();
+		ProvenQueryExecutor executor = new ProvenQueryExecutor(MeasurementSource.of(measurements("1.5")));
+		executor.setCache(cache);
+
+		ProvenQueryResult first = executor.executeResult(query(), "a");
+		ProvenQueryResult second = executor.executeResult(query(), "b");
+		assertEquals("a", first.getRequestId());
+		assertEquals("b", second.getRequestId());
+		ProvenQueryResult.Cursor cursor = second.cursor();
+		assertTrue(cursor.next());
+		assertEquals(1.5, cursor.getDouble(second.getFieldIndex("magnitude")), 0);
+
+		List<ProvenMessageResponseFrame> frames = new ArrayList<ProvenMessageResponseFrame>();
+		executor.execute(query(), new ResponseFrameProducer("c", frames::add));
+		executor.execute(query(), new ResponseFrameProducer("d", frames::add));
+		assertEquals(2, frames.size());
+		assertArrayEquals(frames.get(0).getPayload(), frames.get(1).getPayload());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void invalidatesByMeasurement() {
+		QueryResultCache cache = new QueryResultCache();
+		MeasurementSource source = MeasurementSource.of(measurements("1.0"));
+		long generation = cache.getGeneration("voltage");
+		cache.invalidate("voltage");
+		assertFalse(cache.put(source, "q", "voltage", measurements("1.0"), generation));
+
+		cache.put(source, "q", "voltage", measurements("1.0"), cache.getGeneration("voltage"));
+		cache.invalidate("voltage");
+		assertNull(cache.get(source, "q"));
+		assertEquals(0, cache.size());
+	}
+
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.measurement;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.hazelcast.internal.serialization.InternalSerializationService;
+import com.hazelcast.internal.serialization.impl.DefaultSerializationServiceBuilder;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+public class ResponseFrameProducerTest {
+
+	private static String payload(List<ProvenMessageResponseFrame> frames) {
+		StringBuilder ret = new StringBuilder();
+		for (ProvenMessageResponseFrame frame : frames) {
+			ret.append(new String(frame.getPayload(), StandardCharsets.UTF_8));
+		}
+		return ret.toString();
+	}
+
+	@Test
+	public void keepsRowsWholeAcrossFrames() {
+		List<ProvenMessageResponseFrame> frames = new ArrayList<ProvenMessageResponseFrame>();
+		ResponseFrameProducer producer = new ResponseFrameProducer("r1", 8, frames::add);
+		producer.addRow("abc");
+		producer.addRow("defgh");
+		producer.addRow("a row longer than a frame");
+		producer.addRow("x");
+		producer.close();
+
+		assertEquals("abc\ndefgh\na row longer than a frame\nx\n", payload(frames));
+		assertEquals(4, frames.size());
+		assertEquals("a row longer than a frame\n", new String(frames.get(2).getPayload(), StandardCharsets.UTF_8));
+		for (int i = 0; i < frames.size(); i++) {
+			assertEquals("r1", frames.get(i).getRequestId());
+			assertEquals(i, frames.get(i).getSequence());
+			assertEquals(i == frames.size() - 1, frames.get(i).isLast());
+			assertFalse(frames.get(i).isError());
+		}
+		assertEquals(4, producer.getFrameCount());
+		assertEquals(4, producer.getRowCount());
+	}
+
+	@Test
+	public void formatsCachedRowsLikeMeasurements() {
+		List<ProvenMeasurement> measurements = Arrays.asList(
+				measurement(1, tag("mrid", "_a \"quoted\""), field("magnitude", "2.5", MetricValueType.Double)),
+				measurement(2, field("state", "open", MetricValueType.String)),
+				measurement(3, field("magnitude", "NaN", MetricValueType.Double)));
+
+		List<ProvenMessageResponseFrame> produced = new ArrayList<ProvenMessageResponseFrame>();
+		new ResponseFrameProducer("r1", produced::add).produce(measurements.stream());
+		List<ProvenMessageResponseFrame> cached = new ArrayList<ProvenMessageResponseFrame>();
+		new ResponseFrameProducer("r1", cached::add).produceRows(ResponseFrameProducer.format(measurements));
+
+		assertEquals(payload(produced), payload(cached));
+		assertTrue(payload(produced).contains("\"mrid\":\"_a \\\"quoted\\\"\""));
+		assertTrue(payload(produced).contains("\"magnitude\":2.5"));
+		assertTrue(payload(produced).contains("\"magnitude\":\"NaN\""));
+	}
+
+	@Test
+	public void endsFailedResponseWithErrorFrame() {
+		List<ProvenMessageResponseFrame> frames = new ArrayList<ProvenMessageResponseFrame>();
+		ResponseFrameProducer producer = new ResponseFrameProducer("r1", 16, frames::add);
+		Stream<ProvenMeasurement> measurements = Stream.of(1L, 2L, 3L).map(t -> {
+			if (t == 3L) {
+				throw new IllegalStateException("source closed");
+			}
+			return measurement(t, field("magnitude", "1.0", MetricValueType.Double));
+		});
+
+		try {
+			producer.produce(measurements);
+			fail("Expected failure");
+		} catch (IllegalStateException e) {
+			assertEquals("source closed", e.getMessage());
+		}
+
+		ProvenMessageResponseFrame last = frames.get(frames.size() - 1);
+		assertTrue(last.isLast());
+		assertTrue(last.isError());
+		assertEquals("source closed", last.getError());
+		assertEquals(0, last.getPayload().length);
+		for (ProvenMessageResponseFrame frame : frames.subList(0, frames.size() - 1)) {
+			assertFalse(frame.isLast());
+			assertFalse(frame.isError());
+		}
+		assertTrue(producer.isFailed());
+
+		// Neither closing nor failing again sends another last frame
+		int count = frames.size();
+		producer.close();
+		producer.fail(new RuntimeException());
+		assertEquals(count, frames.size());
+	}
+
+	@Test
+	public void doesNotFailClosedResponse() {
+		List<ProvenMessageResponseFrame> frames = new ArrayList<ProvenMessageResponseFrame>();
+		ResponseFrameProducer producer = new ResponseFrameProducer("r1", frames::add);
+		producer.produceRows(Arrays.asList("a".getBytes(StandardCharsets.UTF_8)));
+		producer.fail(new RuntimeException("late"));
+
+		assertEquals(1, frames.size());
+		assertTrue(frames.get(0).isLast());
+		assertFalse(frames.get(0).isError());
+		assertFalse(producer.isFailed());
+	}
+
+	@Test
+	public void serializesFrames() {
+		InternalSerializationService serialization = new DefaultSerializationServiceBuilder()
+				.addDataSerializableFactory(ProvenMessageIDSFactory.FACTORY_ID, new ProvenMessageIDSFactory())
+				.build();
+
+		ProvenMessageResponseFrame frame = new ProvenMessageResponseFrame("r1", 3, false,
+				"row\n".getBytes(StandardCharsets.UTF_8));
+		ProvenMessageResponseFrame copy = serialization.toObject(serialization.toData(frame));
+		assertEquals("r1", copy.getRequestId());
+		assertEquals(3, copy.getSequence());
+		assertFalse(copy.isLast());
+		assertArrayEquals(frame.getPayload(), copy.getPayload());
+		assertFalse(copy.isError());
+		assertNull(copy.getError());
+
+		ProvenMessageResponseFrame error = ProvenMessageResponseFrame.error("r1", 4, "failed");
+		copy = serialization.toObject(serialization.toData(error));
+		assertEquals(4, copy.getSequence());
+		assertTrue(copy.isLast());
+		assertTrue(copy.isError());
+		assertEquals("failed", copy.getError());
+		assertEquals(0, copy.getPayload().length);
+	}
+
+}
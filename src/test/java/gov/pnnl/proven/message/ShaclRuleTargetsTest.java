@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.junit.Test;
+import org.topbraid.shacl.vocabulary.SH;
+
+import gov.pnnl.proven.message.ProvenMessage.ProvenMessageBuilder.PreparedMessage;
+import gov.pnnl.proven.message.exception.InvalidProvenMessageException;
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+public class ShaclRuleTargetsTest {
+
+	private static final String PREFIXES = "@prefix ex: <http://proven.pnnl.gov/test#> .\n"
+			+ "@prefix sh: <http://www.w3.org/ns/shacl#> .\n"
+			+ "@prefix rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> .\n"
+			+ "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n";
+
+	private static final String SHAPES = PREFIXES
+			+ "ex:ClassShape sh:targetClass ex:Base ; sh:rule ex:classRule .\n"
+			+ "ex:SubjectsShape sh:targetSubjectsOf ex:p ; sh:rule ex:subjectsRule .\n"
+			+ "ex:ObjectsShape sh:targetObjectsOf ex:q ; sh:rule ex:objectsRule .\n"
+			+ "ex:NodeShape sh:targetNode ex:n ; sh:rule ex:nodeRule .\n"
+			+ "ex:Implicit a rdfs:Class ; sh:rule ex:implicitRule .\n";
+
+	private static final String ONTOLOGY = PREFIXES + "ex:Sub rdfs:subClassOf ex:Base .\n";
+
+	private static Model turtle(String turtle) {
+		Model ret = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(ret, new ByteArrayInputStream(turtle.getBytes(StandardCharsets.UTF_8)),
+				RDFLanguages.TURTLE);
+		return ret;
+	}
+
+	private static Node ex(String name) {
+		return NodeFactory.createURI("http://proven.pnnl.gov/test#" + name);
+	}
+
+	private static Set<Node> shapes(String... names) {
+		Set<Node> ret = new HashSet<Node>();
+		for (String name : names) {
+			ret.add(ex(name));
+		}
+		return ret;
+	}
+
+	private static Set<Node> targeted(String data) {
+		return new ShaclRuleTargets(turtle(SHAPES), turtle(ONTOLOGY)).getTargetedShapes(turtle(PREFIXES + data)
+				.getGraph());
+	}
+
+	@Test
+	public void findsShapesByTarget() {
+		assertEquals(shapes("NodeShape"), targeted("ex:x ex:other ex:y ."));
+		assertEquals(shapes("NodeShape", "ClassShape"), targeted("ex:x a ex:Sub ."));
+		assertEquals(shapes("NodeShape", "SubjectsShape"), targeted("ex:x ex:p ex:y ."));
+		assertEquals(shapes("NodeShape", "ObjectsShape"), targeted("ex:x ex:q ex:y ."));
+		assertEquals(shapes("NodeShape", "Implicit"), targeted("ex:x a ex:Implicit ."));
+		assertEquals(5, targeted("ex:Other rdfs:subClassOf ex:Thing .").size());
+	}
+
+	@Test
+	public void hidesRulesOfUntargetedShapes() {
+		Model shapesModel = turtle(SHAPES);
+		ShaclRuleTargets targets = new ShaclRuleTargets(shapesModel, turtle(ONTOLOGY));
+		assertEquals(5, targets.size());
+
+		Set<Node> targeted = shapes("NodeShape", "ClassShape");
+		Model view = targets.getShapesModel(targeted);
+		assertTrue(view.getGraph().contains(ex("ClassShape"), SH.rule.asNode(), ex("classRule")));
+		assertFalse(view.getGraph().contains(ex("SubjectsShape"), SH.rule.asNode(), Node.ANY));
+		assertTrue(view.getGraph().contains(ex("SubjectsShape"), SH.targetSubjectsOf.asNode(), ex("p")));
+		assertSame(view, targets.getShapesModel(new HashSet<Node>(targeted)));
+
+		Set<Node> all = shapes("ClassShape", "SubjectsShape", "ObjectsShape", "NodeShape", "Implicit");
+		assertSame(shapesModel, targets.getShapesModel(all));
+		assertTrue(targets.getShapesModel(Collections.<Node> emptySet()).getGraph().find(Node.ANY,
+				SH.rule.asNode(), Node.ANY).toList().isEmpty());
+	}
+
+	@Test
+	public void targetedRulesMatchAllRulesForQueries() throws IOException, InvalidProvenMessageException,
+			InvalidProvenQueryException {
+		for (String name : new String[] { "sim-query-test.json", "sim-query-test2.json" }) {
+			PreparedMessage prepared = ProvenMessage.message(sample(name)).prepare();
+			try {
+				assertTrue(name, prepared.isQuery());
+				Model all = MessageUtils.addShaclRuleResults(prepared.getMessageModel(), prepared.getDataModel());
+				Model targeted = MessageUtils.addTargetedShaclRuleResults(prepared.getMessageModel(),
+						prepared.getDataModel());
+				assertTrue(name, all.isIsomorphicWith(targeted));
+				assertEquals(name, CompiledQuery.compile(MessageUtils.getProvenQuery(all)).getFingerprint(),
+						CompiledQuery.compile(MessageUtils.getProvenQuery(targeted)).getFingerprint());
+			} finally {
+				prepared.release();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+
+package gov.pnnl.proven.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.IOUtils;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+
+/**
+ * Measurement and sample message fixtures shared by the tests.
+ * 
+ * @author d3j766
+ *
+ */
+final class TestMeasurements {
+
+	static final String MEASUREMENT = "voltage";
+
+	private TestMeasurements() {
+	}
+
+	static ProvenMetric tag(String label, String value) {
+		return new ProvenMetric(label, value, true, MetricValueType.String);
+	}
+
+	static ProvenMetric field(String label, String value, MetricValueType valueType) {
+		return new ProvenMetric(label, value, false, valueType);
+	}
+
+	static ProvenMeasurement measurement(String name, long timestamp, ProvenMetric... metrics) {
+		Set<ProvenMetric> set = new HashSet<ProvenMetric>();
+		for (ProvenMetric metric : metrics) {
+			if (null != metric) {
+				set.add(metric);
+			}
+		}
+		return new ProvenMeasurement(name, timestamp, set);
+	}
+
+	/**
+	 * @return a {@link #MEASUREMENT} measurement, null metrics are left out
+	 */
+	static ProvenMeasurement measurement(long timestamp, ProvenMetric... metrics) {
+		return measurement(MEASUREMENT, timestamp, metrics);
+	}
+
+	static Map<String, ProvenMetric> metrics(ProvenMeasurement measurement) {
+		Map<String, ProvenMetric> ret = new HashMap<String, ProvenMetric>();
+		for (ProvenMetric metric : measurement.getMetrics()) {
+			ret.put(metric.getLabel(), metric);
+		}
+		return ret;
+	}
+
+	static Map<String, String> values(ProvenMeasurement measurement) {
+		Map<String, String> ret = new HashMap<String, String>();
+		for (ProvenMetric metric : measurement.getMetrics()) {
+			ret.put(metric.getLabel(), metric.getValue());
+		}
+		return ret;
+	}
+
+	static Set<Long> times(Collection<ProvenMeasurement> measurements) {
+		Set<Long> ret = new TreeSet<Long>();
+		for (ProvenMeasurement measurement : measurements) {
+			ret.add(measurement.getTimestamp());
+		}
+		return ret;
+	}
+
+	/**
+	 * @return a bundled sample message, see {@link MessageModelWarmUp#BUNDLED_SAMPLES}
+	 */
+	static String sample(String name) throws IOException {
+		try (InputStream in = TestMeasurements.class.getClassLoader()
+				.getResourceAsStream(MessageModel.MESSAGE_MODEL_PATH + name)) {
+			if (null == in) {
+				throw new IOException("Missing sample message: " + name);
+			}
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		}
+	}
+
+}
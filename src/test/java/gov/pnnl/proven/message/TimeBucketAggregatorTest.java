@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import static gov.pnnl.proven.message.TestMeasurements.field;
+import static gov.pnnl.proven.message.TestMeasurements.tag;
+import static gov.pnnl.proven.message.TestMeasurements.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import gov.pnnl.proven.message.ProvenMetric.MetricFragmentIdentifier.MetricValueType;
+import gov.pnnl.proven.message.ProvenQueryTimeSeries.Aggregation;
+import gov.pnnl.proven.message.exception.InvalidProvenQueryException;
+
+public class TimeBucketAggregatorTest {
+
+	private static ProvenMeasurement measurement(long timestamp, String mrid, String magnitude,
+			MetricValueType valueType) {
+		return TestMeasurements.measurement(timestamp, tag("mrid", mrid), field("magnitude", magnitude, valueType));
+	}
+
+	private static List<ProvenMeasurement> aggregate(MeasurementSource source, long bucketSize, long startTime,
+			long endTime, ProvenQueryFilter... filters) throws InvalidProvenQueryException {
+		List<CompiledQueryFilter> compiled = new ArrayList<CompiledQueryFilter>();
+		for (ProvenQueryFilter filter : filters) {
+			compiled.add(filter.compile());
+		}
+		TimeBucketAggregator aggregator = new TimeBucketAggregator(TestMeasurements.MEASUREMENT,
+				Arrays.asList(Aggregation.values()), bucketSize);
+		source.aggregate(TestMeasurements.MEASUREMENT, startTime, endTime, compiled, aggregator);
+		return aggregator.results().collect(Collectors.toList());
+	}
+
+	private static void assertSameResults(List<ProvenMeasurement> expected, List<ProvenMeasurement> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+			assertEquals(values(expected.get(i)), values(actual.get(i)));
+		}
+	}
+
+	@Test
+	public void aggregatesEachSeriesSeparately() {
+		TimeBucketAggregator aggregator = new TimeBucketAggregator("voltage",
+				Arrays.asList(Aggregation.Mean, Aggregation.Count), 10);
+		aggregator.add(measurement(1, "_a", "100.0", MetricValueType.Double));
+		aggregator.add(measurement(2, "_b", "200.0", MetricValueType.Double));
+		aggregator.add(measurement(3, "_a", "110.0", MetricValueType.Double));
+		aggregator.add(measurement(12, "_b", "220.0", MetricValueType.Double));
+
+		List<ProvenMeasurement> results = aggregator.results().collect(Collectors.toList());
+		assertEquals(3, results.size());
+
+		Map<String, String> first = values(results.get(0));
+		assertEquals("_a", first.get("mrid"));
+		assertEquals("105.0", first.get("magnitude_mean"));
+		assertEquals("2", first.get("magnitude_count"));
+		assertEquals(0L, results.get(0).getTimestamp().longValue());
+
+		Map<String, String> second = values(results.get(1));
+		assertEquals("_b", second.get("mrid"));
+		assertEquals("200.0", second.get("magnitude_mean"));
+
+		Map<String, String> third = values(results.get(2));
+		assertEquals("_b", third.get("mrid"));
+		assertEquals("220.0", third.get("magnitude_mean"));
+		assertEquals(10L, results.get(2).getTimestamp().longValue());
+	}
+
+	@Test
+	public void keepsTagsOnResults() {
+		TimeBucketAggregator aggregator = new TimeBucketAggregator("voltage", Arrays.asList(Aggregation.Max), 0);
+		aggregator.add(measurement(5, "_a", "1", MetricValueType.Integer));
+
+		ProvenMeasurement result = aggregator.results().findFirst().get();
+		for (ProvenMetric metric : result.getMetrics()) {
+			if ("mrid".equals(metric.getLabel())) {
+				assertTrue(metric.isMetadata());
+				assertEquals("_a", metric.getValue());
+			} else {
+				assertEquals("magnitude_max", metric.getLabel());
+				assertEquals("1.0", metric.getValue());
+			}
+		}
+		assertEquals(2, result.getMetrics().size());
+		assertEquals(5L, result.getTimestamp().longValue());
+	}
+
+	@Test
+	public void countsNonNumericValuesOnly() {
+		TimeBucketAggregator aggregator = new TimeBucketAggregator("voltage",
+				Arrays.asList(Aggregation.Mean, Aggregation.Count, Aggregation.Last), 0);
+		aggregator.add(measurement(1, "_a", "5", MetricValueType.String));
+		aggregator.add(measurement(2, "_a", "open", MetricValueType.String));
+
+		Map<String, String> result = values(aggregator.results().findFirst().get());
+		assertNull(result.get("magnitude_mean"));
+		assertEquals("2", result.get("magnitude_count"));
+		assertEquals("open", result.get("magnitude_last"));
+	}
+
+	@Test
+	public void keepsSeriesWithSeparatorsInTagsApart() {
+		TimeBucketAggregator aggregator = new TimeBucketAggregator("voltage", Arrays.asList(Aggregation.Count), 0);
+		aggregator.add(TestMeasurements.measurement(1, tag("a", "1,b=2"), field("value", "1", MetricValueType.Integer)));
+		aggregator.add(TestMeasurements.measurement(1, tag("a", "1"), tag("b", "2"), field("value", "2", MetricValueType.Integer)));
+		aggregator.series(new String[] { "a=1,b" }, new String[] { "2" }, new MetricValueType[] {
+				MetricValueType.String }).add(1, "value", 3L, MetricValueType.Integer);
+
+		List<ProvenMeasurement> results = aggregator.results().collect(Collectors.toList());
+		assertEquals(3, results.size());
+		for (ProvenMeasurement result : results) {
+			assertEquals("1", values(result).get("value_count"));
+		}
+	}
+
+	@Test
+	public void formatsTypedLastValues() {
+		TimeBucketAggregator aggregator = new TimeBucketAggregator("voltage", Arrays.asList(Aggregation.Last), 0);
+		TimeBucketAggregator.SeriesAccumulator series = aggregator.series(new String[] { "mrid" },
+				new String[] { "_a" }, new MetricValueType[] { MetricValueType.String });
+		series.add(2, "count", 7L, MetricValueType.Long);
+		series.add(1, "count", 9L, MetricValueType.Long);
+		series.add(1, "angle", 0.1d, MetricValueType.Float);
+		series.add(1, "magnitude", 0.1d, MetricValueType.Double);
+		series.add(1, "state", "open", MetricValueType.String);
+
+		Map<String, ProvenMetric> result = TestMeasurements.metrics(aggregator.results().findFirst().get());
+		assertEquals("7", result.get("count_last").getValue());
+		assertEquals(MetricValueType.Long, result.get("count_last").getValueType());
+		assertEquals("0.1", result.get("angle_last").getValue());
+		assertEquals(MetricValueType.Float, result.get("angle_last").getValueType());
+		assertEquals("0.1", result.get("magnitude_last").getValue());
+		assertEquals("open", result.get("state_last").getValue());
+		assertEquals("_a", result.get("mrid").getValue());
+	}
+
+	@Test
+	public void aggregatesStoreColumnsLikeMeasurements() throws InvalidProvenQueryException {
+		List<ProvenMeasurement> measurements = new ArrayList<ProvenMeasurement>();
+		for (int i = 0; i < 40; i++) {
+			// Out of time order, to split chunks
+			long timestamp = (i * 7) % 40;
+			measurements.add(TestMeasurements.measurement(timestamp, tag("mrid", (i % 3 == 0) ? "_a" : "_b"),
+					field("magnitude", Double.toString(100 + i * 0.5), MetricValueType.Double),
+					field("count", Integer.toString(i), MetricValueType.Long),
+					field("angle", Float.toString(i * 0.25f), MetricValueType.Float),
+					(i % 4 == 0) ? field("state", (i % 8 == 0) ? "open" : "closed", MetricValueType.String) : null));
+		}
+		MeasurementStore store = new MeasurementStore(1000, 4);
+		measurements.forEach(store::add);
+		MeasurementSource source = MeasurementSource.of(measurements);
+
+		assertSameResults(aggregate(source, 10, Long.MIN_VALUE, Long.MAX_VALUE),
+				aggregate(store, 10, Long.MIN_VALUE, Long.MAX_VALUE));
+		assertSameResults(aggregate(source, 0, 5, 30), aggregate(store, 0, 5, 30));
+		assertSameResults(aggregate(source, 4, 3, 25, new ProvenQueryFilter("mrid", "_b", "string")),
+				aggregate(store, 4, 3, 25, new ProvenQueryFilter("mrid", "_b", "string")));
+		assertSameResults(aggregate(source, 10, Long.MIN_VALUE, Long.MAX_VALUE,
+				new ProvenQueryFilter("magnitude", "GT:110", "double")),
+				aggregate(store, 10, Long.MIN_VALUE, Long.MAX_VALUE,
+						new ProvenQueryFilter("magnitude", "GT:110", "double")));
+		assertEquals(Collections.emptyList(), aggregate(store, 10, Long.MIN_VALUE, Long.MAX_VALUE,
+				new ProvenQueryFilter("mrid", "_c", "string")));
+	}
+
+}
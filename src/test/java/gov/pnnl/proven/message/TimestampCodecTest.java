@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Battelle Memorial Institute All rights reserved.
+ * Battelle Memorial Institute (hereinafter Battelle) hereby grants permission to any person or entity 
+ * lawfully obtaining a copy of this software and associated documentation files (hereinafter the 
+ * Software) to redistribute and use the Software in source and binary forms, with or without modification. 
+ * Such person or entity may use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of 
+ * the Software, and may permit others to do so, subject to the following conditions:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ * following disclaimers.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Other than as used herein, neither the name Battelle Memorial Institute or Battelle may be used in any 
+ * form whatsoever without the express written consent of Battelle.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL 
+ * BATTELLE OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, 
+ * OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE 
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED 
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * General disclaimer for use with OSS licenses
+ * 
+ * This material was prepared as an account of work sponsored by an agency of the United States Government. 
+ * Neither the United States Government nor the United States Department of Energy, nor Battelle, nor any 
+ * of their employees, nor any jurisdiction or organization that has cooperated in the development of these 
+ * materials, makes any warranty, express or implied, or assumes any legal liability or responsibility for 
+ * the accuracy, completeness, or usefulness or any information, apparatus, product, software, or process 
+ * disclosed, or represents that its use would not infringe privately owned rights.
+ * 
+ * Reference herein to any specific commercial product, process, or service by trade name, trademark, manufacturer, 
+ * or otherwise does not necessarily constitute or imply its endorsement, recommendation, or favoring by the United 
+ * States Government or any agency thereof, or Battelle Memorial Institute. The views and opinions of authors expressed 
+ * herein do not necessarily state or reflect those of the United States Government or any agency thereof.
+ * 
+ * PACIFIC NORTHWEST NATIONAL LABORATORY operated by BATTELLE for the 
+ * UNITED STATES DEPARTMENT OF ENERGY under Contract DE-AC05-76RL01830
+ ******************************************************************************/
+
+
+package gov.pnnl.proven.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimestampCodecTest {
+
+	private static void assertInvalid(TimestampCodec codec, String timestamp) {
+		try {
+			codec.parse(timestamp);
+			fail("Accepted " + timestamp);
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void normalizesMeasurementEpochsToMicrosecondsByDefault() {
+		TimestampCodec codec = TimestampCodec.getMeasurementCodec();
+		assertEquals(TimeUnit.MICROSECONDS, codec.getUnit());
+		assertNull(codec.getEpochPrecision());
+		assertEquals(1530628305000000L, codec.parse("1530628305"));
+		assertEquals(1530628305123000L, codec.parse("1530628305123"));
+		assertEquals(1530628305123456L, codec.parse("1530628305123456"));
+		assertEquals(1530628305123456L, codec.parse("1530628305123456789"));
+		assertEquals(1530628305123000L, codec.normalize(1530628305123L));
+		assertEquals(1530628305500000L, codec.parse("1530628305.5"));
+		assertEquals(1530628305123000L, codec.parse("2018-07-03T14:31:45.123Z"));
+	}
+
+	@Test
+	public void roundTripsEpochsOfEveryPrecisionInNanoseconds() {
+		TimestampCodec codec = new TimestampCodec(TimeUnit.NANOSECONDS);
+		long nanos = 1530628305123456789L;
+		assertEquals(nanos, codec.parse(Long.toString(nanos)));
+		assertEquals(nanos / 1000 * 1000, codec.parse(Long.toString(nanos / 1000)));
+		assertEquals(nanos / 1000000 * 1000000, codec.parse(Long.toString(nanos / 1000000)));
+		assertEquals(nanos / 1000000000 * 1000000000, codec.parse(Long.toString(nanos / 1000000000)));
+		assertEquals(nanos, codec.parse("1530628305.123456789"));
+		assertEquals(nanos, codec.parse("2018-07-03T14:31:45.123456789Z"));
+	}
+
+	@Test
+	public void roundTripsMillisecondsThroughFinerPrecisions() {
+		TimestampCodec codec = new TimestampCodec(TimeUnit.MILLISECONDS);
+		for (long millis : new long[] { 1530628305123L, 1530628305001L, -1530628305123L }) {
+			assertEquals(millis, codec.parse(Long.toString(millis)));
+			assertEquals(millis, codec.parse(Long.toString(millis * 1000)));
+			assertEquals(millis, codec.parse(Long.toString(millis * 1000000)));
+		}
+		assertEquals(1530628305123L, codec.parse("1530628305.123"));
+		assertEquals(1530628305123L, codec.parse("2018-07-03 14:31:45.123"));
+	}
+
+	@Test
+	public void roundsDownToCoarserUnits() {
+		TimestampCodec seconds = new TimestampCodec(TimeUnit.SECONDS, TimeUnit.SECONDS, ZoneOffset.UTC);
+		assertEquals(1, seconds.parse("1.5"));
+		assertEquals(-2, seconds.parse("-1.5"));
+		assertEquals(-1, seconds.parse("-0.1"));
+		assertEquals(-1, seconds.parse("-1"));
+
+		TimestampCodec fromMillis = new TimestampCodec(TimeUnit.SECONDS, TimeUnit.MILLISECONDS, ZoneOffset.UTC);
+		assertEquals(1, fromMillis.parse("1999"));
+		assertEquals(-2, fromMillis.parse("-1500"));
+		assertEquals(-2, fromMillis.normalize(-1500));
+		assertEquals(-1, seconds.parse("1969-12-31T23:59:59.5Z"));
+	}
+
+	@Test
+	public void rejectsTimestampsOutOfRange() {
+		TimestampCodec codec = new TimestampCodec(TimeUnit.NANOSECONDS);
+		assertInvalid(codec, "99999999999");
+		assertInvalid(codec, "3000-01-01T00:00:00Z");
+		assertTrue(codec.parse("2200-01-01T00:00:00Z") > 0);
+	}
+
+}